@@ -17,18 +17,30 @@
 package com.cmile.serviceutil.cache;
 
 
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
 import com.cmile.serviceutil.gcp.CfgGCPProject;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
 import com.cmile.serviceutil.metric.MetricsService;
 import com.cmile.serviceutil.mongo.DynamicMongoTemplate;
 import com.cmile.testutil.CfgMongoTest;
 import com.cmile.testutil.SpaceAbstractCommonTest;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 
+import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
+import java.util.function.BooleanSupplier;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -49,16 +61,271 @@ public class AbstractCacheRepositoryImplTest extends SpaceAbstractCommonTest {
         testCacheRepository = new TestCacheRepository(metricsService, mongoTemplate.getMongoTemplate(), gcpServiceProject);
     }
 
+    @AfterEach
+    public void clearSpace() {
+        RequestContext.clear();
+    }
+
+    // Entries are cached per space, so reads have to happen in the space that was hydrated.
+    private static void setSpace(String spaceId) {
+        ContextInfo ctx = new ContextInfo();
+        ctx.setSpaceId(spaceId);
+        RequestContext.setRequestContextDetails(ctx);
+    }
+
     @Test
     public void testCacheHydrationFromDatabase() throws Exception {
         mongoTemplate.getMongoTemplate().save(new TestDocument());
 
         testCacheRepository.hydrateCache("testSpaceId");
+        setSpace("testSpaceId");
 
         Map<String, TestDocument> cacheEntries = testCacheRepository.getAll();
         assertFalse(cacheEntries.isEmpty(), "Cache should be hydrated with DB entries");
     }
 
+    @Test
+    public void testStreamingCacheHydrationFromDatabase() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            mongoTemplate.getMongoTemplate().save(new TestDocument());
+        }
+
+        TestCacheRepository streamingRepository =
+                new TestCacheRepository(metricsService, mongoTemplate.getMongoTemplate(), gcpServiceProject) {
+                    @Override
+                    public boolean isStreamingHydrationEnabled() {
+                        return true;
+                    }
+
+                    @Override
+                    public int getHydrationBatchSize() {
+                        // Smaller than the collection so the keyset cursor has to page
+                        return 2;
+                    }
+                };
+        streamingRepository.hydrateCache("testSpaceId");
+
+        assertTrue(streamingRepository.getSize() >= 5, "Every batch should be streamed into the cache");
+    }
+
+    @Test
+    public void testChangeStreamAppliesChangesIncrementally() throws Exception {
+        MongoTemplate template = mongoTemplate.getMongoTemplate();
+        template.save(new TestDocument("cs-existing", "monday"));
+
+        TestCacheRepository changeStreamRepository = changeStreamRepository(template);
+        try {
+            changeStreamRepository.hydrateCache("testSpaceId");
+            setSpace("testSpaceId");
+            assertNotNull(changeStreamRepository.get("cs-existing"), "Hydration should load existing documents");
+
+            template.save(new TestDocument("cs-inserted", "tuesday"));
+            awaitTrue(() -> getQuietly(changeStreamRepository, "cs-inserted") != null);
+
+            template.updateFirst(Query.query(Criteria.where("_id").is("cs-inserted")),
+                    Update.update("testDay", "wednesday"), TestDocument.class);
+            awaitTrue(() -> {
+                TestDocument updated = getQuietly(changeStreamRepository, "cs-inserted");
+                return updated != null && "wednesday".equals(updated.getTestDay());
+            });
+
+            template.remove(Query.query(Criteria.where("_id").is("cs-existing")), TestDocument.class);
+            awaitTrue(() -> getQuietly(changeStreamRepository, "cs-existing") == null);
+        } finally {
+            changeStreamRepository.stopChangeStreams();
+        }
+
+        assertNotNull(resumeToken(template, "testSpaceId"), "The resume token should be persisted");
+        assertNull(resumeToken(template, "otherSpaceId"), "Resume tokens are kept per space");
+    }
+
+    @Test
+    public void testChangeStreamResumesFromThePersistedToken() throws Exception {
+        MongoTemplate template = mongoTemplate.getMongoTemplate();
+        template.save(new TestDocument("cs-kept", "monday"));
+        template.save(new TestDocument("cs-deleted", "monday"));
+        TestCacheRepository changeStreamRepository = changeStreamRepository(template);
+        changeStreamRepository.hydrateCache("testSpaceId");
+        changeStreamRepository.stopChangeStreams();
+
+        // Changed while no stream ran, and only seen through the persisted token
+        template.remove(Query.query(Criteria.where("_id").is("cs-deleted")), TestDocument.class);
+
+        // A new instance stands in for a restart whose entries were put back by the application
+        TestCacheRepository restarted = changeStreamRepository(template);
+        setSpace("testSpaceId");
+        restarted.put("cs-kept", template.findById("cs-kept", TestDocument.class));
+        restarted.put("cs-deleted", new TestDocument("cs-deleted", "monday"));
+        try {
+            assertTrue(restarted.resumeChangeStream("testSpaceId"));
+            setSpace("testSpaceId");
+            awaitTrue(() -> getQuietly(restarted, "cs-deleted") == null);
+            assertNotNull(restarted.get("cs-kept"), "Resuming must not drop the entries in place");
+        } finally {
+            restarted.stopChangeStreams();
+        }
+    }
+
+    private TestCacheRepository changeStreamRepository(MongoTemplate template) {
+        return new TestCacheRepository(metricsService, template, gcpServiceProject) {
+            @Override
+            public boolean isChangeStreamEnabled() {
+                return true;
+            }
+
+            @Override
+            public String getCacheName() {
+                return "ChangeStreamTestCache";
+            }
+
+            @Override
+            public String getKey(TestDocument entity) {
+                return entity.getId();
+            }
+        };
+    }
+
+    private static Document resumeToken(MongoTemplate template, String spaceId) {
+        Document id = new Document("cache", "ChangeStreamTestCache").append("space", spaceId);
+        return template.getCollection("cacheResumeTokens").find(new Document("_id", id)).first();
+    }
+
+    private static TestDocument getQuietly(TestCacheRepository repository, String key) {
+        try {
+            return repository.get(key);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Change was not applied within 10 seconds");
+            Thread.sleep(100);
+        }
+    }
+
+    @Test
+    public void testSnapshotRestoreSkipsDatabaseLoad(@TempDir Path snapshotDirectory) throws Exception {
+        MongoTemplate template = mongoTemplate.getMongoTemplate();
+        template.save(new TestDocument("snapshot-doc", "thursday"));
+
+        TestCacheRepository writer = snapshotRepository(template, snapshotDirectory);
+        writer.hydrateCache("testSpaceId");
+        writer.writeSnapshot();
+
+        // Gone from the database, so the entry can only come back from the snapshot
+        template.remove(Query.query(Criteria.where("_id").is("snapshot-doc")), TestDocument.class);
+        TestCacheRepository restarted = snapshotRepository(template, snapshotDirectory);
+        restarted.hydrateCache("testSpaceId");
+        setSpace("testSpaceId");
+
+        TestDocument restored = restarted.get("snapshot-doc");
+        assertNotNull(restored, "Entries should be restored from the snapshot");
+        assertEquals("thursday", restored.getTestDay());
+    }
+
+    private TestCacheRepository snapshotRepository(MongoTemplate template, Path snapshotDirectory) {
+        TestCacheRepository repository = new TestCacheRepository(metricsService, template, gcpServiceProject) {
+            @Override
+            public boolean isSnapshotEnabled() {
+                return true;
+            }
+
+            @Override
+            public String getCacheName() {
+                return "SnapshotTestCache";
+            }
+
+            @Override
+            public String getKey(TestDocument entity) {
+                return entity.getId();
+            }
+
+            @Override
+            public long getMaxSize() {
+                return 1000;
+            }
+        };
+        repository.setSnapshotDirectory(snapshotDirectory.toString());
+        return repository;
+    }
+
+    @Test
+    public void testPartitionedLayoutIsolatesSpaces() throws Exception {
+        MongoTemplate template = mongoTemplate.getMongoTemplate();
+        template.save(new TestDocument("partition-doc", "friday"));
+
+        TestCacheRepository partitionedRepository = new TestCacheRepository(metricsService, template, gcpServiceProject) {
+            @Override
+            public boolean isPartitionedBySpace() {
+                return true;
+            }
+
+            @Override
+            public String getKey(TestDocument entity) {
+                return entity.getId();
+            }
+
+            @Override
+            public long getMaxSizePerSpace(String spaceId) {
+                return 1000;
+            }
+        };
+        partitionedRepository.hydrateCache("spaceA");
+        partitionedRepository.hydrateCache("spaceB");
+
+        setSpace("spaceA");
+        assertNotNull(partitionedRepository.get("partition-doc"));
+        partitionedRepository.put("only-in-a", new TestDocument());
+
+        setSpace("spaceB");
+        assertNull(partitionedRepository.get("only-in-a"), "Entries of one space must not leak into another");
+
+        partitionedRepository.invalidateSpace("spaceA");
+        assertNotNull(partitionedRepository.get("partition-doc"), "Other spaces survive a space invalidation");
+        setSpace("spaceA");
+        assertNull(partitionedRepository.get("partition-doc"));
+    }
+
+    @Test
+    public void testSecondaryIndexFollowsHydrationAndWrites() throws Exception {
+        MongoTemplate template = mongoTemplate.getMongoTemplate();
+        template.save(new TestDocument("index-mon", "monday"));
+        template.save(new TestDocument("index-tue", "tuesday"));
+
+        TestCacheRepository indexedRepository = new TestCacheRepository(metricsService, template, gcpServiceProject) {
+            {
+                addIndex("day", TestDocument::getTestDay);
+            }
+
+            @Override
+            public String getKey(TestDocument entity) {
+                return entity.getId();
+            }
+
+            @Override
+            public long getMaxSize() {
+                return 1000;
+            }
+        };
+        indexedRepository.hydrateCache("spaceA");
+
+        setSpace("spaceA");
+        assertTrue(indexedRepository.findKeysByIndex("day", "monday").contains("index-mon"));
+        assertTrue(indexedRepository.findKeysByIndex("day", "tuesday").contains("index-tue"));
+
+        indexedRepository.put("index-tue", new TestDocument("index-tue", "monday"));
+        indexedRepository.remove("index-mon");
+
+        assertFalse(indexedRepository.findKeysByIndex("day", "tuesday").contains("index-tue"));
+        assertEquals(List.of("index-tue"), indexedRepository.findByIndex("day", "monday").stream()
+                .map(TestDocument::getId)
+                .filter(id -> id.startsWith("index-"))
+                .toList());
+    }
+
     @Test
     public void testPutAndGetFromCache() throws Exception {
         String key = "testKey";
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.scheduling.TaskScheduler;
+
+import com.cmile.serviceutil.job.PubSub.PubSubPublisher;
+import com.cmile.testutil.AbstractCommonTest;
+import com.cmile.testutil.CfgPubSubTest;
+import com.cmile.testutil.pubsub.PubSubServiceTest;
+import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.spring.core.GcpProjectIdProvider;
+import com.google.cloud.spring.pubsub.PubSubAdmin;
+import com.google.cloud.spring.pubsub.core.PubSubTemplate;
+import com.google.cloud.spring.pubsub.support.AcknowledgeablePubsubMessage;
+import com.google.pubsub.v1.Subscription;
+
+@SpringBootTest(classes = {CfgPubSubTest.class, CfgCacheInvalidation.class})
+public class CacheInvalidationBusPubSubTest extends AbstractCommonTest {
+
+    private static final long TIMEOUT_MS = 10_000;
+
+    @Autowired
+    private CacheInvalidationBus replicaA;
+
+    @Autowired
+    private PubSubPublisher pubSubPublisher;
+
+    @Autowired
+    @Qualifier("fakePubSubTemplate")
+    private PubSubTemplate pubSubTemplate;
+
+    @Autowired
+    private GcpProjectIdProvider gcpProjectIdProvider;
+
+    @Autowired
+    private TopicAdminClient topicAdminClient;
+
+    @Autowired
+    private SubscriptionAdminClient subscriptionAdminClient;
+
+    @Autowired
+    @Qualifier("cacheTaskScheduler")
+    private TaskScheduler cacheTaskScheduler;
+
+    @Autowired
+    private PubSubServiceTest pubSubServiceTest;
+
+    private CacheInvalidationBus replicaB;
+    private CountingCacheManager managerA;
+    private CountingCacheManager managerB;
+
+    @BeforeEach
+    public void startReplicas() {
+        replicaB = new CacheInvalidationBus(pubSubPublisher, pubSubTemplate,
+                new PubSubAdmin(gcpProjectIdProvider, topicAdminClient, subscriptionAdminClient), cacheTaskScheduler,
+                gcpServiceProject, jsonEntityMapper, "cache-invalidation", Duration.ofMillis(100), 500);
+        replicaB.start();
+        managerA = new CountingCacheManager();
+        managerA.setCacheInvalidationBus(replicaA);
+        managerB = new CountingCacheManager();
+        managerB.setCacheInvalidationBus(replicaB);
+    }
+
+    @AfterEach
+    public void stopReplica() {
+        replicaB.stop();
+    }
+
+    @Test
+    public void testEvictionReachesOtherReplica() throws Exception {
+        managerA.getCache("k");
+        managerB.getCache("k");
+        assertEquals(1, managerB.loads.get());
+
+        managerA.evictCache("k");
+
+        awaitTrue(() -> {
+            managerB.getCache("k");
+            return managerB.loads.get() == 2;
+        });
+        // replica A evicted locally and ignored its own message
+        managerA.getCache("k");
+        assertEquals(2, managerA.loads.get());
+    }
+
+    @Test
+    public void testBurstArrivesAsOneMessage() throws Exception {
+        Subscription probe = pubSubServiceTest.subscribe(replicaA.getTopicName(), "cache-invalidation-probe");
+        List<String> keys = List.of("a", "b", "c", "d");
+        keys.forEach(managerB::getCache);
+
+        keys.forEach(managerA::evictCache);
+
+        awaitTrue(() -> {
+            keys.forEach(managerB::getCache);
+            return managerB.loads.get() == 2 * keys.size();
+        });
+        List<AcknowledgeablePubsubMessage> messages = pubSubTemplate.pull(probe.getName(), 10, true);
+        assertEquals(1, messages.size());
+        pubSubTemplate.ack(messages);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Invalidation did not arrive in time");
+            Thread.sleep(100);
+        }
+    }
+
+    private static class CountingCacheManager extends CacheManager<String, String> {
+        private final AtomicInteger loads = new AtomicInteger();
+
+        CountingCacheManager() {
+            super(1, TimeUnit.MINUTES, 100);
+            setLoader(key -> key + loads.incrementAndGet());
+        }
+
+        @Override
+        public String getCacheName() {
+            return "invalidation-test";
+        }
+    }
+}
@@ -16,11 +16,31 @@
 
 package com.cmile.serviceutil.cache;
 
+import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 @Document(collection = "testCollection")
 public class TestDocument {
 
+    @Id
+    private String id;
+
     private String testDay = "testData";
 
+    public TestDocument() {
+    }
+
+    public TestDocument(String id, String testDay) {
+        this.id = id;
+        this.testDay = testDay;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTestDay() {
+        return testDay;
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.absent;
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.containing;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathMatching;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.secret.entity.MongoAdminEntity;
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.client.ResponseDefinitionBuilder;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClient;
+
+public class AtlasMongoApiClientTest {
+
+  private static final String CHALLENGE =
+      "Digest realm=\"MMS Public API\", domain=\"\", nonce=\"%s\", algorithm=MD5, qop=\"auth\","
+          + " stale=%s";
+  private static final String USERS_PATH = "/api/atlas/v2/groups/project1/databaseUsers";
+  private static final String RELATIVE_USERS_PATH = "project1/databaseUsers";
+
+  private WireMockServer wireMockServer;
+  private SimpleMeterRegistry meterRegistry;
+  private AtlasMongoApiClient client;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    wireMockServer = new WireMockServer(WireMockConfiguration.wireMockConfig().dynamicPort());
+    wireMockServer.start();
+    meterRegistry = new SimpleMeterRegistry();
+    ObjectProvider<MeterRegistry> meterRegistryProvider = mock(ObjectProvider.class);
+    when(meterRegistryProvider.getIfAvailable()).thenReturn(meterRegistry);
+    MongoAdminEntity mongoAdminEntity =
+        MongoAdminEntity.builder().publicKey("public").privateKey("private").build();
+    client =
+        new AtlasMongoApiClient(
+            mongoAdminEntity,
+            WebClient.builder(),
+            wireMockServer.baseUrl() + "/api/atlas/v2/groups",
+            2,
+            Duration.ofMillis(10),
+            meterRegistryProvider);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    wireMockServer.stop();
+  }
+
+  @Test
+  public void authorizesPreemptivelyAfterTheFirstChallenge() {
+    wireMockServer.stubFor(
+        get(urlPathMatching(USERS_PATH + "/admin/.*"))
+            .withHeader("Authorization", absent())
+            .willReturn(challenge("nonce1", false)));
+    wireMockServer.stubFor(
+        get(urlPathMatching(USERS_PATH + "/admin/.*"))
+            .withHeader("Authorization", containing("nonce=\"nonce1\""))
+            .willReturn(aResponse().withStatus(HttpStatus.OK.value()).withBody("{}")));
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals("{}", client.getApi(RELATIVE_USERS_PATH + "/admin/user" + i).block());
+    }
+
+    wireMockServer.verify(
+        1, getRequestedFor(urlPathMatching(USERS_PATH + "/.*")).withHeader("Authorization", absent()));
+    wireMockServer.verify(4, getRequestedFor(urlPathMatching(USERS_PATH + "/.*")));
+    wireMockServer.verify(
+        1,
+        getRequestedFor(urlPathEqualTo(USERS_PATH + "/admin/user2"))
+            .withHeader("Authorization", containing("nc=00000003")));
+    assertEquals(
+        3,
+        meterRegistry
+            .get(AtlasMongoApiClient.REQUESTS_METER)
+            .tag("endpoint", "databaseUsers/{name}")
+            .tag("outcome", "success")
+            .timer()
+            .count());
+  }
+
+  @Test
+  public void answersAStaleNonceOnce() {
+    wireMockServer.stubFor(
+        get(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", absent())
+            .willReturn(challenge("nonce1", false)));
+    wireMockServer.stubFor(
+        get(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", containing("nonce=\"nonce1\""))
+            .inScenario("Stale")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(aResponse().withStatus(HttpStatus.OK.value()).withBody("{}"))
+            .willSetStateTo("Expired"));
+    wireMockServer.stubFor(
+        get(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", containing("nonce=\"nonce1\""))
+            .inScenario("Stale")
+            .whenScenarioStateIs("Expired")
+            .willReturn(challenge("nonce2", true)));
+    wireMockServer.stubFor(
+        get(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", containing("nonce=\"nonce2\""))
+            .willReturn(aResponse().withStatus(HttpStatus.OK.value()).withBody("{}")));
+
+    client.getApi(wireMockServer.baseUrl() + USERS_PATH).block();
+    client.getApi(wireMockServer.baseUrl() + USERS_PATH).block();
+
+    wireMockServer.verify(4, getRequestedFor(urlPathEqualTo(USERS_PATH)));
+    wireMockServer.verify(
+        1,
+        getRequestedFor(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", containing("nonce=\"nonce2\"")));
+  }
+
+  @Test
+  public void retriesRateLimitedRequests() {
+    wireMockServer.stubFor(
+        post(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", absent())
+            .willReturn(challenge("nonce1", false)));
+    wireMockServer.stubFor(
+        post(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", containing("Digest"))
+            .inScenario("Rate limit")
+            .whenScenarioStateIs(Scenario.STARTED)
+            .willReturn(aResponse().withStatus(HttpStatus.TOO_MANY_REQUESTS.value()))
+            .willSetStateTo("Allowed"));
+    wireMockServer.stubFor(
+        post(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", containing("Digest"))
+            .inScenario("Rate limit")
+            .whenScenarioStateIs("Allowed")
+            .willReturn(aResponse().withStatus(HttpStatus.CREATED.value()).withBody("{}")));
+
+    assertEquals("{}", client.postApi(wireMockServer.baseUrl() + USERS_PATH, "{}").block());
+
+    wireMockServer.verify(3, postRequestedFor(urlPathEqualTo(USERS_PATH)));
+    wireMockServer.verify(
+        2,
+        postRequestedFor(urlPathEqualTo(USERS_PATH))
+            .withHeader("Authorization", containing("uri=\"" + USERS_PATH + "\"")));
+  }
+
+  private static ResponseDefinitionBuilder challenge(String nonce, boolean stale) {
+    return aResponse()
+        .withStatus(HttpStatus.UNAUTHORIZED.value())
+        .withHeader("WWW-Authenticate", String.format(CHALLENGE, nonce, stale));
+  }
+}
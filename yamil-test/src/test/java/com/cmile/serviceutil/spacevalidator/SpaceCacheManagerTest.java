@@ -85,4 +85,15 @@ public class SpaceCacheManagerTest {
         assertEquals("Failed to fetch space details", exception.getMessage());
         verify(platformService, times(1)).getSpaceDetails(spaceId);
     }
+
+    @Test
+    public void testUnknownSpaceIsNotLoadedAgain() {
+        String spaceId = "unknown-space-id";
+
+        assertNull(spaceCacheManager.getCache(spaceId));
+        assertNull(spaceCacheManager.getCache(spaceId));
+
+        verify(platformService, times(1)).getSpaceDetails(spaceId);
+        assertNotNull(spaceCacheManager.getNegativeEntry(spaceId));
+    }
 }
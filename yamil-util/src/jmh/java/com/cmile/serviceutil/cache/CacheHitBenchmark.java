@@ -0,0 +1,156 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+/**
+ * Cost of a repository cache hit in both layouts, with and without timing samples. Run with the gc
+ * profiler (see {@link #main}); {@code gc.alloc.rate.norm} is expected to stay at zero bytes per
+ * operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheHitBenchmark {
+
+  @Param({"true", "false"})
+  public boolean partitioned;
+
+  @Param({"1", "16"})
+  public int timingSampleRate;
+
+  private UserRepository repository;
+
+  @Setup
+  public void setUp() throws Exception {
+    GCPServiceProject gcpServiceProject = new GCPServiceProject(() -> "benchmark") {
+      @Override
+      public String getApplicationName() {
+        return "benchmark";
+      }
+
+      @Override
+      public String getAppDeploymentScope() {
+        return "SPACE";
+      }
+    };
+    CacheMetricsRegistry cacheMetricsRegistry =
+        new CacheMetricsRegistry(new SimpleMeterRegistry(), gcpServiceProject);
+    cacheMetricsRegistry.setTimingSampleRate(timingSampleRate);
+    ContextInfo ctx = new ContextInfo();
+    ctx.setSpaceId("space1");
+    RequestContext.setRequestContextDetails(ctx);
+
+    repository = partitioned
+        ? new PartitionedUserRepository(gcpServiceProject)
+        : new UserRepository(gcpServiceProject);
+    repository.setCacheMetricsRegistry(cacheMetricsRegistry);
+    repository.put("a", "A");
+  }
+
+  @TearDown
+  public void tearDown() {
+    RequestContext.clear();
+  }
+
+  @Benchmark
+  public String hit() throws Exception {
+    return repository.get("a");
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(CacheHitBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+
+  private static class UserRepository extends AbstractCacheRepositoryImpl<String, String> {
+
+    UserRepository(GCPServiceProject gcpServiceProject) {
+      super(null, (MongoTemplate) null, gcpServiceProject);
+    }
+
+    @Override
+    public String getCacheName() {
+      return "users";
+    }
+
+    @Override
+    public Class<String> getEntityClass() {
+      return String.class;
+    }
+
+    @Override
+    public long getMaxSize() {
+      return 100;
+    }
+
+    @Override
+    public String getKey(String entity) {
+      return entity.toLowerCase();
+    }
+
+    @Override
+    public String getKeyName() {
+      return "id";
+    }
+
+    @Override
+    public String getValue(String entity) {
+      return entity;
+    }
+  }
+
+  private static class PartitionedUserRepository extends UserRepository {
+
+    PartitionedUserRepository(GCPServiceProject gcpServiceProject) {
+      super(gcpServiceProject);
+    }
+
+    @Override
+    public boolean isPartitionedBySpace() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.auth;
+
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import java.util.function.Function;
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+/**
+ * The {@link RequestContext} of reactive code, carried in the Reactor {@link Context} of a
+ * subscription instead of a ThreadLocal, as reactive pipelines hop between threads.
+ */
+public class ReactiveRequestContext {
+
+  private static final Class<ContextInfo> KEY = ContextInfo.class;
+
+  private ReactiveRequestContext() {}
+
+  public static ContextInfo getRequestContextDetails(ContextView context) {
+    return context.getOrDefault(KEY, null);
+  }
+
+  /**
+   * For {@code contextWrite}, puts the details into the Context of everything upstream.
+   */
+  public static Function<Context, Context> withRequestContextDetails(ContextInfo contextDetails) {
+    return context -> context.put(KEY, contextDetails);
+  }
+}
@@ -16,48 +16,168 @@
 
 package com.cmile.serviceutil.cache;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.stereotype.Repository;
 import org.springframework.data.domain.Sort;
 
 import com.cmile.serviceutil.auth.RequestContext;
 import com.cmile.serviceutil.auth.jwt.ContextInfo;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.metric.CacheInstrumentation;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
 import com.cmile.serviceutil.metric.MetricsService;
 import com.cmile.serviceutil.metric.MetricsTagName;
 import com.cmile.serviceutil.metric.MetricsType;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
 
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public abstract class AbstractCacheRepositoryImpl<K, V> implements CacheRepository<K, V> {
 
-    private final Cache<K, V> cache;
+    // Allowance for clocks of the writers being ahead of ours when catching up after a snapshot.
+    private static final Duration SNAPSHOT_CLOCK_SKEW = Duration.ofMinutes(1);
+
+    private final IndexedCacheLayout<K, V> cache;
     private final MetricsService metrics;
     private final MongoTemplate mongoTemplate;
+    private final CacheSource<K, V> source;
     private final GCPServiceProject gcpServiceProject;
     private final boolean isGlobalScope;
+    private TaskExecutor cacheTaskExecutor;
+    private TaskExecutor cacheWriteBehindExecutor;
+    private TaskExecutor cacheRefreshExecutor;
+    private TaskScheduler cacheTaskScheduler;
+
+    // Change stream and snapshot modes only: the watcher of each space and the cache key of every
+    // cached document _id per space, since a delete event carries nothing but the _id.
+    private final Map<String, ChangeStreamWatcher> watchers = new ConcurrentHashMap<>();
+    // Source mode only: the loads of keys read through to the source, by space and key.
+    private final Map<TenantKey<K>, CompletableFuture<V>> readThroughs = new ConcurrentHashMap<>();
+    private ExecutorService changeStreamExecutor;
+    private final Map<String, DocumentKeys<K>> documentKeys = new ConcurrentHashMap<>();
+
+    private Path snapshotDirectory = Path.of(System.getProperty("java.io.tmpdir"), "cmile-cache-snapshots");
+    private final Object snapshotLock = new Object();
+    private boolean snapshotRead;
+    private Map<String, CacheSnapshotFile.Section> unrestoredSections = Map.of();
+    private long unrestoredSnapshotCreatedAt;
+    private volatile long snapshotCreatedAt;
+    private volatile MongoConverter snapshotConverter;
+    private ScheduledFuture<?> snapshotTask;
+    private CacheInvalidationBus cacheInvalidationBus;
+    private CacheInstrumentation instrumentation = CacheInstrumentation.NOOP;
+    private volatile WriteBehindBuffer<K, V> writeBehindBuffer;
+    private ScheduledFuture<?> writeBehindTask;
 
     public AbstractCacheRepositoryImpl(MetricsService metrics, MongoTemplate mongoTemplate,
             GCPServiceProject gcpServiceProject) {
+        this(metrics, mongoTemplate, null, gcpServiceProject);
+    }
+
+    /**
+     * A repository loaded from another store than Mongo, such as JPA, BigQuery or a remote API. It is
+     * keyed, partitioned, bounded, indexed and measured like a Mongo backed one, and a miss reads the
+     * key through to the source when the source can look up single keys. The streaming, change
+     * stream and snapshot modes are Mongo only and are ignored.
+     */
+    public AbstractCacheRepositoryImpl(MetricsService metrics, CacheSource<K, V> source,
+            GCPServiceProject gcpServiceProject) {
+        this(metrics, null, source, gcpServiceProject);
+    }
+
+    private AbstractCacheRepositoryImpl(MetricsService metrics, MongoTemplate mongoTemplate, CacheSource<K, V> source,
+            GCPServiceProject gcpServiceProject) {
         this.mongoTemplate = mongoTemplate;
-        this.cache = Caffeine.newBuilder()
-                .maximumSize(getMaxSize())
-                .expireAfterWrite(getExpirationTime(), getExpirationUnit())
-                .build();
+        this.source = source;
+        this.cache = new IndexedCacheLayout<>(isPartitionedBySpace()
+                ? new PartitionedCacheLayout<>(spaceId -> getCapacityPerSpace(spaceId)
+                        .<K, V>applyTo(newCacheBuilder(), this::weigh)
+                        .evictionListener((K key, V value, RemovalCause cause) -> onEviction(spaceId, key, value))
+                        .build())
+                : new SharedCacheLayout<>(getCapacity()
+                        .<TenantKey<K>, V>applyTo(newCacheBuilder(), (key, value) -> weigh(key.getKey(), value))
+                        .evictionListener((TenantKey<K> key, V value, RemovalCause cause) ->
+                                onEviction(key.getSpaceId(), key.getKey(), value))));
         this.metrics = metrics;
         this.gcpServiceProject = gcpServiceProject;
         this.isGlobalScope = gcpServiceProject.getAppDeploymentScope() != null
                 && gcpServiceProject.getAppDeploymentScope().equalsIgnoreCase("global");
     }
 
+    private void onEviction(String spaceId, K key, V value) {
+        cache.evicted(spaceId, key, value);
+        if (documentKeys.isEmpty()) {
+            return;
+        }
+        if (isGlobalScope) {
+            documentKeys.values().forEach(keys -> keys.removeKey(key));
+        } else {
+            DocumentKeys<K> keys = documentKeys.get(spaceKey(spaceId));
+            if (keys != null) {
+                keys.removeKey(key);
+            }
+        }
+    }
+
+    private Caffeine<Object, Object> newCacheBuilder() {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder().recordStats();
+        if (source != null || !isChangeStreamEnabled()) {
+            builder.expireAfterWrite(getExpirationTime(), getExpirationUnit());
+        }
+        return builder;
+    }
+
     public long getExpirationTime() {
         return 6;
     }
@@ -66,15 +186,372 @@ public abstract class AbstractCacheRepositoryImpl<K, V> implements CacheReposito
         return TimeUnit.HOURS;
     }
 
+    /**
+     * The partitioned layout keeps one cache per space, bounded by {@link #getMaxSizePerSpace}, instead
+     * of one cache for every space bounded by {@link #getMaxSize()}. It makes {@link #invalidateSpace}
+     * constant time and keeps a large space from evicting the entries of the others.
+     */
+    public boolean isPartitionedBySpace() {
+        return false;
+    }
+
+    /**
+     * Maximum size of the cache of one space in the partitioned layout, {@code spaceId} is {@code null}
+     * for globally scoped services.
+     */
+    public long getMaxSizePerSpace(String spaceId) {
+        return getMaxSize();
+    }
+
+    /**
+     * Bound of the cache, {@link #getMaxSize()} entries unless overridden. With a byte capacity every
+     * entry is weighed with {@link #weigh} and the cache takes part in the {@link CacheMemoryBudget}.
+     */
+    public CacheCapacity getCapacity() {
+        return CacheCapacity.entries(getMaxSize());
+    }
+
+    /**
+     * Bound of the cache of one space in the partitioned layout.
+     */
+    public CacheCapacity getCapacityPerSpace(String spaceId) {
+        return CacheCapacity.entries(getMaxSizePerSpace(spaceId));
+    }
+
+    /**
+     * Estimated bytes retained by an entry, used with byte capacities.
+     */
+    public int weigh(K key, V value) {
+        return ObjectSizeEstimator.weigh(key, value);
+    }
+
+    /**
+     * Streaming hydration walks the collection with {@code _id} range queries instead of skip/limit
+     * pages. It needs every {@code _id} in the collection to be of the same BSON type, which is why
+     * it is opt-in.
+     */
+    public boolean isStreamingHydrationEnabled() {
+        return false;
+    }
+
+    public int getHydrationBatchSize() {
+        return 1000;
+    }
+
+    /**
+     * Projection applied to the documents read during streaming hydration, {@code null} reads
+     * whole documents. {@code _id} is always read.
+     */
+    public Document getHydrationProjection() {
+        return null;
+    }
+
+    /**
+     * Number of {@code _id} ranges loaded concurrently on the cacheTaskExecutor during streaming
+     * hydration.
+     */
+    public int getHydrationParallelism() {
+        return 1;
+    }
+
+    /**
+     * In change stream mode {@link #hydrateCache} loads the space once and then applies every insert,
+     * update, replace and delete of the collection to the cache, so entries never expire. The
+     * collection must live on a replica set. Hydration goes through the streaming loader because
+     * deletes are resolved by {@code _id}. Every watched space holds a thread of its own, apart from
+     * the cacheTaskExecutor.
+     */
+    public boolean isChangeStreamEnabled() {
+        return false;
+    }
+
+    /**
+     * Snapshot mode writes the cached entries to a local file every {@link #getSnapshotInterval()}
+     * and on shutdown. After a restart {@link #hydrateCache} restores each space from that file
+     * instead of reading the whole collection, then catches up from Mongo: through the change
+     * stream in change stream mode, otherwise by re-reading documents whose
+     * {@link #getLastModifiedField()} is newer than the snapshot. Hydration goes through the
+     * streaming loader, which is what tells which space an entry belongs to.
+     */
+    public boolean isSnapshotEnabled() {
+        return false;
+    }
+
+    public Duration getSnapshotInterval() {
+        return Duration.ofMinutes(5);
+    }
+
+    /**
+     * Snapshots older than this are ignored outside change stream mode. Restored entries get a fresh
+     * expiry, so this should stay well below the expiration time.
+     */
+    public Duration getSnapshotMaxAge() {
+        return Duration.ofHours(1);
+    }
+
+    /**
+     * Date field bumped on every write of the collection, used to catch up after a snapshot restore.
+     * Deletes made since the snapshot are not seen this way; use change stream mode if that matters.
+     */
+    public String getLastModifiedField() {
+        return null;
+    }
+
+    /**
+     * How {@link #put} and {@link #remove} reach the database. {@link WriteMode#CACHE_ONLY} leaves that
+     * to the caller.
+     */
+    public WriteMode getWriteMode() {
+        return WriteMode.CACHE_ONLY;
+    }
+
+    /**
+     * Queued writes of one space that trigger a flush, and the most written in one bulk operation.
+     */
+    public int getWriteBehindBatchSize() {
+        return 500;
+    }
+
+    /**
+     * Every queued write is flushed at least this often.
+     */
+    public Duration getWriteBehindInterval() {
+        return Duration.ofSeconds(1);
+    }
+
+    /**
+     * Queued writes across all spaces above which writers flush the queues themselves.
+     */
+    public int getWriteBehindMaxPending() {
+        return 10_000;
+    }
+
+    /**
+     * Flushes a queued write may fail before it is dropped and its key evicted from this replica.
+     */
+    public int getWriteBehindMaxAttempts() {
+        return 5;
+    }
+
+    /**
+     * Selects the document of a key in the write modes, by {@code _id} unless overridden. Override it
+     * together with {@link #getKeysQuery} when the cache key is not the document id.
+     */
+    public Query getKeyQuery(K key) {
+        return Query.query(Criteria.where(MongoKeysetLoader.ID_FIELD).is(key));
+    }
+
+    /**
+     * Selects the documents of the keys, which puts of other replicas are reloaded with.
+     */
+    public Query getKeysQuery(Collection<K> keys) {
+        return Query.query(Criteria.where(MongoKeysetLoader.ID_FIELD).in(keys));
+    }
+
+    @Value("${cmile.cache.snapshot.dir:${java.io.tmpdir}/cmile-cache-snapshots}")
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = Path.of(snapshotDirectory);
+    }
+
+    /**
+     * Registers the Caffeine statistics of the cache and times its get, put and remove calls.
+     */
+    @Autowired(required = false)
+    public void setCacheMetricsRegistry(CacheMetricsRegistry cacheMetricsRegistry) {
+        this.instrumentation = cacheMetricsRegistry.instrument(getCacheName());
+        cache.addCacheListener(new CacheLayout.CacheListener() {
+            @Override
+            public void cacheCreated(String spaceId, Cache<?, ?> created) {
+                cacheMetricsRegistry.register(getCacheName(), spaceId, created);
+            }
+
+            @Override
+            public void cacheRemoved(String spaceId) {
+                cacheMetricsRegistry.unregister(getCacheName(), spaceId);
+            }
+        });
+    }
+
+    @Autowired(required = false)
+    public void setCacheMemoryBudget(CacheMemoryBudget cacheMemoryBudget) {
+        cache.addCacheListener(new CacheLayout.CacheListener() {
+            @Override
+            public void cacheCreated(String spaceId, Cache<?, ?> created) {
+                CacheCapacity capacity = isPartitionedBySpace() ? getCapacityPerSpace(spaceId) : getCapacity();
+                if (capacity.isWeighted()) {
+                    cacheMemoryBudget.register(budgetName(spaceId), created, capacity.getMaximum());
+                }
+            }
+
+            @Override
+            public void cacheRemoved(String spaceId) {
+                cacheMemoryBudget.unregister(budgetName(spaceId));
+            }
+        });
+    }
+
+    private String budgetName(String spaceId) {
+        return spaceId == null ? getCacheName() : getCacheName() + "." + spaceId;
+    }
+
+    /**
+     * Broadcasts puts, removals and space invalidations to the other replicas. A removal drops the
+     * entry there. A put makes them reload the key from the store once it is written, since a
+     * repository that does not read a missing key through would otherwise miss it until its next
+     * hydration; a read-through repository only drops it. Reloads run on the cacheRefreshExecutor,
+     * one query per space and message. Keys other than strings, longs, integers and UUIDs invalidate
+     * their whole space.
+     */
+    @Autowired(required = false)
+    @SuppressWarnings("unchecked")
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        cacheInvalidationBus.register(getCacheName(), new CacheInvalidationBus.Target() {
+            @Override
+            public void invalidateLocally(String spaceId, Object key) {
+                discardReadThrough(spaceId, (K) key);
+                cache.invalidate(spaceId, (K) key);
+            }
+
+            @Override
+            public void invalidateSpaceLocally(String spaceId) {
+                discardReadThroughs(spaceId);
+                cache.invalidateSpace(spaceId);
+            }
+
+            @Override
+            public void refreshLocally(String spaceId, Object key) {
+                reloadLater(spaceId, List.of((K) key));
+            }
+
+            @Override
+            public void refreshAllLocally(String spaceId, Collection<Object> keys) {
+                reloadLater(spaceId, List.copyOf((Collection<K>) (Collection<?>) keys));
+            }
+        });
+    }
+
+    /**
+     * Hands a reload to the cacheRefreshExecutor, so a slow store never holds up the delivery of
+     * invalidations. Keys the executor has no room for are dropped instead.
+     */
+    private void reloadLater(String spaceId, List<K> keys) {
+        if (source != null && !source.canLoadByKey()) {
+            return;
+        }
+        if (cacheRefreshExecutor == null) {
+            reload(spaceId, keys);
+            return;
+        }
+        try {
+            cacheRefreshExecutor.execute(() -> reload(spaceId, keys));
+        } catch (TaskRejectedException e) {
+            log.debug("cacheRefreshExecutor is full, dropping {} keys of {} instead of reloading them",
+                    keys.size(), getCacheName());
+            cache.invalidateAll(spaceId, keys);
+        }
+    }
+
+    /**
+     * Reads keys written by another replica from the store into the cache, dropping those the store
+     * no longer has. A source that cannot look up single keys leaves the entries to expire.
+     */
+    private void reload(String spaceId, List<K> keys) {
+        ContextInfo previousContext = RequestContext.getRequestContextDetails();
+        setContext(spaceId);
+        try {
+            Map<K, V> found = new HashMap<>();
+            if (source != null) {
+                for (K key : keys) {
+                    V entity = source.load(key);
+                    if (entity != null) {
+                        found.put(key, entity);
+                    }
+                }
+            } else {
+                for (V entity : getMongoTemplate().find(getKeysQuery(keys), getEntityClass())) {
+                    found.put(getKey(entity), entity);
+                }
+            }
+            for (K key : keys) {
+                V entity = found.get(key);
+                if (entity == null) {
+                    cache.invalidate(spaceId, key);
+                } else {
+                    cache.put(spaceId, key, getValue(entity));
+                }
+            }
+        } catch (RuntimeException e) {
+            log.warn("Could not reload {} keys of {} for space {}, dropping them", keys.size(), getCacheName(),
+                    spaceId, e);
+            cache.invalidateAll(spaceId, keys);
+        } finally {
+            if (previousContext == null) {
+                RequestContext.clear();
+            } else {
+                RequestContext.setRequestContextDetails(previousContext);
+            }
+        }
+    }
+
+    @Autowired(required = false)
+    public void setCacheTaskScheduler(@Qualifier("cacheTaskScheduler") TaskScheduler cacheTaskScheduler) {
+        this.cacheTaskScheduler = cacheTaskScheduler;
+    }
+
+    @Autowired(required = false)
+    public void setCacheTaskExecutor(@Qualifier("cacheTaskExecutor") TaskExecutor cacheTaskExecutor) {
+        this.cacheTaskExecutor = cacheTaskExecutor;
+    }
+
+    @Autowired(required = false)
+    public void setCacheRefreshExecutor(@Qualifier("cacheRefreshExecutor") TaskExecutor cacheRefreshExecutor) {
+        this.cacheRefreshExecutor = cacheRefreshExecutor;
+    }
+
+    @Autowired(required = false)
+    public void setCacheWriteBehindExecutor(
+            @Qualifier("cacheWriteBehindExecutor") TaskExecutor cacheWriteBehindExecutor) {
+        this.cacheWriteBehindExecutor = cacheWriteBehindExecutor;
+    }
+
     @Override
     public void hydrateCache(String spaceId) {
 
         log.debug("Begin hydrating cache for {}, with spaceId: {}", getCacheName(), spaceId);
+        ContextInfo previousContext = RequestContext.getRequestContextDetails();
         setContext(spaceId);
-        metrics.wrapMethodWithMetrics(MetricsType.RESPONSE_TIME.name(), () -> {
-            hydrateCacheFromDB();
-            return null;
-        }, Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.hydrate"));
+        try {
+            if (source == null && isSnapshotEnabled()) {
+                snapshotConverter = getMongoTemplate().getConverter();
+                scheduleSnapshots();
+            }
+            if (source != null) {
+                hydrateFromSource();
+            } else if (isSnapshotEnabled() && restoreFromSnapshot(spaceId)) {
+                log.debug("Restored {} for spaceId {} from its snapshot", getCacheName(), spaceId);
+            } else if (isChangeStreamEnabled()) {
+                hydrateAndWatch(spaceId);
+            } else if (isSnapshotEnabled()) {
+                DocumentKeys<K> keys = new DocumentKeys<>();
+                documentKeys.put(spaceKey(spaceId), keys);
+                streamCacheFromDB(keys);
+            } else if (isStreamingHydrationEnabled()) {
+                streamCacheFromDB(null);
+            } else {
+                metrics.wrapMethodWithMetrics(MetricsType.RESPONSE_TIME.name(), () -> {
+                    hydrateCacheFromDB();
+                    return null;
+                }, Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.hydrate"));
+            }
+        } finally {
+            // Pooled threads are reused across tenants, so never leave this space's context behind.
+            if (previousContext == null) {
+                RequestContext.clear();
+            } else {
+                RequestContext.setRequestContextDetails(previousContext);
+            }
+        }
 
         log.debug("Finished hydrating cache for {}, with number of entries {}", getCacheName(), cache.estimatedSize());
     }
@@ -103,14 +580,13 @@ public abstract class AbstractCacheRepositoryImpl<K, V> implements CacheReposito
             query.with(Sort.by(Sort.Direction.ASC, "_id"));
 
             List<V> entities = getMongoTemplate().find(query, getEntityClass());
+            String spaceId = currentSpace();
 
             if (entities.isEmpty()) {
                 hasMoreEntries = false; // No more entries left to retrieve
             } else {
                 for (V entity : entities) {
-                    K key = getSpacedKey(entity);
-                    V value = getValue(entity);
-                    cache.put(key, value);
+                    cache.put(spaceId, getKey(entity), getValue(entity));
                 }
 
                 currentPage++; // Move to the next page
@@ -118,95 +594,921 @@ public abstract class AbstractCacheRepositoryImpl<K, V> implements CacheReposito
         }
     }
 
-    @Override
+    private void streamCacheFromDB(DocumentKeys<K> loadedKeys) {
+        MongoTemplate template = getMongoTemplate();
+        MongoKeysetLoader loader = new MongoKeysetLoader(template, template.getCollectionName(getEntityClass()),
+                getHydrationProjection(), getHydrationBatchSize());
+        List<MongoKeysetLoader.IdRange> ranges = loader.split(
+                cacheTaskExecutor == null ? 1 : getHydrationParallelism());
+        ContextInfo context = RequestContext.getRequestContextDetails();
+        String spaceId = currentSpace();
+        LongAdder loaded = new LongAdder();
+        long start = System.nanoTime();
+
+        List<RangeTask> tasks = ranges.stream()
+                .map(range -> new RangeTask(context, () -> loaded.add(loader.load(range, document -> {
+                    V entity = template.getConverter().read(getEntityClass(), document);
+                    K key = getKey(entity);
+                    // Mapped before it is cached, so an eviction of the entry also drops the mapping
+                    if (loadedKeys != null) {
+                        loadedKeys.put(document.get(MongoKeysetLoader.ID_FIELD), key);
+                    }
+                    cache.put(spaceId, key, getValue(entity));
+                }))))
+                .toList();
+        for (RangeTask task : tasks.subList(1, tasks.size())) {
+            try {
+                cacheTaskExecutor.execute(task);
+            } catch (TaskRejectedException e) {
+                log.debug("cacheTaskExecutor is full, {} will load the range itself", getCacheName());
+            }
+        }
+        // The calling thread works through whatever the executor has not picked up yet, so hydration
+        // finishes even when the executor is saturated or this call itself runs on it.
+        tasks.forEach(RangeTask::run);
+        tasks.forEach(RangeTask::join);
+
+        long elapsed = System.nanoTime() - start;
+        long documents = loaded.sum();
+        recordHydration(elapsed, documents);
+        log.debug("Streamed {} documents into {} over {} ranges in {} ms", documents, getCacheName(),
+                ranges.size(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private void hydrateFromSource() {
+        String spaceId = currentSpace();
+        long start = System.nanoTime();
+        long loaded = source.loadAll(entity -> cache.put(spaceId, getKey(entity), getValue(entity)));
+        long elapsed = System.nanoTime() - start;
+        recordHydration(elapsed, loaded);
+        log.debug("Loaded {} entities into {} from {} in {} ms", loaded, getCacheName(),
+                source.getClass().getSimpleName(), TimeUnit.NANOSECONDS.toMillis(elapsed));
+    }
+
+    private void recordHydration(long elapsedNanos, long entities) {
+        long entitiesPerSecond = elapsedNanos > 0 ? entities * TimeUnit.SECONDS.toNanos(1) / elapsedNanos : entities;
+        Map<String, String> tags = Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.hydrate",
+                MetricsTagName.ENTITY_NAME.getTagName(), getCacheName());
+        metrics.recordMetric(MetricsType.RESPONSE_TIME, "cache.hydrate", elapsedNanos, tags);
+        metrics.recordMetric(MetricsType.THROUGHPUT, "cache.hydrate", entitiesPerSecond, tags);
+    }
+
+    /**
+     * One {@code _id} range of a streaming hydration. Whichever thread claims it first runs it, with
+     * the tenant context of the thread that started the hydration.
+     */
+    private static final class RangeTask implements Runnable {
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final ContextInfo context;
+        private final Runnable body;
+
+        private RangeTask(ContextInfo context, Runnable body) {
+            this.context = context;
+            this.body = body;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            ContextInfo previous = RequestContext.getRequestContextDetails();
+            RequestContext.setRequestContextDetails(context);
+            try {
+                body.run();
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            } finally {
+                if (previous == null) {
+                    RequestContext.clear();
+                } else {
+                    RequestContext.setRequestContextDetails(previous);
+                }
+            }
+        }
+
+        private void join() {
+            try {
+                done.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+    }
+
+    private void hydrateAndWatch(String spaceId) {
+        String space = spaceKey(spaceId);
+        stopChangeStream(spaceId);
+        ChangeStreamWatcher watcher = new ChangeStreamWatcher(space, RequestContext.getRequestContextDetails());
+        try {
+            watcher.reload();
+        } catch (RuntimeException e) {
+            watcher.closeCursor();
+            throw e;
+        }
+        watchers.put(space, watcher);
+        watcher.start();
+    }
+
+    /**
+     * Continues the change stream of a space from its persisted resume token without reloading the
+     * collection, for when the cache content of the space is already in place, such as entries put
+     * back by the application after a restart or kept while the stream was stopped. The {@code _id}
+     * of each cached entry, which delete events are applied by, is recovered from the entries when
+     * it is not known. Falls back to a full reload if the token is no longer in the oplog or the
+     * space has nothing cached.
+     *
+     * @return {@code false} if no token was persisted for this cache, the caller must hydrate instead
+     */
+    public boolean resumeChangeStream(String spaceId) {
+        if (!isChangeStreamEnabled()) {
+            throw new IllegalStateException(String.format("Change stream mode is not enabled for %s", getCacheName()));
+        }
+        ContextInfo previousContext = RequestContext.getRequestContextDetails();
+        setContext(spaceId);
+        try {
+            BsonDocument token = ResumeTokenStore.load(getMongoTemplate(), getCacheName(), spaceKey(spaceId));
+            if (token == null) {
+                return false;
+            }
+            if (!documentKeys.containsKey(spaceKey(spaceId)) && !recoverDocumentKeys(spaceId)) {
+                log.debug("Nothing of {} cached for space {}, reloading instead of resuming", getCacheName(), spaceId);
+                hydrateAndWatch(spaceId);
+            } else {
+                resumeWatching(spaceId, token);
+            }
+            return true;
+        } finally {
+            if (previousContext == null) {
+                RequestContext.clear();
+            } else {
+                RequestContext.setRequestContextDetails(previousContext);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the {@code _id} to key mapping of a space from the entries cached for it.
+     *
+     * @return {@code false} if the space has nothing cached
+     */
+    private boolean recoverDocumentKeys(String spaceId) {
+        Map<K, V> entries = cache.asMap(cacheSpace(spaceKey(spaceId)));
+        if (entries.isEmpty()) {
+            return false;
+        }
+        MongoConverter converter = getMongoTemplate().getConverter();
+        DocumentKeys<K> keys = new DocumentKeys<>();
+        entries.forEach((key, value) -> {
+            Document document = new Document();
+            converter.write(value, document);
+            keys.put(document.get(MongoKeysetLoader.ID_FIELD), key);
+        });
+        documentKeys.put(spaceKey(spaceId), keys);
+        return true;
+    }
+
+    private void resumeWatching(String spaceId, BsonDocument token) {
+        String space = spaceKey(spaceId);
+        stopChangeStream(spaceId);
+        ChangeStreamWatcher watcher = new ChangeStreamWatcher(space, RequestContext.getRequestContextDetails());
+        watcher.resumeToken = token;
+        watchers.put(space, watcher);
+        watcher.start();
+    }
+
+    public void stopChangeStream(String spaceId) {
+        ChangeStreamWatcher watcher = watchers.remove(spaceKey(spaceId));
+        if (watcher != null) {
+            watcher.stop();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (snapshotTask != null) {
+            snapshotTask.cancel(false);
+        }
+        if (writeBehindTask != null) {
+            writeBehindTask.cancel(false);
+        }
+        flushWrites();
+        // Written before the watchers stop, so the snapshot carries their latest resume tokens.
+        if (isSnapshotEnabled() && !documentKeys.isEmpty()) {
+            writeSnapshot();
+        }
+        stopChangeStreams();
+        synchronized (this) {
+            if (changeStreamExecutor != null) {
+                changeStreamExecutor.shutdown();
+                changeStreamExecutor = null;
+            }
+        }
+    }
+
+    public void stopChangeStreams() {
+        List.copyOf(watchers.keySet()).forEach(space -> {
+            ChangeStreamWatcher watcher = watchers.remove(space);
+            if (watcher != null) {
+                watcher.stop();
+            }
+        });
+    }
+
+    /**
+     * Grows by a thread per watched space, watchers hold theirs for as long as they run.
+     */
+    private synchronized ExecutorService changeStreamExecutor() {
+        if (changeStreamExecutor == null) {
+            AtomicInteger threads = new AtomicInteger();
+            changeStreamExecutor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "CacheChangeStream-" + getCacheName() + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return changeStreamExecutor;
+    }
+
+    private Path getSnapshotFile() {
+        return snapshotDirectory.resolve(getCacheName() + ".snapshot");
+    }
+
+    private void scheduleSnapshots() {
+        synchronized (snapshotLock) {
+            if (snapshotTask != null || cacheTaskScheduler == null) {
+                return;
+            }
+            Duration interval = getSnapshotInterval();
+            snapshotTask = cacheTaskScheduler.scheduleWithFixedDelay(this::writeSnapshot,
+                    Instant.now().plus(interval), interval);
+            metrics.registerGauge("cache.snapshot.age", this, AbstractCacheRepositoryImpl::getSnapshotAgeSeconds,
+                    Map.of(MetricsTagName.ENTITY_NAME.getTagName(), getCacheName()));
+        }
+    }
+
+    private double getSnapshotAgeSeconds() {
+        long createdAt = snapshotCreatedAt;
+        return createdAt == 0 ? Double.NaN : (System.currentTimeMillis() - createdAt) / 1000.0;
+    }
+
+    /**
+     * Writes every space hydrated by this repository to the snapshot file, replacing the previous
+     * snapshot. Only entries still present in the cache are written.
+     */
+    public void writeSnapshot() {
+        MongoConverter converter = snapshotConverter;
+        if (converter == null) {
+            return;
+        }
+        long createdAt = System.currentTimeMillis();
+        List<CacheSnapshotFile.SectionSource> sections = new ArrayList<>();
+        for (Map.Entry<String, DocumentKeys<K>> spaceKeys : documentKeys.entrySet()) {
+            BsonDocument token = null;
+            if (isChangeStreamEnabled()) {
+                ChangeStreamWatcher watcher = watchers.get(spaceKeys.getKey());
+                // Taken before the entries are copied: replaying from an older token is harmless.
+                token = watcher == null ? null : watcher.resumeToken;
+                if (token == null) {
+                    continue;
+                }
+            }
+            List<SnapshotEntry<K, V>> entries = new ArrayList<>();
+            String spaceId = cacheSpace(spaceKeys.getKey());
+            spaceKeys.getValue().copy().forEach((id, key) -> {
+                V value = cache.get(spaceId, key);
+                if (value != null) {
+                    entries.add(new SnapshotEntry<>(key, value, id));
+                }
+            });
+            sections.add(new CacheSnapshotFile.SectionSource(spaceKeys.getKey(), token, entries.size(), writer -> {
+                for (SnapshotEntry<K, V> entry : entries) {
+                    Document value = new Document();
+                    converter.write(entry.value(), value);
+                    writer.entry(entry.key(), value, entry.id());
+                }
+            }));
+        }
+
+        try {
+            CacheSnapshotFile.write(getSnapshotFile(), createdAt, sections);
+            snapshotCreatedAt = createdAt;
+            log.debug("Wrote a snapshot of {} with {} spaces", getCacheName(), sections.size());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to write the snapshot of {}", getCacheName(), e);
+        }
+    }
+
+    private boolean restoreFromSnapshot(String spaceId) {
+        String space = spaceKey(spaceId);
+        CacheSnapshotFile.Section section;
+        long createdAt;
+        synchronized (snapshotLock) {
+            if (!snapshotRead) {
+                snapshotRead = true;
+                readSnapshot();
+            }
+            section = unrestoredSections.remove(space);
+            createdAt = unrestoredSnapshotCreatedAt;
+        }
+        if (section == null) {
+            return false;
+        }
+        if (isChangeStreamEnabled() ? section.resumeToken() == null
+                : System.currentTimeMillis() - createdAt > getSnapshotMaxAge().toMillis()) {
+            log.debug("Snapshot of {} for space {} is not usable, hydrating from the database", getCacheName(), space);
+            return false;
+        }
+
+        long start = System.nanoTime();
+        MongoTemplate template = getMongoTemplate();
+        DocumentKeys<K> keys = new DocumentKeys<>();
+        documentKeys.put(space, keys);
+        String cacheSpaceId = cacheSpace(space);
+        section.forEach(entry -> {
+            K key = (K) entry.get("k");
+            if (entry.containsKey("i")) {
+                keys.put(entry.get("i"), key);
+            }
+            cache.put(cacheSpaceId, key, template.getConverter().read(getEntityClass(), entry.get("v", Document.class)));
+        });
+        metrics.recordMetric(MetricsType.RESPONSE_TIME, "cache.snapshot.load", System.nanoTime() - start,
+                Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.snapshot.load",
+                        MetricsTagName.ENTITY_NAME.getTagName(), getCacheName()));
+
+        if (isChangeStreamEnabled()) {
+            resumeWatching(spaceId, section.resumeToken());
+        } else if (getLastModifiedField() != null) {
+            catchUpSince(template, cacheSpaceId, keys, createdAt);
+        }
+        return true;
+    }
+
+    private void readSnapshot() {
+        long start = System.nanoTime();
+        try {
+            CacheSnapshotFile.Snapshot snapshot = CacheSnapshotFile.read(getSnapshotFile());
+            if (snapshot == null) {
+                log.debug("No usable snapshot for {} at {}", getCacheName(), getSnapshotFile());
+                return;
+            }
+            unrestoredSections = new ConcurrentHashMap<>(snapshot.sections());
+            unrestoredSnapshotCreatedAt = snapshot.createdAt();
+            snapshotCreatedAt = snapshot.createdAt();
+            log.debug("Mapped the snapshot of {} in {} ms", getCacheName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to read the snapshot of {}, hydrating from the database", getCacheName(), e);
+        }
+    }
+
+    private void catchUpSince(MongoTemplate template, String spaceId, DocumentKeys<K> keys, long since) {
+        Query query = Query.query(Criteria.where(getLastModifiedField())
+                .gte(new Date(since - SNAPSHOT_CLOCK_SKEW.toMillis())));
+        List<Document> changed = template.find(query, Document.class, template.getCollectionName(getEntityClass()));
+        for (Document document : changed) {
+            V entity = template.getConverter().read(getEntityClass(), document);
+            K key = getKey(entity);
+            keys.put(document.get(MongoKeysetLoader.ID_FIELD), key);
+            cache.put(spaceId, key, getValue(entity));
+        }
+        log.debug("Caught up {} documents of {} changed since its snapshot", changed.size(), getCacheName());
+    }
+
+    private record SnapshotEntry<K, V>(K key, V value, Object id) {
+    }
+
+    private static String spaceKey(String spaceId) {
+        return spaceId == null ? "" : spaceId;
+    }
+
+    /**
+     * Space the entries loaded for a {@link #spaceKey} are cached under, {@code null} in global scope.
+     */
+    private String cacheSpace(String space) {
+        return isGlobalScope || space.isEmpty() ? null : space;
+    }
+
+    /**
+     * Space of the current request, which is where get, put and remove go.
+     */
+    private String currentSpace() {
+        if (isGlobalScope) {
+            return null;
+        }
+        ContextInfo context = RequestContext.getRequestContextDetails();
+        return context == null ? null : context.getSpaceId();
+    }
+
+    /**
+     * Tails the change stream of one space with that space's tenant context on a thread of the
+     * change stream executor. The resume token is persisted at most once per {@link
+     * #TOKEN_FLUSH_INTERVAL_MS} after events were applied, and once per {@link
+     * #IDLE_TOKEN_FLUSH_INTERVAL_MS} when only idle batches moved it, which keeps it in the oplog window.
+     */
+    private final class ChangeStreamWatcher implements Runnable {
+        private static final long TOKEN_FLUSH_INTERVAL_MS = 10_000;
+        private static final long IDLE_TOKEN_FLUSH_INTERVAL_MS = 60_000;
+        private static final long RETRY_DELAY_MS = 1000;
+        private static final int MAX_EVENTS_PER_RUN = 1000;
+        // ChangeStreamFatalError, CappedPositionLost and ChangeStreamHistoryLost: the token is gone.
+        private static final List<Integer> HISTORY_LOST_CODES = List.of(280, 136, 286);
+
+        private final String space;
+        private final String cacheSpaceId;
+        private final ContextInfo context;
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+        private volatile boolean stopped;
+        private volatile Thread runner;
+        private MongoTemplate template;
+        private MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+        private volatile BsonDocument resumeToken;
+        private BsonDocument persistedToken;
+        private long persistedAt;
+        private boolean applied;
+
+        private ChangeStreamWatcher(String space, ContextInfo context) {
+            this.space = space;
+            this.cacheSpaceId = cacheSpace(space);
+            this.context = context;
+        }
+
+        private void start() {
+            changeStreamExecutor().execute(this);
+        }
+
+        /**
+         * Stops the watcher and waits for its current poll to finish.
+         */
+        private void stop() {
+            stopped = true;
+            if (runner != Thread.currentThread()) {
+                try {
+                    finished.get(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | TimeoutException e) {
+                    log.debug("Change stream of {} for space {} did not stop in time", getCacheName(), space);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            runner = Thread.currentThread();
+            if (context != null) {
+                RequestContext.setRequestContextDetails(context);
+            }
+            try {
+                while (!stopped) {
+                    poll();
+                }
+            } catch (RuntimeException e) {
+                log.error("Change stream of {} for space {} stopped", getCacheName(), space, e);
+            } finally {
+                runner = null;
+                // Pooled threads are reused across tenants, so never leave this space's context behind.
+                RequestContext.clear();
+                finish();
+            }
+        }
+
+        /**
+         * Applies the events available now, up to {@link #MAX_EVENTS_PER_RUN}, waiting for the first
+         * one at most as long as the cursor's await time.
+         */
+        private void poll() {
+            try {
+                if (cursor == null) {
+                    cursor = openCursor(resumeToken);
+                }
+                for (int events = 0; events < MAX_EVENTS_PER_RUN && !stopped; events++) {
+                    ChangeStreamDocument<Document> event = cursor.tryNext();
+                    if (event == null) {
+                        if (cursor != null && cursor.getResumeToken() != null) {
+                            // Idle batches still advance the token, which keeps it inside the oplog window.
+                            resumeToken = cursor.getResumeToken();
+                        }
+                        break;
+                    }
+                    // Before apply, an invalidate event reloads and replaces the token itself.
+                    resumeToken = event.getResumeToken();
+                    applied = true;
+                    apply(event);
+                }
+                persistToken(false);
+            } catch (MongoCommandException e) {
+                if (!HISTORY_LOST_CODES.contains(e.getErrorCode())) {
+                    retry(e);
+                } else {
+                    log.warn("Change stream history lost for {} in space {}, reloading", getCacheName(), space);
+                    reload();
+                }
+            } catch (MongoException e) {
+                retry(e);
+            }
+        }
+
+        private void finish() {
+            if (context != null) {
+                RequestContext.setRequestContextDetails(context);
+            }
+            try {
+                persistToken(true);
+            } catch (RuntimeException e) {
+                log.warn("Could not persist the resume token of {} for space {}", getCacheName(), space, e);
+            } finally {
+                closeCursor();
+                RequestContext.clear();
+                finished.complete(null);
+            }
+        }
+
+        /**
+         * Opens a fresh stream, drops whatever the space had cached and loads the collection again.
+         * The stream is opened first, so changes made during the load are replayed afterwards.
+         */
+        private void reload() {
+            closeCursor();
+            cursor = openCursor(null);
+            resumeToken = cursor.getResumeToken();
+            DocumentKeys<K> previousKeys = documentKeys.remove(space);
+            if (previousKeys != null) {
+                cache.invalidateAll(cacheSpaceId, previousKeys.copy().values());
+            }
+            DocumentKeys<K> keys = new DocumentKeys<>();
+            documentKeys.put(space, keys);
+            streamCacheFromDB(keys);
+        }
+
+        private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openCursor(BsonDocument token) {
+            template = getMongoTemplate();
+            var changeStream = template.getCollection(template.getCollectionName(getEntityClass()))
+                    .watch()
+                    .fullDocument(FullDocument.UPDATE_LOOKUP)
+                    .maxAwaitTime(1, TimeUnit.SECONDS);
+            if (token != null) {
+                changeStream = changeStream.resumeAfter(token);
+            }
+            return changeStream.cursor();
+        }
+
+        private void apply(ChangeStreamDocument<Document> event) {
+            switch (event.getOperationType()) {
+                case INSERT, UPDATE, REPLACE -> {
+                    Document document = event.getFullDocument();
+                    if (document == null) {
+                        // Deleted again before the update lookup ran, the delete event follows.
+                        evict(documentId(event.getDocumentKey()));
+                    } else {
+                        V entity = template.getConverter().read(getEntityClass(), document);
+                        K key = getKey(entity);
+                        K previousKey = documentKeys.computeIfAbsent(space, s -> new DocumentKeys<>())
+                                .put(document.get(MongoKeysetLoader.ID_FIELD), key);
+                        if (previousKey != null && !previousKey.equals(key)) {
+                            cache.invalidate(cacheSpaceId, previousKey);
+                        }
+                        cache.put(cacheSpaceId, key, getValue(entity));
+                    }
+                }
+                case DELETE -> evict(documentId(event.getDocumentKey()));
+                case INVALIDATE -> {
+                    log.info("Change stream of {} for space {} invalidated, reloading", getCacheName(), space);
+                    reload();
+                }
+                default -> log.debug("Ignoring {} event on {}", event.getOperationType(), getCacheName());
+            }
+        }
+
+        private void evict(Object id) {
+            DocumentKeys<K> keys = documentKeys.get(space);
+            K key = keys == null ? null : keys.removeId(id);
+            if (key != null) {
+                cache.invalidate(cacheSpaceId, key);
+            }
+        }
+
+        private Object documentId(BsonDocument documentKey) {
+            // Decoded the same way as the documents read during hydration, so the _id types match.
+            return new DocumentCodec()
+                    .decode(new BsonDocumentReader(documentKey), DecoderContext.builder().build())
+                    .get(MongoKeysetLoader.ID_FIELD);
+        }
+
+        private void persistToken(boolean force) {
+            long now = System.currentTimeMillis();
+            long interval = applied ? TOKEN_FLUSH_INTERVAL_MS : IDLE_TOKEN_FLUSH_INTERVAL_MS;
+            if (resumeToken == null || resumeToken.equals(persistedToken)
+                    || (!force && now - persistedAt < interval)) {
+                return;
+            }
+            ResumeTokenStore.save(template != null ? template : getMongoTemplate(), getCacheName(), space,
+                    resumeToken);
+            persistedToken = resumeToken;
+            persistedAt = now;
+            applied = false;
+        }
+
+        private void retry(MongoException e) {
+            if (stopped) {
+                return;
+            }
+            log.warn("Change stream of {} for space {} failed, resuming: {}", getCacheName(), space, e.getMessage());
+            closeCursor();
+            try {
+                Thread.sleep(RETRY_DELAY_MS);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+
+        private void closeCursor() {
+            if (cursor != null) {
+                try {
+                    cursor.close();
+                } catch (RuntimeException e) {
+                    log.debug("Failed to close the change stream cursor of {}", getCacheName(), e);
+                }
+                cursor = null;
+            }
+        }
+    }
+
+    /**
+     * The template the repository hydrates from, {@code null} when it is loaded from a {@link CacheSource}.
+     */
     public MongoTemplate getMongoTemplate() {
         return mongoTemplate;
     }
 
+    /**
+     * Caches the value, after saving it with the template of the current tenant in write-through mode.
+     * In write-behind mode it is queued for the next bulk flush instead. In cache-only mode write the
+     * document first, the other replicas read it back from the database.
+     */
     @Override
     public void put(K key, V value) throws Exception {
-        final K spacekey = getSpacedOutKey(key);
-        log.debug("Putting {}:{} in {} cache.", getSpacedKeyName(), spacekey, getCacheName());
-
-        metrics.wrapMethodWithMetrics(MetricsType.RESPONSE_TIME.name(), () -> {
-            cache.put(spacekey, value);
-            return null;
-        }, Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.put", MetricsTagName.ENTITY_NAME.getTagName(),
-                getCacheName()));
-
+        final String spaceId = currentSpace();
+        if (log.isDebugEnabled()) {
+            log.debug("Putting {}:{} of space {} in {} cache.", getKeyName(), key, spaceId, getCacheName());
+        }
+        WriteMode writeMode = getWriteMode();
+        if (writeMode == WriteMode.WRITE_THROUGH) {
+            persistenceTemplate().save(value);
+        }
+        discardReadThrough(spaceId, key);
+        long start = instrumentation.start();
+        cache.put(spaceId, key, value);
+        instrumentation.recordPut(start);
+        if (writeMode == WriteMode.WRITE_BEHIND) {
+            // The other replicas reload the key once its batch is written
+            writeBehindBuffer().put(spaceKey(spaceId), RequestContext.getRequestContextDetails(), key, value);
+        } else if (cacheInvalidationBus != null) {
+            if (source != null && source.canLoadByKey()) {
+                cacheInvalidationBus.invalidate(getCacheName(), spaceId, key);
+            } else {
+                cacheInvalidationBus.refresh(getCacheName(), spaceId, key);
+            }
+        }
     }
 
     @Override
     public V get(K key) throws Exception {
-        final K spacekey = getSpacedOutKey(key);
-
-        log.debug("Querying {} cache for {}: {}", getCacheName(), getSpacedKeyName(), spacekey);
-
-        V value = metrics.wrapMethodWithMetrics(MetricsType.RESPONSE_TIME.name(), () -> {
-            return cache.getIfPresent(spacekey);
-        }, Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.get", MetricsTagName.ENTITY_NAME.getTagName(),
-                getCacheName()));
-        if (value == null) {
-            log.debug(
-                    "{}: {} not found in cache having size of: {}", getSpacedKeyName(),
-                    spacekey, cache.estimatedSize());
-            return null;
-        } else {
-            log.debug("{} found {} in cache {}: ", getCacheName(), getSpacedKeyName(), spacekey);
+        final String spaceId = currentSpace();
+        long start = instrumentation.start();
+        V value = cache.get(spaceId, key);
+        instrumentation.recordGet(start, value != null);
+        if (value == null && source != null && source.canLoadByKey()) {
+            value = readThrough(spaceId, key);
         }
+        if (log.isDebugEnabled()) {
+            if (value == null) {
+                log.debug("{}: {} of space {} not found in {} cache having size of: {}", getKeyName(), key, spaceId,
+                        getCacheName(), cache.estimatedSize());
+            } else {
+                log.debug("{} found {}: {} of space {} in cache", getCacheName(), getKeyName(), key, spaceId);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Loads a missing key from the source without holding a lock of the cache, so a slow source only
+     * holds up the callers of that key: concurrent misses of the key wait for one load. The loaded
+     * value is not cached when the key was put, removed or invalidated meanwhile.
+     */
+    private V readThrough(String spaceId, K key) {
+        TenantKey<K> loadKey = new TenantKey<>(spaceId, key);
+        CompletableFuture<V> loading = new CompletableFuture<>();
+        CompletableFuture<V> pending = readThroughs.putIfAbsent(loadKey, loading);
+        if (pending != null) {
+            try {
+                return pending.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        V value;
+        try {
+            V entity = source.load(key);
+            value = entity == null ? null : getValue(entity);
+        } catch (RuntimeException | Error e) {
+            readThroughs.remove(loadKey, loading);
+            loading.completeExceptionally(e);
+            throw e;
+        }
+        if (value != null) {
+            // Still registered means no write discarded the load; a write after this check replaces it
+            cache.compute(spaceId, key,
+                    (k, current) -> current != null || readThroughs.get(loadKey) != loading ? current : value);
+        }
+        readThroughs.remove(loadKey, loading);
+        loading.complete(value);
         return value;
     }
 
+    private void discardReadThrough(String spaceId, K key) {
+        if (!readThroughs.isEmpty()) {
+            readThroughs.remove(new TenantKey<>(spaceId, key));
+        }
+    }
+
+    private void discardReadThroughs(String spaceId) {
+        if (!readThroughs.isEmpty()) {
+            readThroughs.keySet().removeIf(loadKey -> Objects.equals(loadKey.getSpaceId(), spaceId));
+        }
+    }
+
     @Override
     public void remove(K key) throws Exception {
-        final K spacekey = getSpacedOutKey(key);
-        log.debug("Removing {}:{} from {} cache.", getSpacedKeyName(), spacekey, getCacheName());
-        // The behavior of invalidate() method is undefined if key is not present in the
-        // cache. Therefore, we have to first query the cache to see if it is present.
-        if (get(spacekey) != null) {
-            metrics.wrapMethodWithMetrics(MetricsType.RESPONSE_TIME.name(), () -> {
-                cache.invalidate(spacekey);
-                return null;
-            }, Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.remove", MetricsTagName.ENTITY_NAME.getTagName(),
-                    getCacheName()));
+        final String spaceId = currentSpace();
+        if (log.isDebugEnabled()) {
+            log.debug("Removing {}:{} of space {} from {} cache.", getKeyName(), key, spaceId, getCacheName());
+        }
+        WriteMode writeMode = getWriteMode();
+        if (writeMode == WriteMode.WRITE_THROUGH) {
+            persistenceTemplate().remove(getKeyQuery(key), getEntityClass());
+        }
+        discardReadThrough(spaceId, key);
+        long start = instrumentation.start();
+        cache.invalidate(spaceId, key);
+        instrumentation.recordRemove(start);
+        if (writeMode == WriteMode.WRITE_BEHIND) {
+            writeBehindBuffer().delete(spaceKey(spaceId), RequestContext.getRequestContextDetails(), key);
+        }
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(getCacheName(), spaceId, key);
         }
     }
 
-    @Override
-    public long getSize() throws Exception {
-        return cache.estimatedSize();
+    private MongoTemplate persistenceTemplate() {
+        if (source != null) {
+            throw new IllegalStateException(String.format("%s is loaded from a %s, write modes need Mongo",
+                    getCacheName(), source.getClass().getSimpleName()));
+        }
+        return getMongoTemplate();
     }
 
-    private K getSpacedKey(V entity) {
-        if (!isGlobalScope && RequestContext.getRequestContextDetails() == null) {
-            String spaceId = RequestContext.getRequestContextDetails().getSpaceId();
-            // K is always a string for us.
-            return (K) (spaceId + "|" + getKey(entity));
-        } else {
-            return getKey(entity);
+    private WriteBehindBuffer<K, V> writeBehindBuffer() {
+        WriteBehindBuffer<K, V> buffer = writeBehindBuffer;
+        if (buffer != null) {
+            return buffer;
+        }
+        persistenceTemplate();
+        synchronized (this) {
+            if (writeBehindBuffer == null) {
+                writeBehindBuffer = new WriteBehindBuffer<>(getWriteBehindBatchSize(), getWriteBehindMaxPending(),
+                        getWriteBehindMaxAttempts(), cacheWriteBehindExecutor, this::writeBatch, this::dropWrites);
+                if (cacheTaskScheduler != null) {
+                    Duration interval = getWriteBehindInterval();
+                    writeBehindTask = cacheTaskScheduler.scheduleWithFixedDelay(writeBehindBuffer::flushAll,
+                            Instant.now().plus(interval), interval);
+                }
+                metrics.registerGauge("cache.write.behind.pending", writeBehindBuffer, WriteBehindBuffer::size,
+                        Map.of(MetricsTagName.ENTITY_NAME.getTagName(), getCacheName()));
+            }
+            return writeBehindBuffer;
         }
     }
 
-    private K getSpacedOutKey(K key) {
-        if (!isGlobalScope && RequestContext.getRequestContextDetails() == null) {
-            String spaceId = RequestContext.getRequestContextDetails().getSpaceId();
-            return (K) (spaceId + "|" + key);
-        } else {
-            return key;
+    /**
+     * Writes one batch of queued writes as a single unordered bulk operation.
+     */
+    private void writeBatch(List<WriteBehindBuffer.PendingWrite<K, V>> batch) {
+        long start = System.nanoTime();
+        Map<String, String> tags = Map.of(MetricsTagName.METHOD_NAME.getTagName(), "cache.write.behind.flush",
+                MetricsTagName.ENTITY_NAME.getTagName(), getCacheName());
+        BulkOperations bulk = getMongoTemplate().bulkOps(BulkOperations.BulkMode.UNORDERED, getEntityClass());
+        for (WriteBehindBuffer.PendingWrite<K, V> write : batch) {
+            if (write.delete()) {
+                bulk.remove(getKeyQuery(write.key()));
+            } else {
+                bulk.replaceOne(getKeyQuery(write.key()), write.value(), FindAndReplaceOptions.options().upsert());
+            }
+        }
+        try {
+            bulk.execute();
+        } catch (RuntimeException e) {
+            metrics.recordMetric(MetricsType.ERROR_COUNT, "cache.write.behind.flush", 1, tags);
+            throw e;
+        }
+        metrics.recordMetric(MetricsType.RESPONSE_TIME, "cache.write.behind.flush", System.nanoTime() - start, tags);
+        if (cacheInvalidationBus != null) {
+            String spaceId = currentSpace();
+            batch.stream().filter(write -> !write.delete())
+                    .forEach(write -> cacheInvalidationBus.refresh(getCacheName(), spaceId, write.key()));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Flushed {} writes of {}", batch.size(), getCacheName());
         }
     }
 
-    private String getSpacedKeyName() {
-        if (!isGlobalScope && RequestContext.getRequestContextDetails() == null) {
-            String spaceId = RequestContext.getRequestContextDetails().getSpaceId();
-            return spaceId + "|" + getKeyName();
-        } else {
-            return getKeyName();
+    /**
+     * Evicts the keys of writes that could not be persisted, so this replica reads what the database
+     * holds rather than serving values that were never written.
+     */
+    private void dropWrites(String space, List<WriteBehindBuffer.PendingWrite<K, V>> dropped) {
+        String cacheSpaceId = cacheSpace(space);
+        dropped.forEach(write -> cache.invalidate(cacheSpaceId, write.key()));
+        metrics.incrementCounter("cache.write.behind.dropped", dropped.size(),
+                Map.of(MetricsTagName.ENTITY_NAME.getTagName(), getCacheName()));
+    }
+
+    /**
+     * Writes everything queued in write-behind mode now, on the calling thread, as happens on shutdown.
+     */
+    public void flushWrites() {
+        WriteBehindBuffer<K, V> buffer = writeBehindBuffer;
+        if (buffer == null) {
+            return;
+        }
+        buffer.flushAll();
+        if (buffer.size() > 0) {
+            log.error("{} writes of {} could not be flushed", buffer.size(), getCacheName());
+        }
+    }
+
+    /**
+     * Drops every cached entry of the space on every replica. Constant time in the partitioned layout,
+     * a scan of the whole cache otherwise. Change stream watchers of the space keep running; hydrate
+     * the space again to reload it.
+     */
+    public void invalidateSpace(String spaceId) {
+        log.debug("Invalidating space {} of {} cache.", spaceId, getCacheName());
+        String cacheSpaceId = isGlobalScope ? null : spaceId;
+        discardReadThroughs(cacheSpaceId);
+        cache.invalidateSpace(cacheSpaceId);
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidateSpace(getCacheName(), cacheSpaceId);
         }
     }
 
+    @Override
+    public long getSize() throws Exception {
+        return cache.estimatedSize();
+    }
+
+    /**
+     * Indexes the entries by the value {@code extractor} returns for them, so that {@link #findByIndex}
+     * does not scan the cache. Call it from the constructor of the repository, before the cache is
+     * loaded; the index is kept up to date on hydration, put, remove and eviction.
+     */
+    protected void addIndex(String name, Function<? super V, ?> extractor) {
+        cache.addIndex(name, extractor);
+    }
+
+    /**
+     * Entries of the space of the current request whose index value is {@code value}, as a read-only
+     * view over the index rather than a copy.
+     */
+    public Collection<V> findByIndex(String name, Object value) {
+        return cache.find(currentSpace(), name, value);
+    }
+
+    /**
+     * Keys of the entries found by {@link #findByIndex}, as a read-only view.
+     */
+    public Set<K> findKeysByIndex(String name, Object value) {
+        return cache.findKeys(currentSpace(), name, value);
+    }
+
+    /**
+     * Entries of the space of the current request.
+     */
     @Override
     public Map<K, V> getAll() throws Exception {
-        return cache.asMap();
+        return cache.asMap(currentSpace());
+    }
+
+    public enum WriteMode {
+        /** The cache only, callers write to the database themselves. */
+        CACHE_ONLY,
+        /** Every put and remove reaches the database before the cache. */
+        WRITE_THROUGH,
+        /** Puts and removes update the cache and are written to the database in batches. */
+        WRITE_BEHIND
     }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import com.cmile.serviceutil.bigquery.BigQueryService;
+
+/**
+ * Loads the rows of a BigQuery query, mapped to the entity class by {@link BigQueryService}. The
+ * query is built per call, in the tenant context of the space being loaded, so it can select that
+ * space's dataset or rows. Queries take seconds, so this source only hydrates: single keys are not
+ * read through and a key missing from the last hydration stays a miss until the next one.
+ */
+public class BigQueryCacheSource<K, V> implements CacheSource<K, V> {
+
+    private final BigQueryService bigQueryService;
+    private final Class<V> entityClass;
+    private final Supplier<String> query;
+
+    public BigQueryCacheSource(BigQueryService bigQueryService, Class<V> entityClass, Supplier<String> query) {
+        this.bigQueryService = bigQueryService;
+        this.entityClass = entityClass;
+        this.query = query;
+    }
+
+    @Override
+    public long loadAll(Consumer<? super V> consumer) {
+        List<V> rows = bigQueryService.query(query.get(), entityClass);
+        rows.forEach(consumer);
+        return rows.size();
+    }
+}
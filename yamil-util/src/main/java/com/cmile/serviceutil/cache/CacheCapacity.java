@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+
+/**
+ * Bound of a cache, either a number of entries or an estimated number of bytes. Byte bounded caches
+ * weigh every entry, by default with the {@link ObjectSizeEstimator}, and take part in the
+ * {@link CacheMemoryBudget}.
+ */
+public final class CacheCapacity {
+
+    private final long maximum;
+    private final boolean weighted;
+
+    private CacheCapacity(long maximum, boolean weighted) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("Cache capacity must not be negative");
+        }
+        this.maximum = maximum;
+        this.weighted = weighted;
+    }
+
+    public static CacheCapacity entries(long maxEntries) {
+        return new CacheCapacity(maxEntries, false);
+    }
+
+    public static CacheCapacity bytes(long maxBytes) {
+        return new CacheCapacity(maxBytes, true);
+    }
+
+    public long getMaximum() {
+        return maximum;
+    }
+
+    public boolean isWeighted() {
+        return weighted;
+    }
+
+    /**
+     * Bounds the builder, weighing entries with {@code weigher} if this capacity is in bytes.
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Caffeine<K, V> applyTo(Caffeine<Object, Object> builder, Weigher<? super K, ? super V> weigher) {
+        if (weighted) {
+            return builder.maximumWeight(maximum).weigher(weigher);
+        }
+        return (Caffeine<K, V>) (Caffeine<?, ?>) builder.maximumSize(maximum);
+    }
+
+    @Override
+    public String toString() {
+        return weighted ? maximum + " bytes" : maximum + " entries";
+    }
+}
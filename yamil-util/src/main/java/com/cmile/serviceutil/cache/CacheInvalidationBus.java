@@ -0,0 +1,413 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+import org.slf4j.MDC;
+import org.springframework.scheduling.TaskScheduler;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.common.json.JsonEntityMapper;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.job.PubSub.PubSubPublisher;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.cloud.spring.pubsub.PubSubAdmin;
+import com.google.cloud.spring.pubsub.core.subscriber.PubSubSubscriberOperations;
+import com.google.cloud.spring.pubsub.support.BasicAcknowledgeablePubsubMessage;
+import com.google.pubsub.v1.ExpirationPolicy;
+import com.google.pubsub.v1.Subscription;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Broadcasts cache invalidations to every replica of the service over Pub/Sub. Local changes are
+ * collected for {@code coalesceWindow} and published as one message, with a key-level invalidation
+ * dropped when the same message invalidates its whole space. Each replica reads the topic through a
+ * subscription of its own and ignores the messages it published itself.
+ *
+ * <p>Keys travel as JSON together with their {@link KeyType}, so that a {@code Long} key reads back
+ * as a {@code Long}. A key of any other type invalidates its whole space instead.
+ */
+@Slf4j
+public class CacheInvalidationBus {
+
+    public static final String RESULT_PUBLISHED = "published";
+    public static final String RESULT_RECEIVED = "received";
+    public static final String RESULT_ECHO = "echo";
+
+    // Subscriptions of replicas that died without deleting theirs are removed by Pub/Sub.
+    private static final Duration SUBSCRIPTION_EXPIRY = Duration.ofDays(1);
+
+    private final String originId = UUID.randomUUID().toString();
+    private final PubSubPublisher publisher;
+    private final PubSubSubscriberOperations subscriberOperations;
+    private final PubSubAdmin pubSubAdmin;
+    private final TaskScheduler taskScheduler;
+    private final GCPServiceProject gcpServiceProject;
+    private final JsonEntityMapper jsonEntityMapper;
+    private final String topicPrefix;
+    private final Duration coalesceWindow;
+    private final int maxBatchSize;
+
+    private final Map<String, Target> targets = new ConcurrentHashMap<>();
+    private final Map<Slot, Invalidation> pending = new LinkedHashMap<>();
+    private final Set<String> unsupportedKeyCaches = ConcurrentHashMap.newKeySet();
+    private ScheduledFuture<?> flushTask;
+    private CacheMetricsRegistry cacheMetricsRegistry;
+    private Subscriber subscriber;
+    private String subscriptionName;
+
+    public CacheInvalidationBus(PubSubPublisher publisher, PubSubSubscriberOperations subscriberOperations,
+            PubSubAdmin pubSubAdmin, TaskScheduler taskScheduler, GCPServiceProject gcpServiceProject,
+            JsonEntityMapper jsonEntityMapper, String topicPrefix, Duration coalesceWindow, int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Invalidation batch size must be positive");
+        }
+        this.publisher = publisher;
+        this.subscriberOperations = subscriberOperations;
+        this.pubSubAdmin = pubSubAdmin;
+        this.taskScheduler = taskScheduler;
+        this.gcpServiceProject = gcpServiceProject;
+        this.jsonEntityMapper = jsonEntityMapper;
+        this.topicPrefix = topicPrefix;
+        this.coalesceWindow = coalesceWindow;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setCacheMetricsRegistry(CacheMetricsRegistry cacheMetricsRegistry) {
+        this.cacheMetricsRegistry = cacheMetricsRegistry;
+    }
+
+    public String getOriginId() {
+        return originId;
+    }
+
+    public String getTopicName() {
+        // PubSubPublisher publishes to the topic of the deployment unit
+        return topicPrefix + "-" + gcpServiceProject.getDu();
+    }
+
+    /**
+     * Creates the topic if it does not exist yet, then this replica's subscription, and starts
+     * listening.
+     */
+    public synchronized void start() {
+        if (subscriber != null) {
+            return;
+        }
+        String topicName = getTopicName();
+        if (pubSubAdmin.getTopic(topicName) == null) {
+            pubSubAdmin.createTopic(topicName);
+        }
+        subscriptionName = topicName + "-" + originId;
+        pubSubAdmin.createSubscription(Subscription.newBuilder()
+                .setName(subscriptionName)
+                .setTopic(topicName)
+                .setExpirationPolicy(ExpirationPolicy.newBuilder()
+                        .setTtl(com.google.protobuf.Duration.newBuilder().setSeconds(SUBSCRIPTION_EXPIRY.getSeconds()))));
+        subscriber = subscriberOperations.subscribe(subscriptionName, this::receive);
+        log.info("Listening for cache invalidations on {} as {}", topicName, originId);
+    }
+
+    /**
+     * Publishes what is still pending, stops listening and deletes this replica's subscription.
+     */
+    public synchronized void stop() {
+        flush();
+        if (subscriber == null) {
+            return;
+        }
+        subscriber.stopAsync();
+        subscriber = null;
+        try {
+            pubSubAdmin.deleteSubscription(subscriptionName);
+        } catch (RuntimeException e) {
+            log.warn("Could not delete the invalidation subscription {}, it expires on its own", subscriptionName, e);
+        }
+    }
+
+    /**
+     * Registers the cache that invalidations received for {@code cacheName} are applied to.
+     */
+    public void register(String cacheName, Target target) {
+        Target registered = targets.putIfAbsent(cacheName, target);
+        if (registered != null && registered != target) {
+            log.warn("A cache named {} already receives invalidations, ignoring the second one", cacheName);
+        }
+    }
+
+    /**
+     * Invalidates a key of a cache on every other replica, which loads it again on its next read.
+     * {@code spaceId} is {@code null} for caches that are not kept per space.
+     */
+    public void invalidate(String cacheName, String spaceId, Object key) {
+        enqueueKey(cacheName, spaceId, Objects.requireNonNull(key, "key"), false);
+    }
+
+    /**
+     * Makes every other replica reload a key of a cache from its store, for caches that do not read a
+     * missing key through. Call it once the new value is durable.
+     */
+    public void refresh(String cacheName, String spaceId, Object key) {
+        enqueueKey(cacheName, spaceId, Objects.requireNonNull(key, "key"), true);
+    }
+
+    /**
+     * Invalidates every entry of a space of a cache on every other replica.
+     */
+    public void invalidateSpace(String cacheName, String spaceId) {
+        enqueue(new Invalidation(cacheName, spaceId, null, null, false));
+    }
+
+    private void enqueueKey(String cacheName, String spaceId, Object key, boolean refresh) {
+        KeyType keyType = KeyType.of(key);
+        if (keyType == null) {
+            if (unsupportedKeyCaches.add(cacheName)) {
+                log.warn("Keys of {} are {}, which cannot be broadcast, invalidating whole spaces instead",
+                        cacheName, key.getClass().getName());
+            }
+            invalidateSpace(cacheName, spaceId);
+            return;
+        }
+        enqueue(new Invalidation(cacheName, spaceId, key, keyType, refresh));
+    }
+
+    private synchronized void enqueue(Invalidation invalidation) {
+        if (pending.containsKey(new Slot(invalidation.cache(), invalidation.spaceId(), null))) {
+            return;
+        }
+        if (invalidation.key() == null) {
+            pending.keySet().removeIf(other -> other.cache().equals(invalidation.cache())
+                    && Objects.equals(other.spaceId(), invalidation.spaceId()));
+        }
+        // The latest change of a key wins, in the place of its first one
+        pending.put(new Slot(invalidation.cache(), invalidation.spaceId(), invalidation.key()), invalidation);
+        if (flushTask == null || flushTask.isDone()) {
+            flushTask = taskScheduler.schedule(this::flush, Instant.now().plus(coalesceWindow));
+        }
+    }
+
+    /**
+     * Publishes the pending invalidations now, in messages of at most {@code maxBatchSize}.
+     */
+    public void flush() {
+        List<List<Invalidation>> batches = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Invalidation> iterator = pending.values().iterator();
+            while (iterator.hasNext()) {
+                List<Invalidation> batch = new ArrayList<>(Math.min(maxBatchSize, pending.size()));
+                while (iterator.hasNext() && batch.size() < maxBatchSize) {
+                    batch.add(iterator.next());
+                    iterator.remove();
+                }
+                batches.add(batch);
+            }
+        }
+        for (List<Invalidation> batch : batches) {
+            publish(new InvalidationMessage(originId, batch));
+        }
+    }
+
+    private void publish(InvalidationMessage message) {
+        ContextInfo previousContext = RequestContext.getRequestContextDetails();
+        if (previousContext == null) {
+            // PubSubPublisher takes the deployment unit of the topic from the request context
+            ContextInfo ctx = new ContextInfo();
+            ctx.setDuId(gcpServiceProject.getDu());
+            ctx.setApplicationName(gcpServiceProject.getApplicationName());
+            RequestContext.setRequestContextDetails(ctx);
+        }
+        try {
+            publisher.publish(topicPrefix, jsonEntityMapper.writeEntityToJson(message));
+            record(RESULT_PUBLISHED, message.invalidations().size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while publishing {} cache invalidations", message.invalidations().size());
+        } catch (Exception e) {
+            // Replicas fall back to the expiry of their entries
+            log.error("Failed to publish {} cache invalidations", message.invalidations().size(), e);
+        } finally {
+            if (previousContext == null) {
+                RequestContext.clear();
+                MDC.clear();
+            }
+        }
+    }
+
+    void receive(BasicAcknowledgeablePubsubMessage message) {
+        String payload = message.getPubsubMessage().getData().toStringUtf8();
+        try {
+            InvalidationMessage received = jsonEntityMapper.readJsonToEntity(payload, InvalidationMessage.class);
+            if (originId.equals(received.origin())) {
+                record(RESULT_ECHO, received.invalidations().size());
+            } else {
+                applyAll(received.invalidations());
+                record(RESULT_RECEIVED, received.invalidations().size());
+            }
+        } catch (IOException | RuntimeException e) {
+            // Redelivering a message that cannot be read would not help
+            log.error("Dropping unreadable cache invalidation message: {}", payload, e);
+        }
+        message.ack();
+    }
+
+    /**
+     * Applies the invalidations in order, except that refreshes up to the next invalidation are handed
+     * to their cache as one batch per space.
+     */
+    private void applyAll(List<Invalidation> invalidations) {
+        Map<SpaceOfCache, List<Object>> refreshes = new LinkedHashMap<>();
+        for (Invalidation invalidation : invalidations) {
+            if (invalidation.key() != null && invalidation.refresh()) {
+                refreshes.computeIfAbsent(new SpaceOfCache(invalidation.cache(), invalidation.spaceId()),
+                        space -> new ArrayList<>()).add(invalidation.key());
+            } else {
+                refreshAll(refreshes);
+                apply(invalidation);
+            }
+        }
+        refreshAll(refreshes);
+    }
+
+    private void refreshAll(Map<SpaceOfCache, List<Object>> refreshes) {
+        refreshes.forEach((space, keys) -> {
+            Target target = targets.get(space.cache());
+            if (target != null) {
+                target.refreshAllLocally(space.spaceId(), keys);
+            }
+        });
+        refreshes.clear();
+    }
+
+    private void apply(Invalidation invalidation) {
+        Target target = targets.get(invalidation.cache());
+        if (target == null) {
+            return;
+        }
+        if (invalidation.key() == null) {
+            target.invalidateSpaceLocally(invalidation.spaceId());
+        } else if (invalidation.refresh()) {
+            target.refreshLocally(invalidation.spaceId(), invalidation.key());
+        } else {
+            target.invalidateLocally(invalidation.spaceId(), invalidation.key());
+        }
+    }
+
+    private void record(String result, int count) {
+        if (cacheMetricsRegistry != null) {
+            cacheMetricsRegistry.recordInvalidations(result, count);
+        }
+    }
+
+    /**
+     * A cache that applies invalidations received from other replicas, without broadcasting them again.
+     */
+    public interface Target {
+
+        void invalidateLocally(String spaceId, Object key);
+
+        void invalidateSpaceLocally(String spaceId);
+
+        /**
+         * Reloads the key from the store, by default it is only invalidated.
+         */
+        default void refreshLocally(String spaceId, Object key) {
+            invalidateLocally(spaceId, key);
+        }
+
+        /**
+         * Reloads keys of one space from the store. Called on the subscriber thread, so a target whose
+         * store may be slow should hand the reload off; by default the keys are refreshed one by one.
+         */
+        default void refreshAllLocally(String spaceId, Collection<Object> keys) {
+            keys.forEach(key -> refreshLocally(spaceId, key));
+        }
+    }
+
+    private record SpaceOfCache(String cache, String spaceId) {
+    }
+
+    /**
+     * One invalidation; a {@code null} key invalidates the whole space. A refresh makes the receiver
+     * reload the key instead of dropping it. The key is read back as its {@code keyType}, as JSON
+     * alone would turn a {@code Long} into an {@code Integer}.
+     */
+    public record Invalidation(String cache, String spaceId, Object key, KeyType keyType, boolean refresh) {
+
+        public Invalidation {
+            if (key != null && keyType != null) {
+                key = keyType.read(key);
+            }
+        }
+    }
+
+    /**
+     * Key types that survive the trip through JSON once their type is known.
+     */
+    public enum KeyType {
+        STRING(String.class),
+        LONG(Long.class),
+        INTEGER(Integer.class),
+        UUID(java.util.UUID.class);
+
+        private final Class<?> type;
+
+        KeyType(Class<?> type) {
+            this.type = type;
+        }
+
+        static KeyType of(Object key) {
+            for (KeyType keyType : values()) {
+                if (keyType.type == key.getClass()) {
+                    return keyType;
+                }
+            }
+            return null;
+        }
+
+        Object read(Object value) {
+            return switch (this) {
+                case STRING -> value.toString();
+                case LONG -> value instanceof Number number ? number.longValue() : Long.valueOf(value.toString());
+                case INTEGER -> value instanceof Number number ? number.intValue() : Integer.valueOf(value.toString());
+                case UUID -> value instanceof java.util.UUID ? value : java.util.UUID.fromString(value.toString());
+            };
+        }
+    }
+
+    private record Slot(String cache, String spaceId, Object key) {
+    }
+
+    public record InvalidationMessage(String origin, List<Invalidation> invalidations) {
+    }
+}
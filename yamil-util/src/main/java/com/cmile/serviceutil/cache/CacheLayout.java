@@ -0,0 +1,69 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+/**
+ * Storage behind an {@link AbstractCacheRepositoryImpl}: every space in one shared cache, or one cache
+ * per space. A {@code null} space holds the entries of globally scoped services.
+ */
+interface CacheLayout<K, V> {
+
+    V get(String spaceId, K key);
+
+    void put(String spaceId, K key, V value);
+
+    void invalidate(String spaceId, K key);
+
+    /**
+     * Atomically replaces the entry of the key with the result of {@code remapping}, which is given
+     * the current value or {@code null}. A {@code null} result removes the entry.
+     */
+    V compute(String spaceId, K key, BiFunction<? super K, ? super V, ? extends V> remapping);
+
+    void invalidateAll(String spaceId, Collection<K> keys);
+
+    /**
+     * Drops every entry of the space.
+     */
+    void invalidateSpace(String spaceId);
+
+    long estimatedSize();
+
+    /**
+     * The entries of one space, keyed without their space.
+     */
+    Map<K, V> asMap(String spaceId);
+
+    /**
+     * Calls the listener for every Caffeine cache of the layout, now and whenever one is created or
+     * dropped later.
+     */
+    void addCacheListener(CacheListener listener);
+
+    interface CacheListener {
+
+        void cacheCreated(String spaceId, Cache<?, ?> cache);
+
+        void cacheRemoved(String spaceId);
+    }
+}
@@ -18,35 +18,216 @@ package com.cmile.serviceutil.cache;
 
 import com.cmile.serviceutil.auth.RequestContext;
 import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.exception.ConnectionParamsNotFoundException;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
+import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.util.ClassUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+@Slf4j
 public class CacheManager<K, V> {
 
+    public static final String REFRESH_SUCCESS = "success";
+    public static final String REFRESH_FAILURE = "failure";
+    public static final String REFRESH_FALLBACK = "fallback";
+    public static final String NEGATIVE_STORED = "stored";
+    public static final String NEGATIVE_HIT = "hit";
+
+    // Defaults for setNegativeCaching: short enough for a newly provisioned tenant to show up soon.
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofSeconds(30);
+    public static final long DEFAULT_NEGATIVE_MAX_SIZE = 10_000;
+
+    // Share of the expiry (and of the refresh interval for the reload delay) that is randomized, so
+    // keys loaded together do not all expire or reload together.
+    private static final double JITTER = 0.1;
+
+    private final CacheCapacity capacity;
     private final LoadingCache<K, V> cache;
+    private final Cache<K, V> lastGood;
     private Function<K, V> loader;
+    private Function<Set<K>, Map<K, V>> bulkLoader;
+    private Cache<K, NegativeEntry> negativeCache;
+    private CacheMetricsRegistry cacheMetricsRegistry;
+    private CacheInvalidationBus cacheInvalidationBus;
+    private volatile Executor refreshExecutor = ForkJoinPool.commonPool();
 
     public CacheManager(long expirationDuration, TimeUnit timeUnit, long maxSize) {
+        this(expirationDuration, timeUnit, CacheCapacity.entries(maxSize));
+    }
+
+    /**
+     * @param capacity bound of the cache; with a byte capacity every entry is weighed with
+     *     {@link #weigh}
+     */
+    public CacheManager(long expirationDuration, TimeUnit timeUnit, CacheCapacity capacity) {
+        this.capacity = capacity;
         // Cache is created but the loader function is set later
         cache =
-                Caffeine.newBuilder()
+                capacity.applyTo(Caffeine.newBuilder(), this::weigh)
                         .recordStats()
                         .expireAfterAccess(expirationDuration, timeUnit)
-                        .maximumSize(maxSize)
                         .build(
                                 new CacheLoader<K, V>() {
                                     @Override
                                     public V load(K key) {
-                                        if (loader == null) {
-                                            throw new IllegalStateException("Loader function is not set.");
-                                        }
-                                        return loader.apply(key);
+                                        return loadFromSource(key);
+                                    }
+
+                                    @Override
+                                    public Map<K, V> loadAll(Set<? extends K> keys) {
+                                        return loadAllFromSource(keys);
                                     }
                                 });
+        lastGood = null;
+    }
+
+    /**
+     * Refresh-ahead variant. An entry read more than {@code refreshAfterWrite} after it was loaded is
+     * still served while it is reloaded in the background. If a load fails, the last value loaded
+     * for the key within {@code maxStaleness} is served instead. Expiry and reloads are jittered.
+     */
+    public CacheManager(long expirationDuration, TimeUnit timeUnit, long maxSize, Duration refreshAfterWrite,
+            Duration maxStaleness) {
+        this(expirationDuration, timeUnit, CacheCapacity.entries(maxSize), refreshAfterWrite, maxStaleness);
+    }
+
+    public CacheManager(long expirationDuration, TimeUnit timeUnit, CacheCapacity capacity,
+            Duration refreshAfterWrite, Duration maxStaleness) {
+        this.capacity = capacity;
+        long expirationNanos = timeUnit.toNanos(expirationDuration);
+        long refreshNanos = refreshAfterWrite.toNanos();
+        lastGood = capacity.applyTo(Caffeine.newBuilder(), this::weigh)
+                .expireAfterWrite(maxStaleness)
+                .build();
+        cache = capacity.applyTo(Caffeine.newBuilder(), this::weigh)
+                .recordStats()
+                .executor(this::executeRefresh)
+                .expireAfter(new JitteredExpiry<K, V>(expirationNanos))
+                .refreshAfterWrite(refreshAfterWrite)
+                .buildAsync(new AsyncCacheLoader<K, V>() {
+                    @Override
+                    public CompletableFuture<V> asyncLoad(K key, Executor executor) {
+                        return supplyWithContext(() -> load(key), executor);
+                    }
+
+                    @Override
+                    public CompletableFuture<Map<K, V>> asyncLoadAll(Set<? extends K> keys, Executor executor) {
+                        return supplyWithContext(() -> loadAll(keys), executor);
+                    }
+
+                    @Override
+                    public CompletableFuture<V> asyncReload(K key, V oldValue, Executor executor) {
+                        long delay = (long) (refreshNanos * JITTER * ThreadLocalRandom.current().nextDouble());
+                        Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, executor);
+                        return supplyWithContext(() -> reload(key), delayed);
+                    }
+                })
+                .synchronous();
+    }
+
+    /**
+     * Executor the loads and reloads of a refresh-ahead cache run on. Loaders block on remote calls,
+     * so they belong on the bounded cacheRefreshExecutor rather than on the common fork-join pool, which
+     * is only used until an executor is set.
+     */
+    @Autowired(required = false)
+    public void setRefreshExecutor(@Qualifier("cacheRefreshExecutor") TaskExecutor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    private void executeRefresh(Runnable task) {
+        try {
+            refreshExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // The executor is saturated, the thread that needs the value loads it itself
+            task.run();
+        }
+    }
+
+    /**
+     * Name the cache's metrics are reported under.
+     */
+    public String getCacheName() {
+        return ClassUtils.getUserClass(getClass()).getSimpleName();
+    }
+
+    @Autowired(required = false)
+    public void setCacheMetricsRegistry(CacheMetricsRegistry cacheMetricsRegistry) {
+        this.cacheMetricsRegistry = cacheMetricsRegistry;
+        cacheMetricsRegistry.register(getCacheName(), cache);
+        if (negativeCache != null) {
+            cacheMetricsRegistry.register(getCacheName() + ".negative", negativeCache);
+        }
+    }
+
+    /**
+     * Broadcasts evictions, refreshes and clears to the other replicas, which evict the keys so that
+     * their next read loads the current value. Keys other than strings, longs, integers and UUIDs
+     * clear the whole cache on the other replicas.
+     */
+    @Autowired(required = false)
+    @SuppressWarnings("unchecked")
+    public void setCacheInvalidationBus(CacheInvalidationBus cacheInvalidationBus) {
+        this.cacheInvalidationBus = cacheInvalidationBus;
+        cacheInvalidationBus.register(getCacheName(), new CacheInvalidationBus.Target() {
+            @Override
+            public void invalidateLocally(String spaceId, Object key) {
+                evictLocally((K) key);
+            }
+
+            @Override
+            public void invalidateSpaceLocally(String spaceId) {
+                clearLocally();
+            }
+        });
+    }
+
+    /**
+     * Puts the cache, and the last good values of a refresh-ahead cache, under the memory budget if
+     * the capacity is in bytes.
+     */
+    @Autowired(required = false)
+    public void setCacheMemoryBudget(CacheMemoryBudget cacheMemoryBudget) {
+        if (capacity.isWeighted()) {
+            cacheMemoryBudget.register(getCacheName(), cache, capacity.getMaximum());
+            if (lastGood != null) {
+                cacheMemoryBudget.register(getCacheName() + ".lastGood", lastGood, capacity.getMaximum());
+            }
+        }
+    }
+
+    /**
+     * Estimated bytes retained by an entry, used with byte capacities.
+     */
+    public int weigh(K key, V value) {
+        return ObjectSizeEstimator.weigh(key, value);
     }
 
     // Method to set the loader after construction
@@ -54,25 +235,341 @@ public class CacheManager<K, V> {
         this.loader = loader;
     }
 
+    /**
+     * Optional loader for a batch of keys, used by {@link #getAll} so that all misses are loaded
+     * with one call. Keys missing from the returned map are treated as absent. Without it the
+     * single-key loader is called once per missing key.
+     */
+    public void setBulkLoader(Function<Set<K>, Map<K, V>> bulkLoader) {
+        this.bulkLoader = bulkLoader;
+    }
+
+    /**
+     * Remembers keys the loader found nothing for, so that they are not looked up again on every
+     * request for {@code ttl}. A key counts as missing when the loader returns {@code null}, when it
+     * throws an exception accepted by {@link #isMissing}, or when the bulk loader leaves it out, with
+     * {@link #missingFromBulkLoad} as the cause. Until
+     * the negative entry expires {@link #getCache} returns {@code null} or throws {@link
+     * #missingException} without calling the loader; call {@link #invalidateNegative} once the key is
+     * provisioned.
+     */
+    public void setNegativeCaching(Duration ttl, long maxSize) {
+        this.negativeCache = Caffeine.newBuilder()
+                .recordStats()
+                .expireAfterWrite(ttl)
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    /**
+     * Whether a load failure means that the key does not exist, as opposed to a transient failure that
+     * must not be cached.
+     */
+    protected boolean isMissing(RuntimeException e) {
+        return e instanceof ConnectionParamsNotFoundException;
+    }
+
+    /**
+     * Exception {@link #getCache} throws for a key whose load failed with {@code cause}, a new one on
+     * every call so that callers never share an instance, its stack trace or its suppressed
+     * exceptions. Override it together with {@link #isMissing} to keep the thrown type.
+     */
+    protected RuntimeException missingException(K key, RuntimeException cause) {
+        if (cause instanceof ConnectionParamsNotFoundException) {
+            return new ConnectionParamsNotFoundException(cause.getMessage(), cause);
+        }
+        return new IllegalStateException(String.format("%s is missing from %s: %s", key, getCacheName(),
+                cause.getMessage()), cause);
+    }
+
+    /**
+     * Cause remembered for a key the bulk loader left out, {@code null} to report it as not found like
+     * a loader returning {@code null}. Override it when the loader throws for missing keys, so {@link
+     * #getCache} keeps throwing for them after a {@link #getAll}.
+     */
+    protected RuntimeException missingFromBulkLoad(K key) {
+        return null;
+    }
+
+    /**
+     * Why the key is currently known to be missing, {@code null} if it is not.
+     */
+    public NegativeEntry getNegativeEntry(K key) {
+        return negativeCache == null ? null : negativeCache.getIfPresent(key);
+    }
+
+    public void invalidateNegative(K key) {
+        if (negativeCache != null) {
+            negativeCache.invalidate(key);
+        }
+    }
+
+    public void invalidateAllNegative() {
+        if (negativeCache != null) {
+            negativeCache.invalidateAll();
+        }
+    }
+
     public V getCache(K key) {
+        NegativeEntry negative = getNegativeEntry(key);
+        if (negative != null) {
+            recordNegative(NEGATIVE_HIT);
+            if (negative.cause() != null) {
+                throw missingException(key, negative.cause());
+            }
+            return null;
+        }
         return cache.get(key);
     }
 
+    /**
+     * Returns the cached values of the keys, loading every missing key in one batch. Keys without a
+     * value are left out of the result.
+     */
+    public Map<K, V> getAll(Collection<K> keys) {
+        if (negativeCache == null) {
+            return cache.getAll(keys);
+        }
+        List<K> candidates = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            if (negativeCache.getIfPresent(key) == null) {
+                candidates.add(key);
+            } else {
+                recordNegative(NEGATIVE_HIT);
+            }
+        }
+        return cache.getAll(candidates);
+    }
+
     public void putCache(K key, V value) {
+        invalidateNegative(key);
         cache.put(key, value);
+        if (lastGood != null) {
+            lastGood.put(key, value);
+        }
     }
 
     public V refreshCache(K key) {
         V newValue = loader.apply(key);
-        cache.put(key, newValue);
+        putCache(key, newValue);
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(getCacheName(), null, key);
+        }
         return newValue;
     }
 
     public void evictCache(K key) {
-        cache.invalidate(key);
+        evictLocally(key);
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidate(getCacheName(), null, key);
+        }
     }
 
     public void clearCache() {
+        clearLocally();
+        if (cacheInvalidationBus != null) {
+            cacheInvalidationBus.invalidateSpace(getCacheName(), null);
+        }
+    }
+
+    private void evictLocally(K key) {
+        invalidateNegative(key);
+        cache.invalidate(key);
+        if (lastGood != null) {
+            lastGood.invalidate(key);
+        }
+    }
+
+    private void clearLocally() {
+        invalidateAllNegative();
         cache.invalidateAll();
+        if (lastGood != null) {
+            lastGood.invalidateAll();
+        }
+    }
+
+    private Function<K, V> requireLoader() {
+        if (loader == null) {
+            throw new IllegalStateException("Loader function is not set.");
+        }
+        return loader;
+    }
+
+    private V loadFromSource(K key) {
+        try {
+            V value = requireLoader().apply(key);
+            if (value == null) {
+                rememberMissing(key, null);
+            }
+            return value;
+        } catch (RuntimeException e) {
+            if (isMissing(e)) {
+                rememberMissing(key, e);
+            }
+            throw e;
+        }
+    }
+
+    private void rememberMissing(K key, RuntimeException cause) {
+        if (negativeCache != null) {
+            negativeCache.put(key, new NegativeEntry(cause, Instant.now()));
+            recordNegative(NEGATIVE_STORED);
+        }
+    }
+
+    private V load(K key) {
+        try {
+            V value = loadFromSource(key);
+            if (value != null) {
+                lastGood.put(key, value);
+            }
+            return value;
+        } catch (RuntimeException e) {
+            V fallback = lastGood.getIfPresent(key);
+            if (fallback == null) {
+                throw e;
+            }
+            // The last good value is served, so the key must not be reported missing meanwhile
+            invalidateNegative(key);
+            log.warn("Loading {} in {} failed, serving its last good value: {}", key, getCacheName(), e.getMessage());
+            recordRefresh(REFRESH_FALLBACK);
+            return fallback;
+        }
+    }
+
+    private Map<K, V> loadAllFromSource(Set<? extends K> keys) {
+        if (bulkLoader == null) {
+            // loadFromSource remembers missing keys itself
+            Map<K, V> values = new HashMap<>();
+            for (K key : keys) {
+                try {
+                    V value = loadFromSource(key);
+                    if (value != null) {
+                        values.put(key, value);
+                    }
+                } catch (RuntimeException e) {
+                    if (!isMissing(e)) {
+                        throw e;
+                    }
+                }
+            }
+            return values;
+        }
+        Map<K, V> values = bulkLoader.apply(Set.copyOf(keys));
+        for (K key : keys) {
+            if (!values.containsKey(key)) {
+                rememberMissing(key, missingFromBulkLoad(key));
+            }
+        }
+        return values;
+    }
+
+    private Map<K, V> loadAll(Set<? extends K> keys) {
+        try {
+            Map<K, V> values = loadAllFromSource(keys);
+            lastGood.putAll(values);
+            return values;
+        } catch (RuntimeException e) {
+            Map<K, V> fallback = lastGood.getAllPresent(keys);
+            if (fallback.size() < keys.size()) {
+                throw e;
+            }
+            log.warn("Loading {} keys in {} failed, serving their last good values: {}", keys.size(),
+                    getCacheName(), e.getMessage());
+            recordRefresh(REFRESH_FALLBACK);
+            return fallback;
+        }
+    }
+
+    private V reload(K key) {
+        try {
+            V value = requireLoader().apply(key);
+            if (value != null) {
+                lastGood.put(key, value);
+            }
+            recordRefresh(REFRESH_SUCCESS);
+            return value;
+        } catch (RuntimeException e) {
+            // Caffeine keeps serving the current value when a reload fails
+            log.debug("Refreshing {} in {} failed: {}", key, getCacheName(), e.getMessage());
+            recordRefresh(REFRESH_FAILURE);
+            throw e;
+        }
+    }
+
+    private void recordNegative(String result) {
+        if (cacheMetricsRegistry != null) {
+            cacheMetricsRegistry.recordNegative(getCacheName(), result);
+        }
+    }
+
+    private void recordRefresh(String result) {
+        if (cacheMetricsRegistry != null) {
+            cacheMetricsRegistry.recordRefresh(getCacheName(), result);
+        }
+    }
+
+    /**
+     * Loaders read the tenant from the {@link RequestContext}, so the context of the thread that
+     * triggered the load is carried over to the thread that runs it.
+     */
+    private static <T> CompletableFuture<T> supplyWithContext(Supplier<T> supplier, Executor executor) {
+        ContextInfo context = RequestContext.getRequestContextDetails();
+        return CompletableFuture.supplyAsync(() -> {
+            ContextInfo previous = RequestContext.getRequestContextDetails();
+            RequestContext.setRequestContextDetails(context);
+            try {
+                return supplier.get();
+            } finally {
+                if (previous == null) {
+                    RequestContext.clear();
+                } else {
+                    RequestContext.setRequestContextDetails(previous);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Why a key is missing: the exception its load failed with, or {@code null} if the loader found
+     * nothing. Hits throw a new {@link #missingException} caused by it.
+     */
+    public record NegativeEntry(RuntimeException cause, Instant cachedAt) {
+
+        public String getReason() {
+            return cause == null ? "not found" : cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        }
+    }
+
+    /**
+     * Expires an entry a jittered {@code expirationNanos} after it was last read or written, which is
+     * {@code expireAfterAccess} with the jitter added.
+     */
+    private static final class JitteredExpiry<K, V> implements Expiry<K, V> {
+        private final long expirationNanos;
+
+        private JitteredExpiry(long expirationNanos) {
+            this.expirationNanos = expirationNanos;
+        }
+
+        private long jittered() {
+            double factor = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+            return (long) (expirationNanos * factor);
+        }
+
+        @Override
+        public long expireAfterCreate(K key, V value, long currentTime) {
+            return jittered();
+        }
+
+        @Override
+        public long expireAfterUpdate(K key, V value, long currentTime, long currentDuration) {
+            return jittered();
+        }
+
+        @Override
+        public long expireAfterRead(K key, V value, long currentTime, long currentDuration) {
+            return jittered();
+        }
     }
 }
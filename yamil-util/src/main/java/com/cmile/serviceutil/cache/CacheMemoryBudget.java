@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.util.unit.DataSize;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Heap budget shared by every byte bounded cache. Each cache registers the number of bytes it asks
+ * for; while the sum stays within the budget every cache gets what it asked for, beyond that each
+ * one is scaled down in proportion, by lowering the maximum weight of its eviction policy.
+ */
+@Slf4j
+public class CacheMemoryBudget {
+
+    private final long totalBytes;
+    private final Map<String, Registration> caches = new LinkedHashMap<>();
+
+    public CacheMemoryBudget(long totalBytes) {
+        if (totalBytes <= 0) {
+            throw new IllegalArgumentException("Cache memory budget must be positive");
+        }
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Parses a budget given either as a share of the maximum heap ({@code 25%}) or as a data size
+     * ({@code 512MB}).
+     */
+    public static CacheMemoryBudget of(String budget) {
+        String value = budget.trim();
+        if (value.endsWith("%")) {
+            double share = Double.parseDouble(value.substring(0, value.length() - 1).trim()) / 100;
+            return new CacheMemoryBudget((long) (Runtime.getRuntime().maxMemory() * share));
+        }
+        return new CacheMemoryBudget(DataSize.parse(value).toBytes());
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Registers a weighted cache asking for {@code requestedBytes}. A second cache under the same name
+     * replaces the first.
+     */
+    public synchronized void register(String cacheName, Cache<?, ?> cache, long requestedBytes) {
+        if (cache.policy().eviction().filter(Policy.Eviction::isWeighted).isEmpty()) {
+            throw new IllegalArgumentException(String.format("Cache %s is not bounded by weight", cacheName));
+        }
+        caches.put(cacheName, new Registration(cache, requestedBytes));
+        rebalance();
+    }
+
+    public synchronized void unregister(String cacheName) {
+        if (caches.remove(cacheName) != null) {
+            rebalance();
+        }
+    }
+
+    /**
+     * Bytes currently granted to each registered cache.
+     */
+    public synchronized Map<String, Long> getAllocations() {
+        Map<String, Long> allocations = new LinkedHashMap<>();
+        caches.forEach((name, registration) -> allocations.put(name, registration.granted));
+        return allocations;
+    }
+
+    private void rebalance() {
+        long requested = caches.values().stream().mapToLong(registration -> registration.requestedBytes).sum();
+        double factor = requested <= totalBytes ? 1 : (double) totalBytes / requested;
+        if (factor < 1) {
+            log.info("Caches ask for {} bytes, more than the budget of {}, scaling them by {}", requested,
+                    totalBytes, String.format("%.2f", factor));
+        }
+        for (Registration registration : caches.values()) {
+            long granted = Math.max(1, (long) (registration.requestedBytes * factor));
+            if (granted != registration.granted) {
+                registration.granted = granted;
+                registration.cache.policy().eviction().ifPresent(eviction -> eviction.setMaximum(granted));
+            }
+        }
+    }
+
+    private static final class Registration {
+        private final Cache<?, ?> cache;
+        private final long requestedBytes;
+        private long granted;
+
+        private Registration(Cache<?, ?> cache, long requestedBytes) {
+            this.cache = cache;
+            this.requestedBytes = requestedBytes;
+            this.granted = -1;
+        }
+    }
+}
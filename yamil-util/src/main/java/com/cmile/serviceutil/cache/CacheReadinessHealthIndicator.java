@@ -0,0 +1,41 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * Reports DOWN until every critical cache has been hydrated, so the pod only receives traffic once
+ * it can answer from cache. Add it to the readiness group with
+ * {@code management.endpoint.health.group.readiness.include=readinessState,cacheReadiness}.
+ */
+public class CacheReadinessHealthIndicator implements HealthIndicator {
+
+    private final CacheTaskExecutor cacheTaskExecutor;
+
+    public CacheReadinessHealthIndicator(CacheTaskExecutor cacheTaskExecutor) {
+        this.cacheTaskExecutor = cacheTaskExecutor;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder builder = cacheTaskExecutor.isCriticalCachesWarm() ? Health.up() : Health.down();
+        cacheTaskExecutor.getCriticalCacheStates().forEach((cacheName, state) -> builder.withDetail(cacheName, state));
+        return builder.build();
+    }
+}
@@ -18,15 +18,11 @@ package com.cmile.serviceutil.cache;
 
 import java.util.Map;
 
-import org.springframework.data.mongodb.core.MongoTemplate;
-
 public interface CacheRepository<K, V> {
     abstract String getCacheName();
 
     abstract void hydrateCache(String spaceId);
 
-    abstract MongoTemplate getMongoTemplate();
-
     abstract Class<V> getEntityClass();
 
     abstract long getMaxSize();
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+import com.mongodb.MongoClientSettings;
+
+/**
+ * Binary snapshot of a cache repository. The file is a fixed header followed by BSON documents:
+ *
+ * <pre>
+ * int   magic "CMCS"
+ * int   format version
+ * long  creation time, epoch millis
+ * int   number of sections
+ * long  CRC32 of everything after the header
+ * per section: {s: space, t: resume token, n: entry count}, then n times {k: key, v: value, i: _id}
+ * </pre>
+ *
+ * One section holds one space. Snapshots are written to a temporary file and moved into place, so
+ * a reader never sees a partial file.
+ */
+final class CacheSnapshotFile {
+
+    static final int MAGIC = 0x434D4353;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    private CacheSnapshotFile() {
+    }
+
+    /**
+     * One space of a snapshot. Entries are decoded from the mapped file only when they are read.
+     */
+    record Section(String space, BsonDocument resumeToken, int entryCount, ByteBuffer entries) {
+
+        void forEach(Consumer<Document> consumer) {
+            ByteBuffer buffer = entries.duplicate();
+            for (int i = 0; i < entryCount; i++) {
+                consumer.accept(nextDocument(buffer));
+            }
+        }
+    }
+
+    record Snapshot(long createdAt, Map<String, Section> sections) {
+    }
+
+    interface EntryWriter {
+        void entry(Object key, Document value, Object id) throws IOException;
+    }
+
+    interface EntrySource {
+        void writeTo(EntryWriter writer) throws IOException;
+    }
+
+    /**
+     * A space to write. {@code entries} must write exactly {@code entryCount} entries.
+     */
+    record SectionSource(String space, BsonDocument resumeToken, int entryCount, EntrySource entries) {
+    }
+
+    static void write(Path file, long createdAt, List<SectionSource> sections) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                // Not closed here, that would close the channel before the header is written.
+                OutputStream out = new BufferedOutputStream(
+                        new CheckedOutputStream(Channels.newOutputStream(channel), crc), 64 * 1024);
+                for (SectionSource section : sections) {
+                    writeDocument(out, new Document("s", section.space())
+                            .append("t", section.resumeToken())
+                            .append("n", section.entryCount()));
+                    int[] written = new int[1];
+                    section.entries().writeTo((key, value, id) -> {
+                        Document entry = new Document("k", key).append("v", value);
+                        if (id != null) {
+                            entry.append("i", id);
+                        }
+                        writeDocument(out, entry);
+                        written[0]++;
+                    });
+                    if (written[0] != section.entryCount()) {
+                        throw new IOException(String.format("Section %s announced %d entries but wrote %d",
+                                section.space(), section.entryCount(), written[0]));
+                    }
+                }
+                out.flush();
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putLong(createdAt).putInt(sections.size()).putLong(crc.getValue());
+                header.flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Maps a snapshot file and verifies it. Returns {@code null} when the file is missing, of
+     * another format version or corrupt, in which case the caller falls back to a full load.
+     */
+    static Snapshot read(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return null;
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+            return null;
+        }
+        long createdAt = mapped.getLong();
+        int sectionCount = mapped.getInt();
+        long checksum = mapped.getLong();
+
+        ByteBuffer payload = mapped.slice();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if (crc.getValue() != checksum) {
+            return null;
+        }
+
+        Map<String, Section> sections = new LinkedHashMap<>();
+        for (int i = 0; i < sectionCount; i++) {
+            Document sectionHeader = nextDocument(payload);
+            int entryCount = sectionHeader.getInteger("n");
+            int start = payload.position();
+            for (int entry = 0; entry < entryCount; entry++) {
+                skipDocument(payload);
+            }
+            ByteBuffer entries = payload.duplicate().position(start).limit(payload.position()).slice();
+            Document token = sectionHeader.get("t", Document.class);
+            String space = sectionHeader.getString("s");
+            sections.put(space, new Section(space,
+                    token == null ? null : token.toBsonDocument(BsonDocument.class,
+                            MongoClientSettings.getDefaultCodecRegistry()),
+                    entryCount, entries));
+        }
+        return new Snapshot(createdAt, Collections.unmodifiableMap(sections));
+    }
+
+    private static void writeDocument(OutputStream out, Document document) throws IOException {
+        try (BasicOutputBuffer buffer = new BasicOutputBuffer()) {
+            CODEC.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+            buffer.pipe(out);
+        }
+    }
+
+    // BSON documents start with their own little-endian length, which is all the framing needed.
+    private static Document nextDocument(ByteBuffer buffer) {
+        int length = buffer.order(ByteOrder.LITTLE_ENDIAN).getInt(buffer.position());
+        ByteBuffer document = buffer.slice().limit(length);
+        buffer.position(buffer.position() + length);
+        return CODEC.decode(new BsonBinaryReader(document), DecoderContext.builder().build());
+    }
+
+    private static void skipDocument(ByteBuffer buffer) {
+        buffer.position(buffer.position() + buffer.order(ByteOrder.LITTLE_ENDIAN).getInt(buffer.position()));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Store an {@link AbstractCacheRepositoryImpl} loads its entries from when it is not backed by a
+ * {@code MongoTemplate}. Both methods run with the tenant {@code RequestContext} of the space being
+ * loaded, so tenant-routed stores such as the JPA {@code EntityManager} read the right database.
+ *
+ * @see JpaCacheSource
+ * @see BigQueryCacheSource
+ * @see RemoteCacheSource
+ */
+public interface CacheSource<K, V> {
+
+    /**
+     * Passes every entity of the current space to {@code consumer}, one at a time, so a source may
+     * stream them instead of holding all of them at once.
+     *
+     * @return the number of entities loaded
+     */
+    long loadAll(Consumer<? super V> consumer);
+
+    /**
+     * The entity with the key, {@code null} if there is none. Only called when {@link #canLoadByKey},
+     * so sources loaded by hydration only leave both alone.
+     */
+    default V load(K key) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " cannot load single keys");
+    }
+
+    /**
+     * Whether single keys can be looked up, which makes a cache miss read through to the source.
+     * Sources that override {@link #load} return {@code true}.
+     */
+    default boolean canLoadByKey() {
+        return false;
+    }
+}
@@ -16,6 +16,202 @@
 
 package com.cmile.serviceutil.cache;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Hydrates every registered {@link CacheRepository} for a list of spaces on the cacheTaskExecutor.
+ * At most {@code maxConcurrency} hydrations run at once, and at most
+ * {@code maxConcurrencyPerRepository} of them against the same repository. Every hydration runs
+ * with its own tenant {@link RequestContext}, which is removed again when it finishes.
+ */
+@Slf4j
 public class CacheTaskExecutor {
 
+    private final List<CacheRepository<?, ?>> repositories;
+    private final TaskExecutor taskExecutor;
+    private final GCPServiceProject gcpServiceProject;
+    private final int maxConcurrency;
+    private final int maxConcurrencyPerRepository;
+    private final Set<String> criticalCaches;
+
+    private final LinkedList<HydrationTask> pending = new LinkedList<>();
+    private final Map<String, Integer> runningPerRepository = new HashMap<>();
+    private int running;
+
+    private final Map<String, CacheWarmState> warmStates = new ConcurrentHashMap<>();
+
+    public CacheTaskExecutor(List<CacheRepository<?, ?>> repositories, TaskExecutor taskExecutor,
+            GCPServiceProject gcpServiceProject, int maxConcurrency, int maxConcurrencyPerRepository,
+            Set<String> criticalCaches) {
+        if (maxConcurrency <= 0 || maxConcurrencyPerRepository <= 0) {
+            throw new IllegalArgumentException("Cache hydration concurrency must be positive");
+        }
+        this.repositories = List.copyOf(repositories);
+        this.taskExecutor = taskExecutor;
+        this.gcpServiceProject = gcpServiceProject;
+        this.maxConcurrency = maxConcurrency;
+        this.maxConcurrencyPerRepository = maxConcurrencyPerRepository;
+        this.criticalCaches = Set.copyOf(criticalCaches);
+        this.criticalCaches.forEach(name -> warmStates.put(name, CacheWarmState.PENDING));
+    }
+
+    /**
+     * Hydrates every registered repository for each of the given spaces. An empty list hydrates each
+     * repository once without a space, which is what globally scoped services need.
+     */
+    public HydrationProgress hydrate(Collection<String> spaceIds) {
+        return hydrate(repositories, spaceIds);
+    }
+
+    public HydrationProgress hydrate(Collection<? extends CacheRepository<?, ?>> repositoriesToHydrate,
+            Collection<String> spaceIds) {
+        List<String> spaces = spaceIds == null || spaceIds.isEmpty()
+                ? Collections.singletonList(null)
+                : List.copyOf(spaceIds);
+
+        List<String> cacheNames = new ArrayList<>();
+        List<HydrationTask> tasks = new ArrayList<>();
+        for (CacheRepository<?, ?> repository : repositoriesToHydrate) {
+            cacheNames.add(repository.getCacheName());
+            for (String spaceId : spaces) {
+                tasks.add(new HydrationTask(repository, spaceId));
+            }
+        }
+
+        HydrationProgress progress = new HydrationProgress(cacheNames, spaces.size());
+        tasks.forEach(task -> task.progress = progress);
+        // A cache stays WARM once it got there, hydrating a new space must not take the pod out of rotation
+        cacheNames.stream().filter(criticalCaches::contains)
+                .forEach(name -> warmStates.computeIfPresent(name,
+                        (cacheName, state) -> state == CacheWarmState.WARM ? state : CacheWarmState.HYDRATING));
+        progress.setCacheListener((cacheName, failure) -> {
+            if (criticalCaches.contains(cacheName)) {
+                warmStates.computeIfPresent(cacheName, (name, state) -> state == CacheWarmState.WARM
+                        ? state
+                        : failure == null ? CacheWarmState.WARM : CacheWarmState.FAILED);
+            }
+        });
+
+        log.debug("Scheduling {} cache hydrations for {} repositories", tasks.size(), cacheNames.size());
+        synchronized (this) {
+            pending.addAll(tasks);
+        }
+        dispatch();
+        return progress;
+    }
+
+    public List<CacheRepository<?, ?>> getRepositories() {
+        return repositories;
+    }
+
+    public Set<String> getCriticalCaches() {
+        return criticalCaches;
+    }
+
+    /**
+     * Hydration state of each critical cache, keyed by cache name.
+     */
+    public Map<String, CacheWarmState> getCriticalCacheStates() {
+        return Map.copyOf(warmStates);
+    }
+
+    public boolean isCriticalCachesWarm() {
+        return warmStates.values().stream().allMatch(CacheWarmState.WARM::equals);
+    }
+
+    private void dispatch() {
+        List<HydrationTask> startable = new ArrayList<>();
+        synchronized (this) {
+            Iterator<HydrationTask> iterator = pending.iterator();
+            while (running < maxConcurrency && iterator.hasNext()) {
+                HydrationTask task = iterator.next();
+                String cacheName = task.repository.getCacheName();
+                int runningForRepository = runningPerRepository.getOrDefault(cacheName, 0);
+                if (runningForRepository < maxConcurrencyPerRepository) {
+                    iterator.remove();
+                    running++;
+                    runningPerRepository.put(cacheName, runningForRepository + 1);
+                    startable.add(task);
+                }
+            }
+        }
+
+        for (HydrationTask task : startable) {
+            try {
+                taskExecutor.execute(task);
+            } catch (TaskRejectedException e) {
+                log.warn("cacheTaskExecutor rejected the hydration of {} for space {}",
+                        task.repository.getCacheName(), task.spaceId);
+                task.finish(e);
+            }
+        }
+    }
+
+    private final class HydrationTask implements Runnable {
+        private final CacheRepository<?, ?> repository;
+        private final String spaceId;
+        private HydrationProgress progress;
+
+        private HydrationTask(CacheRepository<?, ?> repository, String spaceId) {
+            this.repository = repository;
+            this.spaceId = spaceId;
+        }
+
+        @Override
+        public void run() {
+            Throwable failure = null;
+            ContextInfo previousContext = RequestContext.getRequestContextDetails();
+            try {
+                if (spaceId != null) {
+                    ContextInfo ctx = new ContextInfo();
+                    ctx.setDuId(gcpServiceProject.getDu());
+                    ctx.setSpaceId(spaceId);
+                    ctx.setApplicationName(gcpServiceProject.getApplicationName());
+                    RequestContext.setRequestContextDetails(ctx);
+                }
+                repository.hydrateCache(spaceId);
+            } catch (RuntimeException e) {
+                log.error("Failed to hydrate cache {} for space {}", repository.getCacheName(), spaceId, e);
+                failure = e;
+            } finally {
+                if (previousContext == null) {
+                    RequestContext.clear();
+                } else {
+                    RequestContext.setRequestContextDetails(previousContext);
+                }
+                finish(failure);
+            }
+        }
+
+        private void finish(Throwable failure) {
+            synchronized (CacheTaskExecutor.this) {
+                running--;
+                runningPerRepository.merge(repository.getCacheName(), -1, Integer::sum);
+            }
+            progress.taskFinished(repository.getCacheName(), failure);
+            dispatch();
+        }
+    }
+
+    public enum CacheWarmState {
+        PENDING, HYDRATING, WARM, FAILED
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.task.TaskExecutor;
+
+import com.cmile.serviceutil.executor.CfgTaskExecutor;
+import com.cmile.serviceutil.gcp.CfgGCPProject;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+
+@Configuration
+@Import({CfgTaskExecutor.class, CfgGCPProject.class})
+public class CfgCache {
+
+    @Value("${cmile.cache.hydrate.max.concurrency:4}")
+    private int maxConcurrency;
+
+    @Value("${cmile.cache.hydrate.max.concurrency.per.repository:2}")
+    private int maxConcurrencyPerRepository;
+
+    /** Comma separated names of the caches that must be warm before the service reports ready. */
+    @Value("${cmile.cache.hydrate.critical:}")
+    private String criticalCaches;
+
+    /** Heap shared by the byte bounded caches, as a share of the maximum heap or as a data size. */
+    @Value("${cmile.cache.memory.budget:25%}")
+    private String memoryBudget;
+
+    @Bean("cacheHydrationExecutor")
+    public CacheTaskExecutor cacheHydrationExecutor(ObjectProvider<CacheRepository<?, ?>> repositories,
+            @Qualifier("cacheTaskExecutor") TaskExecutor taskExecutor, GCPServiceProject gcpServiceProject) {
+        Set<String> critical = Arrays.stream(criticalCaches.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toSet());
+        return new CacheTaskExecutor(repositories.orderedStream().toList(), taskExecutor, gcpServiceProject,
+                maxConcurrency, maxConcurrencyPerRepository, critical);
+    }
+
+    @Bean
+    public CacheMemoryBudget cacheMemoryBudget() {
+        return CacheMemoryBudget.of(memoryBudget);
+    }
+
+    @Bean("cacheReadiness")
+    public CacheReadinessHealthIndicator cacheReadinessHealthIndicator(
+            @Qualifier("cacheHydrationExecutor") CacheTaskExecutor cacheHydrationExecutor) {
+        return new CacheReadinessHealthIndicator(cacheHydrationExecutor);
+    }
+}
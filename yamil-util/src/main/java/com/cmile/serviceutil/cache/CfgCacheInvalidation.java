@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.time.Duration;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.scheduling.TaskScheduler;
+
+import com.cmile.serviceutil.common.json.JsonEntityMapper;
+import com.cmile.serviceutil.executor.CfgTaskExecutor;
+import com.cmile.serviceutil.gcp.CfgGCPProject;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.job.PubSub.PubSubPublisher;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.pubsub.v1.SubscriptionAdminClient;
+import com.google.cloud.pubsub.v1.TopicAdminClient;
+import com.google.cloud.spring.core.GcpProjectIdProvider;
+import com.google.cloud.spring.pubsub.PubSubAdmin;
+import com.google.cloud.spring.pubsub.core.PubSubTemplate;
+
+/**
+ * Keeps the caches of all replicas consistent by exchanging invalidations over Pub/Sub. The
+ * {@link PubSubPublisher} comes from {@code CfgJob} or from the application.
+ */
+@Configuration
+@Import({CfgTaskExecutor.class, CfgGCPProject.class})
+public class CfgCacheInvalidation {
+
+    @Value("${cmile.cache.invalidation.topic:cache-invalidation}")
+    private String topicPrefix;
+
+    /** How long invalidations are collected before they are published as one message. */
+    @Value("${cmile.cache.invalidation.coalesce.window:100ms}")
+    private Duration coalesceWindow;
+
+    @Value("${cmile.cache.invalidation.max.batch.size:500}")
+    private int maxBatchSize;
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    public CacheInvalidationBus cacheInvalidationBus(PubSubPublisher pubSubPublisher, PubSubTemplate pubSubTemplate,
+            GcpProjectIdProvider gcpProjectIdProvider, TopicAdminClient topicAdminClient,
+            SubscriptionAdminClient subscriptionAdminClient,
+            @Qualifier("cacheTaskScheduler") TaskScheduler cacheTaskScheduler, GCPServiceProject gcpServiceProject,
+            ObjectMapper objectMapper, ObjectProvider<CacheMetricsRegistry> cacheMetricsRegistry) {
+        PubSubAdmin pubSubAdmin = new PubSubAdmin(gcpProjectIdProvider, topicAdminClient, subscriptionAdminClient);
+        CacheInvalidationBus bus = new CacheInvalidationBus(pubSubPublisher, pubSubTemplate, pubSubAdmin,
+                cacheTaskScheduler, gcpServiceProject, new JsonEntityMapper(objectMapper), topicPrefix,
+                coalesceWindow, maxBatchSize);
+        cacheMetricsRegistry.ifAvailable(bus::setCacheMetricsRegistry);
+        return bus;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+
+import com.cmile.serviceutil.gcp.CfgGCPProject;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+
+/**
+ * Declares the {@link TenantCacheManager} as {@value #TENANT_CACHE_MANAGER}, next to any cache manager
+ * of the application. A cache named {@code orders} is built from
+ * {@code cmile.cache.spring.specs.orders}, e.g. {@code maximumSize=5000,expireAfterWrite=5m}, and from
+ * {@code cmile.cache.spring.spec} when it has none. Caching is not enabled here: an application that
+ * wants {@code @Cacheable} on it adds {@code @EnableCaching} and names the manager, e.g.
+ * {@code @Cacheable(cacheManager = "tenantCacheManager")}, when it has others.
+ */
+@Configuration
+@Import(CfgGCPProject.class)
+public class CfgTenantCache {
+
+    public static final String TENANT_CACHE_MANAGER = "tenantCacheManager";
+
+    @Value("${cmile.cache.spring.spec:maximumSize=10000,expireAfterWrite=10m}")
+    private String defaultSpec;
+
+    /** The spec of the secrets cache when it has none, short lived as secrets rotate. */
+    @Value("${cmile.cache.spring.specs.secrets:maximumSize=1000,expireAfterWrite=1m}")
+    private String secretsSpec;
+
+    /** Comma separated names of the caches whose keys are the same in every space. */
+    @Value("${cmile.cache.spring.global:secrets}")
+    private String globalCaches;
+
+    @Bean(TENANT_CACHE_MANAGER)
+    @ConditionalOnMissingBean(name = TENANT_CACHE_MANAGER)
+    public TenantCacheManager tenantCacheManager(GCPServiceProject gcpServiceProject, Environment environment) {
+        Map<String, String> specs = Binder.get(environment)
+                .bind("cmile.cache.spring.specs", Bindable.mapOf(String.class, String.class))
+                .map(HashMap::new)
+                .orElseGet(HashMap::new);
+        specs.put("secrets", secretsSpec);
+        Set<String> global = Arrays.stream(globalCaches.split(","))
+                .map(String::trim)
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toSet());
+        return new TenantCacheManager(gcpServiceProject, defaultSpec, specs, global);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * The cache key of every document {@code _id} of one space and the way back. A delete event carries
+ * nothing but the {@code _id}, and an eviction nothing but the key, so each needs to find the other
+ * side. Evicted keys are dropped, which keeps the map as small as the cache.
+ */
+final class DocumentKeys<K> {
+
+    private final Map<Object, K> keysById = new HashMap<>();
+    private final Map<K, Object> idsByKey = new HashMap<>();
+
+    /**
+     * @return the key the document was cached under before, {@code null} if none
+     */
+    synchronized K put(Object id, K key) {
+        K previousKey = keysById.put(id, key);
+        if (previousKey != null && !previousKey.equals(key)) {
+            idsByKey.remove(previousKey, id);
+        }
+        Object previousId = idsByKey.put(key, id);
+        if (previousId != null && !previousId.equals(id)) {
+            keysById.remove(previousId, key);
+        }
+        return previousKey;
+    }
+
+    /**
+     * @return the key of the removed document, {@code null} if it was not known
+     */
+    synchronized K removeId(Object id) {
+        K key = keysById.remove(id);
+        if (key != null) {
+            idsByKey.remove(key, id);
+        }
+        return key;
+    }
+
+    synchronized void removeKey(K key) {
+        Object id = idsByKey.remove(key);
+        if (id != null) {
+            keysById.remove(id, key);
+        }
+    }
+
+    synchronized void forEach(BiConsumer<Object, K> action) {
+        keysById.forEach(action);
+    }
+
+    synchronized Map<Object, K> copy() {
+        return new HashMap<>(keysById);
+    }
+
+    synchronized int size() {
+        return keysById.size();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Progress of one {@link CacheTaskExecutor#hydrate} run. The futures complete once every space has
+ * been hydrated, exceptionally with the first failure if any hydration failed.
+ */
+public class HydrationProgress {
+
+    private final int total;
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final Map<String, AtomicInteger> remaining = new ConcurrentHashMap<>();
+    private final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Void>> completions = new LinkedHashMap<>();
+    private final CompletableFuture<Void> completion;
+    private volatile BiConsumer<String, Throwable> cacheListener = (cacheName, failure) -> {
+    };
+
+    HydrationProgress(Collection<String> cacheNames, int spacesPerCache) {
+        for (String cacheName : cacheNames) {
+            remaining.computeIfAbsent(cacheName, name -> new AtomicInteger()).addAndGet(spacesPerCache);
+            completions.putIfAbsent(cacheName, new CompletableFuture<>());
+        }
+        this.total = cacheNames.size() * spacesPerCache;
+        this.completion = CompletableFuture.allOf(completions.values().toArray(new CompletableFuture[0]));
+        remaining.forEach((cacheName, count) -> {
+            if (count.get() == 0) {
+                completions.get(cacheName).complete(null);
+            }
+        });
+    }
+
+    void taskFinished(String cacheName, Throwable failure) {
+        if (failure == null) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+            failures.putIfAbsent(cacheName, failure);
+        }
+        if (remaining.get(cacheName).decrementAndGet() == 0) {
+            Throwable firstFailure = failures.get(cacheName);
+            cacheListener.accept(cacheName, firstFailure);
+            if (firstFailure == null) {
+                completions.get(cacheName).complete(null);
+            } else {
+                completions.get(cacheName).completeExceptionally(firstFailure);
+            }
+        }
+    }
+
+    /**
+     * Called once per cache when all of its spaces are done, before its completion future completes.
+     */
+    void setCacheListener(BiConsumer<String, Throwable> cacheListener) {
+        this.cacheListener = cacheListener;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getSucceeded() {
+        return succeeded.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Fraction of the scheduled hydrations that have finished, successfully or not.
+     */
+    public double getFraction() {
+        return total == 0 ? 1.0 : (double) (succeeded.get() + failed.get()) / total;
+    }
+
+    public boolean isDone() {
+        return completion.isDone();
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion.copy();
+    }
+
+    public CompletableFuture<Void> getCompletion(String cacheName) {
+        CompletableFuture<Void> cacheCompletion = completions.get(cacheName);
+        if (cacheCompletion == null) {
+            throw new IllegalArgumentException(String.format("Cache %s is not part of this hydration", cacheName));
+        }
+        return cacheCompletion.copy();
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Keeps secondary indexes of a layout up to date. Writes and removals update the indexes inside the
+ * cache's own atomic compute of the key, so an index never disagrees with the entry it was computed
+ * from; evictions are reported through {@link #evicted}. Each index maps the value returned by its
+ * extractor to the keys of the entries having it, per space. Entries whose extractor returns {@code
+ * null} are not indexed.
+ */
+final class IndexedCacheLayout<K, V> implements CacheLayout<K, V> {
+
+    // ConcurrentHashMap does not take null keys.
+    private static final String GLOBAL_SPACE = "";
+
+    private final CacheLayout<K, V> delegate;
+    private final Map<String, Function<? super V, ?>> extractors = new ConcurrentHashMap<>();
+    // space -> index -> indexed value -> keys
+    private final Map<String, Map<String, Map<Object, Set<K>>>> spaces = new ConcurrentHashMap<>();
+
+    IndexedCacheLayout(CacheLayout<K, V> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Adds an index. Indexes must be added while the cache is still empty, since existing entries are
+     * not indexed.
+     */
+    void addIndex(String name, Function<? super V, ?> extractor) {
+        if (delegate.estimatedSize() > 0) {
+            throw new IllegalStateException("Index " + name + " must be added before the cache is loaded");
+        }
+        if (extractors.putIfAbsent(name, extractor) != null) {
+            throw new IllegalArgumentException("Index " + name + " is already defined");
+        }
+    }
+
+    /**
+     * Keys of the entries of the space whose index value is {@code value}, as a read-only view that
+     * follows later changes as long as at least one entry keeps that value.
+     */
+    Set<K> findKeys(String spaceId, String name, Object value) {
+        if (!extractors.containsKey(name)) {
+            throw new IllegalArgumentException("Unknown index " + name);
+        }
+        Map<String, Map<Object, Set<K>>> indexes = spaces.get(spaceKey(spaceId));
+        Map<Object, Set<K>> index = indexes == null ? null : indexes.get(name);
+        Set<K> keys = index == null || value == null ? null : index.get(value);
+        return keys == null ? Set.of() : Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * Values of the entries found by {@link #findKeys}, read from the cache while iterating.
+     */
+    Collection<V> find(String spaceId, String name, Object value) {
+        return new IndexedValues(spaceId, findKeys(spaceId, name, value));
+    }
+
+    /**
+     * Removes an entry evicted by size or expiry from the indexes; called from the Caffeine eviction
+     * listener, which runs inside the eviction of the entry.
+     */
+    void evicted(String spaceId, K key, V value) {
+        if (!extractors.isEmpty()) {
+            unindex(spaceId, key, value);
+        }
+    }
+
+    @Override
+    public V get(String spaceId, K key) {
+        return delegate.get(spaceId, key);
+    }
+
+    @Override
+    public void put(String spaceId, K key, V value) {
+        if (extractors.isEmpty()) {
+            delegate.put(spaceId, key, value);
+            return;
+        }
+        delegate.compute(spaceId, key, (k, previous) -> {
+            if (previous != null) {
+                unindex(spaceId, k, previous);
+            }
+            index(spaceId, k, value);
+            return value;
+        });
+    }
+
+    @Override
+    public void invalidate(String spaceId, K key) {
+        if (extractors.isEmpty()) {
+            delegate.invalidate(spaceId, key);
+            return;
+        }
+        delegate.compute(spaceId, key, (k, previous) -> {
+            if (previous != null) {
+                unindex(spaceId, k, previous);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public V compute(String spaceId, K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+        if (extractors.isEmpty()) {
+            return delegate.compute(spaceId, key, remapping);
+        }
+        return delegate.compute(spaceId, key, (k, previous) -> {
+            V value = remapping.apply(k, previous);
+            if (previous != null) {
+                unindex(spaceId, k, previous);
+            }
+            if (value != null) {
+                index(spaceId, k, value);
+            }
+            return value;
+        });
+    }
+
+    @Override
+    public void invalidateAll(String spaceId, Collection<K> keys) {
+        if (extractors.isEmpty()) {
+            delegate.invalidateAll(spaceId, keys);
+            return;
+        }
+        keys.forEach(key -> invalidate(spaceId, key));
+    }
+
+    @Override
+    public void invalidateSpace(String spaceId) {
+        delegate.invalidateSpace(spaceId);
+        spaces.remove(spaceKey(spaceId));
+    }
+
+    @Override
+    public long estimatedSize() {
+        return delegate.estimatedSize();
+    }
+
+    @Override
+    public Map<K, V> asMap(String spaceId) {
+        return delegate.asMap(spaceId);
+    }
+
+    @Override
+    public void addCacheListener(CacheListener listener) {
+        delegate.addCacheListener(listener);
+    }
+
+    private void index(String spaceId, K key, V value) {
+        Map<String, Map<Object, Set<K>>> indexes =
+                spaces.computeIfAbsent(spaceKey(spaceId), space -> new ConcurrentHashMap<>());
+        extractors.forEach((name, extractor) -> {
+            Object indexValue = extractor.apply(value);
+            if (indexValue != null) {
+                indexes.computeIfAbsent(name, n -> new ConcurrentHashMap<>())
+                        .compute(indexValue, (v, keys) -> {
+                            Set<K> indexed = keys == null ? ConcurrentHashMap.newKeySet() : keys;
+                            indexed.add(key);
+                            return indexed;
+                        });
+            }
+        });
+    }
+
+    private void unindex(String spaceId, K key, V value) {
+        Map<String, Map<Object, Set<K>>> indexes = spaces.get(spaceKey(spaceId));
+        if (indexes == null) {
+            return;
+        }
+        extractors.forEach((name, extractor) -> {
+            Object indexValue = extractor.apply(value);
+            Map<Object, Set<K>> index = indexes.get(name);
+            if (indexValue != null && index != null) {
+                // Empty sets are dropped so that indexes of short-lived values do not pile up
+                index.computeIfPresent(indexValue, (v, keys) -> keys.remove(key) && keys.isEmpty() ? null : keys);
+            }
+        });
+    }
+
+    private static String spaceKey(String spaceId) {
+        return spaceId == null ? GLOBAL_SPACE : spaceId;
+    }
+
+    /**
+     * Values of a set of keys, looked up lazily; keys removed since the lookup are skipped.
+     */
+    private final class IndexedValues extends AbstractCollection<V> {
+        private final String spaceId;
+        private final Set<K> keys;
+
+        private IndexedValues(String spaceId, Set<K> keys) {
+            this.spaceId = spaceId;
+            this.keys = keys;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            Iterator<K> iterator = keys.iterator();
+            return new Iterator<>() {
+                private V next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && iterator.hasNext()) {
+                        next = delegate.get(spaceId, iterator.next());
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public V next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    V value = next;
+                    next = null;
+                    return value;
+                }
+            };
+        }
+
+        /**
+         * Number of indexed keys, which can briefly include entries being removed.
+         */
+        @Override
+        public int size() {
+            return keys.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return !iterator().hasNext();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Iterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.hibernate.jpa.HibernateHints;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+
+/**
+ * Loads the entities of a JPA entity class. A new {@link EntityManager} is opened per call, which
+ * the multi-tenant connection provider of {@code CfgPostgres} routes to the database of the current
+ * space. Hydration streams the rows in read-only mode and clears the persistence context every
+ * {@code batchSize} rows, so the cache rather than Hibernate holds the entities.
+ */
+public class JpaCacheSource<K, V> implements CacheSource<K, V> {
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final Class<V> entityClass;
+    private final int batchSize;
+
+    public JpaCacheSource(EntityManagerFactory entityManagerFactory, Class<V> entityClass, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Hydration batch size must be positive");
+        }
+        this.entityManagerFactory = entityManagerFactory;
+        this.entityClass = entityClass;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public long loadAll(Consumer<? super V> consumer) {
+        String entityName = entityManagerFactory.getMetamodel().entity(entityClass).getName();
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        // PostgreSQL only streams a result set inside a transaction, otherwise it fetches every row
+        EntityTransaction transaction = entityManager.getTransaction();
+        try {
+            transaction.begin();
+            long loaded = 0;
+            try (Stream<V> rows = entityManager.createQuery("select e from " + entityName + " e", entityClass)
+                    .setHint(HibernateHints.HINT_FETCH_SIZE, batchSize)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .getResultStream()) {
+                Iterator<V> iterator = rows.iterator();
+                while (iterator.hasNext()) {
+                    consumer.accept(iterator.next());
+                    if (++loaded % batchSize == 0) {
+                        entityManager.clear();
+                    }
+                }
+            }
+            return loaded;
+        } finally {
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            entityManager.close();
+        }
+    }
+
+    @Override
+    public V load(K key) {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            return entityManager.find(entityClass, key);
+        } finally {
+            entityManager.close();
+        }
+    }
+
+    @Override
+    public boolean canLoadByKey() {
+        return true;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.BasicQuery;
+import org.springframework.data.mongodb.core.query.Query;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Walks a collection in {@code _id} order with range (keyset) queries instead of skip/limit, so
+ * every batch is an index seek no matter how deep into the collection it starts.
+ */
+@Slf4j
+public class MongoKeysetLoader {
+
+    static final String ID_FIELD = "_id";
+
+    private final MongoTemplate mongoTemplate;
+    private final String collectionName;
+    private final Document projection;
+    private final int batchSize;
+
+    public MongoKeysetLoader(MongoTemplate mongoTemplate, String collectionName, Document projection,
+            int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Hydration batch size must be positive");
+        }
+        this.mongoTemplate = mongoTemplate;
+        this.collectionName = collectionName;
+        this.projection = projection == null ? new Document() : new Document(projection);
+        // The cursor position is the last _id seen, so it can never be projected away.
+        Object idProjection = this.projection.get(ID_FIELD);
+        if (Integer.valueOf(0).equals(idProjection) || Boolean.FALSE.equals(idProjection)) {
+            this.projection.remove(ID_FIELD);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Splits the {@code _id} space into at most {@code parallelism} contiguous ranges. ObjectIds are
+     * split on their embedded timestamp; any other id type is returned as a single range because
+     * there is no cheap way to interpolate between two arbitrary BSON values.
+     */
+    public List<IdRange> split(int parallelism) {
+        if (parallelism <= 1) {
+            return List.of(IdRange.ALL);
+        }
+        Object min = boundaryId(Sort.Direction.ASC);
+        Object max = boundaryId(Sort.Direction.DESC);
+        if (!(min instanceof ObjectId) || !(max instanceof ObjectId)) {
+            log.debug("Collection {} does not use ObjectId keys, hydrating as a single range", collectionName);
+            return List.of(IdRange.ALL);
+        }
+
+        long low = ((ObjectId) min).getTimestamp() & 0xFFFFFFFFL;
+        long high = ((ObjectId) max).getTimestamp() & 0xFFFFFFFFL;
+        long parts = Math.min(parallelism, high - low + 1);
+        if (parts <= 1) {
+            return List.of(IdRange.ALL);
+        }
+
+        List<IdRange> ranges = new ArrayList<>();
+        Object from = null;
+        for (long i = 1; i < parts; i++) {
+            ObjectId boundary = firstObjectIdAt(low + (high - low) * i / parts);
+            ranges.add(new IdRange(from, boundary));
+            from = boundary;
+        }
+        ranges.add(new IdRange(from, null));
+        return ranges;
+    }
+
+    /**
+     * Streams every document of the range to {@code consumer}, one batch at a time.
+     *
+     * @return the number of documents read
+     */
+    public long load(IdRange range, Consumer<Document> consumer) {
+        long loaded = 0;
+        Object lastId = null;
+        while (true) {
+            Document idBounds = new Document();
+            if (lastId != null) {
+                idBounds.append("$gt", lastId);
+            } else if (range.from() != null) {
+                idBounds.append("$gte", range.from());
+            }
+            if (range.to() != null) {
+                idBounds.append("$lt", range.to());
+            }
+            Document criteria = idBounds.isEmpty() ? new Document() : new Document(ID_FIELD, idBounds);
+
+            Query query = new BasicQuery(criteria, projection)
+                    .with(Sort.by(Sort.Direction.ASC, ID_FIELD))
+                    .limit(batchSize)
+                    .cursorBatchSize(batchSize);
+            List<Document> batch = mongoTemplate.find(query, Document.class, collectionName);
+            if (batch.isEmpty()) {
+                return loaded;
+            }
+
+            batch.forEach(consumer);
+            loaded += batch.size();
+            lastId = batch.get(batch.size() - 1).get(ID_FIELD);
+            if (batch.size() < batchSize) {
+                return loaded;
+            }
+        }
+    }
+
+    private Object boundaryId(Sort.Direction direction) {
+        Query query = new Query().with(Sort.by(direction, ID_FIELD)).limit(1);
+        query.fields().include(ID_FIELD);
+        Document document = mongoTemplate.findOne(query, Document.class, collectionName);
+        return document == null ? null : document.get(ID_FIELD);
+    }
+
+    private static ObjectId firstObjectIdAt(long epochSeconds) {
+        // Smallest ObjectId of that second: timestamp followed by zeroed random and counter bytes.
+        return new ObjectId(String.format("%08x%016x", epochSeconds, 0L));
+    }
+
+    /**
+     * A half-open {@code [from, to)} slice of the {@code _id} space; a {@code null} bound is open.
+     */
+    public record IdRange(Object from, Object to) {
+        public static final IdRange ALL = new IdRange(null, null);
+    }
+}
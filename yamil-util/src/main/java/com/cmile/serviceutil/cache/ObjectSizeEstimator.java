@@ -0,0 +1,213 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimates the heap retained by an object graph, assuming a 64-bit JVM with compressed oops. The
+ * fields of every class are resolved once and kept in a {@link ClassValue}, so weighing an entry
+ * costs one pass over its graph and no repeated reflection. Objects reachable twice are counted once.
+ * JDK classes cannot be walked reflectively; Strings, arrays, collections and maps are estimated from
+ * their contents, other JDK objects by their shallow size. Enums and classes are shared and weigh
+ * nothing.
+ */
+public final class ObjectSizeEstimator {
+
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int ALIGNMENT = 8;
+    // HashMap.Node plus its table slot, and the average per element cost of a list or set.
+    private static final int MAP_ENTRY = 36;
+    private static final int COLLECTION_ELEMENT = 8;
+    // Beyond this many objects the graph is not walked further, the estimate is a lower bound.
+    private static final int MAX_OBJECTS = 100_000;
+
+    private static final ClassValue<ClassLayout> LAYOUTS = new ClassValue<>() {
+        @Override
+        protected ClassLayout computeValue(Class<?> type) {
+            return ClassLayout.of(type);
+        }
+    };
+
+    private ObjectSizeEstimator() {
+    }
+
+    /**
+     * Caffeine weight of an entry: the estimated size of key and value, capped at {@code int} range.
+     */
+    public static int weigh(Object key, Object value) {
+        return (int) Math.min(Integer.MAX_VALUE, estimate(key) + estimate(value));
+    }
+
+    public static long estimate(Object root) {
+        if (root == null) {
+            return 0;
+        }
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        long size = 0;
+        while (!pending.isEmpty() && visited.size() < MAX_OBJECTS) {
+            Object object = pending.pop();
+            if (!visited.add(object)) {
+                continue;
+            }
+            size += sizeOf(object, pending);
+        }
+        return size;
+    }
+
+    private static long sizeOf(Object object, Deque<Object> pending) {
+        Class<?> type = object.getClass();
+        if (object instanceof String string) {
+            // Compact strings: one byte per character unless the string holds non-Latin-1 characters.
+            return LAYOUTS.get(type).shallowSize + align(ARRAY_HEADER + string.length());
+        }
+        if (type.isArray()) {
+            return sizeOfArray(object, type.getComponentType(), pending);
+        }
+        if (object instanceof Enum<?> || object instanceof Class<?>) {
+            return 0;
+        }
+
+        ClassLayout layout = LAYOUTS.get(type);
+        if (layout.walkable) {
+            for (Field field : layout.referenceFields) {
+                Object child = read(field, object);
+                if (child != null) {
+                    pending.push(child);
+                }
+            }
+            return layout.shallowSize;
+        }
+        if (object instanceof Map<?, ?> map) {
+            map.forEach((key, value) -> {
+                pushIfPresent(pending, key);
+                pushIfPresent(pending, value);
+            });
+            return layout.shallowSize + align(ARRAY_HEADER + (long) map.size() * MAP_ENTRY);
+        }
+        if (object instanceof Collection<?> collection) {
+            collection.forEach(element -> pushIfPresent(pending, element));
+            return layout.shallowSize + align(ARRAY_HEADER + (long) collection.size() * COLLECTION_ELEMENT);
+        }
+        return layout.shallowSize;
+    }
+
+    private static long sizeOfArray(Object array, Class<?> componentType, Deque<Object> pending) {
+        int length = Array.getLength(array);
+        if (componentType.isPrimitive()) {
+            return align(ARRAY_HEADER + (long) length * primitiveSize(componentType));
+        }
+        Object[] elements = (Object[]) array;
+        for (Object element : elements) {
+            pushIfPresent(pending, element);
+        }
+        return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    private static void pushIfPresent(Deque<Object> pending, Object object) {
+        if (object != null) {
+            pending.push(object);
+        }
+    }
+
+    private static Object read(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Shallow size of a class and the reference fields to follow, across its whole hierarchy. A class
+     * is walkable when all of its reference fields can be read, which excludes JDK internals.
+     */
+    private static final class ClassLayout {
+        private final long shallowSize;
+        private final List<Field> referenceFields;
+        private final boolean walkable;
+
+        private ClassLayout(long shallowSize, List<Field> referenceFields, boolean walkable) {
+            this.shallowSize = shallowSize;
+            this.referenceFields = referenceFields;
+            this.walkable = walkable;
+        }
+
+        private static ClassLayout of(Class<?> type) {
+            long size = OBJECT_HEADER;
+            List<Field> referenceFields = new ArrayList<>();
+            boolean walkable = true;
+            for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    if (field.getType().isPrimitive()) {
+                        size += primitiveSize(field.getType());
+                    } else {
+                        size += REFERENCE;
+                        if (walkable && isJdkClass(current)) {
+                            walkable = false;
+                        } else if (walkable && field.trySetAccessible()) {
+                            referenceFields.add(field);
+                        } else {
+                            walkable = false;
+                        }
+                    }
+                }
+            }
+            return new ClassLayout(align(size), walkable ? List.copyOf(referenceFields) : List.of(), walkable);
+        }
+
+        private static boolean isJdkClass(Class<?> type) {
+            Module module = type.getModule();
+            return module.isNamed() && module.getName().startsWith("java.");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import com.github.benmanes.caffeine.cache.Cache;
+
+/**
+ * One cache per space, each bounded by its own quota, so a large space cannot evict the working set
+ * of a small one. A space is dropped by detaching its cache, without touching its entries.
+ */
+final class PartitionedCacheLayout<K, V> implements CacheLayout<K, V> {
+
+    // ConcurrentHashMap does not take null keys.
+    private static final String GLOBAL_PARTITION = "";
+
+    private final Map<String, Cache<K, V>> partitions = new ConcurrentHashMap<>();
+    private final Function<String, Cache<K, V>> partitionFactory;
+    private final List<CacheListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param partitionFactory builds the cache of a space, given the space or {@code null}
+     */
+    PartitionedCacheLayout(Function<String, Cache<K, V>> partitionFactory) {
+        this.partitionFactory = partitionFactory;
+    }
+
+    @Override
+    public V get(String spaceId, K key) {
+        Cache<K, V> partition = partitions.get(partitionKey(spaceId));
+        return partition == null ? null : partition.getIfPresent(key);
+    }
+
+    @Override
+    public void put(String spaceId, K key, V value) {
+        partitions.computeIfAbsent(partitionKey(spaceId), this::newPartition).put(key, value);
+    }
+
+    @Override
+    public void invalidate(String spaceId, K key) {
+        Cache<K, V> partition = partitions.get(partitionKey(spaceId));
+        if (partition != null) {
+            partition.invalidate(key);
+        }
+    }
+
+    @Override
+    public V compute(String spaceId, K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+        Cache<K, V> partition = partitions.get(partitionKey(spaceId));
+        if (partition == null) {
+            // Do not create the partition of a space only to remove a key from it
+            V value = remapping.apply(key, null);
+            if (value == null) {
+                return null;
+            }
+            partition = partitions.computeIfAbsent(partitionKey(spaceId), this::newPartition);
+            // Another writer may have created the entry since, remap its value instead
+            return partition.asMap().compute(key, (k, current) -> current == null ? value : remapping.apply(k, current));
+        }
+        return partition.asMap().compute(key, remapping);
+    }
+
+    @Override
+    public void invalidateAll(String spaceId, Collection<K> keys) {
+        Cache<K, V> partition = partitions.get(partitionKey(spaceId));
+        if (partition != null) {
+            partition.invalidateAll(keys);
+        }
+    }
+
+    @Override
+    public void invalidateSpace(String spaceId) {
+        if (partitions.remove(partitionKey(spaceId)) != null) {
+            listeners.forEach(listener -> listener.cacheRemoved(spaceId));
+        }
+    }
+
+    @Override
+    public long estimatedSize() {
+        return partitions.values().stream().mapToLong(Cache::estimatedSize).sum();
+    }
+
+    @Override
+    public Map<K, V> asMap(String spaceId) {
+        Cache<K, V> partition = partitions.get(partitionKey(spaceId));
+        return partition == null ? Map.of() : Collections.unmodifiableMap(partition.asMap());
+    }
+
+    @Override
+    public void addCacheListener(CacheListener listener) {
+        listeners.add(listener);
+        partitions.forEach((partitionKey, partition) -> listener.cacheCreated(spaceId(partitionKey), partition));
+    }
+
+    private Cache<K, V> newPartition(String partitionKey) {
+        String spaceId = spaceId(partitionKey);
+        Cache<K, V> partition = partitionFactory.apply(spaceId);
+        listeners.forEach(listener -> listener.cacheCreated(spaceId, partition));
+        return partition;
+    }
+
+    private static String partitionKey(String spaceId) {
+        return spaceId == null ? GLOBAL_PARTITION : spaceId;
+    }
+
+    private static String spaceId(String partitionKey) {
+        return partitionKey.isEmpty() ? null : partitionKey;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Loads entities through arbitrary functions, typically calls of a generated API client through
+ * {@code ApiInvoker}, which signs them with the tenant of the current context:
+ *
+ * <pre>{@code
+ * new RemoteCacheSource<String, Plan>(
+ *         () -> apiInvoker.invoke(planApi, () -> planApi.listPlans()),
+ *         id -> apiInvoker.invoke(planApi, () -> planApi.getPlan(id)));
+ * }</pre>
+ */
+public class RemoteCacheSource<K, V> implements CacheSource<K, V> {
+
+    private final Supplier<? extends Collection<? extends V>> listLoader;
+    private final Function<? super K, ? extends V> keyLoader;
+
+    /**
+     * @param keyLoader loads one entity, {@code null} if the remote API cannot look up single keys
+     */
+    public RemoteCacheSource(Supplier<? extends Collection<? extends V>> listLoader,
+            Function<? super K, ? extends V> keyLoader) {
+        this.listLoader = listLoader;
+        this.keyLoader = keyLoader;
+    }
+
+    @Override
+    public long loadAll(Consumer<? super V> consumer) {
+        Collection<? extends V> entities = listLoader.get();
+        if (entities == null) {
+            return 0;
+        }
+        entities.forEach(consumer);
+        return entities.size();
+    }
+
+    @Override
+    public V load(K key) {
+        return keyLoader == null ? CacheSource.super.load(key) : keyLoader.apply(key);
+    }
+
+    @Override
+    public boolean canLoadByKey() {
+        return keyLoader != null;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Date;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+
+/**
+ * Change stream resume tokens of the cache repositories, one document per cache and space in the
+ * tenant's own database, as spaces may share a database.
+ */
+final class ResumeTokenStore {
+
+    static final String COLLECTION_NAME = "cacheResumeTokens";
+
+    private ResumeTokenStore() {
+    }
+
+    static BsonDocument load(MongoTemplate mongoTemplate, String cacheName, String space) {
+        Document document = mongoTemplate.getCollection(COLLECTION_NAME)
+                .find(Filters.eq("_id", id(cacheName, space)))
+                .first();
+        if (document == null || document.get("token") == null) {
+            return null;
+        }
+        return document.get("token", Document.class)
+                .toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+
+    static void save(MongoTemplate mongoTemplate, String cacheName, String space, BsonDocument token) {
+        Document id = id(cacheName, space);
+        Document document = new Document("_id", id)
+                .append("token", token)
+                .append("updatedAt", new Date());
+        mongoTemplate.getCollection(COLLECTION_NAME)
+                .replaceOne(Filters.eq("_id", id), document, new ReplaceOptions().upsert(true));
+    }
+
+    private static Document id(String cacheName, String space) {
+        return new Document("cache", cacheName).append("space", space);
+    }
+}
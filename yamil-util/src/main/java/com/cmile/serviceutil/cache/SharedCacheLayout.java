@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiFunction;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * All spaces in one cache keyed by {@link TenantKey}, bounded by a single maximum size. Dropping or
+ * listing a space scans the whole cache. A hit builds no key: lookups go through a per-thread
+ * {@link LookupKey} instead.
+ */
+final class SharedCacheLayout<K, V> implements CacheLayout<K, V> {
+
+    private static final ThreadLocal<LookupKey> LOOKUP_KEY = ThreadLocal.withInitial(LookupKey::new);
+
+    private final Cache<TenantKey<K>, V> cache;
+    private final Cache<Object, V> lookupCache;
+
+    @SuppressWarnings("unchecked")
+    SharedCacheLayout(Caffeine<? super TenantKey<K>, ? super V> builder) {
+        this.cache = builder.build();
+        this.lookupCache = (Cache<Object, V>) (Cache<?, V>) cache;
+    }
+
+    @Override
+    public V get(String spaceId, K key) {
+        LookupKey lookupKey = LOOKUP_KEY.get();
+        try {
+            return lookupCache.getIfPresent(lookupKey.set(spaceId, key));
+        } finally {
+            lookupKey.clear();
+        }
+    }
+
+    @Override
+    public void put(String spaceId, K key, V value) {
+        cache.put(new TenantKey<>(spaceId, key), value);
+    }
+
+    @Override
+    public void invalidate(String spaceId, K key) {
+        cache.invalidate(new TenantKey<>(spaceId, key));
+    }
+
+    @Override
+    public V compute(String spaceId, K key, BiFunction<? super K, ? super V, ? extends V> remapping) {
+        return cache.asMap().compute(new TenantKey<>(spaceId, key), (tenantKey, value) -> remapping.apply(key, value));
+    }
+
+    @Override
+    public void invalidateAll(String spaceId, Collection<K> keys) {
+        cache.invalidateAll(keys.stream().map(key -> new TenantKey<>(spaceId, key)).toList());
+    }
+
+    @Override
+    public void invalidateSpace(String spaceId) {
+        cache.asMap().keySet().removeIf(key -> Objects.equals(key.getSpaceId(), spaceId));
+    }
+
+    @Override
+    public long estimatedSize() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public Map<K, V> asMap(String spaceId) {
+        Map<K, V> entries = new LinkedHashMap<>();
+        cache.asMap().forEach((key, value) -> {
+            if (Objects.equals(key.getSpaceId(), spaceId)) {
+                entries.put(key.getKey(), value);
+            }
+        });
+        return Collections.unmodifiableMap(entries);
+    }
+
+    @Override
+    public void addCacheListener(CacheListener listener) {
+        listener.cacheCreated(null, cache);
+    }
+
+    /**
+     * Reusable probe equal to the {@link TenantKey} of the same space and key. The cache map compares
+     * the probe against its own keys, never the other way round, and does not keep it, so one probe
+     * per thread serves every read-only lookup. It must never be stored.
+     */
+    /**
+     * Stands in for the {@link TenantKey} of a lookup. It equals that key, and the key equals it.
+     */
+    static final class LookupKey {
+
+        private String spaceId;
+        private Object key;
+        private int hash;
+
+        LookupKey set(String spaceId, Object key) {
+            this.spaceId = spaceId;
+            this.key = Objects.requireNonNull(key, "key");
+            this.hash = TenantKey.hash(spaceId, key);
+            return this;
+        }
+
+        void clear() {
+            spaceId = null;
+            key = null;
+        }
+
+        boolean matches(String otherSpaceId, Object otherKey, int otherHash) {
+            return key != null && hash == otherHash && key.equals(otherKey) && Objects.equals(spaceId, otherSpaceId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof TenantKey<?> other) {
+                return matches(other.getSpaceId(), other.getKey(), other.hashCode());
+            }
+            return o instanceof LookupKey other && matches(other.spaceId, other.key, other.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
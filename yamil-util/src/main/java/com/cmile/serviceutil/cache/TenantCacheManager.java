@@ -0,0 +1,102 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.cmile.serviceutil.gcp.ApplicationScopeEnum;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.CaffeineSpec;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Spring {@link org.springframework.cache.CacheManager} behind {@code @Cacheable} and friends. Every
+ * cache is a {@link TenantCaffeineCache}, keyed by the space of the current request unless it is one
+ * of the {@code globalCaches} or the service is globally scoped. Each cache is built from its own
+ * Caffeine spec, or from {@code defaultSpec}, and is created on first use.
+ */
+@Slf4j
+public class TenantCacheManager implements org.springframework.cache.CacheManager {
+
+    private final String defaultSpec;
+    private final Map<String, String> specs;
+    private final Set<String> globalCaches;
+    private final boolean isGlobalScope;
+    private final Map<String, TenantCaffeineCache> caches = new ConcurrentHashMap<>();
+    private CacheMetricsRegistry cacheMetricsRegistry;
+
+    public TenantCacheManager(GCPServiceProject gcpServiceProject, String defaultSpec, Map<String, String> specs,
+            Set<String> globalCaches) {
+        // Parsed once here so that a bad spec fails the startup rather than the first call.
+        CaffeineSpec.parse(defaultSpec);
+        specs.values().forEach(CaffeineSpec::parse);
+        this.defaultSpec = defaultSpec;
+        this.specs = Map.copyOf(specs);
+        this.globalCaches = Set.copyOf(globalCaches);
+        this.isGlobalScope = ApplicationScopeEnum.GLOBAL.name().equalsIgnoreCase(
+                gcpServiceProject.getAppDeploymentScope());
+    }
+
+    /**
+     * Reports the Caffeine statistics of every cache, with the cache name as the {@code cache} tag.
+     */
+    @Autowired(required = false)
+    public void setCacheMetricsRegistry(CacheMetricsRegistry cacheMetricsRegistry) {
+        this.cacheMetricsRegistry = cacheMetricsRegistry;
+        caches.forEach((name, cache) -> cacheMetricsRegistry.register(name, cache.getNativeCache()));
+    }
+
+    @Override
+    public TenantCaffeineCache getCache(String name) {
+        TenantCaffeineCache cache = caches.get(name);
+        return cache != null ? cache : caches.computeIfAbsent(name, this::createCache);
+    }
+
+    private TenantCaffeineCache createCache(String name) {
+        String spec = specs.getOrDefault(name, defaultSpec);
+        log.debug("Creating cache {} with spec {}", name, spec);
+        TenantCaffeineCache cache = new TenantCaffeineCache(name, Caffeine.from(spec).recordStats(),
+                isGlobalScope || globalCaches.contains(name));
+        if (cacheMetricsRegistry != null) {
+            cacheMetricsRegistry.register(name, cache.getNativeCache());
+        }
+        return cache;
+    }
+
+    @Override
+    public Collection<String> getCacheNames() {
+        return Set.copyOf(caches.keySet());
+    }
+
+    /**
+     * Drops the entries of the space from every cache, for when a space is deprovisioned or its data
+     * reloaded. Global caches have no entries of their own per space and are left alone.
+     */
+    public void evictSpace(String spaceId) {
+        log.debug("Evicting space {} from {} caches", spaceId, caches.size());
+        caches.values().forEach(cache -> cache.evictSpace(spaceId));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Objects;
+import java.util.concurrent.Callable;
+
+import org.springframework.cache.support.AbstractValueAdaptingCache;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A Spring {@link org.springframework.cache.Cache} over Caffeine whose keys carry the space of the
+ * current request, so the same {@code @Cacheable} key of two spaces never shares an entry. Global
+ * caches and calls made without a space key their entries without one.
+ * <p>
+ * A {@code valueLoader} belongs to the call that passed it, with that call's arguments, security and
+ * transaction state, so it is never called again. With {@code refreshAfterWrite} in the spec a stale
+ * entry is therefore dropped rather than reloaded, and the next call loads it again.
+ */
+@Slf4j
+public class TenantCaffeineCache extends AbstractValueAdaptingCache {
+
+    private final String name;
+    private final LoadingCache<TenantKey<Object>, Object> cache;
+    private final boolean global;
+
+    TenantCaffeineCache(String name, Caffeine<Object, Object> builder, boolean global) {
+        super(true);
+        this.name = name;
+        this.global = global;
+        this.cache = builder.build(new CacheLoader<>() {
+            @Override
+            public Object load(TenantKey<Object> key) {
+                // Entries are only ever loaded through get(key, valueLoader)
+                return null;
+            }
+
+            @Override
+            public Object reload(TenantKey<Object> key, Object oldValue) {
+                // Returning null drops the entry, the next call loads it again
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public LoadingCache<TenantKey<Object>, Object> getNativeCache() {
+        return cache;
+    }
+
+    @Override
+    protected Object lookup(Object key) {
+        return cache.getIfPresent(tenantKey(key));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> valueLoader) {
+        Object stored = cache.get(tenantKey(key), k -> {
+            try {
+                return toStoreValue(valueLoader.call());
+            } catch (Exception e) {
+                throw new ValueRetrievalException(key, valueLoader, e);
+            }
+        });
+        return (T) fromStoreValue(stored);
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        cache.put(tenantKey(key), toStoreValue(value));
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        Object existing = cache.asMap().putIfAbsent(tenantKey(key), toStoreValue(value));
+        return toValueWrapper(existing);
+    }
+
+    @Override
+    public void evict(Object key) {
+        cache.invalidate(tenantKey(key));
+    }
+
+    @Override
+    public boolean evictIfPresent(Object key) {
+        return cache.asMap().remove(tenantKey(key)) != null;
+    }
+
+    /**
+     * Drops the entries of every space.
+     */
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public boolean invalidate() {
+        boolean notEmpty = !cache.asMap().isEmpty();
+        cache.invalidateAll();
+        return notEmpty;
+    }
+
+    /**
+     * Drops the entries of one space, a scan of the whole cache.
+     */
+    public void evictSpace(String spaceId) {
+        cache.asMap().keySet().removeIf(key -> Objects.equals(key.getSpaceId(), spaceId));
+    }
+
+    private TenantKey<Object> tenantKey(Object key) {
+        ContextInfo context = global ? null : RequestContext.getRequestContextDetails();
+        return new TenantKey<>(context == null ? null : context.getSpaceId(), key);
+    }
+}
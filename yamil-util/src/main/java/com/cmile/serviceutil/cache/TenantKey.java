@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import java.util.Objects;
+
+/**
+ * Key of one cache entry of one space. The hash is computed once, so a lookup in a cache shared by
+ * every space costs about the same as a lookup by the plain key, and no String is built for it.
+ * The space is {@code null} for the entries of globally scoped services.
+ */
+public final class TenantKey<K> {
+
+    private final String spaceId;
+    private final K key;
+    private final int hash;
+
+    public TenantKey(String spaceId, K key) {
+        this.spaceId = spaceId;
+        this.key = Objects.requireNonNull(key, "key");
+        this.hash = hash(spaceId, key);
+    }
+
+    static int hash(String spaceId, Object key) {
+        return 31 * Objects.hashCode(spaceId) + key.hashCode();
+    }
+
+    public String getSpaceId() {
+        return spaceId;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof TenantKey<?> other) {
+            return hash == other.hash && key.equals(other.key) && Objects.equals(spaceId, other.spaceId);
+        }
+        // Equal both ways to the probe SharedCacheLayout looks entries up with, whichever side the
+        // cache compares from
+        return o instanceof SharedCacheLayout.LookupKey probe && probe.matches(spaceId, key, hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return spaceId == null ? String.valueOf(key) : spaceId + "|" + key;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.cache;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Dirty entries of a write-behind repository, one queue per space. A key written again before its
+ * queue is flushed keeps only its latest write. A queue is flushed on the {@code executor} once it
+ * holds {@code batchSize} entries, and whenever {@link #flushAll()} runs. Once more than
+ * {@code maxPending} entries wait across all spaces the writing thread flushes them itself, which
+ * slows writers down to the pace of the database instead of growing the queues without bound. A
+ * write that failed {@code maxAttempts} flushes is dropped and handed to {@code dropped}, so a batch
+ * the database always rejects cannot keep the queues full forever.
+ */
+@Slf4j
+final class WriteBehindBuffer<K, V> {
+
+    private final int batchSize;
+    private final int maxPending;
+    private final int maxAttempts;
+    private final TaskExecutor executor;
+    private final Writer<K, V> writer;
+    private final BiConsumer<String, List<PendingWrite<K, V>>> dropped;
+
+    private final Map<String, SpaceQueue> queues = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    WriteBehindBuffer(int batchSize, int maxPending, int maxAttempts, TaskExecutor executor, Writer<K, V> writer,
+            BiConsumer<String, List<PendingWrite<K, V>>> dropped) {
+        if (batchSize <= 0 || maxPending < batchSize) {
+            throw new IllegalArgumentException("Write-behind batch size must be positive and at most the pending limit");
+        }
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("Write-behind attempts must be positive");
+        }
+        this.batchSize = batchSize;
+        this.maxPending = maxPending;
+        this.maxAttempts = maxAttempts;
+        this.executor = executor;
+        this.writer = writer;
+        this.dropped = dropped;
+    }
+
+    void put(String space, ContextInfo context, K key, V value) {
+        add(space, context, new PendingWrite<>(key, value, false, 0));
+    }
+
+    void delete(String space, ContextInfo context, K key) {
+        add(space, context, new PendingWrite<>(key, null, true, 0));
+    }
+
+    /**
+     * Number of writes waiting to be flushed, across all spaces.
+     */
+    int size() {
+        return pending.get();
+    }
+
+    private void add(String space, ContextInfo context, PendingWrite<K, V> write) {
+        SpaceQueue queue = queues.computeIfAbsent(space, s -> new SpaceQueue());
+        int queued;
+        synchronized (queue) {
+            queue.context = context;
+            if (queue.writes.put(write.key(), write) == null) {
+                pending.incrementAndGet();
+            }
+            queued = queue.writes.size();
+        }
+        if (pending.get() > maxPending) {
+            // The write is already cached and queued, so a failed flush is logged, never thrown at the writer
+            log.debug("{} writes pending, the writer flushes them itself", pending.get());
+            flushAll();
+        } else if (queued >= batchSize) {
+            flushLater(space, queue);
+        }
+    }
+
+    private void flushLater(String space, SpaceQueue queue) {
+        if (executor == null) {
+            flushLogged(space);
+            return;
+        }
+        if (!queue.flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                queue.flushScheduled.set(false);
+                flushLogged(space);
+            });
+        } catch (TaskRejectedException e) {
+            queue.flushScheduled.set(false);
+            log.debug("cacheWriteBehindExecutor is full, space {} is flushed by the writer", space);
+            flushLogged(space);
+        }
+    }
+
+    /**
+     * Flushes every space, logging failures rather than throwing them. Writes that failed stay queued
+     * until they run out of attempts.
+     */
+    void flushAll() {
+        for (String space : List.copyOf(queues.keySet())) {
+            flushLogged(space);
+        }
+    }
+
+    private void flushLogged(String space) {
+        try {
+            flush(space);
+        } catch (RuntimeException e) {
+            log.warn("Write-behind flush of space {} failed, retrying on the next flush", space, e);
+        }
+    }
+
+    /**
+     * Writes the queue of the space in batches of at most {@code batchSize}, with the tenant context of
+     * its last writer. Flushes of one space never overlap, so an older batch cannot land after a newer
+     * write of the same key. A failed batch and everything after it is queued again unless the key was
+     * written since, or dropped once it has failed {@code maxAttempts} times.
+     */
+    void flush(String space) {
+        SpaceQueue queue = queues.get(space);
+        if (queue == null) {
+            return;
+        }
+        queue.flushLock.lock();
+        try {
+            List<PendingWrite<K, V>> writes;
+            ContextInfo context;
+            synchronized (queue) {
+                if (queue.writes.isEmpty()) {
+                    return;
+                }
+                writes = new ArrayList<>(queue.writes.values());
+                context = queue.context;
+                queue.writes.clear();
+            }
+            pending.addAndGet(-writes.size());
+
+            ContextInfo previous = RequestContext.getRequestContextDetails();
+            if (context != null) {
+                RequestContext.setRequestContextDetails(context);
+            }
+            int written = 0;
+            try {
+                while (written < writes.size()) {
+                    List<PendingWrite<K, V>> batch = writes.subList(written, Math.min(written + batchSize, writes.size()));
+                    writer.write(batch);
+                    written += batch.size();
+                }
+            } catch (RuntimeException e) {
+                requeue(space, queue, writes.subList(written, writes.size()));
+                throw e;
+            } finally {
+                if (previous == null) {
+                    RequestContext.clear();
+                } else {
+                    RequestContext.setRequestContextDetails(previous);
+                }
+            }
+        } finally {
+            queue.flushLock.unlock();
+        }
+    }
+
+    private void requeue(String space, SpaceQueue queue, List<PendingWrite<K, V>> failed) {
+        List<PendingWrite<K, V>> exhausted = new ArrayList<>();
+        synchronized (queue) {
+            for (PendingWrite<K, V> write : failed) {
+                if (queue.writes.containsKey(write.key())) {
+                    continue;
+                }
+                if (write.attempts() + 1 >= maxAttempts) {
+                    exhausted.add(write);
+                } else {
+                    queue.writes.put(write.key(), write.retried());
+                    pending.incrementAndGet();
+                }
+            }
+        }
+        if (!exhausted.isEmpty()) {
+            log.error("Dropping {} writes of space {} after {} failed flushes", exhausted.size(), space, maxAttempts);
+            dropped.accept(space, exhausted);
+        }
+    }
+
+    private final class SpaceQueue {
+        private final LinkedHashMap<K, PendingWrite<K, V>> writes = new LinkedHashMap<>();
+        private final ReentrantLock flushLock = new ReentrantLock();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private ContextInfo context;
+    }
+
+    /**
+     * The latest write of a key: its value, or a delete, and the flushes it already failed.
+     */
+    record PendingWrite<K, V>(K key, V value, boolean delete, int attempts) {
+
+        PendingWrite<K, V> retried() {
+            return new PendingWrite<>(key, value, delete, attempts + 1);
+        }
+    }
+
+    /**
+     * Persists one batch, with the tenant context of the space already set.
+     */
+    interface Writer<K, V> {
+        void write(List<PendingWrite<K, V>> batch);
+    }
+}
@@ -27,4 +27,8 @@ public class ConnectionParamsNotFoundException extends RuntimeException {
   public ConnectionParamsNotFoundException(String message) {
     super(message);
   }
+
+  public ConnectionParamsNotFoundException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
@@ -20,7 +20,9 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.task.TaskExecutor;
+import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 
 @Configuration
 public class CfgTaskExecutor {
@@ -34,6 +36,21 @@ public class CfgTaskExecutor {
     @Value("${cmile.cache.hydrate.queue.capacity:10000}")
     private int queueCapacity;
 
+    @Value("${cmile.cache.scheduler.pool.size:1}")
+    private int schedulerPoolSize;
+
+    @Value("${cmile.cache.refresh.pool.size:2}")
+    private int refreshPoolSize;
+
+    @Value("${cmile.cache.refresh.queue.capacity:1000}")
+    private int refreshQueueCapacity;
+
+    @Value("${cmile.cache.write.behind.pool.size:2}")
+    private int writeBehindPoolSize;
+
+    @Value("${cmile.cache.write.behind.queue.capacity:100}")
+    private int writeBehindQueueCapacity;
+
     @Bean("cacheTaskExecutor")
     public TaskExecutor taskExecutor() {
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
@@ -44,4 +61,40 @@ public class CfgTaskExecutor {
         executor.initialize();
         return executor;
     }
+
+    /**
+     * Refresh-ahead loads and reloads of entries changed on other replicas, kept apart from hydration
+     * so neither workload starves the other.
+     */
+    @Bean("cacheRefreshExecutor")
+    public TaskExecutor refreshExecutor() {
+        return boundedExecutor(refreshPoolSize, refreshQueueCapacity, "CacheRefresh-");
+    }
+
+    /**
+     * Write-behind flushes. Writers flush themselves when it is full.
+     */
+    @Bean("cacheWriteBehindExecutor")
+    public TaskExecutor writeBehindExecutor() {
+        return boundedExecutor(writeBehindPoolSize, writeBehindQueueCapacity, "CacheWriteBehind-");
+    }
+
+    @Bean("cacheTaskScheduler")
+    public TaskScheduler taskScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(schedulerPoolSize);
+        scheduler.setThreadNamePrefix("CacheScheduler-");
+        scheduler.initialize();
+        return scheduler;
+    }
+
+    private static ThreadPoolTaskExecutor boundedExecutor(int poolSize, int queueCapacity, String threadNamePrefix) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.initialize();
+        return executor;
+    }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.metric;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Meters of the get, put and remove calls of one cache, resolved once so that recording them on the
+ * hot path allocates nothing. Lookups are counted exactly as hits and misses; latency is timed with
+ * {@link System#nanoTime()} on one call out of {@code sampleRate}, so the timer's count is a sample
+ * and the lookup counters are the source of truth for rates.
+ *
+ * <pre>{@code
+ * long start = instrumentation.start();
+ * V value = cache.getIfPresent(key);
+ * instrumentation.recordGet(start, value != null);
+ * }</pre>
+ */
+public final class CacheInstrumentation {
+
+  public static final String OPERATION_METER = "cache.operation";
+  public static final String LOOKUP_METER = "cache.lookups";
+
+  /** Instrumentation that records nothing, for caches created without a meter registry. */
+  public static final CacheInstrumentation NOOP = new CacheInstrumentation();
+
+  private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+  private final int sampleRate;
+  private final Timer getTimer;
+  private final Timer putTimer;
+  private final Timer removeTimer;
+  private final Counter hits;
+  private final Counter misses;
+
+  CacheInstrumentation(MeterRegistry meterRegistry, String cacheName, List<Tag> tags, int sampleRate) {
+    if (sampleRate <= 0) {
+      throw new IllegalArgumentException("Cache timing sample rate must be positive");
+    }
+    this.sampleRate = sampleRate;
+    List<Tag> cacheTags = new ArrayList<>(tags);
+    cacheTags.add(Tag.of("cache", cacheName));
+    this.getTimer = timer(meterRegistry, cacheTags, "get");
+    this.putTimer = timer(meterRegistry, cacheTags, "put");
+    this.removeTimer = timer(meterRegistry, cacheTags, "remove");
+    this.hits = counter(meterRegistry, cacheTags, "hit");
+    this.misses = counter(meterRegistry, cacheTags, "miss");
+  }
+
+  private CacheInstrumentation() {
+    this.sampleRate = 0;
+    this.getTimer = null;
+    this.putTimer = null;
+    this.removeTimer = null;
+    this.hits = null;
+    this.misses = null;
+  }
+
+  /**
+   * Starts timing a call if it is sampled; pass the result to the matching {@code record} method.
+   */
+  public long start() {
+    if (sampleRate == 0 || (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)) {
+      return NOT_SAMPLED;
+    }
+    return System.nanoTime();
+  }
+
+  public void recordGet(long start, boolean hit) {
+    if (sampleRate == 0) {
+      return;
+    }
+    (hit ? hits : misses).increment();
+    stop(getTimer, start);
+  }
+
+  public void recordPut(long start) {
+    stop(putTimer, start);
+  }
+
+  public void recordRemove(long start) {
+    stop(removeTimer, start);
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  private static void stop(Timer timer, long start) {
+    if (start != NOT_SAMPLED) {
+      timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static Timer timer(MeterRegistry meterRegistry, List<Tag> tags, String operation) {
+    return Timer.builder(OPERATION_METER)
+        .tags(tags)
+        .tag("operation", operation)
+        .register(meterRegistry);
+  }
+
+  private static Counter counter(MeterRegistry meterRegistry, List<Tag> tags, String result) {
+    return Counter.builder(LOOKUP_METER)
+        .tags(tags)
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+}
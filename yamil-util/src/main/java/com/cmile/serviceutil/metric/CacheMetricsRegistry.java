@@ -0,0 +1,195 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.metric;
+
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.binder.BaseUnits;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Binds every Caffeine cache of the service to the {@link MeterRegistry}: hit, miss, load and
+ * eviction counts, load time and estimated size, tagged by cache name, service and scope. Caches
+ * bounded by weight also report their estimated and maximum bytes. Caches must be built with {@code
+ * recordStats()}.
+ */
+@Component
+@Slf4j
+public class CacheMetricsRegistry {
+
+  public static final String SCOPE_TAG = "scope";
+  public static final String SPACE_TAG = "space";
+  public static final String WEIGHTED_SIZE_METER = "cache.weighted.size";
+  public static final String MAX_WEIGHT_METER = "cache.max.weight";
+  // Tag CaffeineCacheMetrics puts the cache name in.
+  private static final String CACHE_TAG = "cache";
+  private static final String REFRESH_METER = "cache.refresh";
+  private static final String NEGATIVE_METER = "cache.negative";
+  private static final String INVALIDATION_METER = "cache.invalidation";
+
+  private final MeterRegistry meterRegistry;
+  private final GCPServiceProject gcpServiceProject;
+  private final Map<String, Cache<?, ?>> caches = new ConcurrentHashMap<>();
+  private int timingSampleRate = 1;
+
+  public CacheMetricsRegistry(MeterRegistry meterRegistry, GCPServiceProject gcpServiceProject) {
+    this.meterRegistry = meterRegistry;
+    this.gcpServiceProject = gcpServiceProject;
+  }
+
+  /**
+   * Times one cache call out of {@code timingSampleRate}; hits and misses are always counted.
+   */
+  @Value("${cmile.cache.metrics.timing.sample.rate:1}")
+  public void setTimingSampleRate(int timingSampleRate) {
+    this.timingSampleRate = timingSampleRate;
+  }
+
+  /**
+   * Resolves the get, put and remove meters of a cache, see {@link CacheInstrumentation}.
+   */
+  public CacheInstrumentation instrument(String cacheName) {
+    return new CacheInstrumentation(meterRegistry, cacheName, getTags(), timingSampleRate);
+  }
+
+  public void register(String cacheName, Cache<?, ?> cache) {
+    register(cacheName, null, cache);
+  }
+
+  /**
+   * Registers the cache of one space of a cache partitioned by space. Its meters carry a {@code
+   * space} tag; a {@code null} space registers the cache like {@link #register(String, Cache)}.
+   */
+  public void register(String cacheName, String spaceId, Cache<?, ?> cache) {
+    String registrationKey = registrationKey(cacheName, spaceId);
+    Cache<?, ?> registered = caches.putIfAbsent(registrationKey, cache);
+    if (registered != null) {
+      // Meters are keyed by name and tags, a second cache under the same name would not be reported
+      log.warn("A cache named {} is already registered, its metrics are kept", registrationKey);
+      return;
+    }
+    List<Tag> tags = new ArrayList<>(getTags());
+    if (spaceId != null) {
+      tags.add(Tag.of(SPACE_TAG, spaceId));
+    }
+    CaffeineCacheMetrics.monitor(meterRegistry, cache, cacheName, tags);
+    if (cache.policy().eviction().filter(Policy.Eviction::isWeighted).isPresent()) {
+      registerWeightGauges(cacheName, cache, tags);
+    }
+    log.debug("Registered metrics for cache {}", registrationKey);
+  }
+
+  /**
+   * Removes the cache of one space and its meters, for when the space is dropped from the cache.
+   */
+  public void unregister(String cacheName, String spaceId) {
+    if (caches.remove(registrationKey(cacheName, spaceId)) == null) {
+      return;
+    }
+    meterRegistry.getMeters().stream()
+        .filter(meter -> cacheName.equals(meter.getId().getTag(CACHE_TAG)))
+        .filter(meter -> !REFRESH_METER.equals(meter.getId().getName()))
+        .filter(meter -> !NEGATIVE_METER.equals(meter.getId().getName()))
+        .filter(meter -> !CacheInstrumentation.OPERATION_METER.equals(meter.getId().getName()))
+        .filter(meter -> !CacheInstrumentation.LOOKUP_METER.equals(meter.getId().getName()))
+        .filter(meter -> spaceId == null
+            ? meter.getId().getTag(SPACE_TAG) == null
+            : spaceId.equals(meter.getId().getTag(SPACE_TAG)))
+        .forEach(meterRegistry::remove);
+  }
+
+  /**
+   * Counts the outcome of a background refresh or of a load that fell back to a stale value.
+   */
+  public void recordRefresh(String cacheName, String result) {
+    List<Tag> tags = new ArrayList<>(getTags());
+    tags.add(Tag.of(CACHE_TAG, cacheName));
+    tags.add(Tag.of("result", result));
+    meterRegistry.counter(REFRESH_METER, tags).increment();
+  }
+
+  /**
+   * Counts a key remembered as missing, or a lookup answered by such a negative entry.
+   */
+  public void recordNegative(String cacheName, String result) {
+    List<Tag> tags = new ArrayList<>(getTags());
+    tags.add(Tag.of(CACHE_TAG, cacheName));
+    tags.add(Tag.of("result", result));
+    meterRegistry.counter(NEGATIVE_METER, tags).increment();
+  }
+
+  /**
+   * Counts invalidations exchanged with the other replicas; {@code result} tells whether they were
+   * published, received or echoed back to this replica.
+   */
+  public void recordInvalidations(String result, int count) {
+    List<Tag> tags = new ArrayList<>(getTags());
+    tags.add(Tag.of("result", result));
+    meterRegistry.counter(INVALIDATION_METER, tags).increment(count);
+  }
+
+  public Map<String, Cache<?, ?>> getCaches() {
+    return Map.copyOf(caches);
+  }
+
+  private void registerWeightGauges(String cacheName, Cache<?, ?> cache, List<Tag> tags) {
+    // The cache is held by this registry, the gauges only keep a weak reference to it
+    Gauge.builder(WEIGHTED_SIZE_METER, cache, c -> weightOf(c, true))
+        .tags(tags)
+        .tag(CACHE_TAG, cacheName)
+        .baseUnit(BaseUnits.BYTES)
+        .description("Estimated bytes held by the cache")
+        .register(meterRegistry);
+    Gauge.builder(MAX_WEIGHT_METER, cache, c -> weightOf(c, false))
+        .tags(tags)
+        .tag(CACHE_TAG, cacheName)
+        .baseUnit(BaseUnits.BYTES)
+        .description("Bytes the cache may hold")
+        .register(meterRegistry);
+  }
+
+  private static double weightOf(Cache<?, ?> cache, boolean current) {
+    return cache.policy().eviction()
+        .map(eviction -> current
+            ? (double) eviction.weightedSize().orElse(0)
+            : (double) eviction.getMaximum())
+        .orElse(Double.NaN);
+  }
+
+  private static String registrationKey(String cacheName, String spaceId) {
+    return spaceId == null ? cacheName : cacheName + "." + spaceId;
+  }
+
+  private List<Tag> getTags() {
+    String serviceName = gcpServiceProject.getApplicationName();
+    String scope = gcpServiceProject.getAppDeploymentScope();
+    return List.of(
+        Tag.of(MetricsService.SERVICE_NAME_TAG, serviceName != null ? serviceName : MetricsService.DEFAULT_VALUE),
+        Tag.of(SCOPE_TAG, scope != null ? scope.toLowerCase() : MetricsService.DEFAULT_VALUE));
+  }
+}
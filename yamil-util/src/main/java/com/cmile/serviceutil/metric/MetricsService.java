@@ -19,6 +19,7 @@ package com.cmile.serviceutil.metric;
 import com.cmile.serviceutil.auth.RequestContext;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
 import com.google.pubsub.v1.PubsubMessage;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tag;
 import jakarta.servlet.http.HttpServletRequest;
@@ -28,6 +29,7 @@ import org.springframework.stereotype.Service;
 
 import java.util.*;
 import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
 
 @Service
@@ -64,6 +66,38 @@ public class MetricsService {
     type.registerMetrics(meterRegistry, tags, value);
   }
 
+  /**
+   * Registers a gauge sampled from {@code stateObject} whenever the registry publishes. The gauge
+   * only holds a weak reference to the state object. A gauge describes the whole process rather
+   * than one request, so it is not tagged with the du and space of the current request context.
+   */
+  public <T> void registerGauge(
+      String name, T stateObject, ToDoubleFunction<T> valueFunction, Map<String, String> customTags) {
+    Gauge.builder(name, stateObject, valueFunction)
+        .tags(getProcessWideTags(name, customTags))
+        .register(meterRegistry);
+  }
+
+  /**
+   * Adds {@code amount} to a counter of the whole process, tagged like {@link #registerGauge}. Use
+   * it for events counted off the request path, where {@link MetricsType#ERROR_COUNT} would only
+   * count one occurrence per call and pick up the tags of whatever context the thread carries.
+   */
+  public void incrementCounter(String name, long amount, Map<String, String> customTags) {
+    meterRegistry.counter(name, getProcessWideTags(name, customTags)).increment(amount);
+  }
+
+  private List<Tag> getProcessWideTags(String name, Map<String, String> customTags) {
+    List<Tag> tags = new ArrayList<>();
+    tags.add(Tag.of(SERVICE_NAME_TAG, serviceProject.getApplicationName()));
+    if (customTags != null) {
+      customTags.forEach(
+          (key, value) -> tags.add(Tag.of(key, value != null ? value : DEFAULT_VALUE)));
+    }
+    tags.add(Tag.of(PROCESS_NAME, name));
+    return tags;
+  }
+
   public void wrapRestWithMetrics(
       HttpServletRequest request, HttpServletResponse response, Runnable method) {
 
@@ -63,6 +63,17 @@ public enum MetricsType {
           .register(meterRegistry)
           .record(value);
     }
+  },
+  THROUGHPUT("throughput") {
+    @Override
+    public void registerMetrics(MeterRegistry meterRegistry, List<Tag> tags, long value) {
+      DistributionSummary.builder(metricName)
+          .tags(tags)
+          .baseUnit("per_second")
+          .publishPercentiles(0.5, 0.95, 0.99)
+          .register(meterRegistry)
+          .record(value);
+    }
   };
 
   protected final String metricName;
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.metric;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps the number of distinct values of a meter tag. The first {@code maxValues} values seen are
+ * kept, every later one is reported as {@link #OTHER}, so a tag fed from request data cannot grow
+ * the number of time series without bound.
+ */
+public class TagValueLimiter {
+
+  public static final String OTHER = "other";
+  public static final String UNKNOWN = "unknown";
+
+  private final int maxValues;
+  private final Set<String> values = ConcurrentHashMap.newKeySet();
+
+  public TagValueLimiter(int maxValues) {
+    if (maxValues <= 0) {
+      throw new IllegalArgumentException("The maximum number of tag values must be positive");
+    }
+    this.maxValues = maxValues;
+  }
+
+  public String limit(String value) {
+    if (value == null || value.isEmpty()) {
+      return UNKNOWN;
+    }
+    if (values.contains(value)) {
+      return value;
+    }
+    // Racing threads may admit a few values over the limit, which is harmless
+    if (values.size() < maxValues) {
+      values.add(value);
+      return value;
+    }
+    return OTHER;
+  }
+}
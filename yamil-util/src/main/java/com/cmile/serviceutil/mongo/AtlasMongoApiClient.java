@@ -17,145 +17,194 @@
 package com.cmile.serviceutil.mongo;
 
 import com.cmile.serviceutil.secret.entity.MongoAdminEntity;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import java.net.URI;
 import java.text.ParseException;
+import java.time.Duration;
 import me.vzhilin.auth.DigestAuthenticator;
 import me.vzhilin.auth.parser.ChallengeResponseParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.reactive.function.client.WebClient.RequestHeadersSpec;
+import org.springframework.web.reactive.function.client.WebClient.RequestBodySpec;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+/**
+ * Calls the Atlas Admin API with digest authentication. The nonce of the last challenge is kept, so
+ * requests carry their authorization up front with an incremented nonce count, and only the first
+ * request and those sent with a stale nonce get a 401 and go again. Requests rejected with 429 are
+ * retried with exponential backoff. The latency of each call, retries included, is recorded in
+ * {@code atlas.api.requests} by method, endpoint and outcome.
+ */
 @Component
 public class AtlasMongoApiClient {
   private static final Logger logger = LoggerFactory.getLogger(AtlasMongoApiClient.class);
 
+  public static final String REQUESTS_METER = "atlas.api.requests";
+
   // Static final variables for HTTP methods and content types
   private static final String APPLICATION_JSON_VND_ATLAS = "application/vnd.atlas.2023-01-01+json";
-  private static final String HTTP_METHOD_DELETE = "DELETE";
-  private static final String HTTP_METHOD_POST = "POST";
-  private static final String HTTP_METHOD_GET = "GET";
   private static final String URL_FORMAT = "%s?&currentSchema=%s";
+  private static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
 
   private final WebClient webClient;
   private final DigestAuthenticator authenticator;
+  private final String atlasBaseUrl;
+  private final String atlasBasePath;
+  private final int maxRetries;
+  private final Duration retryBackoff;
+  private final MeterRegistry meterRegistry;
 
   public AtlasMongoApiClient(
       MongoAdminEntity mongoAdminEntity,
       WebClient.Builder webClientBuilder,
       @Value("${mongodb.atlas.base.url:https://cloud.mongodb.com/api/atlas/v2/groups}")
-          String atlasBaseUrl) {
+          String atlasBaseUrl,
+      @Value("${mongodb.atlas.retry.max:3}") int maxRetries,
+      @Value("${mongodb.atlas.retry.backoff:1s}") Duration retryBackoff,
+      ObjectProvider<MeterRegistry> meterRegistry) {
 
     logger.debug("Initializing AtlasMongoApiClient");
 
-    this.webClient = webClientBuilder.baseUrl(atlasBaseUrl).build();
+    this.webClient = webClientBuilder.build();
+    this.atlasBaseUrl = atlasBaseUrl.endsWith("/") ? atlasBaseUrl : atlasBaseUrl + "/";
+    this.atlasBasePath = URI.create(this.atlasBaseUrl).getRawPath();
+    this.maxRetries = maxRetries;
+    this.retryBackoff = retryBackoff;
+    this.meterRegistry = meterRegistry.getIfAvailable();
     this.authenticator =
         new DigestAuthenticator(mongoAdminEntity.getPublicKey(), mongoAdminEntity.getPrivateKey());
   }
 
   public Mono<String> deleteApi(String url) {
-    if (authenticator == null) {
-      return Mono.error(new RuntimeException("Authenticator is not initialized"));
-    }
-
-    URI uri = URI.create(url);
-    RequestHeadersSpec<?> getRequest =
-        webClient.delete().uri(uri).header(HttpHeaders.ACCEPT, APPLICATION_JSON_VND_ATLAS);
-    return getRequest
-        .retrieve()
-        .bodyToMono(String.class)
-        .onErrorResume(
-            WebClientResponseException.Unauthorized.class,
-            error -> {
-              String receivedAuthenticateHeader =
-                  error.getHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE);
-              try {
-                authenticator.onResponseReceived(
-                    new ChallengeResponseParser(receivedAuthenticateHeader).parseChallenge(),
-                    error.getStatusCode().value());
-              } catch (ParseException e) {
-                return Mono.error(e);
-              }
-              String authorizationHeader =
-                  authenticator.authorizationHeader(HTTP_METHOD_DELETE, url);
-              return getRequest
-                  .header(HttpHeaders.AUTHORIZATION, authorizationHeader)
-                  .retrieve()
-                  .bodyToMono(String.class);
-            });
+    return exchange(HttpMethod.DELETE, url, null);
   }
 
   public Mono<String> postApi(String url, String body) {
-    if (authenticator == null) {
-      return Mono.error(new RuntimeException("Authenticator is not initialized"));
+    return exchange(HttpMethod.POST, url, body);
+  }
+
+  public Mono<String> getApi(String url) {
+    return exchange(HttpMethod.GET, url, null);
+  }
+
+  /**
+   * Sends the request with the authorization of the last challenge, answering a new challenge once.
+   * {@code url} is either absolute or relative to the base URL.
+   */
+  private Mono<String> exchange(HttpMethod method, String url, String body) {
+    URI uri = resolve(url);
+    String endpoint = endpoint(uri);
+    return Mono.defer(
+        () -> {
+          Timer.Sample sample = meterRegistry == null ? null : Timer.start(meterRegistry);
+          return send(method, uri, body)
+              .onErrorResume(
+                  WebClientResponseException.Unauthorized.class,
+                  error -> {
+                    String receivedAuthenticateHeader =
+                        error.getHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE);
+                    if (receivedAuthenticateHeader == null) {
+                      return Mono.error(error);
+                    }
+                    try {
+                      authenticator.onResponseReceived(
+                          new ChallengeResponseParser(receivedAuthenticateHeader).parseChallenge(),
+                          error.getStatusCode().value());
+                    } catch (ParseException e) {
+                      return Mono.error(e);
+                    }
+                    return send(method, uri, body);
+                  })
+              .retryWhen(
+                  Retry.backoff(maxRetries, retryBackoff)
+                      .maxBackoff(MAX_BACKOFF)
+                      .filter(WebClientResponseException.TooManyRequests.class::isInstance)
+                      .doBeforeRetry(
+                          retry ->
+                              logger.debug(
+                                  "Atlas rate limited {} {}, retry {}",
+                                  method,
+                                  endpoint,
+                                  retry.totalRetries() + 1))
+                      .onRetryExhaustedThrow((retrySpec, retry) -> retry.failure()))
+              .doOnSuccess(response -> record(sample, method, endpoint, "success"))
+              .doOnError(error -> record(sample, method, endpoint, outcome(error)));
+        });
+  }
+
+  /**
+   * Deferred, so every retry signs the request with the next nonce count.
+   */
+  private Mono<String> send(HttpMethod method, URI uri, String body) {
+    return Mono.defer(() -> sendNow(method, uri, body));
+  }
+
+  private Mono<String> sendNow(HttpMethod method, URI uri, String body) {
+    RequestBodySpec request =
+        webClient.method(method).uri(uri).header(HttpHeaders.ACCEPT, APPLICATION_JSON_VND_ATLAS);
+    // No header until the first challenge has been answered
+    String authorizationHeader = authenticator.authorizationHeader(method.name(), requestTarget(uri));
+    if (authorizationHeader != null) {
+      request.header(HttpHeaders.AUTHORIZATION, authorizationHeader);
+    }
+    if (body != null) {
+      request.header(HttpHeaders.CONTENT_TYPE, APPLICATION_JSON_VND_ATLAS).bodyValue(body);
     }
+    return request.retrieve().bodyToMono(String.class);
+  }
 
+  private URI resolve(String url) {
     URI uri = URI.create(url);
-    RequestHeadersSpec<?> postRequest =
-        webClient
-            .post()
-            .uri(uri)
-            .header(HttpHeaders.CONTENT_TYPE, APPLICATION_JSON_VND_ATLAS)
-            .header(HttpHeaders.ACCEPT, APPLICATION_JSON_VND_ATLAS)
-            .bodyValue(body);
-    return postRequest
-        .retrieve()
-        .bodyToMono(String.class)
-        .onErrorResume(
-            WebClientResponseException.Unauthorized.class,
-            error -> {
-              String receivedAuthenticateHeader =
-                  error.getHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE);
-              try {
-                authenticator.onResponseReceived(
-                    new ChallengeResponseParser(receivedAuthenticateHeader).parseChallenge(),
-                    error.getStatusCode().value());
-              } catch (ParseException e) {
-                return Mono.error(e);
-              }
-              String authorizationHeader =
-                  authenticator.authorizationHeader(
-                      HTTP_METHOD_POST, "https://cloud.mongodb.com/api/atlas/v2/groups" + url);
-              return postRequest
-                  .header(HttpHeaders.AUTHORIZATION, authorizationHeader)
-                  .retrieve()
-                  .bodyToMono(String.class);
-            });
+    return uri.isAbsolute() ? uri : URI.create(atlasBaseUrl).resolve(url.replaceFirst("^/", ""));
   }
 
-  public Mono<String> getApi(String url) {
-    if (authenticator == null) {
-      return Mono.error(new RuntimeException("Authenticator is not initialized"));
+  /**
+   * The digest {@code uri}, which has to be the request target the server sees.
+   */
+  private static String requestTarget(URI uri) {
+    return uri.getRawQuery() == null ? uri.getRawPath() : uri.getRawPath() + "?" + uri.getRawQuery();
+  }
+
+  /**
+   * The resource collection called, such as {@code databaseUsers/{name}}, so the project id and
+   * resource names do not each become a time series.
+   */
+  String endpoint(URI uri) {
+    String path = uri.getRawPath();
+    if (path == null || !path.startsWith(atlasBasePath)) {
+      return "other";
     }
+    // {groupId}/{collection}/{name}...
+    String[] segments = path.substring(atlasBasePath.length()).split("/");
+    if (segments.length < 2) {
+      return "{groupId}";
+    }
+    return segments.length == 2 ? segments[1] : segments[1] + "/{name}";
+  }
 
-    URI uri = URI.create(url);
-    RequestHeadersSpec<?> getRequest =
-        webClient.get().uri(uri).header(HttpHeaders.ACCEPT, APPLICATION_JSON_VND_ATLAS);
-    return getRequest
-        .retrieve()
-        .bodyToMono(String.class)
-        .onErrorResume(
-            WebClientResponseException.Unauthorized.class,
-            error -> {
-              String receivedAuthenticateHeader =
-                  error.getHeaders().getFirst(HttpHeaders.WWW_AUTHENTICATE);
-              try {
-                authenticator.onResponseReceived(
-                    new ChallengeResponseParser(receivedAuthenticateHeader).parseChallenge(),
-                    error.getStatusCode().value());
-              } catch (ParseException e) {
-                return Mono.error(e);
-              }
-              String authorizationHeader = authenticator.authorizationHeader(HTTP_METHOD_GET, url);
-              return getRequest
-                  .header(HttpHeaders.AUTHORIZATION, authorizationHeader)
-                  .retrieve()
-                  .bodyToMono(String.class);
-            });
+  private static String outcome(Throwable error) {
+    return error instanceof WebClientResponseException responseException
+        ? String.valueOf(responseException.getStatusCode().value())
+        : "error";
+  }
+
+  private void record(Timer.Sample sample, HttpMethod method, String endpoint, String outcome) {
+    if (sample != null) {
+      sample.stop(
+          Timer.builder(REQUESTS_METER)
+              .tag("method", method.name())
+              .tag("endpoint", endpoint)
+              .tag("outcome", outcome)
+              .register(meterRegistry));
+    }
   }
 }
@@ -0,0 +1,349 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.mongo;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.bson.Document;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.CollectionPreparer;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReplaceOptions;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoWriter;
+import org.springframework.data.mongodb.core.query.Collation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * The {@link MongoTemplate} of one tenant, answering {@code find}, {@code findOne}, {@code findById},
+ * {@code findAll}, {@code count} and {@code exists} from the {@link MongoQueryCache}. Every insert,
+ * save, update, replace, remove, find-and-modify, bulk write and drop made through this template
+ * invalidates the reads of its collection, once the transaction commits when made inside one. Writes
+ * made elsewhere, by other replicas, other services or through {@code execute} and
+ * {@code getCollection}, are only seen once the TTL of the collection runs out. Reads inside a
+ * transaction always go to the database.
+ * <p>
+ * A cached read hands every caller the same entity instances; lists are copied, their elements are
+ * not. Treat the entities read through this template as read-only, and modify a copy to write it back.
+ */
+public class CachingMongoTemplate extends MongoTemplate {
+
+  private final String tenant;
+  private final MongoQueryCache queryCache;
+  /** Key of the collections written by the current transaction, bound while it runs. */
+  private final Object pendingInvalidationsKey = new Object();
+
+  public CachingMongoTemplate(
+      MongoClient mongoClient, String databaseName, String tenant, MongoQueryCache queryCache) {
+    super(mongoClient, databaseName);
+    this.tenant = tenant;
+    this.queryCache = queryCache;
+  }
+
+  public CachingMongoTemplate(
+      MongoDatabaseFactory databaseFactory,
+      MongoConverter converter,
+      String tenant,
+      MongoQueryCache queryCache) {
+    super(databaseFactory, converter);
+    this.tenant = tenant;
+    this.queryCache = queryCache;
+  }
+
+  @Override
+  public <T> List<T> find(Query query, Class<T> entityClass, String collectionName) {
+    if (bypassCache()) {
+      return super.find(query, entityClass, collectionName);
+    }
+    return queryCache.get(
+        tenant, collectionName, "find", entityClass, query, null,
+        () -> super.find(query, entityClass, collectionName));
+  }
+
+  @Override
+  public <T> T findOne(Query query, Class<T> entityClass, String collectionName) {
+    if (bypassCache()) {
+      return super.findOne(query, entityClass, collectionName);
+    }
+    return queryCache.get(
+        tenant, collectionName, "findOne", entityClass, query, null,
+        () -> super.findOne(query, entityClass, collectionName));
+  }
+
+  @Override
+  public <T> T findById(Object id, Class<T> entityClass, String collectionName) {
+    if (bypassCache()) {
+      return super.findById(id, entityClass, collectionName);
+    }
+    return queryCache.get(
+        tenant, collectionName, "findById", entityClass, null, id,
+        () -> super.findById(id, entityClass, collectionName));
+  }
+
+  @Override
+  public <T> List<T> findAll(Class<T> entityClass, String collectionName) {
+    if (bypassCache()) {
+      return super.findAll(entityClass, collectionName);
+    }
+    return queryCache.get(
+        tenant, collectionName, "findAll", entityClass, null, null,
+        () -> super.findAll(entityClass, collectionName));
+  }
+
+  @Override
+  public long count(Query query, Class<?> entityClass, String collectionName) {
+    if (bypassCache()) {
+      return super.count(query, entityClass, collectionName);
+    }
+    return queryCache.get(
+        tenant, collectionName, "count", entityClass, query, null,
+        () -> super.count(query, entityClass, collectionName));
+  }
+
+  @Override
+  public boolean exists(Query query, Class<?> entityClass, String collectionName) {
+    if (bypassCache()) {
+      return super.exists(query, entityClass, collectionName);
+    }
+    return queryCache.get(
+        tenant, collectionName, "exists", entityClass, query, null,
+        () -> super.exists(query, entityClass, collectionName));
+  }
+
+  @Override
+  protected <T> T doInsert(String collectionName, T objectToSave, MongoWriter<T> writer) {
+    try {
+      return super.doInsert(collectionName, objectToSave, writer);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  protected <T> Collection<T> doInsertBatch(
+      String collectionName, Collection<? extends T> batchToSave, MongoWriter<T> writer) {
+    try {
+      return super.doInsertBatch(collectionName, batchToSave, writer);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  protected <T> T doSave(String collectionName, T objectToSave, MongoWriter<T> writer) {
+    try {
+      return super.doSave(collectionName, objectToSave, writer);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  protected UpdateResult doUpdate(
+      String collectionName,
+      Query query,
+      UpdateDefinition update,
+      Class<?> entityClass,
+      boolean upsert,
+      boolean multi) {
+    try {
+      return super.doUpdate(collectionName, query, update, entityClass, upsert, multi);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  protected <S, T> UpdateResult replace(
+      Query query,
+      Class<S> entityType,
+      T replacement,
+      ReplaceOptions options,
+      String collectionName) {
+    try {
+      return super.replace(query, entityType, replacement, options, collectionName);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  protected <T> DeleteResult doRemove(
+      String collectionName, Query query, Class<T> entityClass, boolean multi) {
+    try {
+      return super.doRemove(collectionName, query, entityClass, multi);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  protected <T> T doFindAndRemove(
+      CollectionPreparer collectionPreparer,
+      String collectionName,
+      Document query,
+      Document fields,
+      Document sort,
+      Collation collation,
+      Class<T> entityClass) {
+    try {
+      return super.doFindAndRemove(
+          collectionPreparer, collectionName, query, fields, sort, collation, entityClass);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  protected <T> T doFindAndModify(
+      CollectionPreparer collectionPreparer,
+      String collectionName,
+      Document query,
+      Document fields,
+      Document sort,
+      Class<T> entityClass,
+      UpdateDefinition update,
+      FindAndModifyOptions options) {
+    try {
+      return super.doFindAndModify(
+          collectionPreparer, collectionName, query, fields, sort, entityClass, update, options);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("rawtypes")
+  protected <T> T doFindAndReplace(
+      CollectionPreparer collectionPreparer,
+      String collectionName,
+      Document mappedQuery,
+      Document mappedFields,
+      Document mappedSort,
+      com.mongodb.client.model.Collation collation,
+      Class<?> entityType,
+      Document replacement,
+      FindAndReplaceOptions options,
+      Class<T> resultType) {
+    try {
+      return super.doFindAndReplace(
+          collectionPreparer, collectionName, mappedQuery, mappedFields, mappedSort, collation,
+          entityType, replacement, options, resultType);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  @Override
+  public void dropCollection(String collectionName) {
+    try {
+      super.dropCollection(collectionName);
+    } finally {
+      invalidate(collectionName);
+    }
+  }
+
+  /**
+   * Bulk writes invalidate the collection once they are executed.
+   */
+  @Override
+  public BulkOperations bulkOps(
+      BulkOperations.BulkMode mode, Class<?> entityType, String collectionName) {
+    BulkOperations bulkOperations = super.bulkOps(mode, entityType, collectionName);
+    return (BulkOperations)
+        Proxy.newProxyInstance(
+            BulkOperations.class.getClassLoader(),
+            new Class<?>[] {BulkOperations.class},
+            (proxy, method, args) -> {
+              Object result;
+              try {
+                result = method.invoke(bulkOperations, args);
+              } catch (InvocationTargetException e) {
+                throw e.getCause();
+              } finally {
+                if ("execute".equals(method.getName())) {
+                  invalidate(collectionName);
+                }
+              }
+              // Builder methods return the target, keep handing out the proxy instead
+              return result == bulkOperations ? proxy : result;
+            });
+  }
+
+  private static boolean bypassCache() {
+    return TransactionSynchronizationManager.isActualTransactionActive();
+  }
+
+  /**
+   * Invalidates the collection now, or after the commit of the current transaction. Until then other
+   * threads only see, and cache, what was committed before it.
+   */
+  @SuppressWarnings("unchecked")
+  private void invalidate(String collectionName) {
+    if (!TransactionSynchronizationManager.isActualTransactionActive()
+        || !TransactionSynchronizationManager.isSynchronizationActive()) {
+      queryCache.invalidate(tenant, collectionName);
+      return;
+    }
+    Set<String> pending =
+        (Set<String>) TransactionSynchronizationManager.getResource(pendingInvalidationsKey);
+    if (pending == null) {
+      Set<String> collections = new LinkedHashSet<>();
+      TransactionSynchronizationManager.bindResource(pendingInvalidationsKey, collections);
+      TransactionSynchronizationManager.registerSynchronization(
+          new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+              collections.forEach(collection -> queryCache.invalidate(tenant, collection));
+            }
+
+            @Override
+            public void suspend() {
+              TransactionSynchronizationManager.unbindResourceIfPossible(pendingInvalidationsKey);
+            }
+
+            @Override
+            public void resume() {
+              TransactionSynchronizationManager.bindResource(pendingInvalidationsKey, collections);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+              TransactionSynchronizationManager.unbindResourceIfPossible(pendingInvalidationsKey);
+            }
+          });
+      pending = collections;
+    }
+    pending.add(collectionName);
+  }
+}
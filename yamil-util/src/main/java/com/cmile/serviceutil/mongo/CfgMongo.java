@@ -17,14 +17,24 @@
 package com.cmile.serviceutil.mongo;
 
 import com.cmile.serviceutil.common.CfgCommon;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
 import com.cmile.serviceutil.secret.CfgSecret;
 import com.cmile.serviceutil.secret.SecretManagerService;
 import com.cmile.serviceutil.secret.SecretTypeEnum;
 import com.cmile.serviceutil.secret.entity.MongoAdminEntity;
+import java.time.Duration;
+import java.util.Map;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.util.unit.DataSize;
 
 @Configuration
 @Import({CfgCommon.class, CfgSecret.class})
@@ -35,4 +45,46 @@ public class CfgMongo {
   public MongoAdminEntity mongoAdminEntity(SecretManagerService secretManagerService) {
     return secretManagerService.getSecret(SecretTypeEnum.MONGO_ADMIN, null);
   }
+
+  /**
+   * Opt-in cache of the reads made through the tenant templates. The TTL of a collection named
+   * {@code orders} is {@code cmile.mongo.query.cache.ttls.orders}, {@code
+   * cmile.mongo.query.cache.ttl} when it has none.
+   */
+  @Bean
+  @ConditionalOnProperty(name = "cmile.mongo.query.cache.enabled", havingValue = "true")
+  public MongoQueryCache mongoQueryCache(
+      @Value("${cmile.mongo.query.cache.max.size:64MB}") DataSize maxSize,
+      @Value("${cmile.mongo.query.cache.ttl:30s}") Duration ttl,
+      Environment environment,
+      ObjectProvider<CacheMetricsRegistry> cacheMetricsRegistry) {
+    Map<String, Duration> ttls =
+        Binder.get(environment)
+            .bind("cmile.mongo.query.cache.ttls", Bindable.mapOf(String.class, Duration.class))
+            .orElse(Map.of());
+    MongoQueryCache mongoQueryCache = new MongoQueryCache(maxSize.toBytes(), ttl, ttls);
+    cacheMetricsRegistry.ifAvailable(
+        registry -> registry.register(MongoQueryCache.CACHE_NAME, mongoQueryCache.getNativeCache()));
+    return mongoQueryCache;
+  }
+
+  /**
+   * Opt-in aggregation of the commands slower than {@code cmile.mongo.slow.queries.threshold}, read
+   * through the {@code mongoqueries} actuator endpoint.
+   */
+  @Bean
+  @ConditionalOnProperty(name = "cmile.mongo.slow.queries.enabled", havingValue = "true")
+  public SlowQueryAnalyzer slowQueryAnalyzer(
+      @Value("${cmile.mongo.slow.queries.threshold:100ms}") Duration threshold,
+      @Value("${cmile.mongo.slow.queries.max.shapes:1000}") long maxShapes) {
+    return new SlowQueryAnalyzer(threshold, maxShapes);
+  }
+
+  @Bean
+  @ConditionalOnProperty(name = "cmile.mongo.slow.queries.enabled", havingValue = "true")
+  public SlowQueryEndpoint slowQueryEndpoint(
+      SlowQueryAnalyzer slowQueryAnalyzer,
+      @Value("${cmile.mongo.slow.queries.top:20}") int defaultLimit) {
+    return new SlowQueryEndpoint(slowQueryAnalyzer, defaultLimit);
+  }
 }
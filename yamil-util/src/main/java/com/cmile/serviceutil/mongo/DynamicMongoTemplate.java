@@ -20,18 +20,20 @@ import com.cmile.serviceutil.auth.RequestContext;
 import com.cmile.serviceutil.gcp.ApplicationScopeEnum;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
 import com.cmile.serviceutil.secret.entity.MongoDatabaseEntity;
-import com.mongodb.ConnectionString;
-import com.mongodb.MongoClientSettings;
-import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.DefaultDbRefResolver;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
 import org.springframework.stereotype.Component;
 
+import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
 
 @Component
 public class DynamicMongoTemplate implements MongoTemplateProvider {
@@ -39,45 +41,70 @@ public class DynamicMongoTemplate implements MongoTemplateProvider {
   public static final String DEFAULT_SPACE_ID = "dummy";
   public static final String DEFAULT_MONGO_CON_STRING = "mongodb://dummy";
   private static final Logger logger = LoggerFactory.getLogger(DynamicMongoTemplate.class);
-  private final ConcurrentMap<String, MongoTemplate> mongoTemplates = new ConcurrentHashMap<>();
-
   private final MongoCacheManager mongoCacheManager;
   private final GCPServiceProject gcpServiceProject;
+  private final MongoClientRegistry mongoClientRegistry;
+  private final MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+  private final MongoMappingContext mappingContext = new MongoMappingContext();
+  private MongoQueryCache mongoQueryCache;
 
   public DynamicMongoTemplate(
-      MongoCacheManager mongoCacheManager, GCPServiceProject gcpServiceProject) {
+      MongoCacheManager mongoCacheManager,
+      GCPServiceProject gcpServiceProject,
+      MongoClientRegistry mongoClientRegistry) {
     this.mongoCacheManager = mongoCacheManager;
     this.gcpServiceProject = gcpServiceProject;
+    this.mongoClientRegistry = mongoClientRegistry;
+    // Shared by the templates of every tenant, so a tenant template does not map every entity again
+    mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+    mappingContext.afterPropertiesSet();
+  }
+
+  /**
+   * Puts the {@link MongoQueryCache} in front of the reads of every tenant template, see {@link
+   * CachingMongoTemplate}.
+   */
+  @Autowired(required = false)
+  public void setMongoQueryCache(MongoQueryCache mongoQueryCache) {
+    this.mongoQueryCache = mongoQueryCache;
   }
 
   @Override
   public MongoTemplate getMongoTemplate() {
-      String key = getMongoCacheKey();
-    if (key == null
-        || DEFAULT_SPACE_ID.equals(key)) {
-      logger.info("Getting MongoTemplate for SpaceId/Service: {}", key);
-      return buildMongoTemplate(DEFAULT_MONGO_CON_STRING, key);
+    String key = getMongoCacheKey();
+    if (key == null || DEFAULT_SPACE_ID.equals(key)) {
+      logger.debug("Getting the default MongoTemplate for SpaceId/Service: {}", key);
+      return mongoClientRegistry.getMongoTemplate(
+          DEFAULT_SPACE_ID,
+          () -> new MongoClientRegistry.Connection(DEFAULT_MONGO_CON_STRING, DEFAULT_SPACE_ID),
+          MongoTemplate::new);
     }
-    logger.info("Getting MongoTemplate for SpaceId/Service: {}", key);
-    return mongoTemplates.computeIfAbsent(
+    logger.debug("Getting MongoTemplate for SpaceId/Service: {}", key);
+    return mongoClientRegistry.getMongoTemplate(
         key,
-        id -> {
+        () -> {
           MongoDatabaseEntity databaseEntity = mongoCacheManager.getCache(key);
-          return buildMongoTemplate(databaseEntity.getConnectionString(), databaseEntity.getDatabase());
-        });
+          return new MongoClientRegistry.Connection(
+              databaseEntity.getConnectionString(), databaseEntity.getDatabase());
+        },
+        (mongoClient, databaseName) -> buildMongoTemplate(key, mongoClient, databaseName));
   }
 
-  private MongoTemplate buildMongoTemplate(String connectionString, String databaseName) {
-
-    MongoClientSettings mongoClientSettings =
-        MongoClientSettings.builder()
-            .applyConnectionString(new ConnectionString(connectionString))
-            .applyToConnectionPoolSettings(
-                builder ->
-                    builder.maxConnectionIdleTime(60L, TimeUnit.SECONDS).minSize(1).maxSize(15))
-            .build();
-    return new org.springframework.data.mongodb.core.MongoTemplate(
-        MongoClients.create(mongoClientSettings), databaseName);
+  /**
+   * A template of the tenant's database on a client that may be shared with other tenants, see {@link
+   * MongoClientRegistry}. Only the database factory and converter are the tenant's own.
+   */
+  private MongoTemplate buildMongoTemplate(String key, MongoClient mongoClient, String databaseName) {
+    SimpleMongoClientDatabaseFactory databaseFactory =
+        new SimpleMongoClientDatabaseFactory(mongoClient, databaseName);
+    MappingMongoConverter converter =
+        new MappingMongoConverter(new DefaultDbRefResolver(databaseFactory), mappingContext);
+    converter.setCustomConversions(conversions);
+    converter.setCodecRegistryProvider(databaseFactory);
+    converter.afterPropertiesSet();
+    return mongoQueryCache != null
+        ? new CachingMongoTemplate(databaseFactory, converter, key, mongoQueryCache)
+        : new MongoTemplate(databaseFactory, converter);
   }
 
   private String getMongoCacheKey() {
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import static com.cmile.serviceutil.mongo.DynamicMongoTemplate.DEFAULT_MONGO_CON_STRING;
+import static com.cmile.serviceutil.mongo.DynamicMongoTemplate.DEFAULT_SPACE_ID;
+
+import com.cmile.serviceutil.auth.ReactiveRequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.ApplicationScopeEnum;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.secret.entity.MongoDatabaseEntity;
+import com.mongodb.reactivestreams.client.MongoClient;
+import java.util.List;
+import java.util.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.context.ContextView;
+
+/**
+ * The reactive counterpart of {@link DynamicMongoTemplate}. The tenant comes from the Reactor Context
+ * rather than the {@link com.cmile.serviceutil.auth.RequestContext} ThreadLocal, and its client is
+ * held by the same {@link MongoClientRegistry}. Only the first lookup of a tenant, which may read its
+ * connection details from Secret Manager and open a client, runs on the bounded elastic scheduler;
+ * later ones complete on the subscribing thread.
+ */
+@Component
+public class DynamicReactiveMongoTemplate implements ReactiveMongoTemplateProvider {
+
+  private static final Logger logger = LoggerFactory.getLogger(DynamicReactiveMongoTemplate.class);
+  private final MongoCacheManager mongoCacheManager;
+  private final GCPServiceProject gcpServiceProject;
+  private final MongoClientRegistry mongoClientRegistry;
+  private final MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+  private final MongoMappingContext mappingContext = new MongoMappingContext();
+
+  public DynamicReactiveMongoTemplate(
+      MongoCacheManager mongoCacheManager,
+      GCPServiceProject gcpServiceProject,
+      MongoClientRegistry mongoClientRegistry) {
+    this.mongoCacheManager = mongoCacheManager;
+    this.gcpServiceProject = gcpServiceProject;
+    this.mongoClientRegistry = mongoClientRegistry;
+    mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+    mappingContext.afterPropertiesSet();
+  }
+
+  @Override
+  public Mono<ReactiveMongoTemplate> getReactiveMongoTemplate() {
+    return Mono.deferContextual(
+        context -> {
+          String key = getMongoCacheKey(context);
+          ReactiveMongoTemplate template = mongoClientRegistry.findReactiveMongoTemplate(key);
+          if (template != null) {
+            return Mono.just(template);
+          }
+          logger.debug("Opening a reactive MongoTemplate for SpaceId/Service: {}", key);
+          return Mono.fromCallable(() -> openReactiveMongoTemplate(key))
+              .subscribeOn(Schedulers.boundedElastic());
+        });
+  }
+
+  private ReactiveMongoTemplate openReactiveMongoTemplate(String key) {
+    if (DEFAULT_SPACE_ID.equals(key)) {
+      return mongoClientRegistry.getReactiveMongoTemplate(
+          DEFAULT_SPACE_ID,
+          () -> new MongoClientRegistry.Connection(DEFAULT_MONGO_CON_STRING, DEFAULT_SPACE_ID),
+          this::buildReactiveMongoTemplate);
+    }
+    return mongoClientRegistry.getReactiveMongoTemplate(
+        key,
+        () -> {
+          MongoDatabaseEntity databaseEntity = mongoCacheManager.getCache(key);
+          return new MongoClientRegistry.Connection(
+              databaseEntity.getConnectionString(), databaseEntity.getDatabase());
+        },
+        this::buildReactiveMongoTemplate);
+  }
+
+  private ReactiveMongoTemplate buildReactiveMongoTemplate(
+      MongoClient mongoClient, String databaseName) {
+    SimpleReactiveMongoDatabaseFactory databaseFactory =
+        new SimpleReactiveMongoDatabaseFactory(mongoClient, databaseName);
+    MappingMongoConverter converter =
+        new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+    converter.setCustomConversions(conversions);
+    converter.setCodecRegistryProvider(databaseFactory);
+    converter.afterPropertiesSet();
+    return new ReactiveMongoTemplate(databaseFactory, converter);
+  }
+
+  private String getMongoCacheKey(ContextView context) {
+    if (ApplicationScopeEnum.GLOBAL.name().equalsIgnoreCase(
+        gcpServiceProject.getAppDeploymentScope())) {
+      return gcpServiceProject.getApplicationName().split("-")[1];
+    }
+    return Optional.ofNullable(ReactiveRequestContext.getRequestContextDetails(context))
+        .map(ContextInfo::getSpaceId)
+        .orElse(DEFAULT_SPACE_ID);
+  }
+}
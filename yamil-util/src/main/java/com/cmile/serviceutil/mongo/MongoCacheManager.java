@@ -25,6 +25,10 @@ import com.cmile.serviceutil.secret.SecretTypeEnum;
 import com.cmile.serviceutil.secret.entity.MongoDatabaseEntity;
 import com.cmile.serviceutil.secret.entity.ServiceSecretEntity;
 import com.cmile.serviceutil.secret.entity.SpaceSecretEntity;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import org.springframework.stereotype.Component;
 
@@ -40,6 +44,33 @@ public class MongoCacheManager extends CacheManager<String, MongoDatabaseEntity>
     this.gcpServiceProject = gcpServiceProject;
     this.secretManagerService = secretManagerService;
     this.setLoader(this::loadDetails); // Set the loader after the object is initialized
+    this.setBulkLoader(this::loadAllDetails);
+    // Unknown spaces are remembered for a while, so a client sending them does not hammer Secret Manager
+    this.setNegativeCaching(DEFAULT_NEGATIVE_TTL, DEFAULT_NEGATIVE_MAX_SIZE);
+  }
+
+  @Override
+  protected RuntimeException missingFromBulkLoad(String id) {
+    return notFound(id);
+  }
+
+  // Ids without MongoDB connection params are left out and remembered as missingFromBulkLoad.
+  private Map<String, MongoDatabaseEntity> loadAllDetails(Set<String> ids) {
+    Map<String, MongoDatabaseEntity> details = new HashMap<>();
+    if (ApplicationScopeEnum.GLOBAL.name().equalsIgnoreCase(gcpServiceProject.getAppDeploymentScope())) {
+      Map<String, ServiceSecretEntity> secrets =
+          secretManagerService.getSecrets(SecretTypeEnum.SERVICE, ids);
+      secrets.forEach(
+          (id, secret) ->
+              Optional.ofNullable(secret.getMongo()).ifPresent(mongo -> details.put(id, mongo)));
+    } else {
+      Map<String, SpaceSecretEntity> secrets =
+          secretManagerService.getSecrets(SecretTypeEnum.SPACE, ids);
+      secrets.forEach(
+          (id, secret) ->
+              Optional.ofNullable(secret.getMongo()).ifPresent(mongo -> details.put(id, mongo)));
+    }
+    return details;
   }
 
   private MongoDatabaseEntity loadDetails(String id) {
@@ -47,19 +78,23 @@ public class MongoCacheManager extends CacheManager<String, MongoDatabaseEntity>
 
     if (ApplicationScopeEnum.GLOBAL.name().equalsIgnoreCase(gcpServiceProject.getAppDeploymentScope())) {
       ServiceSecretEntity mongoSecrets = this.secretManagerService.getSecret(SecretTypeEnum.SERVICE, id);
-      mongoDatabaseEntity = mongoSecrets.getMongo();
+      mongoDatabaseEntity = mongoSecrets == null ? null : mongoSecrets.getMongo();
     } else {
       SpaceSecretEntity mongoSecrets = this.secretManagerService.getSecret(SecretTypeEnum.SPACE, id);
-      mongoDatabaseEntity = mongoSecrets.getMongo();
+      mongoDatabaseEntity = mongoSecrets == null ? null : mongoSecrets.getMongo();
     }
 
     if (mongoDatabaseEntity == null) {
-      throw new ConnectionParamsNotFoundException(
-          String.format(
-              "For Service %s or space-id: %s, connection params for MongoDB not found",
-              gcpServiceProject.getAppDeploymentScope(), id));
+      throw notFound(id);
     }
 
     return mongoDatabaseEntity;
   }
+
+  private ConnectionParamsNotFoundException notFound(String id) {
+    return new ConnectionParamsNotFoundException(
+        String.format(
+            "For Service %s or space-id: %s, connection params for MongoDB not found",
+            gcpServiceProject.getAppDeploymentScope(), id));
+  }
 }
@@ -0,0 +1,573 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.mongo;
+
+import com.cmile.serviceutil.metric.TagValueLimiter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.Scheduler;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCredential;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.mongodb.DefaultMongoConnectionPoolTagsProvider;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsCommandListener;
+import io.micrometer.core.instrument.binder.mongodb.MongoMetricsConnectionPoolListener;
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * The {@link MongoClient} and {@link MongoTemplate} of each tenant, and its reactive client and
+ * {@link ReactiveMongoTemplate} when asked for one. With {@code shareClients}, tenants on the same
+ * cluster with the same credentials share one client and its connection pool, and each gets a
+ * template of its own database on it; tenants with credentials of their own still get a client of
+ * their own. Otherwise every tenant has its own client.
+ * <p>
+ * At most {@code maxClients} clients are open. The least recently used client goes when a new one
+ * would exceed that, and a client unused for {@code idleTimeout} goes on its own, taking the templates
+ * of its tenants along. A client counts as used whenever it runs a command, so a template kept by its
+ * caller keeps its client open while it is busy. A client that goes is closed once it has no command in flight and has been
+ * quiet for {@link #QUIET_PERIOD}, or after {@code drainTimeout} at the latest, so requests still
+ * holding one of its templates can finish.
+ */
+@Component
+public class MongoClientRegistry implements DisposableBean {
+
+  public static final String OPEN_CLIENTS_METER = "mongo.clients.open";
+  public static final String CONNECTIONS_METER = "mongo.client.connections";
+  public static final String EVICTIONS_METER = "mongo.client.evictions";
+  public static final String CHECKOUT_WAIT_METER = "mongo.client.pool.wait";
+  public static final String CHECKOUT_FAILURES_METER = "mongo.client.pool.checkout.failures";
+  public static final String CLIENT_TAG = "client";
+
+  static final String REACTIVE_PREFIX = "reactive:";
+  static final Duration QUIET_PERIOD = Duration.ofSeconds(1);
+  private static final long DRAIN_POLL_MS = 100;
+  private static final Logger logger = LoggerFactory.getLogger(MongoClientRegistry.class);
+
+  private final boolean shareClients;
+  private final Cache<ClientKey, PooledClient> clients;
+  private final long touchIntervalNanos;
+  private final Map<String, TenantTemplate<MongoTemplate>> templates = new ConcurrentHashMap<>();
+  private final Map<String, TenantTemplate<ReactiveMongoTemplate>> reactiveTemplates =
+      new ConcurrentHashMap<>();
+  private final Duration drainTimeout;
+  private final MeterRegistry meterRegistry;
+  private final TagValueLimiter collectionTags;
+  private final TagValueLimiter commandTags;
+  private SlowQueryAnalyzer slowQueryAnalyzer;
+  private final Set<PooledClient> retiring = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger openClients = new AtomicInteger();
+  private final ScheduledExecutorService retirementExecutor =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "mongo-client-retirement");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  public MongoClientRegistry(
+      @Value("${cmile.mongo.clients.max:100}") int maxClients,
+      @Value("${cmile.mongo.clients.idle.timeout:30m}") Duration idleTimeout,
+      @Value("${cmile.mongo.clients.drain.timeout:30s}") Duration drainTimeout,
+      @Value("${cmile.mongo.clients.shared:false}") boolean shareClients,
+      @Value("${cmile.mongo.metrics.max.collections:200}") int maxCollectionTags,
+      @Value("${cmile.mongo.metrics.max.commands:50}") int maxCommandTags,
+      ObjectProvider<MeterRegistry> meterRegistry) {
+    this.shareClients = shareClients;
+    this.drainTimeout = drainTimeout;
+    this.meterRegistry = meterRegistry.getIfAvailable();
+    this.collectionTags = new TagValueLimiter(maxCollectionTags);
+    this.commandTags = new TagValueLimiter(maxCommandTags);
+    // Commands mark their client as used at most this often, well within the idle timeout
+    this.touchIntervalNanos = Math.min(Duration.ofSeconds(1).toNanos(), idleTimeout.toNanos() / 10);
+    this.clients =
+        Caffeine.newBuilder()
+            .maximumSize(maxClients)
+            .expireAfterAccess(idleTimeout)
+            // Without a scheduler idle clients would only expire when another tenant is looked up
+            .scheduler(Scheduler.systemScheduler())
+            .removalListener(
+                (ClientKey key, PooledClient client, RemovalCause cause) -> {
+                  if (client != null && cause != RemovalCause.REPLACED) {
+                    retire(client, cause);
+                  }
+                })
+            .build();
+    if (this.meterRegistry != null) {
+      Gauge.builder(OPEN_CLIENTS_METER, openClients, AtomicInteger::get)
+          .description("Mongo clients open, including those draining before they close")
+          .register(this.meterRegistry);
+    }
+  }
+
+  /**
+   * Reports the slow commands of every client opened from now on.
+   */
+  @Autowired(required = false)
+  public void setSlowQueryAnalyzer(SlowQueryAnalyzer slowQueryAnalyzer) {
+    this.slowQueryAnalyzer = slowQueryAnalyzer;
+  }
+
+  /**
+   * The template of the tenant. The tenant's client is opened from {@code connection} unless it is
+   * already open or, with shared clients, another tenant opened one for the same cluster and
+   * credentials. {@code templateFactory} builds the template from the client and the tenant's database
+   * name.
+   */
+  public MongoTemplate getMongoTemplate(
+      String tenant,
+      Supplier<Connection> connection,
+      BiFunction<MongoClient, String, MongoTemplate> templateFactory) {
+    return getTemplate(templates, tenant, "", connection, MongoClients::create, templateFactory);
+  }
+
+  /**
+   * The reactive template of the tenant, like {@link #getMongoTemplate}. Reactive clients are
+   * counted against the same limits as blocking ones but are never shared with them. Opening a
+   * client blocks on {@code connection}, see {@link #findReactiveMongoTemplate} to avoid that on
+   * an event loop.
+   */
+  public ReactiveMongoTemplate getReactiveMongoTemplate(
+      String tenant,
+      Supplier<Connection> connection,
+      BiFunction<com.mongodb.reactivestreams.client.MongoClient, String, ReactiveMongoTemplate>
+          templateFactory) {
+    return getTemplate(
+        reactiveTemplates,
+        tenant,
+        REACTIVE_PREFIX,
+        connection,
+        com.mongodb.reactivestreams.client.MongoClients::create,
+        templateFactory);
+  }
+
+  /**
+   * The reactive template of the tenant if its client is open, without blocking.
+   */
+  public ReactiveMongoTemplate findReactiveMongoTemplate(String tenant) {
+    TenantTemplate<ReactiveMongoTemplate> current = reactiveTemplates.get(tenant);
+    return current != null && isOpen(current.client()) ? current.template() : null;
+  }
+
+  private <C extends Closeable, T> T getTemplate(
+      Map<String, TenantTemplate<T>> tenantTemplates,
+      String tenant,
+      String keyPrefix,
+      Supplier<Connection> connection,
+      Function<MongoClientSettings, C> clientFactory,
+      BiFunction<C, String, T> templateFactory) {
+    TenantTemplate<T> current = tenantTemplates.get(tenant);
+    if (current != null && isOpen(current.client())) {
+      return current.template();
+    }
+    // Looking the details up is a remote call, so it is made before locking the tenant's map bin,
+    // which the tenants hashed next to it share. Creating a client only starts its monitors, the
+    // driver connects in the background.
+    Connection details = connection.get();
+    ClientKey key = clientKey(keyPrefix, tenant, details);
+    PooledClient client =
+        clients.get(key, k -> open(k, keyPrefix, tenant, details, clientFactory));
+    return tenantTemplates
+        .compute(
+            tenant,
+            (t, existing) -> {
+              if (existing != null && isOpen(existing.client())) {
+                return existing;
+              }
+              client.spaces.put(details.databaseName(), t);
+              @SuppressWarnings("unchecked")
+              C mongoClient = (C) client.mongoClient;
+              return new TenantTemplate<>(
+                  client, templateFactory.apply(mongoClient, details.databaseName()));
+            })
+        .template();
+  }
+
+  /**
+   * Drops the template of the tenant, for when its connection details change. A client of its own is
+   * closed once it has drained; a shared client stays for the other tenants.
+   */
+  public void evict(String tenant) {
+    evict(templates.remove(tenant));
+    evict(reactiveTemplates.remove(tenant));
+  }
+
+  private void evict(TenantTemplate<?> removed) {
+    if (removed != null && !shareClients) {
+      clients.invalidate(removed.client().key);
+    }
+  }
+
+  public long getClientCount() {
+    return clients.estimatedSize();
+  }
+
+  /**
+   * Also marks the client as used, which keeps it from going idle while its tenants are active.
+   */
+  private boolean isOpen(PooledClient client) {
+    return clients.getIfPresent(client.key) == client;
+  }
+
+  private ClientKey clientKey(String prefix, String tenant, Connection connection) {
+    if (!shareClients) {
+      return ClientKey.of(prefix, tenant);
+    }
+    return ClientKey.of(prefix, new ConnectionString(connection.connectionString()));
+  }
+
+  private static String clientLabel(ConnectionString connectionString) {
+    MongoCredential credential = connectionString.getCredential();
+    return (connectionString.isSrvProtocol() ? "mongodb+srv://" : "mongodb://")
+        + (credential == null ? "" : credential.getUserName() + "@")
+        + String.join(",", connectionString.getHosts());
+  }
+
+  private PooledClient open(
+      ClientKey key,
+      String labelPrefix,
+      String tenant,
+      Connection connection,
+      Function<MongoClientSettings, ? extends Closeable> clientFactory) {
+    ConnectionString connectionString = new ConnectionString(connection.connectionString());
+    PooledClient client =
+        new PooledClient(
+            key,
+            labelPrefix + (shareClients ? clientLabel(connectionString) : tenant),
+            touchIntervalNanos,
+            () -> clients.getIfPresent(key));
+    MongoClientSettings.Builder settings =
+        MongoClientSettings.builder()
+            .applyConnectionString(connectionString)
+            .applyToConnectionPoolSettings(
+                builder ->
+                    builder
+                        .maxConnectionIdleTime(60L, TimeUnit.SECONDS)
+                        .minSize(1)
+                        .maxSize(15)
+                        .addConnectionPoolListener(client))
+            .addCommandListener(client);
+    if (slowQueryAnalyzer != null) {
+      settings.addCommandListener(slowQueryAnalyzer.listener(client::spaceOf));
+    }
+    if (meterRegistry != null) {
+      instrument(client, settings);
+    }
+    client.mongoClient = clientFactory.apply(settings.build());
+    openClients.incrementAndGet();
+    logger.debug("Opened the Mongo client {}, {} clients open", client.label, openClients.get());
+    return client;
+  }
+
+  /**
+   * Adds Micrometer's {@code mongodb.driver.commands} timers, tagged by space, collection and command,
+   * and its {@code mongodb.driver.pool.size}, {@code .checkedout} and {@code .waitqueuesize} gauges,
+   * tagged by client, along with the client's own connection, checkout wait and checkout failure
+   * meters.
+   */
+  private void instrument(PooledClient client, MongoClientSettings.Builder settings) {
+    DefaultMongoConnectionPoolTagsProvider poolTags = new DefaultMongoConnectionPoolTagsProvider();
+    settings
+        .addCommandListener(
+            new MongoMetricsCommandListener(
+                meterRegistry,
+                new TenantCommandTagsProvider(
+                    client::spaceOf,
+                    collectionTags,
+                    commandTags)))
+        .applyToConnectionPoolSettings(
+            builder ->
+                builder.addConnectionPoolListener(
+                    new MongoMetricsConnectionPoolListener(
+                        meterRegistry,
+                        event ->
+                            Tags.of(poolTags.connectionPoolTags(event))
+                                .and(CLIENT_TAG, client.label))));
+    client.meters.add(
+        Gauge.builder(CONNECTIONS_METER, client.connections, AtomicInteger::get)
+            .tag(CLIENT_TAG, client.label)
+            .register(meterRegistry));
+    client.checkoutWait =
+        Timer.builder(CHECKOUT_WAIT_METER)
+            .description("Time taken to check a connection out of the pool")
+            .tag(CLIENT_TAG, client.label)
+            .register(meterRegistry);
+    client.meters.add(client.checkoutWait);
+    for (ConnectionCheckOutFailedEvent.Reason reason : ConnectionCheckOutFailedEvent.Reason.values()) {
+      Counter counter =
+          Counter.builder(CHECKOUT_FAILURES_METER)
+              .tag(CLIENT_TAG, client.label)
+              .tag("reason", reason.name().toLowerCase(Locale.ROOT))
+              .register(meterRegistry);
+      client.checkoutFailures.put(reason, counter);
+      client.meters.add(counter);
+    }
+  }
+
+  private void retire(PooledClient client, RemovalCause cause) {
+    logger.info("Retiring the Mongo client {} ({})", client.label, cause);
+    templates.values().removeIf(template -> template.client() == client);
+    reactiveTemplates.values().removeIf(template -> template.client() == client);
+    if (meterRegistry != null) {
+      Counter.builder(EVICTIONS_METER)
+          .tag("cause", cause.name().toLowerCase(Locale.ROOT))
+          .register(meterRegistry)
+          .increment();
+    }
+    retiring.add(client);
+    long deadline = System.nanoTime() + drainTimeout.toNanos();
+    try {
+      retirementExecutor.execute(() -> closeWhenDrained(client, deadline));
+    } catch (RejectedExecutionException e) {
+      // Shutting down
+      close(client);
+    }
+  }
+
+  private void closeWhenDrained(PooledClient client, long deadline) {
+    long now = System.nanoTime();
+    boolean drained =
+        client.inFlight.get() == 0 && now - client.lastActivity >= QUIET_PERIOD.toNanos();
+    if (!drained && now - deadline < 0) {
+      retirementExecutor.schedule(
+          () -> closeWhenDrained(client, deadline), DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+      return;
+    }
+    if (!drained) {
+      logger.warn(
+          "Closing the Mongo client {} with {} commands still in flight",
+          client.label,
+          client.inFlight.get());
+    }
+    close(client);
+  }
+
+  private void close(PooledClient client) {
+    if (!client.closed.compareAndSet(false, true)) {
+      return;
+    }
+    retiring.remove(client);
+    try {
+      client.mongoClient.close();
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Failed to close the Mongo client {}", client.label, e);
+    }
+    openClients.decrementAndGet();
+    if (meterRegistry != null) {
+      client.meters.forEach(meterRegistry::remove);
+    }
+    logger.debug("Closed the Mongo client {}", client.label);
+  }
+
+  /**
+   * Closes every client without waiting for them to drain.
+   */
+  @Override
+  public void destroy() {
+    retirementExecutor.shutdownNow();
+    clients.asMap().values().forEach(this::close);
+    clients.invalidateAll();
+    templates.clear();
+    reactiveTemplates.clear();
+    Set.copyOf(retiring).forEach(this::close);
+  }
+
+  /**
+   * Where a tenant's client connects to, and the database its template uses.
+   */
+  public record Connection(String connectionString, String databaseName) {}
+
+  private record TenantTemplate<T>(PooledClient client, T template) {}
+
+  /**
+   * What makes two tenants' clients interchangeable. Without shared clients that is the tenant alone.
+   * Shared clients are keyed by the hosts, the credential (user, source, mechanism, its properties
+   * and password, so a rotated password gets a client of its own) and the options that change how
+   * the client connects or what it reads and writes.
+   */
+  record ClientKey(
+      String prefix,
+      String tenant,
+      boolean srv,
+      List<String> hosts,
+      MongoCredential credential,
+      String replicaSet,
+      Boolean tls,
+      Boolean tlsInvalidHostNameAllowed,
+      Boolean directConnection,
+      Boolean loadBalanced,
+      ReadPreference readPreference,
+      ReadConcern readConcern,
+      WriteConcern writeConcern,
+      String applicationName) {
+
+    static ClientKey of(String prefix, String tenant) {
+      return new ClientKey(
+          prefix, tenant, false, List.of(), null, null, null, null, null, null, null, null, null,
+          null);
+    }
+
+    static ClientKey of(String prefix, ConnectionString connectionString) {
+      return new ClientKey(
+          prefix,
+          null,
+          connectionString.isSrvProtocol(),
+          connectionString.getHosts().stream().sorted().toList(),
+          connectionString.getCredential(),
+          connectionString.getRequiredReplicaSetName(),
+          connectionString.getSslEnabled(),
+          connectionString.getSslInvalidHostnameAllowed(),
+          connectionString.isDirectConnection(),
+          connectionString.isLoadBalanced(),
+          connectionString.getReadPreference(),
+          connectionString.getReadConcern(),
+          connectionString.getWriteConcern(),
+          connectionString.getApplicationName());
+    }
+  }
+
+  /**
+   * A client with the commands it has in flight and the connections of its pool. {@code label} names
+   * it in logs and metrics: the tenant, or the user and hosts of a shared client. {@code spaces} maps
+   * the databases of its templates to their tenants.
+   */
+  private static final class PooledClient implements CommandListener, ConnectionPoolListener {
+    private final ClientKey key;
+    private final String label;
+    private final long touchIntervalNanos;
+    private final Runnable touch;
+    private volatile long lastTouched = System.nanoTime();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long lastActivity = System.nanoTime();
+    private final Map<String, String> spaces = new ConcurrentHashMap<>();
+    private final List<Meter> meters = new ArrayList<>();
+    private final Map<ConnectionCheckOutFailedEvent.Reason, Counter> checkoutFailures =
+        new EnumMap<>(ConnectionCheckOutFailedEvent.Reason.class);
+    private Closeable mongoClient;
+    private Timer checkoutWait;
+
+    private PooledClient(ClientKey key, String label, long touchIntervalNanos, Runnable touch) {
+      this.key = key;
+      this.label = label;
+      this.touchIntervalNanos = touchIntervalNanos;
+      this.touch = touch;
+    }
+
+    private String spaceOf(String database) {
+      return spaces.getOrDefault(database, TagValueLimiter.UNKNOWN);
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+      inFlight.incrementAndGet();
+      long now = System.nanoTime();
+      lastActivity = now;
+      if (now - lastTouched >= touchIntervalNanos) {
+        lastTouched = now;
+        // A registry lookup, which keeps the client from expiring while templates held elsewhere use it
+        touch.run();
+      }
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+      inFlight.decrementAndGet();
+      lastActivity = System.nanoTime();
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+      inFlight.decrementAndGet();
+      lastActivity = System.nanoTime();
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+      connections.incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+      connections.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+      if (checkoutWait != null) {
+        checkoutWait.record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+      }
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+      Counter counter = checkoutFailures.get(event.getReason());
+      if (counter != null) {
+        counter.increment();
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.mongo;
+
+import com.cmile.serviceutil.cache.ObjectSizeEstimator;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Results of the reads made through {@link CachingMongoTemplate}, shared by every tenant and bounded
+ * by the estimated bytes they retain. An entry is keyed by tenant, collection, operation, result type
+ * and the filter, projection, sort, skip, limit, hint and collation of the query, and lives for the
+ * TTL of its collection. A write to a collection moves that collection of the tenant to a new
+ * generation, which makes every entry read before it unreachable at once; they age out on their own.
+ */
+public class MongoQueryCache {
+
+  static final String CACHE_NAME = "mongo.query";
+  private static final Object NULL_RESULT = new Object();
+
+  private final Cache<QueryKey, Object> cache;
+  private final Duration defaultTtl;
+  private final Map<String, Duration> ttls;
+  private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+  public MongoQueryCache(long maxBytes, Duration defaultTtl, Map<String, Duration> ttls) {
+    this.defaultTtl = defaultTtl;
+    this.ttls = Map.copyOf(ttls);
+    this.cache =
+        Caffeine.newBuilder()
+            .maximumWeight(maxBytes)
+            .weigher(ObjectSizeEstimator::weigh)
+            .expireAfter(
+                new Expiry<QueryKey, Object>() {
+                  @Override
+                  public long expireAfterCreate(QueryKey key, Object value, long currentTime) {
+                    return getTtl(key.collection()).toNanos();
+                  }
+
+                  @Override
+                  public long expireAfterUpdate(
+                      QueryKey key, Object value, long currentTime, long currentDuration) {
+                    return getTtl(key.collection()).toNanos();
+                  }
+
+                  @Override
+                  public long expireAfterRead(
+                      QueryKey key, Object value, long currentTime, long currentDuration) {
+                    return currentDuration;
+                  }
+                })
+            .recordStats()
+            .build();
+  }
+
+  public Duration getTtl(String collectionName) {
+    return ttls.getOrDefault(collectionName, defaultTtl);
+  }
+
+  /**
+   * Returns the cached result of the read, or runs it and caches what it returns. A {@code null}
+   * result is cached too. List results are copied on the way out, so callers may modify the list
+   * they get but not the documents in it.
+   */
+  @SuppressWarnings("unchecked")
+  <T> T get(
+      String tenant,
+      String collectionName,
+      String operation,
+      Class<?> resultType,
+      Query query,
+      Object argument,
+      Supplier<T> read) {
+    QueryKey key =
+        QueryKey.of(
+            tenant, collectionName, generation(tenant, collectionName), operation, resultType, query,
+            argument);
+    Object result = cache.getIfPresent(key);
+    if (result == null) {
+      T value = read.get();
+      result = value == null ? NULL_RESULT : value instanceof List<?> list ? List.copyOf(list) : value;
+      cache.put(key, result);
+    }
+    if (result == NULL_RESULT) {
+      return null;
+    }
+    return result instanceof List<?> list ? (T) new ArrayList<>(list) : (T) result;
+  }
+
+  /**
+   * Makes every cached read of the collection of the tenant stale.
+   */
+  public void invalidate(String tenant, String collectionName) {
+    generations
+        .computeIfAbsent(generationKey(tenant, collectionName), k -> new AtomicLong())
+        .incrementAndGet();
+  }
+
+  public Cache<?, ?> getNativeCache() {
+    return cache;
+  }
+
+  private long generation(String tenant, String collectionName) {
+    AtomicLong generation = generations.get(generationKey(tenant, collectionName));
+    return generation == null ? 0 : generation.get();
+  }
+
+  private static String generationKey(String tenant, String collectionName) {
+    return tenant + "|" + collectionName;
+  }
+
+  /**
+   * The sort is kept as a list because the order of its keys matters, unlike in the filter.
+   */
+  private record QueryKey(
+      String tenant,
+      String collection,
+      long generation,
+      String operation,
+      Class<?> resultType,
+      Document filter,
+      Document fields,
+      List<Map.Entry<String, Object>> sort,
+      long skip,
+      int limit,
+      String hint,
+      Object collation,
+      Object argument) {
+
+    private static QueryKey of(
+        String tenant,
+        String collection,
+        long generation,
+        String operation,
+        Class<?> resultType,
+        Query query,
+        Object argument) {
+      if (query == null) {
+        return new QueryKey(
+            tenant, collection, generation, operation, resultType, null, null, List.of(), 0, 0, null,
+            null, argument);
+      }
+      return new QueryKey(
+          tenant,
+          collection,
+          generation,
+          operation,
+          resultType,
+          query.getQueryObject(),
+          query.getFieldsObject(),
+          List.copyOf(query.getSortObject().entrySet()),
+          query.getSkip(),
+          query.getLimit(),
+          query.getHint(),
+          query.getCollation().map(Objects::toString).orElse(null),
+          argument);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+/**
+ * A Mongo command with the values of its filter replaced by {@code "?"}, so commands that only differ
+ * in their values share a shape, along with the index the ESR rule suggests for it: equality fields
+ * first, then the sort, then range fields.
+ */
+public record QueryShape(
+    String space, String collection, String command, String filter, String sort, String index) {
+
+  private static final BsonString PLACEHOLDER = new BsonString("?");
+  private static final Set<String> LOGICAL_OPERATORS = Set.of("$and", "$or", "$nor");
+  private static final Set<String> EQUALITY_OPERATORS = Set.of("$eq", "$in");
+  private static final String ID_FIELD = "_id";
+  private static final Set<String> SHAPED_COMMANDS =
+      Set.of("find", "aggregate", "count", "distinct", "update", "delete", "findAndModify");
+
+  /**
+   * Whether {@link #of} gives commands of that name a shape.
+   */
+  public static boolean isShaped(String commandName) {
+    return SHAPED_COMMANDS.contains(commandName);
+  }
+
+  /**
+   * The shape of a {@code find}, {@code aggregate}, {@code count}, {@code distinct}, {@code update},
+   * {@code delete} or {@code findAndModify} command, {@code null} for any other command.
+   */
+  public static QueryShape of(String space, String commandName, BsonDocument command) {
+    BsonValue collection = command.get(commandName);
+    if (collection == null || !collection.isString()) {
+      return null;
+    }
+    BsonDocument filter;
+    BsonDocument sort = null;
+    switch (commandName) {
+      case "find" -> {
+        filter = document(command, "filter");
+        sort = document(command, "sort");
+      }
+      case "count", "distinct" -> filter = document(command, "query");
+      case "findAndModify" -> {
+        filter = document(command, "query");
+        sort = document(command, "sort");
+      }
+      case "update" -> filter = firstStatement(command, "updates", "q");
+      case "delete" -> filter = firstStatement(command, "deletes", "q");
+      case "aggregate" -> {
+        filter = firstStage(command, "$match");
+        sort = firstStage(command, "$sort");
+      }
+      default -> {
+        return null;
+      }
+    }
+    filter = filter == null ? new BsonDocument() : filter;
+    return new QueryShape(
+        space,
+        collection.asString().getValue(),
+        commandName,
+        normalize(filter).toJson(),
+        sort == null || sort.isEmpty() ? null : sort.toJson(),
+        suggestIndex(filter, sort));
+  }
+
+  /**
+   * A copy of the part of a command {@link #of} reads, its collection with the first filter and sort
+   * it finds, {@code null} for commands without a shape. Update documents, projections, later
+   * pipeline stages and further statements are left out, so the copy is about the size of the filter
+   * however large the command is.
+   */
+  static BsonDocument queryOf(String commandName, BsonDocument command) {
+    BsonValue collection = command.get(commandName);
+    if (!isShaped(commandName) || collection == null || !collection.isString()) {
+      return null;
+    }
+    BsonDocument query = new BsonDocument(commandName, collection);
+    switch (commandName) {
+      case "find" -> {
+        copy(document(command, "filter"), "filter", query);
+        copy(document(command, "sort"), "sort", query);
+      }
+      case "findAndModify" -> {
+        copy(document(command, "query"), "query", query);
+        copy(document(command, "sort"), "sort", query);
+      }
+      case "count", "distinct" -> copy(document(command, "query"), "query", query);
+      case "update", "delete" -> {
+        String statements = "update".equals(commandName) ? "updates" : "deletes";
+        BsonDocument statement = new BsonDocument();
+        copy(firstStatement(command, statements, "q"), "q", statement);
+        query.put(statements, new BsonArray(List.of(statement)));
+      }
+      case "aggregate" -> {
+        BsonArray pipeline = new BsonArray();
+        for (String stage : List.of("$match", "$sort")) {
+          BsonDocument first = new BsonDocument();
+          copy(firstStage(command, stage), stage, first);
+          if (!first.isEmpty()) {
+            pipeline.add(first);
+          }
+        }
+        query.put("pipeline", pipeline);
+      }
+    }
+    return query;
+  }
+
+  private static void copy(BsonDocument value, String field, BsonDocument target) {
+    if (value != null) {
+      target.put(field, value.clone());
+    }
+  }
+
+  private static BsonDocument normalize(BsonDocument filter) {
+    BsonDocument normalized = new BsonDocument();
+    filter.forEach(
+        (key, value) -> {
+          if (LOGICAL_OPERATORS.contains(key) && value.isArray()) {
+            BsonArray clauses = new BsonArray();
+            value.asArray().stream()
+                .filter(BsonValue::isDocument)
+                .forEach(clause -> clauses.add(normalize(clause.asDocument())));
+            normalized.put(key, clauses);
+          } else if (isOperatorDocument(value)) {
+            normalized.put(key, normalizeOperators(value.asDocument()));
+          } else {
+            normalized.put(key, PLACEHOLDER);
+          }
+        });
+    return normalized;
+  }
+
+  private static BsonDocument normalizeOperators(BsonDocument operators) {
+    BsonDocument normalized = new BsonDocument();
+    operators.forEach(
+        (operator, value) ->
+            normalized.put(
+                operator,
+                value.isDocument() && ("$elemMatch".equals(operator) || "$not".equals(operator))
+                    ? normalize(value.asDocument())
+                    : PLACEHOLDER));
+    return normalized;
+  }
+
+  private static String suggestIndex(BsonDocument filter, BsonDocument sort) {
+    Map<String, Boolean> fields = new LinkedHashMap<>();
+    collectFields(filter, fields);
+    BsonDocument index = new BsonDocument();
+    fields.forEach(
+        (field, equality) -> {
+          if (equality) {
+            index.put(field, new BsonInt32(1));
+          }
+        });
+    if (sort != null) {
+      sort.forEach(
+          (field, direction) -> {
+            if (!index.containsKey(field)) {
+              index.put(field, direction.isNumber() ? direction : new BsonInt32(1));
+            }
+          });
+    }
+    fields.forEach(
+        (field, equality) -> {
+          if (!index.containsKey(field)) {
+            index.put(field, new BsonInt32(1));
+          }
+        });
+    // Nothing to suggest, or the query is already served by the _id index
+    if (index.isEmpty() || ID_FIELD.equals(index.getFirstKey())) {
+      return null;
+    }
+    return index.toJson();
+  }
+
+  /**
+   * Top level fields of the filter, and of its {@code $and} clauses, mapped to whether they are
+   * matched on equality. Fields inside {@code $or} and {@code $nor} need an index of their own per
+   * clause and are left out.
+   */
+  private static void collectFields(BsonDocument filter, Map<String, Boolean> fields) {
+    filter.forEach(
+        (key, value) -> {
+          if ("$and".equals(key) && value.isArray()) {
+            value.asArray().stream()
+                .filter(BsonValue::isDocument)
+                .forEach(clause -> collectFields(clause.asDocument(), fields));
+          } else if (!key.startsWith("$")) {
+            boolean equality =
+                !isOperatorDocument(value)
+                    || value.asDocument().keySet().stream().allMatch(EQUALITY_OPERATORS::contains);
+            fields.merge(key, equality, Boolean::logicalOr);
+          }
+        });
+  }
+
+  private static boolean isOperatorDocument(BsonValue value) {
+    return value.isDocument()
+        && !value.asDocument().isEmpty()
+        && value.asDocument().getFirstKey().startsWith("$");
+  }
+
+  private static BsonDocument document(BsonDocument command, String field) {
+    BsonValue value = command.get(field);
+    return value != null && value.isDocument() ? value.asDocument() : null;
+  }
+
+  private static BsonDocument firstStatement(BsonDocument command, String field, String filter) {
+    BsonValue statements = command.get(field);
+    if (statements == null || !statements.isArray() || statements.asArray().isEmpty()) {
+      return null;
+    }
+    BsonValue statement = statements.asArray().get(0);
+    return statement.isDocument() ? document(statement.asDocument(), filter) : null;
+  }
+
+  private static BsonDocument firstStage(BsonDocument command, String stage) {
+    BsonValue pipeline = command.get("pipeline");
+    if (pipeline == null || !pipeline.isArray()) {
+      return null;
+    }
+    return pipeline.asArray().stream()
+        .filter(BsonValue::isDocument)
+        .map(BsonValue::asDocument)
+        .filter(document -> document.containsKey(stage))
+        .findFirst()
+        .map(document -> document(document, stage))
+        .orElse(null);
+  }
+}
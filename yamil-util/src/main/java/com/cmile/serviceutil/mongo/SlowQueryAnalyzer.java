@@ -0,0 +1,217 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.event.CommandEvent;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+/**
+ * Aggregates the Mongo commands slower than {@code threshold} by {@link QueryShape}, per space and
+ * collection, so the queries missing an index can be found without turning on the database profiler.
+ * At most {@code maxShapes} shapes are kept, those seen least often go first. Commands that failed
+ * after the threshold, such as those that timed out, are counted as failures of their shape.
+ * <p>
+ * The driver only reports what a command returned, so {@code documents} counts the documents
+ * returned, updated or deleted rather than those examined. A shape with a high time per document is
+ * the one to look at.
+ */
+public class SlowQueryAnalyzer {
+
+  private static final int MAX_PENDING_COMMANDS = 10_000;
+  private static final double NANOS_PER_MILLI = 1_000_000d;
+
+  private final long thresholdNanos;
+  private final Cache<QueryShape, ShapeStats> shapes;
+  /**
+   * The commands in flight that have a shape. The command document is only valid while its started
+   * event is handled, so the part of it a shape is made of is copied then; it is only shaped once it
+   * turns out slow.
+   */
+  private final Map<Integer, PendingCommand> pending = new ConcurrentHashMap<>();
+
+  public SlowQueryAnalyzer(Duration threshold, long maxShapes) {
+    this.thresholdNanos = threshold.toNanos();
+    this.shapes = Caffeine.newBuilder().maximumSize(maxShapes).build();
+  }
+
+  /**
+   * A listener for the commands of one client, {@code spaceOfDatabase} tells the space of a command
+   * from its database.
+   */
+  public CommandListener listener(Function<String, String> spaceOfDatabase) {
+    return new CommandListener() {
+      @Override
+      public void commandStarted(CommandStartedEvent event) {
+        if (!QueryShape.isShaped(event.getCommandName())) {
+          return;
+        }
+        BsonDocument query = QueryShape.queryOf(event.getCommandName(), event.getCommand());
+        if (query == null) {
+          return;
+        }
+        if (pending.size() >= MAX_PENDING_COMMANDS) {
+          // Only reached if completions went missing, start over rather than stop analyzing
+          pending.clear();
+        }
+        pending.put(event.getRequestId(), new PendingCommand(event.getDatabaseName(), query));
+      }
+
+      @Override
+      public void commandSucceeded(CommandSucceededEvent event) {
+        QueryShape shape = slowShape(event);
+        if (shape != null) {
+          record(
+              shape,
+              event.getElapsedTime(TimeUnit.NANOSECONDS),
+              documents(event.getResponse()),
+              false);
+        }
+      }
+
+      @Override
+      public void commandFailed(CommandFailedEvent event) {
+        QueryShape shape = slowShape(event);
+        if (shape != null) {
+          record(shape, event.getElapsedTime(TimeUnit.NANOSECONDS), 0, true);
+        }
+      }
+
+      private QueryShape slowShape(CommandEvent event) {
+        PendingCommand command = pending.remove(event.getRequestId());
+        if (command == null || elapsedNanos(event) < thresholdNanos) {
+          return null;
+        }
+        return QueryShape.of(
+            spaceOfDatabase.apply(command.database()), event.getCommandName(), command.command());
+      }
+    };
+  }
+
+  private static long elapsedNanos(CommandEvent event) {
+    if (event instanceof CommandSucceededEvent succeeded) {
+      return succeeded.getElapsedTime(TimeUnit.NANOSECONDS);
+    }
+    return event instanceof CommandFailedEvent failed ? failed.getElapsedTime(TimeUnit.NANOSECONDS) : 0;
+  }
+
+  void record(QueryShape shape, long elapsedNanos, long documents, boolean failed) {
+    shapes.get(shape, s -> new ShapeStats()).record(elapsedNanos, documents, failed);
+  }
+
+  /**
+   * The {@code limit} shapes that took the most time overall.
+   */
+  public List<SlowQueryReport> getTopShapes(int limit) {
+    return shapes.asMap().entrySet().stream()
+        .map(entry -> entry.getValue().report(entry.getKey()))
+        .sorted(Comparator.comparingDouble(SlowQueryReport::totalMillis).reversed())
+        .limit(limit)
+        .toList();
+  }
+
+  public void reset() {
+    shapes.invalidateAll();
+  }
+
+  private static long documents(BsonDocument response) {
+    if (response == null) {
+      return 0;
+    }
+    BsonValue cursor = response.get("cursor");
+    if (cursor != null && cursor.isDocument()) {
+      BsonValue batch = cursor.asDocument().get("firstBatch");
+      return batch != null && batch.isArray() ? batch.asArray().size() : 0;
+    }
+    BsonValue n = response.get("n");
+    if (n != null && n.isNumber()) {
+      return n.asNumber().longValue();
+    }
+    BsonValue values = response.get("values");
+    return values != null && values.isArray() ? values.asArray().size() : 0;
+  }
+
+  /**
+   * The statistics of one shape, read by the actuator endpoint.
+   */
+  public record SlowQueryReport(
+      String space,
+      String collection,
+      String command,
+      String filter,
+      String sort,
+      String suggestedIndex,
+      long count,
+      double totalMillis,
+      double meanMillis,
+      double maxMillis,
+      long documents,
+      long failures) {}
+
+  private record PendingCommand(String database, BsonDocument command) {}
+
+  private static final class ShapeStats {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final LongAdder documents = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    private void record(long elapsedNanos, long documentCount, boolean failed) {
+      count.increment();
+      totalNanos.add(elapsedNanos);
+      maxNanos.accumulateAndGet(elapsedNanos, Math::max);
+      documents.add(documentCount);
+      if (failed) {
+        failures.increment();
+      }
+    }
+
+    private SlowQueryReport report(QueryShape shape) {
+      long commands = count.sum();
+      double total = totalNanos.sum() / NANOS_PER_MILLI;
+      return new SlowQueryReport(
+          shape.space(),
+          shape.collection(),
+          shape.command(),
+          shape.filter(),
+          shape.sort(),
+          shape.index(),
+          commands,
+          total,
+          commands == 0 ? 0 : total / commands,
+          maxNanos.get() / NANOS_PER_MILLI,
+          documents.sum(),
+          failures.sum());
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import com.cmile.serviceutil.mongo.SlowQueryAnalyzer.SlowQueryReport;
+import java.util.List;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.lang.Nullable;
+
+/**
+ * {@code /actuator/mongoqueries}: the slowest query shapes of the tenant databases with the index
+ * suggested for each, see {@link SlowQueryAnalyzer}. A DELETE clears them.
+ */
+@Endpoint(id = "mongoqueries")
+public class SlowQueryEndpoint {
+
+  private final SlowQueryAnalyzer slowQueryAnalyzer;
+  private final int defaultLimit;
+
+  public SlowQueryEndpoint(SlowQueryAnalyzer slowQueryAnalyzer, int defaultLimit) {
+    this.slowQueryAnalyzer = slowQueryAnalyzer;
+    this.defaultLimit = defaultLimit;
+  }
+
+  @ReadOperation
+  public List<SlowQueryReport> slowQueries(@Nullable Integer limit) {
+    return slowQueryAnalyzer.getTopShapes(limit == null ? defaultLimit : limit);
+  }
+
+  @DeleteOperation
+  public void reset() {
+    slowQueryAnalyzer.reset();
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import com.cmile.serviceutil.metric.TagValueLimiter;
+import com.mongodb.event.CommandEvent;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.mongodb.DefaultMongoCommandTagsProvider;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Adds the space of the command's database to Micrometer's Mongo command tags, and caps the number of
+ * collection and command names they report. The {@code cluster.id} tag is dropped, as it is new for
+ * every client the registry reopens, and so is {@code database}, which the space replaces; the
+ * timers of a tenant then stay the same series across reopens of its client.
+ */
+class TenantCommandTagsProvider extends DefaultMongoCommandTagsProvider {
+
+  static final String SPACE_TAG = "space";
+  static final String COLLECTION_TAG = "collection";
+  static final String COMMAND_TAG = "command";
+  private static final Set<String> DROPPED_TAGS = Set.of("cluster.id", "database");
+
+  private final Function<String, String> spaceOfDatabase;
+  private final TagValueLimiter collections;
+  private final TagValueLimiter commands;
+
+  TenantCommandTagsProvider(
+      Function<String, String> spaceOfDatabase,
+      TagValueLimiter collections,
+      TagValueLimiter commands) {
+    this.spaceOfDatabase = spaceOfDatabase;
+    this.collections = collections;
+    this.commands = commands;
+  }
+
+  @Override
+  public Iterable<Tag> commandTags(CommandEvent event) {
+    Tags tags = Tags.of(super.commandTags(event));
+    String collection =
+        tags.stream()
+            .filter(tag -> COLLECTION_TAG.equals(tag.getKey()))
+            .map(Tag::getValue)
+            .findFirst()
+            .orElse(null);
+    return Tags.of(tags.stream().filter(tag -> !DROPPED_TAGS.contains(tag.getKey())).toList())
+        .and(
+        Tag.of(SPACE_TAG, spaceOfDatabase.apply(event.getDatabaseName())),
+        Tag.of(COLLECTION_TAG, collections.limit(collection)),
+        Tag.of(COMMAND_TAG, commands.limit(event.getCommandName())));
+  }
+}
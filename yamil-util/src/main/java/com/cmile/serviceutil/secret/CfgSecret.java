@@ -16,6 +16,8 @@
 
 package com.cmile.serviceutil.secret;
 
+import com.cmile.serviceutil.cache.CfgTenantCache;
+import com.cmile.serviceutil.cache.TenantCacheManager;
 import com.cmile.serviceutil.common.CfgCommon;
 import com.cmile.serviceutil.gcp.CfgGCPProject;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
@@ -23,6 +25,10 @@ import com.google.api.gax.core.FixedCredentialsProvider;
 import com.google.cloud.secretmanager.v1.SecretManagerServiceClient;
 import com.google.cloud.secretmanager.v1.SecretManagerServiceSettings;
 import java.io.IOException;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cache.Cache;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -32,7 +38,7 @@ import org.springframework.context.annotation.Import;
  * @author nishant-pentapalli
  */
 @Configuration
-@Import({CfgCommon.class, CfgGCPProject.class})
+@Import({CfgCommon.class, CfgGCPProject.class, CfgTenantCache.class})
 @ComponentScan(basePackages = "com.cmile.serviceutil.secret")
 public class CfgSecret {
 
@@ -50,4 +56,20 @@ public class CfgSecret {
     // Instantiate the SecretManagerServiceClient
     return SecretManagerServiceClient.create(settings);
   }
+
+  /**
+   * The cache of {@link SecretManagerService}, shared by all spaces, declared only with {@code
+   * cmile.secret.cache.enabled=true}. Its entries live as long as {@code
+   * cmile.cache.spring.specs.secrets} says, one minute by default.
+   * Saving or deleting a secret only evicts it on this replica, so a secret rotated elsewhere is
+   * served stale here until its entry expires. Declare a {@link Cache} bean named {@value
+   * SecretManagerService#SECRETS_CACHE_BEAN} to replace it.
+   */
+  @Bean(SecretManagerService.SECRETS_CACHE_BEAN)
+  @ConditionalOnProperty(name = "cmile.secret.cache.enabled", havingValue = "true")
+  @ConditionalOnMissingBean(name = SecretManagerService.SECRETS_CACHE_BEAN)
+  public Cache secretsCache(
+      @Qualifier(CfgTenantCache.TENANT_CACHE_MANAGER) TenantCacheManager tenantCacheManager) {
+    return tenantCacheManager.getCache(SecretManagerService.SECRETS_CACHE);
+  }
 }
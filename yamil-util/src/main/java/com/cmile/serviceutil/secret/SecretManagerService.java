@@ -18,6 +18,7 @@ package com.cmile.serviceutil.secret;
 
 import com.cmile.serviceutil.common.json.JsonEntityMapper;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.google.api.core.ApiFuture;
 import com.google.api.gax.rpc.ApiException;
 import com.google.api.gax.rpc.StatusCode;
 import com.google.cloud.secretmanager.v1.AccessSecretVersionRequest;
@@ -36,20 +37,29 @@ import com.google.protobuf.FieldMask;
 import com.google.protobuf.Timestamp;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.cache.annotation.CacheEvict;
-import org.springframework.cache.annotation.Cacheable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.cache.Cache;
 import org.springframework.stereotype.Component;
 
 @Component
 public class SecretManagerService implements Closeable {
   private static final Logger logger = LoggerFactory.getLogger(SecretManagerService.class);
 
+  public static final String SECRETS_CACHE = "secrets";
+  public static final String SECRETS_CACHE_BEAN = "secretsCache";
+
   private final String projectId;
 
   private final JsonEntityMapper jsonEntityMapper;
   private final SecretManagerServiceClient secretManagerServiceClient;
+  private Cache secretsCache;
 
   public SecretManagerService(
       GCPServiceProject gcpServiceProject,
@@ -64,6 +74,17 @@ public class SecretManagerService implements Closeable {
     this.secretManagerServiceClient = secretManagerServiceClient;
   }
 
+  /**
+   * Caches the latest version of each secret in the {@value #SECRETS_CACHE_BEAN} bean, whatever other
+   * caches the application has. The cache is used directly rather than through {@code @Cacheable},
+   * which calls from within this class would bypass. Secrets are read from Secret Manager on every
+   * call unless the application declares the bean, see {@link CfgSecret#secretsCache}.
+   */
+  @Autowired(required = false)
+  public void setSecretsCache(@Qualifier(SECRETS_CACHE_BEAN) Cache secretsCache) {
+    this.secretsCache = secretsCache;
+  }
+
   public <T> T getSecret(SecretTypeEnum secretType, String secretId) {
     try {
       // Retrieve the secret value as a JSON string
@@ -85,6 +106,68 @@ public class SecretManagerService implements Closeable {
     }
   }
 
+  /**
+   * Reads the latest version of several secrets of one type. Secret Manager has no batch read, so
+   * the secrets that are not cached are requested concurrently and the batch costs about one round
+   * trip. Secrets that do not exist are left out of the result.
+   */
+  public <T> Map<String, T> getSecrets(SecretTypeEnum secretType, Collection<String> secretIds) {
+    Map<String, String> secretValues = new LinkedHashMap<>();
+    Map<String, ApiFuture<AccessSecretVersionResponse>> responses = new LinkedHashMap<>();
+    for (String secretId : secretIds) {
+      String cached =
+          secretsCache == null ? null : secretsCache.get(secretType.getSecretId(secretId), String.class);
+      if (cached != null) {
+        secretValues.put(secretId, cached);
+        continue;
+      }
+      AccessSecretVersionRequest request =
+          AccessSecretVersionRequest.newBuilder()
+              .setName(getLatestVersionName(secretType.getSecretId(secretId)))
+              .build();
+      responses.put(
+          secretId, secretManagerServiceClient.accessSecretVersionCallable().futureCall(request));
+    }
+
+    for (Map.Entry<String, ApiFuture<AccessSecretVersionResponse>> response : responses.entrySet()) {
+      String secretId = response.getKey();
+      try {
+        String secretValue = response.getValue().get().getPayload().getData().toStringUtf8();
+        if (secretsCache != null) {
+          secretsCache.put(secretType.getSecretId(secretId), secretValue);
+        }
+        secretValues.put(secretId, secretValue);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof ApiException apiException
+            && apiException.getStatusCode().getCode() == StatusCode.Code.NOT_FOUND) {
+          continue;
+        }
+        logger.error("Failed to get secret: {}", secretId, e.getCause());
+        throw e.getCause() instanceof RuntimeException runtimeException
+            ? runtimeException
+            : new RuntimeException(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+    }
+
+    Map<String, T> secrets = new LinkedHashMap<>();
+    for (String secretId : secretIds) {
+      String secretValue = secretValues.get(secretId);
+      if (secretValue == null) {
+        continue;
+      }
+      try {
+        secrets.put(secretId, secretType.getSecretEntity(jsonEntityMapper, secretValue));
+      } catch (IOException e) {
+        logger.error("Failed to get secret: {}", secretId, e);
+        throw new RuntimeException(e);
+      }
+    }
+    return secrets;
+  }
+
   public void saveSecret(SecretTypeEnum secretType, Object secretEntity, String secretId)
       throws IOException {
     // Serialize SpaceSecretEntity to JSON
@@ -98,11 +181,23 @@ public class SecretManagerService implements Closeable {
     setSecretVersion(secretType.getSecretId(secretId), payload);
   }
 
-  @Cacheable("secrets")
   public String getMostRecentSecretVersion(String secretId) throws IOException {
+    if (secretsCache == null) {
+      return accessMostRecentSecretVersion(secretId);
+    }
+    try {
+      return secretsCache.get(secretId, () -> accessMostRecentSecretVersion(secretId));
+    } catch (Cache.ValueRetrievalException e) {
+      if (e.getCause() instanceof IOException ioException) {
+        throw ioException;
+      }
+      throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : e;
+    }
+  }
+
+  private String accessMostRecentSecretVersion(String secretId) throws IOException {
     // Build the secret name with the latest version
-    String secretName =
-        String.format("projects/%s/secrets/%s/versions/latest", projectId, secretId);
+    String secretName = getLatestVersionName(secretId);
 
     // Build the request to access the secret version
     AccessSecretVersionRequest request =
@@ -118,7 +213,10 @@ public class SecretManagerService implements Closeable {
     return secretData.toStringUtf8();
   }
 
-  @CacheEvict(value = "secrets", key = "#secretId")
+  private String getLatestVersionName(String secretId) {
+    return String.format("projects/%s/secrets/%s/versions/latest", projectId, secretId);
+  }
+
   private void setSecretVersion(String secretId, SecretPayload payload) {
     SecretName secretName = SecretName.of(projectId, secretId);
     // Try to create the secret
@@ -146,11 +244,11 @@ public class SecretManagerService implements Closeable {
 
     // Add the secret payload.
     secretManagerServiceClient.addSecretVersion(secretName, payload);
+    evictCachedSecret(secretId);
 
     logger.info("Created secret: {}", secretName);
   }
 
-  @CacheEvict(value = "secrets", key = "#secretId")
   public void deleteSecret(String secretId) {
     SecretName secretName = SecretName.of(projectId, secretId);
     DeleteSecretRequest request =
@@ -163,6 +261,13 @@ public class SecretManagerService implements Closeable {
         throw e;
       }
     }
+    evictCachedSecret(secretId);
+  }
+
+  private void evictCachedSecret(String secretId) {
+    if (secretsCache != null) {
+      secretsCache.evict(secretId);
+    }
   }
 
   public void undeleteSecret(String secretId) {
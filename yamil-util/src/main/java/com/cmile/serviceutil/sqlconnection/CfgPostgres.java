@@ -77,8 +77,6 @@ public class CfgPostgres {
                         .withHibernateProperty(DatasourceConstants.HIBERNATE_DEFAULT_SCHEMA,
                                 datasourceProperties.getDbSchema().orElse("public"))
                         .withHibernateProperty(DatasourceConstants.NAMING_STRATEGY, datasourceProperties.getHibernateNamingStrategy())
-                        .withTestOnBorrow(true)
-                        .withValidationQuery("select 1")
                         .build();
                 } else {
                         return new EntityManagerFactoryBuilder()
@@ -100,8 +98,6 @@ public class CfgPostgres {
                                 DatasourceConstants.HIBERNATE_TENANT_IDENTIFIER_RESOLVER_PROPERTY,
                                 currentTenantIdentifierResolverImpl)
                         .withHibernateProperty(DatasourceConstants.NAMING_STRATEGY, datasourceProperties.getHibernateNamingStrategy())
-                        .withTestOnBorrow(true)
-                        .withValidationQuery("select 1")
                         .build();
                 }
         
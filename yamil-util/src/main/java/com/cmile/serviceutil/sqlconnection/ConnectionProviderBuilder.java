@@ -16,69 +16,147 @@
 
 package com.cmile.serviceutil.sqlconnection;
 
-import org.hibernate.engine.jdbc.connections.internal.DriverManagerConnectionProviderImpl;
-import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import com.zaxxer.hikari.HikariConfig;
+import io.micrometer.core.instrument.MeterRegistry;
 
-import java.util.HashMap;
+import java.time.Duration;
 
+/**
+ * Builds a {@link HikariConnectionProvider}. Pool settings left unset keep Hikari's defaults; idle
+ * connections are validated by the keepalive rather than on every checkout. Hibernate settings such
+ * as the dialect belong to the
+ * {@link com.cmile.serviceutil.sqlconnection.EntityManagerFactoryBuilder}.
+ */
 public class ConnectionProviderBuilder {
-    private final HashMap<String, Object> properties = new HashMap<>();
+    private final HikariConfig config = new HikariConfig();
+    private MeterRegistry meterRegistry;
+    private String space;
 
     public ConnectionProviderBuilder withUrl(String dbUrl) {
-        properties.put("hibernate.connection.url", dbUrl);
+        config.setJdbcUrl(dbUrl);
         return this;
     }
 
     public ConnectionProviderBuilder withSchema(String schema) {
-        properties.put(DatasourceConstants.HIBERNATE_DEFAULT_SCHEMA, schema);
+        config.setSchema(schema);
         return this;
     }
     public ConnectionProviderBuilder withDriverClass(String driverClassName) {
-        properties.put("hibernate.connection.driver_class", driverClassName);
+        config.setDriverClassName(driverClassName);
         return this;
     }
 
+    /**
+     * @deprecated Does nothing, the connection provider has no Hibernate settings. Set multi-tenancy
+     * on the {@code EntityManagerFactoryBuilder}.
+     */
+    @Deprecated
     public ConnectionProviderBuilder withMultiTenancy(String multiTenancyMode) {
-        properties.put("spring.jpa.properties.hibernate.multiTenancy", multiTenancyMode);
         return this;
     }
 
+    /**
+     * @deprecated Does nothing, set the dialect on the {@code EntityManagerFactoryBuilder}.
+     */
+    @Deprecated
     public ConnectionProviderBuilder withDialect(String dialect) {
-        properties.put("spring.jpa.properties.hibernate.dialect", dialect);
         return this;
     }
 
+    /**
+     * @deprecated Does nothing, set {@code ddl-auto} on the {@code EntityManagerFactoryBuilder}.
+     */
+    @Deprecated
     public ConnectionProviderBuilder withDdlAuto(String ddlAuto) {
-        properties.put("spring.jpa.properties.hibernate.ddl-auto", ddlAuto);
         return this;
     }
 
     public ConnectionProviderBuilder withAutoCommit(boolean autoCommit) {
-        properties.put("hibernate.connection.autocommit", Boolean.toString(autoCommit));
+        config.setAutoCommit(autoCommit);
         return this;
     }
 
     public ConnectionProviderBuilder withCredentials(String username, String password) {
-        properties.put("hibernate.connection.username", username);
-        properties.put("hibernate.connection.password", password);
+        config.setUsername(username);
+        config.setPassword(password);
         return this;
     }
 
+    /**
+     * @deprecated Does nothing, set {@code show_sql} on the {@code EntityManagerFactoryBuilder}.
+     */
+    @Deprecated
     public ConnectionProviderBuilder withShowSql(boolean showSql) {
-        properties.put("spring.jpa.properties.hibernate.show_sql", Boolean.toString(showSql));
         return this;
     }
 
+    /**
+     * @deprecated Does nothing, set the physical naming strategy on the
+     * {@code EntityManagerFactoryBuilder}.
+     */
+    @Deprecated
     public ConnectionProviderBuilder withNamingStrategy(String strategy) {
-//        properties.put("spring.jpa.hibernate.naming.physical-strategy", strategy);
-        properties.put("hibernate.physical_naming_strategy", strategy);
         return this;
     }
 
-    public ConnectionProvider build() {
-        DriverManagerConnectionProviderImpl connectionProvider =
-                new DriverManagerConnectionProviderImpl();
-        connectionProvider.configure(properties);
-        return connectionProvider;
+    public ConnectionProviderBuilder withPoolName(String poolName) {
+        config.setPoolName(poolName);
+        return this;
+    }
+
+    public ConnectionProviderBuilder withPoolSize(int maximumPoolSize, int minimumIdle) {
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setMinimumIdle(minimumIdle);
+        return this;
+    }
+
+    public ConnectionProviderBuilder withConnectionTimeout(Duration connectionTimeout) {
+        config.setConnectionTimeout(connectionTimeout.toMillis());
+        return this;
+    }
+
+    public ConnectionProviderBuilder withIdleTimeout(Duration idleTimeout) {
+        config.setIdleTimeout(idleTimeout.toMillis());
+        return this;
+    }
+
+    public ConnectionProviderBuilder withMaxLifetime(Duration maxLifetime) {
+        config.setMaxLifetime(maxLifetime.toMillis());
+        return this;
+    }
+
+    /**
+     * How often idle connections are pinged, which also keeps firewalls and proxies from dropping them.
+     * Must be shorter than the max lifetime, {@link Duration#ZERO} turns it off.
+     */
+    public ConnectionProviderBuilder withKeepaliveTime(Duration keepaliveTime) {
+        config.setKeepaliveTime(keepaliveTime.toMillis());
+        return this;
+    }
+
+    /**
+     * Logs the stack of a connection held longer than {@code threshold}, {@link Duration#ZERO} turns
+     * it off.
+     */
+    public ConnectionProviderBuilder withLeakDetectionThreshold(Duration threshold) {
+        config.setLeakDetectionThreshold(threshold.toMillis());
+        return this;
+    }
+
+    /**
+     * Publishes the {@code hikaricp.connections.*} meters of the pool tagged with {@code space}.
+     */
+    public ConnectionProviderBuilder withMetrics(MeterRegistry meterRegistry, String space) {
+        this.meterRegistry = meterRegistry;
+        this.space = space;
+        return this;
+    }
+
+    public HikariConnectionProvider build() {
+        if (meterRegistry != null) {
+            config.setMetricsTrackerFactory(
+                    (poolName, poolStats) -> new SpaceMetricsTracker(meterRegistry, poolName, space, poolStats));
+        }
+        return new HikariConnectionProvider(config);
     }
 }
@@ -19,6 +19,7 @@ package com.cmile.serviceutil.sqlconnection;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 
+import java.time.Duration;
 import java.util.Optional;
 @Configuration
 public class DatasourceProperties {
@@ -52,6 +53,24 @@ public class DatasourceProperties {
     @Value("${spring.datasource.dbSchema:null}")
     private String dbSchema;
 
+    @Value("${cmile.postgres.pool.min.idle:1}")
+    private int poolMinIdle;
+
+    @Value("${cmile.postgres.pool.connection.timeout:30s}")
+    private Duration poolConnectionTimeout;
+
+    @Value("${cmile.postgres.pool.idle.timeout:10m}")
+    private Duration poolIdleTimeout;
+
+    @Value("${cmile.postgres.pool.max.lifetime:30m}")
+    private Duration poolMaxLifetime;
+
+    @Value("${cmile.postgres.pool.keepalive:2m}")
+    private Duration poolKeepalive;
+
+    @Value("${cmile.postgres.pool.leak.detection.threshold:60s}")
+    private Duration poolLeakDetectionThreshold;
+
     public Optional<String> getDbSchema() {
         if (dbSchema.equals("null")) {
             return Optional.empty();
@@ -100,5 +119,29 @@ public class DatasourceProperties {
     public String getDriverClass() {
         return driverClass;
     }
+
+    public int getPoolMinIdle() {
+        return poolMinIdle;
+    }
+
+    public Duration getPoolConnectionTimeout() {
+        return poolConnectionTimeout;
+    }
+
+    public Duration getPoolIdleTimeout() {
+        return poolIdleTimeout;
+    }
+
+    public Duration getPoolMaxLifetime() {
+        return poolMaxLifetime;
+    }
+
+    public Duration getPoolKeepalive() {
+        return poolKeepalive;
+    }
+
+    public Duration getPoolLeakDetectionThreshold() {
+        return poolLeakDetectionThreshold;
+    }
     
 }
@@ -21,14 +21,14 @@ import com.cmile.serviceutil.auth.jwt.ContextInfo;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
 import com.cmile.serviceutil.secret.entity.PostgresDatabaseEntity;
 import org.hibernate.engine.jdbc.connections.spi.AbstractMultiTenantConnectionProvider;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Component;
 
-import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class MultiTenantConnectionProvider extends AbstractMultiTenantConnectionProvider<String> {
@@ -36,17 +36,20 @@ public class MultiTenantConnectionProvider extends AbstractMultiTenantConnection
     private final PostgresCacheManager postgresCacheManager;
     private final GCPServiceProject gcpServiceProject;
     private final DatasourceProperties datasourceProperties;
-
-    // Map to hold connection providers for each tenant
-    private final Map<String, ConnectionProvider> connectionProviders = new ConcurrentHashMap<>();
+    private final TenantPoolManager tenantPoolManager;
+    private final MeterRegistry meterRegistry;
 
     public MultiTenantConnectionProvider(
             PostgresCacheManager postgresCacheManager,
             GCPServiceProject gcpServiceProject,
-            DatasourceProperties datasourceProperties) {
+            DatasourceProperties datasourceProperties,
+            TenantPoolManager tenantPoolManager,
+            ObjectProvider<MeterRegistry> meterRegistry) {
         this.postgresCacheManager = postgresCacheManager;
         this.gcpServiceProject = gcpServiceProject;
         this.datasourceProperties = datasourceProperties;
+        this.tenantPoolManager = tenantPoolManager;
+        this.meterRegistry = meterRegistry.getIfAvailable();
     }
 
     @Override
@@ -66,29 +69,32 @@ public class MultiTenantConnectionProvider extends AbstractMultiTenantConnection
     }
 
     private ConnectionProvider getConnectionProvider(String tenantIdentifier) {
-        // Check the cache first
-        return connectionProviders.computeIfAbsent(tenantIdentifier, id -> {
-            ConnectionProvider connectionProvider = loadConnectionProviderDetails(id);
+        // The pool manager sizes each tenant's pool within the connection budget
+        return tenantPoolManager.getConnectionProvider(tenantIdentifier, size -> {
+            HikariConnectionProvider connectionProvider = loadConnectionProviderDetails(tenantIdentifier, size);
             return Optional.ofNullable(connectionProvider)
                     .orElseThrow(() -> new RuntimeException(
                             String.format("Cannot create new connection provider for tenant: %s", tenantIdentifier)));
         });
     }
 
-    private ConnectionProvider loadConnectionProviderDetails(String id) {
+    private HikariConnectionProvider loadConnectionProviderDetails(String id, int poolSize) {
         PostgresDatabaseEntity postgresDatabaseEntity = this.postgresCacheManager.getCache(id);
         logger.info("Connection creation for id {}", datasourceProperties.getDatasourceUrl().orElse(postgresDatabaseEntity.getConnectionString()), id);
         return new ConnectionProviderBuilder()
                 .withUrl(datasourceProperties.getDatasourceUrl().orElse(postgresDatabaseEntity.getConnectionString()))
                 .withSchema(datasourceProperties.getDbSchema().orElse("public"))
                 .withDriverClass(datasourceProperties.getDriverClass())
-                .withMultiTenancy(DatasourceConstants.MULTI_TENANCY)
-                .withDialect(datasourceProperties.getDialect())
-                .withDdlAuto(datasourceProperties.getDdlAuto())
                 .withAutoCommit(true)
                 .withCredentials(datasourceProperties.getDatasourceUsername().orElse(postgresDatabaseEntity.getUsername()), datasourceProperties.getDatasourcePassword().orElse(postgresDatabaseEntity.getPassword()))
-                .withShowSql(true)
-                .withNamingStrategy(datasourceProperties.getHibernateNamingStrategy())
+                .withPoolName("postgres-" + id)
+                .withPoolSize(poolSize, Math.min(poolSize, datasourceProperties.getPoolMinIdle()))
+                .withConnectionTimeout(datasourceProperties.getPoolConnectionTimeout())
+                .withIdleTimeout(datasourceProperties.getPoolIdleTimeout())
+                .withMaxLifetime(datasourceProperties.getPoolMaxLifetime())
+                .withKeepaliveTime(datasourceProperties.getPoolKeepalive())
+                .withLeakDetectionThreshold(datasourceProperties.getPoolLeakDetectionThreshold())
+                .withMetrics(meterRegistry, id)
                 .build();
     }
 }
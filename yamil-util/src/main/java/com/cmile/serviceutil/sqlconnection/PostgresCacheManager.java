@@ -28,6 +28,10 @@ import com.cmile.serviceutil.secret.entity.SpaceSecretEntity;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 @Component
@@ -41,25 +45,52 @@ public class PostgresCacheManager extends CacheManager<String, PostgresDatabaseE
     public PostgresCacheManager() {
         super(5, TimeUnit.DAYS, 500); // Call the superclass constructor first
         this.setLoader(this::loadDetails); // Set the loader after the object is initialized
+        this.setBulkLoader(this::loadAllDetails);
+        // Unknown spaces are remembered for a while, so a client sending them does not hammer Secret Manager
+        this.setNegativeCaching(DEFAULT_NEGATIVE_TTL, DEFAULT_NEGATIVE_MAX_SIZE);
+    }
+
+    @Override
+    protected RuntimeException missingFromBulkLoad(String id) {
+        return notFound(id);
+    }
+
+    // Ids without Postgres connection params are left out and remembered as missingFromBulkLoad.
+    private Map<String, PostgresDatabaseEntity> loadAllDetails(Set<String> ids) {
+        Map<String, PostgresDatabaseEntity> details = new HashMap<>();
+        if (ApplicationScopeEnum.GLOBAL.name().equalsIgnoreCase(gcpServiceProject.getAppDeploymentScope())) {
+            Map<String, ServiceSecretEntity> secrets = secretManagerService.getSecrets(SecretTypeEnum.SERVICE, ids);
+            secrets.forEach((id, secret) -> Optional.ofNullable(secret.getPostgres())
+                    .ifPresent(postgres -> details.put(id, postgres)));
+        } else {
+            Map<String, SpaceSecretEntity> secrets = secretManagerService.getSecrets(SecretTypeEnum.SPACE, ids);
+            secrets.forEach((id, secret) -> Optional.ofNullable(secret.getPostgres())
+                    .ifPresent(postgres -> details.put(id, postgres)));
+        }
+        return details;
     }
 
     private PostgresDatabaseEntity loadDetails(String id) {
         PostgresDatabaseEntity postgresDatabaseEntity = null;
         if (ApplicationScopeEnum.GLOBAL.name().equalsIgnoreCase(gcpServiceProject.getAppDeploymentScope())) {
             ServiceSecretEntity postgresSecret = this.secretManagerService.getSecret(SecretTypeEnum.SERVICE, id);
-            postgresDatabaseEntity = postgresSecret.getPostgres();
+            postgresDatabaseEntity = postgresSecret == null ? null : postgresSecret.getPostgres();
         } else {
             SpaceSecretEntity postgresSecret = this.secretManagerService.getSecret(SecretTypeEnum.SPACE, id);
-            postgresDatabaseEntity = postgresSecret.getPostgres();
+            postgresDatabaseEntity = postgresSecret == null ? null : postgresSecret.getPostgres();
         }
 
         if (postgresDatabaseEntity == null) {
-            throw new ConnectionParamsNotFoundException(
-                    String.format(
-                            "For Service %s or space-id: %s, connection params for PostgresDB not found",
-                            gcpServiceProject.getAppDeploymentScope(), id));
+            throw notFound(id);
         }
 
         return postgresDatabaseEntity;
     }
+
+    private ConnectionParamsNotFoundException notFound(String id) {
+        return new ConnectionParamsNotFoundException(
+                String.format(
+                        "For Service %s or space-id: %s, connection params for PostgresDB not found",
+                        gcpServiceProject.getAppDeploymentScope(), id));
+    }
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.sqlconnection;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.PoolStats;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Hikari's own {@code hikaricp.connections.*} meters, tagged with the space of the pool besides its
+ * name. They are removed when the pool closes.
+ */
+class SpaceMetricsTracker implements IMetricsTracker {
+
+    static final String SPACE_TAG = "space";
+    private static final String PREFIX = "hikaricp.connections";
+
+    private final MeterRegistry meterRegistry;
+    private final List<Meter> meters = new ArrayList<>();
+    private final Timer acquire;
+    private final Timer usage;
+    private final Timer creation;
+    private final Counter timeouts;
+
+    SpaceMetricsTracker(MeterRegistry meterRegistry, String poolName, String space, PoolStats poolStats) {
+        this.meterRegistry = meterRegistry;
+        Tags tags = Tags.of("pool", poolName, SPACE_TAG, space);
+        acquire = register(Timer.builder(PREFIX + ".acquire")
+                .description("Time taken to check a connection out of the pool").tags(tags));
+        usage = register(Timer.builder(PREFIX + ".usage")
+                .description("Time a connection was held before it was returned").tags(tags));
+        creation = register(Timer.builder(PREFIX + ".creation")
+                .description("Time taken to open a connection").tags(tags));
+        timeouts = register(Counter.builder(PREFIX + ".timeout")
+                .description("Checkouts that timed out waiting for a connection").tags(tags));
+        gauge(PREFIX, "Connections in the pool", tags, poolStats, PoolStats::getTotalConnections);
+        gauge(PREFIX + ".idle", "Idle connections", tags, poolStats, PoolStats::getIdleConnections);
+        gauge(PREFIX + ".active", "Connections in use", tags, poolStats, PoolStats::getActiveConnections);
+        gauge(PREFIX + ".pending", "Threads waiting for a connection", tags, poolStats,
+                PoolStats::getPendingThreads);
+        gauge(PREFIX + ".max", "Maximum size of the pool", tags, poolStats, PoolStats::getMaxConnections);
+        gauge(PREFIX + ".min", "Minimum idle connections", tags, poolStats, PoolStats::getMinConnections);
+    }
+
+    @Override
+    public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+        creation.record(connectionCreatedMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        acquire.record(elapsedAcquiredNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        usage.record(elapsedBorrowedMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+    }
+
+    @Override
+    public void close() {
+        meters.forEach(meterRegistry::remove);
+    }
+
+    private Timer register(Timer.Builder builder) {
+        Timer timer = builder.register(meterRegistry);
+        meters.add(timer);
+        return timer;
+    }
+
+    private Counter register(Counter.Builder builder) {
+        Counter counter = builder.register(meterRegistry);
+        meters.add(counter);
+        return counter;
+    }
+
+    private void gauge(String name, String description, Tags tags, PoolStats poolStats,
+            ToIntFunction<PoolStats> value) {
+        meters.add(Gauge.builder(name, poolStats, stats -> value.applyAsInt(stats))
+                .description(description).tags(tags).register(meterRegistry));
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.sqlconnection;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Keeps the connection pools of all tenants within a budget of {@code budget} connections per pod.
+ * <p>
+ * A tenant's pool starts at {@code initialSize} connections. Every {@code rebalanceInterval} a pool
+ * whose connections are all in use, or that has threads waiting, doubles up to {@code maxSize} from
+ * the budget left, taking connections from pools using fewer than they hold when the budget is spent.
+ * A pool unused for {@code idleTimeout} is closed, and so is the least recently used idle pool when a
+ * new tenant would not fit, unless it was handed out within {@code evictGrace}. Closed pools first
+ * drain their connections in use, for {@code drainTimeout} at most. A shrunk pool closes its idle
+ * connections at once and those in use when they are returned, so the connections it gives up are
+ * closed before another pool opens them again.
+ */
+@Component
+public class TenantPoolManager implements DisposableBean {
+
+    public static final String UTILIZATION_METER = "postgres.pool.budget.utilization";
+    public static final String ALLOCATED_METER = "postgres.pool.budget.allocated";
+    public static final String EVICTIONS_METER = "postgres.pool.evictions";
+
+    private static final long DRAIN_POLL_MS = 500;
+    private static final Logger logger = LoggerFactory.getLogger(TenantPoolManager.class);
+
+    private final int budget;
+    private final int initialSize;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final long evictGraceNanos;
+    private final Duration drainTimeout;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, TenantPool> pools = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<TenantPool>> opening = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tenant-pool-manager");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private int allocated;
+
+    public TenantPoolManager(
+            @Value("${cmile.postgres.pool.budget:50}") int budget,
+            @Value("${cmile.postgres.pool.initial.size:2}") int initialSize,
+            @Value("${cmile.postgres.pool.max.size:10}") int maxSize,
+            @Value("${cmile.postgres.pool.evict.idle:15m}") Duration idleTimeout,
+            @Value("${cmile.postgres.pool.evict.grace:5s}") Duration evictGrace,
+            @Value("${cmile.postgres.pool.drain.timeout:30s}") Duration drainTimeout,
+            @Value("${cmile.postgres.pool.rebalance.interval:10s}") Duration rebalanceInterval,
+            ObjectProvider<MeterRegistry> meterRegistry) {
+        if (budget <= 0 || initialSize <= 0 || maxSize < initialSize) {
+            throw new IllegalArgumentException(
+                    "The connection budget and initial pool size must be positive, and the maximum pool size at least the initial one");
+        }
+        this.budget = budget;
+        this.initialSize = initialSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = idleTimeout.toNanos();
+        this.evictGraceNanos = evictGrace.toNanos();
+        this.drainTimeout = drainTimeout;
+        this.meterRegistry = meterRegistry.getIfAvailable();
+        if (this.meterRegistry != null) {
+            Gauge.builder(UTILIZATION_METER, this, manager -> (double) manager.getAllocated() / manager.budget)
+                    .description("Share of the connection budget allocated to tenant pools")
+                    .register(this.meterRegistry);
+            Gauge.builder(ALLOCATED_METER, this, TenantPoolManager::getAllocated)
+                    .description("Connections allocated to tenant pools")
+                    .register(this.meterRegistry);
+        }
+        long interval = rebalanceInterval.toMillis();
+        executor.scheduleWithFixedDelay(this::rebalanceSafely, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The pool of the tenant. A new pool is built by {@code factory} with the maximum size it is
+     * given, once room has been made for it in the budget. Other tenants are served while it is built.
+     */
+    public ConnectionProvider getConnectionProvider(
+            String tenant, IntFunction<HikariConnectionProvider> factory) {
+        while (true) {
+            TenantPool pool = pools.get(tenant);
+            if (pool == null) {
+                pool = open(tenant, factory);
+            }
+            pool.lastUsed = System.nanoTime();
+            if (!pool.evicted) {
+                return pool.provider;
+            }
+            // Closed between the lookup and now, the tenant gets a new pool
+        }
+    }
+
+    public synchronized int getAllocated() {
+        return allocated;
+    }
+
+    public int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Builds the pool of the tenant outside the lock, as the factory looks up secrets and connects.
+     * Concurrent callers for the same tenant wait for the first one's pool.
+     */
+    private TenantPool open(String tenant, IntFunction<HikariConnectionProvider> factory) {
+        CompletableFuture<TenantPool> opened = new CompletableFuture<>();
+        CompletableFuture<TenantPool> pending = opening.putIfAbsent(tenant, opened);
+        if (pending != null) {
+            try {
+                return pending.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException cause ? cause : e;
+            }
+        }
+        try {
+            TenantPool pool = pools.get(tenant);
+            if (pool == null) {
+                int size = reserve(tenant);
+                HikariConnectionProvider provider;
+                try {
+                    provider = factory.apply(size);
+                } catch (RuntimeException | Error e) {
+                    release(size);
+                    throw e;
+                }
+                pool = publish(new TenantPool(tenant, provider, size));
+            }
+            opened.complete(pool);
+            return pool;
+        } catch (RuntimeException | Error e) {
+            opened.completeExceptionally(e);
+            throw e;
+        } finally {
+            opening.remove(tenant, opened);
+        }
+    }
+
+    /**
+     * Takes the connections of a new pool from the budget, making room for them first.
+     */
+    private synchronized int reserve(String tenant) {
+        while (allocated + initialSize > budget && evictLeastRecentlyUsed()) {
+            // Evicting idle pools first, they are the cheapest to give up
+        }
+        if (allocated + initialSize > budget) {
+            reclaim(allocated + initialSize - budget, null);
+        }
+        int size = Math.max(1, Math.min(initialSize, budget - allocated));
+        if (allocated + size > budget) {
+            logger.warn("Connection budget of {} exhausted, opening the pool of {} over budget", budget, tenant);
+        }
+        allocated += size;
+        return size;
+    }
+
+    private synchronized void release(int size) {
+        if (!executor.isShutdown()) {
+            allocated -= size;
+        }
+    }
+
+    private synchronized TenantPool publish(TenantPool pool) {
+        if (executor.isShutdown()) {
+            pool.provider.stop();
+            throw new IllegalStateException("The tenant pools are closed");
+        }
+        pools.put(pool.tenant, pool);
+        logger.debug("Opened the pool of {} with {} connections, {} of {} allocated",
+                pool.tenant, pool.size, allocated, budget);
+        return pool;
+    }
+
+    /**
+     * Closes idle pools and the connections shrunk pools still hold above their size, then grows the
+     * saturated pools.
+     */
+    synchronized void rebalance() {
+        long now = System.nanoTime();
+        for (TenantPool pool : List.copyOf(pools.values())) {
+            if (pool.stats().getActiveConnections() == 0 && now - pool.lastUsed >= idleTimeoutNanos) {
+                evict(pool, "idle");
+            } else {
+                closeSurplus(pool);
+            }
+        }
+        for (TenantPool pool : List.copyOf(pools.values())) {
+            HikariPoolMXBean stats = pool.stats();
+            boolean saturated = stats.getThreadsAwaitingConnection() > 0
+                    || stats.getActiveConnections() >= pool.size;
+            if (!saturated || pool.size >= maxSize) {
+                continue;
+            }
+            int wanted = Math.min(maxSize, pool.size * 2) - pool.size;
+            if (budget - allocated < wanted) {
+                reclaim(wanted - (budget - allocated), pool);
+            }
+            int granted = Math.min(wanted, budget - allocated);
+            if (granted > 0) {
+                resize(pool, pool.size + granted);
+            }
+        }
+    }
+
+    private void rebalanceSafely() {
+        try {
+            rebalance();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to rebalance the tenant connection pools", e);
+        }
+    }
+
+    /**
+     * Shrinks the pools holding the most connections they do not use, sparing {@code except}, until
+     * {@code needed} connections are freed or none is left to take.
+     */
+    private void reclaim(int needed, TenantPool except) {
+        List<TenantPool> candidates = new ArrayList<>(pools.values());
+        candidates.remove(except);
+        candidates.sort(Comparator.comparingInt(TenantPool::spare).reversed());
+        for (TenantPool pool : candidates) {
+            if (needed <= 0) {
+                return;
+            }
+            int freed = Math.min(needed, pool.spare());
+            if (freed > 0) {
+                resize(pool, pool.size - freed);
+                needed -= freed;
+            }
+        }
+    }
+
+    private boolean evictLeastRecentlyUsed() {
+        long now = System.nanoTime();
+        return pools.values().stream()
+                // A pool just handed out may not have lent its connection yet
+                .filter(pool -> now - pool.lastUsed >= evictGraceNanos)
+                .filter(pool -> pool.stats().getActiveConnections() == 0)
+                .min(Comparator.comparingLong(pool -> pool.lastUsed))
+                .map(pool -> {
+                    evict(pool, "budget");
+                    return true;
+                })
+                .orElse(false);
+    }
+
+    private void resize(TenantPool pool, int size) {
+        HikariDataSource dataSource = pool.provider.getDataSource();
+        logger.debug("Resizing the pool of {} from {} to {} connections", pool.tenant, pool.size, size);
+        if (size < pool.size) {
+            dataSource.getHikariConfigMXBean().setMinimumIdle(Math.min(dataSource.getMinimumIdle(), size));
+        }
+        dataSource.getHikariConfigMXBean().setMaximumPoolSize(size);
+        allocated += size - pool.size;
+        pool.size = size;
+        closeSurplus(pool);
+    }
+
+    /**
+     * Closes the idle connections of a pool holding more than its size, and marks those in use to be
+     * closed instead of lent again. Hikari would only close the surplus after its idle timeout, or at
+     * their max lifetime under steady traffic, while the budget already counts them for another pool.
+     * A connection in use is returned to the pool idle, so the next rebalance closes it.
+     */
+    private void closeSurplus(TenantPool pool) {
+        if (pool.stats().getTotalConnections() > pool.size) {
+            pool.stats().softEvictConnections();
+        }
+    }
+
+    private void evict(TenantPool pool, String cause) {
+        pool.evicted = true;
+        pools.remove(pool.tenant, pool);
+        allocated -= pool.size;
+        logger.info("Closing the pool of {} ({}), {} of {} connections allocated", pool.tenant, cause, allocated, budget);
+        if (meterRegistry != null) {
+            Counter.builder(EVICTIONS_METER).tag("cause", cause).register(meterRegistry).increment();
+        }
+        pool.stats().softEvictConnections();
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+        try {
+            executor.execute(() -> closeWhenDrained(pool, deadline));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            pool.provider.stop();
+        }
+    }
+
+    private void closeWhenDrained(TenantPool pool, long deadline) {
+        int active = pool.stats().getActiveConnections();
+        if (active > 0 && System.nanoTime() - deadline < 0) {
+            executor.schedule(() -> closeWhenDrained(pool, deadline), DRAIN_POLL_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (active > 0) {
+            logger.warn("Closing the pool of {} with {} connections still in use", pool.tenant, active);
+        }
+        pool.provider.stop();
+    }
+
+    /**
+     * Closes every pool without waiting for them to drain.
+     */
+    @Override
+    public synchronized void destroy() {
+        executor.shutdownNow();
+        pools.values().forEach(pool -> pool.provider.stop());
+        pools.clear();
+        allocated = 0;
+    }
+
+    private static final class TenantPool {
+        private final String tenant;
+        private final HikariConnectionProvider provider;
+        private volatile long lastUsed = System.nanoTime();
+        private volatile boolean evicted;
+        private int size;
+
+        private TenantPool(String tenant, HikariConnectionProvider provider, int size) {
+            this.tenant = tenant;
+            this.provider = provider;
+            this.size = size;
+        }
+
+        private HikariPoolMXBean stats() {
+            return provider.getDataSource().getHikariPoolMXBean();
+        }
+
+        /**
+         * Connections the pool may hold but does not use, never taking it below one.
+         */
+        private int spare() {
+            return Math.max(0, size - Math.max(1, stats().getActiveConnections() + stats().getThreadsAwaitingConnection()));
+        }
+    }
+}
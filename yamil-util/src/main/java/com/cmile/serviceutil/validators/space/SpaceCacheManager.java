@@ -20,6 +20,10 @@ import com.cmile.serviceutil.apiinvoker.ApiInvoker;
 import com.cmile.serviceutil.cache.CacheManager;
 import com.cmile.serviceutil.gcp.GCPServiceProject;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -40,12 +44,17 @@ public class SpaceCacheManager extends CacheManager<String, Object> {
       GCPServiceProject gcpServiceProject,
       ApiInvoker apiInvoker,
       ObjectMapper objectMapper, SpacePlatformService platformService) {
-    super(5, TimeUnit.MINUTES, 500);
+    // Entries older than a minute are reloaded in the background while the cached value keeps
+    // being served; a failing platform service falls back to the last value for up to an hour.
+    super(5, TimeUnit.MINUTES, 500, Duration.ofMinutes(1), Duration.ofHours(1));
     this.gcpServiceProject = gcpServiceProject;
     this.apiInvoker = apiInvoker;
     this.objectMapper = objectMapper;
     this.platformService = platformService;
     this.setLoader(this::loadSpaceDetails);
+    this.setBulkLoader(this::loadAllSpaceDetails);
+    // Unknown space ids are answered from the negative cache instead of calling the platform again
+    this.setNegativeCaching(DEFAULT_NEGATIVE_TTL, DEFAULT_NEGATIVE_MAX_SIZE);
   }
 
   private SpaceDetails loadSpaceDetails(String id) {
@@ -54,4 +63,9 @@ public class SpaceCacheManager extends CacheManager<String, Object> {
     log.debug("Space details for ID: {} are loaded", id);
     return result;
   }
+
+  private Map<String, Object> loadAllSpaceDetails(Set<String> ids) {
+    log.debug("Loading space details for {} IDs", ids.size());
+    return new HashMap<>(platformService.getSpaceDetails(ids));
+  }
 }
@@ -16,6 +16,25 @@
 
 package com.cmile.serviceutil.validators.space;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 public interface SpacePlatformService {
     SpaceDetails getSpaceDetails(String spaceId);
+
+    /**
+     * Details of several spaces, unknown spaces are left out. Override this when the platform offers
+     * a batch endpoint; the default makes one call per space.
+     */
+    default Map<String, SpaceDetails> getSpaceDetails(Collection<String> spaceIds) {
+        Map<String, SpaceDetails> details = new HashMap<>();
+        for (String spaceId : spaceIds) {
+            SpaceDetails spaceDetails = getSpaceDetails(spaceId);
+            if (spaceDetails != null) {
+                details.put(spaceId, spaceDetails);
+            }
+        }
+        return details;
+    }
 }
\ No newline at end of file
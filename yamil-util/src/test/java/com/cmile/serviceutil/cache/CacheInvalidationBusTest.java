@@ -0,0 +1,282 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.common.json.JsonEntityMapper;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.job.PubSub.PubSubPublisher;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.spring.pubsub.PubSubAdmin;
+import com.google.cloud.spring.pubsub.core.subscriber.PubSubSubscriberOperations;
+import com.google.cloud.spring.pubsub.support.BasicAcknowledgeablePubsubMessage;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.scheduling.TaskScheduler;
+
+public class CacheInvalidationBusTest {
+
+  private static final String TOPIC_PREFIX = "cache-invalidation";
+
+  private final JsonEntityMapper jsonEntityMapper = new JsonEntityMapper(new ObjectMapper());
+  private PubSubPublisher publisher;
+  private TaskScheduler taskScheduler;
+  private GCPServiceProject gcpServiceProject;
+
+  @BeforeEach
+  void setUp() {
+    publisher = mock(PubSubPublisher.class);
+    taskScheduler = mock(TaskScheduler.class);
+    gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getDu()).thenReturn("DU01");
+    ScheduledFuture<?> flushTask = mock(ScheduledFuture.class);
+    when(taskScheduler.schedule(any(Runnable.class), any(Instant.class)))
+        .thenAnswer(invocation -> flushTask);
+  }
+
+  @Test
+  void testBurstIsPublishedAsOneMessage() throws Exception {
+    CacheInvalidationBus bus = newBus(500);
+    bus.invalidate("users", "space1", "a");
+    bus.invalidate("users", "space1", "b");
+    bus.invalidate("users", "space1", "a");
+    bus.invalidate("users", null, "a");
+
+    verify(taskScheduler, times(1)).schedule(any(Runnable.class), any(Instant.class));
+    List<CacheInvalidationBus.InvalidationMessage> messages = flush(bus);
+
+    assertEquals(1, messages.size());
+    assertEquals(
+        List.of(
+            keyInvalidation("users", "space1", "a"),
+            keyInvalidation("users", "space1", "b"),
+            keyInvalidation("users", null, "a")),
+        messages.get(0).invalidations());
+    assertEquals(bus.getOriginId(), messages.get(0).origin());
+    // the context set up for the publisher does not leak into the scheduler thread
+    assertNull(RequestContext.getRequestContextDetails());
+  }
+
+  @Test
+  void testSpaceInvalidationReplacesPendingKeys() throws Exception {
+    CacheInvalidationBus bus = newBus(500);
+    bus.invalidate("users", "space1", "a");
+    bus.invalidate("users", "space2", "a");
+    bus.invalidateSpace("users", "space1");
+    bus.invalidate("users", "space1", "b");
+
+    List<CacheInvalidationBus.InvalidationMessage> messages = flush(bus);
+
+    assertEquals(
+        List.of(
+            keyInvalidation("users", "space2", "a"),
+            spaceInvalidation("users", "space1")),
+        messages.get(0).invalidations());
+  }
+
+  @Test
+  void testLargeBurstIsSplitIntoBatches() throws Exception {
+    CacheInvalidationBus bus = newBus(2);
+    for (int i = 0; i < 5; i++) {
+      bus.invalidate("users", "space1", "key" + i);
+    }
+
+    List<CacheInvalidationBus.InvalidationMessage> messages = flush(bus);
+
+    assertEquals(List.of(2, 2, 1),
+        messages.stream().map(message -> message.invalidations().size()).toList());
+  }
+
+  @Test
+  void testReplicaAppliesOthersInvalidationsAndIgnoresItsOwn() throws Exception {
+    CacheInvalidationBus replicaA = newBus(500);
+    CacheInvalidationBus replicaB = newBus(500);
+    List<String> appliedByA = new ArrayList<>();
+    List<String> appliedByB = new ArrayList<>();
+    replicaA.register("users", recordingTarget(appliedByA));
+    replicaB.register("users", recordingTarget(appliedByB));
+
+    replicaA.invalidate("users", "space1", "a");
+    replicaA.invalidateSpace("users", "space2");
+    replicaA.invalidate("orders", "space1", "x");
+    String payload = jsonEntityMapper.writeEntityToJson(flush(replicaA).get(0));
+
+    BasicAcknowledgeablePubsubMessage echo = message(payload);
+    replicaA.receive(echo);
+    BasicAcknowledgeablePubsubMessage delivered = message(payload);
+    replicaB.receive(delivered);
+
+    assertTrue(appliedByA.isEmpty());
+    assertEquals(List.of("space1:a", "space2:*"), appliedByB);
+    verify(echo).ack();
+    verify(delivered).ack();
+  }
+
+  @Test
+  void testKeysReadBackAsTheirOwnType() throws Exception {
+    CacheInvalidationBus sender = newBus(500);
+    CacheInvalidationBus receiver = newBus(500);
+    List<Object> keys = new ArrayList<>();
+    receiver.register("orders", new CacheInvalidationBus.Target() {
+      @Override
+      public void invalidateLocally(String spaceId, Object key) {
+        keys.add(key);
+      }
+
+      @Override
+      public void invalidateSpaceLocally(String spaceId) {}
+    });
+
+    sender.invalidate("orders", "space1", 7L);
+    sender.invalidate("orders", "space1", 8);
+    receiver.receive(message(jsonEntityMapper.writeEntityToJson(flush(sender).get(0))));
+
+    assertEquals(List.of(7L, 8), keys);
+    assertEquals(Long.class, keys.get(0).getClass());
+  }
+
+  @Test
+  void testRefreshReplacesPendingInvalidationOfTheKey() throws Exception {
+    CacheInvalidationBus sender = newBus(500);
+    CacheInvalidationBus receiver = newBus(500);
+    List<String> applied = new ArrayList<>();
+    receiver.register("users", recordingTarget(applied));
+
+    sender.invalidate("users", "space1", "a");
+    sender.refresh("users", "space1", "a");
+    // Keys of other types cannot travel, so their space is invalidated
+    sender.invalidate("users", "space2", List.of("composite"));
+    receiver.receive(message(jsonEntityMapper.writeEntityToJson(flush(sender).get(0))));
+
+    assertEquals(List.of("refresh space1:a", "space2:*"), applied);
+  }
+
+  @Test
+  void testRefreshesOfASpaceAreBatched() throws Exception {
+    CacheInvalidationBus sender = newBus(500);
+    CacheInvalidationBus receiver = newBus(500);
+    List<String> applied = new ArrayList<>();
+    receiver.register("users", new CacheInvalidationBus.Target() {
+      @Override
+      public void invalidateLocally(String spaceId, Object key) {
+        applied.add(spaceId + ":" + key);
+      }
+
+      @Override
+      public void invalidateSpaceLocally(String spaceId) {
+        applied.add(spaceId + ":*");
+      }
+
+      @Override
+      public void refreshAllLocally(String spaceId, Collection<Object> keys) {
+        applied.add("refresh " + spaceId + ":" + keys);
+      }
+    });
+
+    sender.refresh("users", "space1", "a");
+    sender.refresh("users", "space2", "c");
+    sender.refresh("users", "space1", "b");
+    receiver.receive(message(jsonEntityMapper.writeEntityToJson(flush(sender).get(0))));
+
+    assertEquals(List.of("refresh space1:[a, b]", "refresh space2:[c]"), applied);
+  }
+
+  @Test
+  void testUnreadableMessageIsAcknowledged() {
+    CacheInvalidationBus bus = newBus(500);
+    BasicAcknowledgeablePubsubMessage garbage = message("not json");
+
+    bus.receive(garbage);
+
+    verify(garbage).ack();
+  }
+
+  private CacheInvalidationBus newBus(int maxBatchSize) {
+    return new CacheInvalidationBus(publisher, mock(PubSubSubscriberOperations.class),
+        mock(PubSubAdmin.class), taskScheduler, gcpServiceProject, jsonEntityMapper, TOPIC_PREFIX,
+        Duration.ofMillis(100), maxBatchSize);
+  }
+
+  private List<CacheInvalidationBus.InvalidationMessage> flush(CacheInvalidationBus bus)
+      throws Exception {
+    bus.flush();
+    ArgumentCaptor<String> payloads = ArgumentCaptor.forClass(String.class);
+    verify(publisher, atLeast(0)).publish(eq(TOPIC_PREFIX), payloads.capture());
+    List<CacheInvalidationBus.InvalidationMessage> messages = new ArrayList<>();
+    for (String payload : payloads.getAllValues()) {
+      messages.add(
+          jsonEntityMapper.readJsonToEntity(payload, CacheInvalidationBus.InvalidationMessage.class));
+    }
+    return messages;
+  }
+
+  private static BasicAcknowledgeablePubsubMessage message(String payload) {
+    BasicAcknowledgeablePubsubMessage message = mock(BasicAcknowledgeablePubsubMessage.class);
+    when(message.getPubsubMessage())
+        .thenReturn(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(payload)).build());
+    return message;
+  }
+
+  private static CacheInvalidationBus.Target recordingTarget(List<String> applied) {
+    return new CacheInvalidationBus.Target() {
+      @Override
+      public void invalidateLocally(String spaceId, Object key) {
+        applied.add(spaceId + ":" + key);
+      }
+
+      @Override
+      public void invalidateSpaceLocally(String spaceId) {
+        applied.add(spaceId + ":*");
+      }
+
+      @Override
+      public void refreshLocally(String spaceId, Object key) {
+        applied.add("refresh " + spaceId + ":" + key);
+      }
+    };
+  }
+
+  private static CacheInvalidationBus.Invalidation keyInvalidation(
+      String cache, String spaceId, String key) {
+    return new CacheInvalidationBus.Invalidation(
+        cache, spaceId, key, CacheInvalidationBus.KeyType.STRING, false);
+  }
+
+  private static CacheInvalidationBus.Invalidation spaceInvalidation(String cache, String spaceId) {
+    return new CacheInvalidationBus.Invalidation(cache, spaceId, null, null, false);
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.Test;
+
+public class CacheLayoutTest {
+
+  @Test
+  void tenantKeysOfDifferentSpacesDiffer() {
+    assertEquals(new TenantKey<>("sp1", "k"), new TenantKey<>("sp1", "k"));
+    assertEquals(new TenantKey<>(null, "k").hashCode(), new TenantKey<>(null, "k").hashCode());
+    assertNotEquals(new TenantKey<>("sp1", "k"), new TenantKey<>("sp2", "k"));
+    assertNotEquals(new TenantKey<>("sp1", "k"), new TenantKey<>(null, "k"));
+    assertEquals("sp1|k", new TenantKey<>("sp1", "k").toString());
+  }
+
+  @Test
+  void sharedLayoutKeepsSpacesApart() {
+    SharedCacheLayout<String, String> layout = new SharedCacheLayout<>(Caffeine.newBuilder());
+    layout.put("sp1", "k", "one");
+    layout.put("sp2", "k", "two");
+    layout.put(null, "k", "global");
+
+    assertEquals("one", layout.get("sp1", "k"));
+    assertEquals("two", layout.get("sp2", "k"));
+    assertEquals(Map.of("k", "global"), layout.asMap(null));
+
+    layout.invalidateSpace("sp1");
+    assertNull(layout.get("sp1", "k"));
+    assertEquals("two", layout.get("sp2", "k"));
+    assertEquals(2, layout.estimatedSize());
+  }
+
+  @Test
+  void sharedLayoutLookupsMatchStoredKeysAndCountStats() {
+    SharedCacheLayout<Long, String> layout = new SharedCacheLayout<>(Caffeine.newBuilder().recordStats());
+    List<Cache<?, ?>> caches = new ArrayList<>();
+    layout.addCacheListener(new CacheLayout.CacheListener() {
+      @Override
+      public void cacheCreated(String spaceId, Cache<?, ?> cache) {
+        caches.add(cache);
+      }
+
+      @Override
+      public void cacheRemoved(String spaceId) {
+      }
+    });
+    layout.put("sp1", 7L, "seven");
+    layout.put(null, 7L, "global");
+
+    assertEquals("seven", layout.get("sp1", 7L));
+    assertEquals("global", layout.get(null, 7L));
+    assertNull(layout.get("sp2", 7L));
+    assertNull(layout.get("sp1", 8L));
+
+    assertEquals(2, layout.estimatedSize());
+    assertEquals(2, caches.get(0).stats().hitCount());
+    assertEquals(2, caches.get(0).stats().missCount());
+  }
+
+  @Test
+  void lookupKeysAndTenantKeysAreEqualBothWays() {
+    TenantKey<Long> stored = new TenantKey<>("sp1", 7L);
+    SharedCacheLayout.LookupKey probe = new SharedCacheLayout.LookupKey().set("sp1", 7L);
+
+    assertEquals(stored.hashCode(), probe.hashCode());
+    assertTrue(probe.equals(stored));
+    assertTrue(stored.equals(probe));
+    assertFalse(new TenantKey<>("sp2", 7L).equals(probe));
+    assertFalse(new TenantKey<>(null, 7L).equals(probe));
+    assertFalse(new TenantKey<>("sp1", 8L).equals(probe));
+  }
+
+  @Test
+  void partitionedLayoutBoundsEachSpaceOnItsOwn() {
+    Map<String, Cache<String, String>> partitions = new ConcurrentHashMap<>();
+    PartitionedCacheLayout<String, String> layout = new PartitionedCacheLayout<>(spaceId -> {
+      Cache<String, String> partition =
+          Caffeine.newBuilder().maximumSize("small".equals(spaceId) ? 2 : 100).executor(Runnable::run).build();
+      partitions.put(String.valueOf(spaceId), partition);
+      return partition;
+    });
+
+    layout.put("small", "keep", "v");
+    for (int i = 0; i < 50; i++) {
+      layout.put("large", "k" + i, "v" + i);
+    }
+    partitions.values().forEach(Cache::cleanUp);
+
+    assertEquals("v", layout.get("small", "keep"), "A large space must not evict a small one");
+    assertEquals(50, layout.asMap("large").size());
+
+    for (int i = 0; i < 10; i++) {
+      layout.put("small", "k" + i, "v" + i);
+    }
+    partitions.get("small").cleanUp();
+    assertTrue(layout.asMap("small").size() <= 2, "Each space is bounded by its own quota");
+
+    layout.invalidateAll("large", List.of("k0", "k1"));
+    assertNull(layout.get("large", "k0"));
+    layout.invalidateSpace("large");
+    assertNull(layout.get("large", "k2"));
+    assertEquals(Map.of(), layout.asMap("large"));
+  }
+}
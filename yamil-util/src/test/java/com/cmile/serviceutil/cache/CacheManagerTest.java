@@ -18,12 +18,23 @@ package com.cmile.serviceutil.cache;
 
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import com.cmile.serviceutil.exception.ConnectionParamsNotFoundException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskRejectedException;
 
 public class CacheManagerTest {
 
@@ -89,4 +100,242 @@ public class CacheManagerTest {
     CacheManager<String, String> emptyCacheManager = new CacheManager<>(1, TimeUnit.MINUTES, 10);
     assertThrows(IllegalStateException.class, () -> emptyCacheManager.getCache("key"));
   }
+
+  @Test
+  void testRefreshAheadServesStaleValueWhileReloading() throws InterruptedException {
+    AtomicInteger version = new AtomicInteger();
+    CacheManager<String, String> refreshing =
+        new CacheManager<>(1, TimeUnit.MINUTES, 10, Duration.ofMillis(50), Duration.ofMinutes(1));
+    refreshing.setLoader(key -> {
+      if (version.get() > 0) {
+        sleepQuietly(200);
+      }
+      return key + version.incrementAndGet();
+    });
+
+    assertEquals("key1", refreshing.getCache("key"));
+    Thread.sleep(100);
+    // Past refreshAfterWrite: the stale value is returned and a reload starts in the background
+    assertEquals("key1", refreshing.getCache("key"));
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!"key2".equals(refreshing.getCache("key"))) {
+      assertTrue(System.currentTimeMillis() < deadline, "Background refresh did not complete");
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  void testRefreshAheadRunsLoadsOnTheRefreshExecutor() {
+    AtomicInteger executed = new AtomicInteger();
+    CacheManager<String, String> refreshing =
+        new CacheManager<>(1, TimeUnit.MINUTES, 10, Duration.ofMinutes(1), Duration.ofMinutes(1));
+    refreshing.setLoader(loaderFunction);
+    refreshing.setRefreshExecutor(task -> {
+      executed.incrementAndGet();
+      task.run();
+    });
+
+    assertEquals("Value for key", refreshing.getCache("key"));
+    assertTrue(executed.get() > 0);
+
+    // A saturated executor leaves the load to the calling thread
+    refreshing.setRefreshExecutor(task -> {
+      throw new TaskRejectedException("full");
+    });
+    assertEquals("Value for other", refreshing.getCache("other"));
+  }
+
+  @Test
+  void testRefreshAheadFallsBackToLastGoodValue() throws InterruptedException {
+    AtomicInteger calls = new AtomicInteger();
+    CacheManager<String, String> refreshing = new CacheManager<>(
+        100, TimeUnit.MILLISECONDS, 10, Duration.ofMinutes(1), Duration.ofMinutes(1));
+    refreshing.setLoader(key -> {
+      if (calls.incrementAndGet() > 1) {
+        throw new IllegalStateException("Platform service is down");
+      }
+      return "Value for " + key;
+    });
+
+    assertEquals("Value for key", refreshing.getCache("key"));
+    Thread.sleep(200);
+    // Expired and the loader fails, so the last good value is served
+    assertEquals("Value for key", refreshing.getCache("key"));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  void testRefreshAheadWithoutLastGoodValueRethrows() {
+    CacheManager<String, String> refreshing =
+        new CacheManager<>(1, TimeUnit.MINUTES, 10, Duration.ofMinutes(1), Duration.ofMinutes(1));
+    refreshing.setLoader(key -> {
+      throw new IllegalArgumentException("Unknown " + key);
+    });
+
+    assertThrows(IllegalArgumentException.class, () -> refreshing.getCache("key"));
+  }
+
+  @Test
+  void testGetAllLoadsMissesWithOneBulkCall() {
+    AtomicInteger bulkCalls = new AtomicInteger();
+    cacheManager.setBulkLoader(keys -> {
+      bulkCalls.incrementAndGet();
+      Map<String, String> values = new HashMap<>();
+      keys.stream().filter(key -> !key.equals("unknown")).forEach(key -> values.put(key, "Bulk " + key));
+      return values;
+    });
+    cacheManager.putCache("cached", "cachedValue");
+
+    Map<String, String> values = cacheManager.getAll(List.of("cached", "a", "b", "unknown"));
+
+    assertEquals(1, bulkCalls.get());
+    assertEquals(Map.of("cached", "cachedValue", "a", "Bulk a", "b", "Bulk b"), values);
+    assertEquals("Bulk a", cacheManager.getCache("a"));
+  }
+
+  @Test
+  void testGetCacheThrowsForKeysTheBulkLoaderLeftOut() {
+    AtomicInteger loads = new AtomicInteger();
+    CacheManager<String, String> negative =
+        new CacheManager<>(1, TimeUnit.MINUTES, 10) {
+          @Override
+          protected RuntimeException missingFromBulkLoad(String key) {
+            return new ConnectionParamsNotFoundException("No connection params for " + key);
+          }
+        };
+    negative.setNegativeCaching(Duration.ofMinutes(1), 10);
+    negative.setLoader(key -> {
+      loads.incrementAndGet();
+      throw new ConnectionParamsNotFoundException("No connection params for " + key);
+    });
+    negative.setBulkLoader(keys -> Map.of());
+
+    assertEquals(Map.of(), negative.getAll(List.of("unknown")));
+
+    ConnectionParamsNotFoundException thrown =
+        assertThrows(ConnectionParamsNotFoundException.class, () -> negative.getCache("unknown"));
+    assertEquals("No connection params for unknown", thrown.getMessage());
+    assertEquals(0, loads.get(), "The bulk miss should be answered from the negative cache");
+  }
+
+  @Test
+  void testGetAllWithoutBulkLoaderUsesLoader() {
+    assertEquals(Map.of("a", "Value for a", "b", "Value for b"), cacheManager.getAll(List.of("a", "b")));
+  }
+
+  @Test
+  void testRefreshAheadGetAllUsesBulkLoader() {
+    AtomicInteger bulkCalls = new AtomicInteger();
+    CacheManager<String, String> refreshing =
+        new CacheManager<>(1, TimeUnit.MINUTES, 10, Duration.ofMinutes(1), Duration.ofMinutes(1));
+    refreshing.setLoader(loaderFunction);
+    refreshing.setBulkLoader(keys -> {
+      bulkCalls.incrementAndGet();
+      Map<String, String> values = new HashMap<>();
+      keys.forEach(key -> values.put(key, "Bulk " + key));
+      return values;
+    });
+
+    assertEquals(Map.of("a", "Bulk a", "b", "Bulk b"), refreshing.getAll(List.of("a", "b")));
+    assertEquals(1, bulkCalls.get());
+  }
+
+  private static void sleepQuietly(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  void testNegativeCachingRemembersMissingKeys() {
+    AtomicInteger loads = new AtomicInteger();
+    CacheManager<String, String> negative = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    negative.setNegativeCaching(Duration.ofMinutes(1), 10);
+    negative.setLoader(key -> {
+      loads.incrementAndGet();
+      if (key.startsWith("unknown")) {
+        throw new ConnectionParamsNotFoundException("No connection params for " + key);
+      }
+      return key.startsWith("absent") ? null : "Value for " + key;
+    });
+
+    assertNull(negative.getCache("absent"));
+    assertNull(negative.getCache("absent"));
+    assertEquals("not found", negative.getNegativeEntry("absent").getReason());
+
+    ConnectionParamsNotFoundException original =
+        assertThrows(ConnectionParamsNotFoundException.class, () -> negative.getCache("unknown"));
+    ConnectionParamsNotFoundException replayed =
+        assertThrows(ConnectionParamsNotFoundException.class, () -> negative.getCache("unknown"));
+    assertEquals("No connection params for unknown", replayed.getMessage());
+    // Every hit gets its own exception, caused by the one the load failed with
+    assertNotSame(replayed,
+        assertThrows(ConnectionParamsNotFoundException.class, () -> negative.getCache("unknown")));
+    assertSame(original, replayed.getCause());
+    assertEquals(2, loads.get(), "Missing keys should be loaded once");
+
+    negative.invalidateNegative("unknown");
+    assertThrows(ConnectionParamsNotFoundException.class, () -> negative.getCache("unknown"));
+    assertEquals(3, loads.get());
+
+    negative.putCache("absent", "provisioned");
+    assertNull(negative.getNegativeEntry("absent"));
+    assertEquals("provisioned", negative.getCache("absent"));
+  }
+
+  @Test
+  void testGetAllWithoutBulkLoaderRemembersMissingKeys() {
+    AtomicInteger loads = new AtomicInteger();
+    CacheManager<String, String> negative = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    negative.setNegativeCaching(Duration.ofMinutes(1), 10);
+    negative.setLoader(key -> {
+      loads.incrementAndGet();
+      if (key.equals("unknown")) {
+        throw new ConnectionParamsNotFoundException("No connection params for " + key);
+      }
+      return "Value for " + key;
+    });
+
+    assertEquals(Map.of("a", "Value for a"), negative.getAll(List.of("a", "unknown")));
+    assertThrows(ConnectionParamsNotFoundException.class, () -> negative.getCache("unknown"));
+    assertEquals(2, loads.get());
+  }
+
+  @Test
+  void testNegativeCachingIgnoresTransientFailures() {
+    AtomicInteger loads = new AtomicInteger();
+    CacheManager<String, String> negative = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    negative.setNegativeCaching(Duration.ofMinutes(1), 10);
+    negative.setLoader(key -> {
+      loads.incrementAndGet();
+      throw new IllegalStateException("Secret Manager unavailable");
+    });
+
+    assertThrows(IllegalStateException.class, () -> negative.getCache("a"));
+    assertThrows(IllegalStateException.class, () -> negative.getCache("a"));
+    assertEquals(2, loads.get());
+    assertNull(negative.getNegativeEntry("a"));
+  }
+
+  @Test
+  void testGetAllSkipsKeysKnownToBeMissing() {
+    AtomicInteger bulkCalls = new AtomicInteger();
+    CacheManager<String, String> negative = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    negative.setNegativeCaching(Duration.ofMinutes(1), 10);
+    negative.setLoader(loaderFunction);
+    negative.setBulkLoader(keys -> {
+      bulkCalls.incrementAndGet();
+      Map<String, String> values = new HashMap<>();
+      keys.stream().filter(key -> !key.equals("missing")).forEach(key -> values.put(key, "Value for " + key));
+      return values;
+    });
+
+    assertEquals(Map.of("a", "Value for a"), negative.getAll(List.of("a", "missing")));
+    assertEquals(Map.of("a", "Value for a"), negative.getAll(List.of("a", "missing")));
+    assertEquals(1, bulkCalls.get(), "The missing key should not be loaded again");
+    assertNull(negative.getCache("missing"));
+  }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class CacheMemoryBudgetTest {
+
+  private static Cache<String, String> weightedCache(long maxBytes) {
+    return Caffeine.newBuilder().maximumWeight(maxBytes).<String, String>weigher((k, v) -> v.length()).build();
+  }
+
+  private static long maximumOf(Cache<?, ?> cache) {
+    return cache.policy().eviction().orElseThrow().getMaximum();
+  }
+
+  @Test
+  void testCachesWithinBudgetGetWhatTheyAskFor() {
+    CacheMemoryBudget budget = new CacheMemoryBudget(1000);
+    Cache<String, String> cache = weightedCache(400);
+    budget.register("a", cache, 400);
+
+    assertEquals(400, maximumOf(cache));
+    assertEquals(Map.of("a", 400L), budget.getAllocations());
+  }
+
+  @Test
+  void testBudgetIsSplitInProportionWhenOversubscribed() {
+    CacheMemoryBudget budget = new CacheMemoryBudget(1000);
+    Cache<String, String> small = weightedCache(500);
+    Cache<String, String> large = weightedCache(1500);
+    budget.register("small", small, 500);
+    budget.register("large", large, 1500);
+
+    assertEquals(250, maximumOf(small));
+    assertEquals(750, maximumOf(large));
+
+    budget.unregister("large");
+    assertEquals(500, maximumOf(small), "Released bytes should go back to the remaining caches");
+  }
+
+  @Test
+  void testCountBoundedCachesAreRejected() {
+    CacheMemoryBudget budget = new CacheMemoryBudget(1000);
+    assertThrows(IllegalArgumentException.class,
+        () -> budget.register("count", Caffeine.newBuilder().maximumSize(10).build(), 100));
+  }
+
+  @Test
+  void testBudgetIsParsedAsShareOrSize() {
+    assertEquals(512L * 1024 * 1024, CacheMemoryBudget.of("512MB").getTotalBytes());
+    assertEquals(Runtime.getRuntime().maxMemory() / 4, CacheMemoryBudget.of("25%").getTotalBytes(), 1.0);
+  }
+}
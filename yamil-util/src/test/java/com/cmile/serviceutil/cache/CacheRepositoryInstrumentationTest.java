@@ -0,0 +1,140 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.metric.CacheInstrumentation;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+public class CacheRepositoryInstrumentationTest {
+
+  private SimpleMeterRegistry meterRegistry;
+  private CacheMetricsRegistry cacheMetricsRegistry;
+  private GCPServiceProject gcpServiceProject;
+
+  @BeforeEach
+  void setUp() {
+    gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getApplicationName()).thenReturn("test-service");
+    when(gcpServiceProject.getAppDeploymentScope()).thenReturn("SPACE");
+    meterRegistry = new SimpleMeterRegistry();
+    cacheMetricsRegistry = new CacheMetricsRegistry(meterRegistry, gcpServiceProject);
+    ContextInfo ctx = new ContextInfo();
+    ctx.setSpaceId("space1");
+    RequestContext.setRequestContextDetails(ctx);
+  }
+
+  @AfterEach
+  void tearDown() {
+    RequestContext.clear();
+  }
+
+  @Test
+  void testHitsAndMissesAreCountedExactly() throws Exception {
+    cacheMetricsRegistry.setTimingSampleRate(4);
+    UserRepository repository = newRepository();
+    repository.put("a", "A");
+
+    for (int i = 0; i < 100; i++) {
+      repository.get("a");
+    }
+    repository.get("b");
+    repository.remove("a");
+
+    assertEquals(100.0, meterRegistry.get(CacheInstrumentation.LOOKUP_METER)
+        .tags("cache", "users", "result", "hit").counter().count());
+    assertEquals(1.0, meterRegistry.get(CacheInstrumentation.LOOKUP_METER)
+        .tags("cache", "users", "result", "miss").counter().count());
+    long timedGets = meterRegistry.get(CacheInstrumentation.OPERATION_METER)
+        .tags("cache", "users", "operation", "get").timer().count();
+    assertTrue(timedGets > 0 && timedGets < 101, "one get in four is timed, was " + timedGets);
+  }
+
+  @Test
+  void testEveryCallIsTimedWithoutSampling() throws Exception {
+    UserRepository repository = newRepository();
+
+    repository.put("a", "A");
+    repository.get("a");
+    repository.remove("a");
+
+    for (String operation : new String[] {"get", "put", "remove"}) {
+      assertEquals(1, meterRegistry.get(CacheInstrumentation.OPERATION_METER)
+          .tags("cache", "users", "operation", operation).timer().count());
+    }
+  }
+
+  private UserRepository newRepository() {
+    UserRepository repository = new UserRepository(gcpServiceProject);
+    repository.setCacheMetricsRegistry(cacheMetricsRegistry);
+    return repository;
+  }
+
+  private static class UserRepository extends AbstractCacheRepositoryImpl<String, String> {
+
+    UserRepository(GCPServiceProject gcpServiceProject) {
+      super(null, (MongoTemplate) null, gcpServiceProject);
+    }
+
+    @Override
+    public boolean isPartitionedBySpace() {
+      return true;
+    }
+
+    @Override
+    public String getCacheName() {
+      return "users";
+    }
+
+    @Override
+    public Class<String> getEntityClass() {
+      return String.class;
+    }
+
+    @Override
+    public long getMaxSize() {
+      return 100;
+    }
+
+    @Override
+    public String getKey(String entity) {
+      return entity.toLowerCase();
+    }
+
+    @Override
+    public String getKeyName() {
+      return "id";
+    }
+
+    @Override
+    public String getValue(String entity) {
+      return entity;
+    }
+  }
+}
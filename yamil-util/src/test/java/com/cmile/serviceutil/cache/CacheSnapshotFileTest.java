@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CacheSnapshotFileTest {
+
+  @TempDir Path directory;
+
+  @Test
+  void testWriteAndReadSections() throws IOException {
+    Path file = directory.resolve("test.snapshot");
+    BsonDocument token = new BsonDocument("_data", new BsonString("8263"));
+    ObjectId id = new ObjectId();
+    CacheSnapshotFile.write(file, 42L, List.of(
+        new CacheSnapshotFile.SectionSource("space1", token, 2, writer -> {
+          writer.entry("space1|a", new Document("name", "a"), id);
+          writer.entry("space1|b", new Document("name", "b"), null);
+        }),
+        new CacheSnapshotFile.SectionSource("space2", null, 0, writer -> { })));
+
+    CacheSnapshotFile.Snapshot snapshot = CacheSnapshotFile.read(file);
+
+    assertNotNull(snapshot);
+    assertEquals(42L, snapshot.createdAt());
+    assertEquals(2, snapshot.sections().size());
+    CacheSnapshotFile.Section space1 = snapshot.sections().get("space1");
+    assertEquals(token, space1.resumeToken());
+    List<Document> entries = new ArrayList<>();
+    space1.forEach(entries::add);
+    assertEquals(2, entries.size());
+    assertEquals("space1|a", entries.get(0).get("k"));
+    assertEquals("a", entries.get(0).get("v", Document.class).getString("name"));
+    assertEquals(id, entries.get(0).get("i"));
+    assertEquals(0, snapshot.sections().get("space2").entryCount());
+  }
+
+  @Test
+  void testCorruptSnapshotIsIgnored() throws IOException {
+    Path file = directory.resolve("corrupt.snapshot");
+    CacheSnapshotFile.write(file, 1L, List.of(new CacheSnapshotFile.SectionSource("space1", null, 1,
+        writer -> writer.entry("key", new Document("name", "value"), null))));
+
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(raf.length() - 2);
+      raf.write(0x7f);
+    }
+
+    assertNull(CacheSnapshotFile.read(file));
+  }
+
+  @Test
+  void testOtherFormatVersionIsIgnored() throws IOException {
+    Path file = directory.resolve("version.snapshot");
+    CacheSnapshotFile.write(file, 1L, List.of());
+
+    try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+      raf.seek(4);
+      raf.writeInt(CacheSnapshotFile.VERSION + 1);
+    }
+
+    assertNull(CacheSnapshotFile.read(file));
+    assertNull(CacheSnapshotFile.read(directory.resolve("missing.snapshot")));
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.bigquery.BigQueryService;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.metric.MetricsService;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityTransaction;
+import jakarta.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CacheSourceTest {
+
+  record Plan(String id, String space) {}
+
+  private GCPServiceProject gcpServiceProject;
+
+  @BeforeEach
+  void setUp() {
+    gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getAppDeploymentScope()).thenReturn("SPACE");
+  }
+
+  @AfterEach
+  void tearDown() {
+    RequestContext.clear();
+  }
+
+  @Test
+  void hydratesEachSpaceInItsOwnContext() throws Exception {
+    // The remote API answers with the plans of the space the call is made for
+    RemoteCacheSource<String, Plan> source = new RemoteCacheSource<>(
+        () -> List.of(new Plan("p1", currentSpace()), new Plan("p2", currentSpace())), null);
+    PlanRepository repository = new PlanRepository(source);
+
+    repository.hydrateCache("sp1");
+    repository.hydrateCache("sp2");
+
+    setSpace("sp1");
+    assertEquals("sp1", repository.get("p1").space());
+    setSpace("sp2");
+    assertEquals("sp2", repository.get("p2").space());
+  }
+
+  @Test
+  void missesReadThroughToTheSource() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    Map<String, Plan> remote = new ConcurrentHashMap<>(Map.of("p1", new Plan("p1", "sp1")));
+    RemoteCacheSource<String, Plan> source = new RemoteCacheSource<>(List::of, id -> {
+      loads.incrementAndGet();
+      return remote.get(id);
+    });
+    PlanRepository repository = new PlanRepository(source);
+    setSpace("sp1");
+
+    assertEquals("p1", repository.get("p1").id());
+    assertEquals("p1", repository.get("p1").id());
+    assertNull(repository.get("missing"));
+
+    assertEquals(2, loads.get());
+    assertEquals(1, repository.getSize());
+  }
+
+  @Test
+  void slowLoadsHoldUpNeitherOtherKeysNorLaterRemovals() throws Exception {
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    RemoteCacheSource<String, Plan> source = new RemoteCacheSource<>(List::of, id -> {
+      if (loads.incrementAndGet() == 1) {
+        loading.countDown();
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return new Plan(id, "sp1");
+    });
+    PlanRepository repository = new PlanRepository(source);
+    CompletableFuture<Plan> slow = CompletableFuture.supplyAsync(() -> {
+      setSpace("sp1");
+      try {
+        return repository.get("p1");
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    assertTrue(loading.await(5, TimeUnit.SECONDS));
+    setSpace("sp1");
+
+    // Another key loads while p1 is still loading, and removing p1 meanwhile keeps the load out
+    assertEquals("p2", repository.get("p2").id());
+    repository.remove("p1");
+    release.countDown();
+
+    assertEquals("p1", slow.get(5, TimeUnit.SECONDS).id());
+    assertEquals(1, repository.getSize());
+    assertEquals("p1", repository.get("p1").id());
+    assertEquals(3, loads.get());
+  }
+
+  @Test
+  void bigQuerySourceOnlyHydrates() throws Exception {
+    BigQueryService bigQueryService = mock(BigQueryService.class);
+    when(bigQueryService.query("select * from `sp1.plans`", Plan.class))
+        .thenReturn(List.of(new Plan("p1", "sp1")));
+    BigQueryCacheSource<String, Plan> source = new BigQueryCacheSource<>(bigQueryService, Plan.class,
+        () -> "select * from `" + currentSpace() + ".plans`");
+    PlanRepository repository = new PlanRepository(source);
+
+    repository.hydrateCache("sp1");
+
+    setSpace("sp1");
+    assertEquals("p1", repository.get("p1").id());
+    assertNull(repository.get("p2"));
+    verify(bigQueryService, times(1)).query(anyString(), eq(Plan.class));
+    assertThrows(UnsupportedOperationException.class, () -> source.load("p2"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void jpaSourceStreamsInAReadOnlyTransaction() {
+    EntityManagerFactory entityManagerFactory = mock(EntityManagerFactory.class, RETURNS_DEEP_STUBS);
+    EntityManager entityManager = mock(EntityManager.class);
+    EntityTransaction transaction = mock(EntityTransaction.class);
+    TypedQuery<Plan> query = mock(TypedQuery.class, RETURNS_SELF);
+    when(entityManagerFactory.getMetamodel().entity(Plan.class).getName()).thenReturn("Plan");
+    when(entityManagerFactory.createEntityManager()).thenReturn(entityManager);
+    when(entityManager.getTransaction()).thenReturn(transaction);
+    when(transaction.isActive()).thenReturn(true);
+    when(entityManager.createQuery("select e from Plan e", Plan.class)).thenReturn(query);
+    when(query.getResultStream()).thenReturn(Stream.of(
+        new Plan("p1", "sp1"), new Plan("p2", "sp1"), new Plan("p3", "sp1")));
+    when(entityManager.find(Plan.class, "p1")).thenReturn(new Plan("p1", "sp1"));
+    JpaCacheSource<String, Plan> source = new JpaCacheSource<>(entityManagerFactory, Plan.class, 2);
+
+    List<Plan> loaded = new ArrayList<>();
+    assertEquals(3, source.loadAll(loaded::add));
+    assertEquals("p1", source.load("p1").id());
+
+    assertEquals(3, loaded.size());
+    verify(entityManager, times(1)).clear();
+    verify(transaction).rollback();
+    verify(entityManager, times(2)).close();
+  }
+
+  private static String currentSpace() {
+    return RequestContext.getRequestContextDetails().getSpaceId();
+  }
+
+  private static void setSpace(String spaceId) {
+    ContextInfo ctx = new ContextInfo();
+    ctx.setSpaceId(spaceId);
+    RequestContext.setRequestContextDetails(ctx);
+  }
+
+  private class PlanRepository extends AbstractCacheRepositoryImpl<String, Plan> {
+
+    PlanRepository(CacheSource<String, Plan> source) {
+      super(mock(MetricsService.class), source, gcpServiceProject);
+    }
+
+    @Override
+    public String getCacheName() {
+      return "plans";
+    }
+
+    @Override
+    public Class<Plan> getEntityClass() {
+      return Plan.class;
+    }
+
+    @Override
+    public long getMaxSize() {
+      return 100;
+    }
+
+    @Override
+    public String getKey(Plan entity) {
+      return entity.id();
+    }
+
+    @Override
+    public String getKeyName() {
+      return "id";
+    }
+
+    @Override
+    public Plan getValue(Plan entity) {
+      return entity;
+    }
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.task.TaskExecutor;
+
+public class CacheTaskExecutorTest {
+
+  private ExecutorService threads;
+  private TaskExecutor taskExecutor;
+  private GCPServiceProject gcpServiceProject;
+
+  @BeforeEach
+  void setUp() {
+    threads = Executors.newFixedThreadPool(8);
+    taskExecutor = threads::execute;
+    gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getDu()).thenReturn("du");
+    when(gcpServiceProject.getApplicationName()).thenReturn("app");
+  }
+
+  @AfterEach
+  void tearDown() {
+    threads.shutdownNow();
+  }
+
+  @Test
+  void testHydrationIsBoundedGloballyAndPerRepository() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    Map<String, AtomicInteger> runningPerCache = new ConcurrentHashMap<>();
+    Map<String, AtomicInteger> maxRunningPerCache = new ConcurrentHashMap<>();
+    Map<String, String> spaceSeenByHydration = new ConcurrentHashMap<>();
+
+    List<CacheRepository<?, ?>> repositories = List.of(
+        repository("a", running, maxRunning, runningPerCache, maxRunningPerCache, spaceSeenByHydration),
+        repository("b", running, maxRunning, runningPerCache, maxRunningPerCache, spaceSeenByHydration),
+        repository("c", running, maxRunning, runningPerCache, maxRunningPerCache, spaceSeenByHydration));
+    CacheTaskExecutor executor =
+        new CacheTaskExecutor(repositories, taskExecutor, gcpServiceProject, 3, 2, Set.of());
+
+    HydrationProgress progress = executor.hydrate(List.of("s1", "s2", "s3", "s4", "s5"));
+    progress.getCompletion().get(10, TimeUnit.SECONDS);
+
+    assertEquals(15, progress.getTotal());
+    assertEquals(15, progress.getSucceeded());
+    assertEquals(1.0, progress.getFraction());
+    assertTrue(maxRunning.get() <= 3);
+    maxRunningPerCache.values().forEach(max -> assertTrue(max.get() <= 2));
+    // Every hydration saw its own space in the request context
+    assertEquals(15, spaceSeenByHydration.size());
+    spaceSeenByHydration.forEach((task, space) -> assertTrue(task.endsWith(":" + space)));
+  }
+
+  @Test
+  void testCriticalCachesDriveReadiness() throws Exception {
+    CacheRepository<?, ?> critical = mock(CacheRepository.class);
+    when(critical.getCacheName()).thenReturn("critical");
+    CacheRepository<?, ?> other = mock(CacheRepository.class);
+    when(other.getCacheName()).thenReturn("other");
+    doThrow(new IllegalStateException("boom")).when(other).hydrateCache(anyString());
+
+    CacheTaskExecutor executor = new CacheTaskExecutor(
+        List.of(critical, other), taskExecutor, gcpServiceProject, 2, 1, Set.of("critical"));
+    CacheReadinessHealthIndicator indicator = new CacheReadinessHealthIndicator(executor);
+    assertFalse(executor.isCriticalCachesWarm());
+    assertEquals("DOWN", indicator.health().getStatus().getCode());
+
+    HydrationProgress progress = executor.hydrate(List.of("s1", "s2"));
+    progress.getCompletion("critical").get(10, TimeUnit.SECONDS);
+    assertThrows(ExecutionException.class, () -> progress.getCompletion().get(10, TimeUnit.SECONDS));
+
+    assertEquals(2, progress.getFailed());
+    assertTrue(executor.isCriticalCachesWarm());
+    assertEquals("UP", indicator.health().getStatus().getCode());
+
+    // Hydrating a newly provisioned space keeps a warm pod in rotation
+    HydrationProgress newSpace = executor.hydrate(List.of(critical), List.of("s3"));
+    assertEquals("UP", indicator.health().getStatus().getCode());
+    newSpace.getCompletion().get(10, TimeUnit.SECONDS);
+    assertTrue(executor.isCriticalCachesWarm());
+  }
+
+  @SuppressWarnings("unchecked")
+  private CacheRepository<?, ?> repository(String name, AtomicInteger running, AtomicInteger maxRunning,
+      Map<String, AtomicInteger> runningPerCache, Map<String, AtomicInteger> maxRunningPerCache,
+      Map<String, String> spaceSeenByHydration) {
+    CacheRepository<Object, Object> repository = mock(CacheRepository.class);
+    when(repository.getCacheName()).thenReturn(name);
+    doAnswer(invocation -> {
+      String spaceId = invocation.getArgument(0);
+      AtomicInteger cacheRunning = runningPerCache.computeIfAbsent(name, k -> new AtomicInteger());
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      maxRunningPerCache.computeIfAbsent(name, k -> new AtomicInteger())
+          .accumulateAndGet(cacheRunning.incrementAndGet(), Math::max);
+      spaceSeenByHydration.put(name + ":" + spaceId, RequestContext.getRequestContextDetails().getSpaceId());
+      Thread.sleep(20);
+      cacheRunning.decrementAndGet();
+      running.decrementAndGet();
+      return null;
+    }).when(repository).hydrateCache(anyString());
+    return repository;
+  }
+}
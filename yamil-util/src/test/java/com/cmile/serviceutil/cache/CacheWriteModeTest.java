@@ -0,0 +1,334 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_SELF;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.metric.MetricsService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+
+public class CacheWriteModeTest {
+
+  record Plan(String id, int version) {}
+
+  private GCPServiceProject gcpServiceProject;
+  private MongoTemplate mongoTemplate;
+  private BulkOperations bulkOperations;
+  private List<String> flushedSpaces;
+  private MetricsService metricsService;
+
+  @BeforeEach
+  void setUp() {
+    gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getAppDeploymentScope()).thenReturn("SPACE");
+    mongoTemplate = mock(MongoTemplate.class);
+    bulkOperations = mock(BulkOperations.class, RETURNS_SELF);
+    flushedSpaces = new ArrayList<>();
+    metricsService = mock(MetricsService.class);
+    when(mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Plan.class)).thenAnswer(invocation -> {
+      flushedSpaces.add(RequestContext.getRequestContextDetails().getSpaceId());
+      return bulkOperations;
+    });
+  }
+
+  @AfterEach
+  void tearDown() {
+    RequestContext.clear();
+  }
+
+  @Test
+  void writeThroughPersistsBeforeCaching() throws Exception {
+    PlanRepository repository = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_THROUGH, 10, 100);
+    setSpace("sp1");
+
+    repository.put("p1", new Plan("p1", 1));
+    repository.remove("p1");
+
+    verify(mongoTemplate).save(new Plan("p1", 1));
+    verify(mongoTemplate).remove(repository.getKeyQuery("p1"), Plan.class);
+
+    // A failed save leaves the cache as it was
+    when(mongoTemplate.save(new Plan("p2", 1))).thenThrow(new IllegalStateException("down"));
+    assertThrows(IllegalStateException.class, () -> repository.put("p2", new Plan("p2", 1)));
+    assertNull(repository.get("p2"));
+  }
+
+  @Test
+  void writeBehindCoalescesWritesPerSpace() throws Exception {
+    PlanRepository repository = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_BEHIND, 10, 100);
+    setSpace("sp1");
+    repository.put("p1", new Plan("p1", 1));
+    repository.put("p1", new Plan("p1", 2));
+    repository.put("p2", new Plan("p2", 1));
+    repository.remove("p2");
+    setSpace("sp2");
+    repository.put("p1", new Plan("p1", 7));
+
+    verify(mongoTemplate, never()).bulkOps(any(BulkOperations.BulkMode.class), eq(Plan.class));
+    assertEquals(new Plan("p1", 2), getIn(repository, "sp1", "p1"));
+
+    repository.shutdown();
+
+    assertEquals(List.of("sp1", "sp2"), flushedSpaces.stream().sorted().toList());
+    verify(bulkOperations).replaceOne(eq(repository.getKeyQuery("p1")), eq(new Plan("p1", 2)),
+        any(FindAndReplaceOptions.class));
+    verify(bulkOperations).replaceOne(eq(repository.getKeyQuery("p1")), eq(new Plan("p1", 7)),
+        any(FindAndReplaceOptions.class));
+    verify(bulkOperations).remove(repository.getKeyQuery("p2"));
+    verify(bulkOperations, times(2)).replaceOne(any(Query.class), any(), any(FindAndReplaceOptions.class));
+    verify(bulkOperations, times(2)).execute();
+  }
+
+  @Test
+  void writeBehindFlushesAFullBatch() throws Exception {
+    PlanRepository repository = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_BEHIND, 2, 100);
+    setSpace("sp1");
+
+    repository.put("p1", new Plan("p1", 1));
+    verify(bulkOperations, never()).execute();
+    repository.put("p2", new Plan("p2", 1));
+
+    // Without a cacheWriteBehindExecutor the writer that fills the batch flushes it
+    verify(bulkOperations, times(1)).execute();
+    assertEquals(List.of("sp1"), flushedSpaces);
+  }
+
+  @Test
+  void writersFlushOnceTooManyWritesArePending() throws Exception {
+    PlanRepository repository = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_BEHIND, 2, 3);
+    // An executor too busy to run the flushes it is given
+    List<Runnable> queuedFlushes = new ArrayList<>();
+    repository.setCacheWriteBehindExecutor(queuedFlushes::add);
+
+    setSpace("sp1");
+    repository.put("p1", new Plan("p1", 1));
+    repository.put("p2", new Plan("p2", 1));
+    setSpace("sp2");
+    repository.put("p1", new Plan("p1", 1));
+    assertEquals(1, queuedFlushes.size());
+    verify(bulkOperations, never()).execute();
+
+    repository.put("p2", new Plan("p2", 1));
+
+    verify(bulkOperations, times(2)).execute();
+    queuedFlushes.forEach(Runnable::run);
+    verify(bulkOperations, times(2)).execute();
+  }
+
+  @Test
+  void failedFlushKeepsTheWritesQueued() throws Exception {
+    PlanRepository repository = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_BEHIND, 10, 100);
+    setSpace("sp1");
+    repository.put("p1", new Plan("p1", 1));
+    doAnswer(invocation -> {
+      throw new IllegalStateException("down");
+    }).when(bulkOperations).execute();
+
+    repository.flushWrites();
+    // Written again while the database was down: only the newer value is flushed later
+    repository.put("p1", new Plan("p1", 2));
+    doAnswer(invocation -> null).when(bulkOperations).execute();
+    repository.flushWrites();
+
+    verify(bulkOperations, times(2)).execute();
+    verify(bulkOperations, times(1)).replaceOne(eq(repository.getKeyQuery("p1")), eq(new Plan("p1", 2)),
+        any(FindAndReplaceOptions.class));
+  }
+
+  @Test
+  void writesThatKeepFailingAreDroppedAndEvicted() throws Exception {
+    PlanRepository repository = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_BEHIND, 10, 100);
+    setSpace("sp1");
+    repository.put("p1", new Plan("p1", 1));
+    repository.put("p2", new Plan("p2", 1));
+    doAnswer(invocation -> {
+      throw new IllegalStateException("rejected");
+    }).when(bulkOperations).execute();
+
+    for (int i = 0; i < 4; i++) {
+      repository.flushWrites();
+    }
+    assertEquals(new Plan("p1", 1), repository.get("p1"));
+    repository.flushWrites();
+
+    verify(bulkOperations, times(5)).execute();
+    assertNull(repository.get("p1"), "A write that was never persisted must not stay cached");
+    assertNull(repository.get("p2"));
+    verify(metricsService).incrementCounter("cache.write.behind.dropped", 2, Map.of("entity_name", "plans"));
+    repository.flushWrites();
+    verify(bulkOperations, times(5)).execute();
+  }
+
+  @Test
+  void writersAreNotThrownAtWhenTheirFlushFails() throws Exception {
+    PlanRepository repository = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_BEHIND, 2, 3);
+    doAnswer(invocation -> {
+      throw new IllegalStateException("down");
+    }).when(bulkOperations).execute();
+    setSpace("sp1");
+
+    // p2 and p3 leave a full batch and p4 overflows the pending limit, each flushed by the writer
+    for (int i = 1; i <= 4; i++) {
+      repository.put("p" + i, new Plan("p" + i, 1));
+    }
+
+    verify(bulkOperations, times(3)).execute();
+    assertEquals(new Plan("p4", 1), repository.get("p4"));
+  }
+
+  @Test
+  void putsReachOtherReplicasOnceDurable() throws Exception {
+    PlanRepository writer = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_THROUGH, 10, 100);
+    CacheInvalidationBus bus = mock(CacheInvalidationBus.class);
+    writer.setCacheInvalidationBus(bus);
+    setSpace("sp1");
+
+    writer.put("p1", new Plan("p1", 2));
+    writer.remove("p2");
+
+    verify(bus).refresh("plans", "sp1", "p1");
+    verify(bus).invalidate("plans", "sp1", "p2");
+
+    PlanRepository behind = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_BEHIND, 10, 100);
+    CacheInvalidationBus behindBus = mock(CacheInvalidationBus.class);
+    behind.setCacheInvalidationBus(behindBus);
+    behind.put("p3", new Plan("p3", 1));
+    verify(behindBus, never()).refresh(any(), any(), any());
+    behind.flushWrites();
+    verify(behindBus).refresh("plans", "sp1", "p3");
+  }
+
+  @Test
+  void replicaReloadsKeysPutElsewhere() throws Exception {
+    PlanRepository replica = new PlanRepository(AbstractCacheRepositoryImpl.WriteMode.WRITE_THROUGH, 10, 100);
+    CacheInvalidationBus bus = mock(CacheInvalidationBus.class);
+    replica.setCacheInvalidationBus(bus);
+    ArgumentCaptor<CacheInvalidationBus.Target> target = ArgumentCaptor.forClass(CacheInvalidationBus.Target.class);
+    verify(bus).register(eq("plans"), target.capture());
+    setSpace("sp1");
+    replica.put("p1", new Plan("p1", 1));
+    when(mongoTemplate.find(replica.getKeysQuery(List.of("p1", "gone")), Plan.class))
+        .thenReturn(List.of(new Plan("p1", 2)));
+    // Reloads wait for the refresh executor instead of running on the subscriber thread
+    List<Runnable> queuedReloads = new ArrayList<>();
+    replica.setCacheRefreshExecutor(queuedReloads::add);
+    RequestContext.clear();
+
+    target.getValue().refreshAllLocally("sp1", List.of("p1", "gone"));
+
+    verify(mongoTemplate, never()).find(any(Query.class), eq(Plan.class));
+    assertEquals(1, queuedReloads.size());
+    queuedReloads.get(0).run();
+    assertEquals(new Plan("p1", 2), getIn(replica, "sp1", "p1"));
+    assertNull(getIn(replica, "sp1", "gone"));
+  }
+
+  private static Plan getIn(PlanRepository repository, String spaceId, String key) throws Exception {
+    setSpace(spaceId);
+    return repository.get(key);
+  }
+
+  private static void setSpace(String spaceId) {
+    ContextInfo ctx = new ContextInfo();
+    ctx.setSpaceId(spaceId);
+    RequestContext.setRequestContextDetails(ctx);
+  }
+
+  private class PlanRepository extends AbstractCacheRepositoryImpl<String, Plan> {
+
+    private final WriteMode writeMode;
+    private final int batchSize;
+    private final int maxPending;
+
+    PlanRepository(WriteMode writeMode, int batchSize, int maxPending) {
+      super(metricsService, mongoTemplate, gcpServiceProject);
+      this.writeMode = writeMode;
+      this.batchSize = batchSize;
+      this.maxPending = maxPending;
+    }
+
+    @Override
+    public WriteMode getWriteMode() {
+      return writeMode;
+    }
+
+    @Override
+    public int getWriteBehindBatchSize() {
+      return batchSize;
+    }
+
+    @Override
+    public int getWriteBehindMaxPending() {
+      return maxPending;
+    }
+
+    @Override
+    public String getCacheName() {
+      return "plans";
+    }
+
+    @Override
+    public Class<Plan> getEntityClass() {
+      return Plan.class;
+    }
+
+    @Override
+    public long getMaxSize() {
+      return 100;
+    }
+
+    @Override
+    public String getKey(Plan entity) {
+      return entity.id();
+    }
+
+    @Override
+    public String getKeyName() {
+      return "id";
+    }
+
+    @Override
+    public Plan getValue(Plan entity) {
+      return entity;
+    }
+  }
+}
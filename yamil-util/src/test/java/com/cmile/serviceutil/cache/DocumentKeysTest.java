@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class DocumentKeysTest {
+
+  @Test
+  void testEvictedKeysDropTheirDocument() {
+    DocumentKeys<String> keys = new DocumentKeys<>();
+    keys.put(1, "a");
+    keys.put(2, "b");
+
+    keys.removeKey("a");
+
+    assertEquals(Map.of(2, "b"), keys.copy());
+    assertNull(keys.removeId(1));
+    assertEquals("b", keys.removeId(2));
+    assertEquals(0, keys.size());
+  }
+
+  @Test
+  void testRekeyedDocumentsKeepOneMapping() {
+    DocumentKeys<String> keys = new DocumentKeys<>();
+    keys.put(1, "a");
+
+    assertEquals("a", keys.put(1, "b"));
+    // The old key is gone, evicting it must not drop the document
+    keys.removeKey("a");
+    assertEquals(Map.of(1, "b"), keys.copy());
+
+    // Another document taking the key over replaces the first one
+    keys.put(2, "b");
+    assertEquals(Map.of(2, "b"), keys.copy());
+  }
+}
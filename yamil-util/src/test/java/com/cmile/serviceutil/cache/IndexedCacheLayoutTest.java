@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public class IndexedCacheLayoutTest {
+
+  record Item(String id, String status, String owner) {}
+
+  @Test
+  void putReplacesTheIndexedValue() {
+    IndexedCacheLayout<String, Item> layout = sharedLayout();
+    layout.put("sp1", "a", new Item("a", "OPEN", "ann"));
+    layout.put("sp1", "b", new Item("b", "OPEN", "bob"));
+    layout.put("sp1", "c", new Item("c", "CLOSED", null));
+
+    assertEquals(Set.of("a", "b"), layout.findKeys("sp1", "status", "OPEN"));
+    assertEquals(Set.of("c"), layout.findKeys("sp1", "status", "CLOSED"));
+    assertEquals(Set.of("a"), layout.findKeys("sp1", "owner", "ann"));
+
+    layout.put("sp1", "a", new Item("a", "CLOSED", "ann"));
+
+    assertEquals(Set.of("b"), layout.findKeys("sp1", "status", "OPEN"));
+    assertEquals(Set.of("a", "c"), layout.findKeys("sp1", "status", "CLOSED"));
+  }
+
+  @Test
+  void removedEntriesLeaveTheIndex() {
+    IndexedCacheLayout<String, Item> layout = sharedLayout();
+    layout.put("sp1", "a", new Item("a", "OPEN", "ann"));
+    layout.put("sp1", "b", new Item("b", "OPEN", "bob"));
+
+    layout.invalidate("sp1", "a");
+    assertEquals(Set.of("b"), layout.findKeys("sp1", "status", "OPEN"));
+
+    layout.invalidateAll("sp1", List.of("b"));
+    assertTrue(layout.findKeys("sp1", "status", "OPEN").isEmpty());
+    assertTrue(layout.findKeys("sp1", "owner", "bob").isEmpty());
+  }
+
+  @Test
+  void indexesAreKeptPerSpace() {
+    IndexedCacheLayout<String, Item> layout = sharedLayout();
+    layout.put("sp1", "a", new Item("a", "OPEN", "ann"));
+    layout.put("sp2", "a", new Item("a", "OPEN", "ann"));
+    layout.put(null, "g", new Item("g", "OPEN", "ann"));
+
+    assertEquals(Set.of("a"), layout.findKeys("sp2", "status", "OPEN"));
+    assertEquals(Set.of("g"), layout.findKeys(null, "status", "OPEN"));
+
+    layout.invalidateSpace("sp1");
+    assertTrue(layout.findKeys("sp1", "status", "OPEN").isEmpty());
+    assertEquals(Set.of("a"), layout.findKeys("sp2", "status", "OPEN"));
+  }
+
+  @Test
+  void evictedEntriesLeaveTheIndex() {
+    AtomicLong nanos = new AtomicLong();
+    AtomicReference<IndexedCacheLayout<String, Item>> ref = new AtomicReference<>();
+    IndexedCacheLayout<String, Item> layout = new IndexedCacheLayout<>(new PartitionedCacheLayout<>(spaceId ->
+        Caffeine.newBuilder()
+            .maximumSize(2)
+            .expireAfterWrite(Duration.ofMinutes(1))
+            .ticker(nanos::get)
+            .executor(Runnable::run)
+            .evictionListener((String key, Item value, RemovalCause cause) ->
+                ref.get().evicted(spaceId, key, value))
+            .<String, Item>build()));
+    ref.set(layout);
+    layout.addIndex("status", Item::status);
+
+    for (String id : List.of("a", "b", "c", "d")) {
+      layout.put("sp1", id, new Item(id, "OPEN", null));
+    }
+    assertEquals(2, layout.findKeys("sp1", "status", "OPEN").size());
+
+    nanos.addAndGet(Duration.ofMinutes(2).toNanos());
+    layout.put("sp1", "e", new Item("e", "CLOSED", null));
+    assertTrue(layout.findKeys("sp1", "status", "OPEN").isEmpty());
+    assertEquals(Set.of("e"), layout.findKeys("sp1", "status", "CLOSED"));
+  }
+
+  @Test
+  void lookupsAreReadOnlyViews() {
+    IndexedCacheLayout<String, Item> layout = sharedLayout();
+    layout.put("sp1", "a", new Item("a", "OPEN", "ann"));
+
+    Set<String> keys = layout.findKeys("sp1", "status", "OPEN");
+    Collection<Item> items = layout.find("sp1", "status", "OPEN");
+    layout.put("sp1", "b", new Item("b", "OPEN", "bob"));
+
+    assertEquals(Set.of("a", "b"), keys);
+    assertEquals(2, items.size());
+    assertEquals(Set.of("ann", "bob"), Set.copyOf(items.stream().map(Item::owner).toList()));
+    assertThrows(UnsupportedOperationException.class, () -> keys.remove("a"));
+    assertThrows(UnsupportedOperationException.class, () -> items.clear());
+  }
+
+  @Test
+  void indexesMustBeDefinedUpFront() {
+    IndexedCacheLayout<String, Item> layout = sharedLayout();
+    assertThrows(IllegalArgumentException.class, () -> layout.findKeys("sp1", "unknown", "x"));
+    assertThrows(IllegalArgumentException.class, () -> layout.addIndex("status", Item::status));
+
+    layout.put("sp1", "a", new Item("a", "OPEN", "ann"));
+    assertThrows(IllegalStateException.class, () -> layout.addIndex("id", Item::id));
+  }
+
+  private static IndexedCacheLayout<String, Item> sharedLayout() {
+    IndexedCacheLayout<String, Item> layout =
+        new IndexedCacheLayout<>(new SharedCacheLayout<String, Item>(Caffeine.newBuilder()));
+    layout.addIndex("status", Item::status);
+    layout.addIndex("owner", Item::owner);
+    return layout;
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+public class ObjectSizeEstimatorTest {
+
+  static class Node {
+    private long id;
+    private String name;
+    private Node next;
+    private int[] values;
+  }
+
+  @Test
+  void testStringGrowsWithLength() {
+    long empty = ObjectSizeEstimator.estimate("");
+    long longer = ObjectSizeEstimator.estimate("x".repeat(1000));
+    assertTrue(empty > 0);
+    assertTrue(longer - empty >= 1000, "Every character should be counted");
+  }
+
+  @Test
+  void testObjectGraphIsWalked() {
+    Node node = new Node();
+    long shallow = ObjectSizeEstimator.estimate(node);
+    // header, long, two references and the array reference, aligned
+    assertEquals(32, shallow);
+
+    node.values = new int[100];
+    node.name = "node";
+    assertTrue(ObjectSizeEstimator.estimate(node) >= shallow + 400, "Referenced objects should be counted");
+  }
+
+  @Test
+  void testSharedAndCyclicReferencesAreCountedOnce() {
+    Node first = new Node();
+    Node second = new Node();
+    first.next = second;
+    second.next = first;
+    assertEquals(2 * ObjectSizeEstimator.estimate(new Node()), ObjectSizeEstimator.estimate(first));
+
+    Object[] twice = {first, first};
+    assertEquals(ObjectSizeEstimator.estimate(new Object[2]) + ObjectSizeEstimator.estimate(first),
+        ObjectSizeEstimator.estimate(twice));
+  }
+
+  @Test
+  void testCollectionsAndMapsAreEstimatedFromTheirContents() {
+    List<String> list = new ArrayList<>();
+    Map<String, String> map = new HashMap<>();
+    long emptyList = ObjectSizeEstimator.estimate(list);
+    long emptyMap = ObjectSizeEstimator.estimate(map);
+    for (int i = 0; i < 100; i++) {
+      list.add("value-" + i);
+      map.put("key-" + i, "value-" + i);
+    }
+    assertTrue(ObjectSizeEstimator.estimate(list) > emptyList + 100 * 16);
+    assertTrue(ObjectSizeEstimator.estimate(map) > emptyMap + 200 * 16);
+  }
+
+  @Test
+  void testWeighIsCappedToIntRange() {
+    assertEquals(0, ObjectSizeEstimator.weigh(null, null));
+    assertTrue(ObjectSizeEstimator.weigh("key", "value") > 0);
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.metric.CacheMetricsRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.Cache;
+
+public class TenantCacheManagerTest {
+
+  private GCPServiceProject gcpServiceProject;
+  private TenantCacheManager cacheManager;
+
+  @BeforeEach
+  void setUp() {
+    gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getAppDeploymentScope()).thenReturn("SPACE");
+    cacheManager = new TenantCacheManager(gcpServiceProject, "maximumSize=100",
+        Map.of("plans", "maximumSize=5,refreshAfterWrite=1h"), Set.of("secrets"));
+  }
+
+  @AfterEach
+  void tearDown() {
+    RequestContext.clear();
+  }
+
+  @Test
+  void keysAreScopedToTheSpace() {
+    Cache cache = cacheManager.getCache("orders");
+    setSpace("sp1");
+    cache.put("o1", "order of sp1");
+
+    setSpace("sp2");
+    assertNull(cache.get("o1"));
+    cache.put("o1", "order of sp2");
+
+    setSpace("sp1");
+    assertEquals("order of sp1", cache.get("o1", String.class));
+  }
+
+  @Test
+  void globalCachesAreSharedBySpaces() {
+    Cache cache = cacheManager.getCache("secrets");
+    setSpace("sp1");
+    cache.put("s1", "value");
+
+    setSpace("sp2");
+    assertEquals("value", cache.get("s1", String.class));
+  }
+
+  @Test
+  void evictSpaceOnlyDropsThatSpace() {
+    Cache orders = cacheManager.getCache("orders");
+    Cache secrets = cacheManager.getCache("secrets");
+    setSpace("sp1");
+    orders.put("o1", "order of sp1");
+    secrets.put("s1", "value");
+    setSpace("sp2");
+    orders.put("o1", "order of sp2");
+
+    cacheManager.evictSpace("sp1");
+
+    assertEquals("order of sp2", orders.get("o1", String.class));
+    assertEquals("value", secrets.get("s1", String.class));
+    setSpace("sp1");
+    assertNull(orders.get("o1"));
+  }
+
+  @Test
+  void cachesAreBuiltFromTheirSpec() {
+    TenantCaffeineCache plans = cacheManager.getCache("plans");
+    TenantCaffeineCache orders = cacheManager.getCache("orders");
+
+    assertEquals(5, plans.getNativeCache().policy().eviction().orElseThrow().getMaximum());
+    assertEquals(100, orders.getNativeCache().policy().eviction().orElseThrow().getMaximum());
+    assertTrue(plans.getNativeCache().policy().refreshAfterWrite().isPresent());
+    assertEquals(Set.of("plans", "orders"), Set.copyOf(cacheManager.getCacheNames()));
+    assertThrows(IllegalArgumentException.class, () -> new TenantCacheManager(gcpServiceProject,
+        "maximumSize=100", Map.of("plans", "maximumSize=lots"), Set.of()));
+  }
+
+  @Test
+  void refreshDropsEntriesInsteadOfCallingTheirLoaderAgain() throws InterruptedException {
+    TenantCaffeineCache plans = cacheManager.getCache("plans");
+    AtomicInteger calls = new AtomicInteger();
+    setSpace("sp1");
+    assertEquals("v1", plans.get("p1", () -> "v" + calls.incrementAndGet()));
+    plans.put("p2", "put directly");
+
+    plans.getNativeCache().refresh(new TenantKey<>("sp1", "p1")).join();
+    plans.getNativeCache().refresh(new TenantKey<>("sp1", "p2")).join();
+    // The refresh future completes before Caffeine drops the entries its null reload left behind
+    for (int i = 0; i < 100 && plans.getNativeCache().estimatedSize() > 0; i++) {
+      Thread.sleep(20);
+    }
+
+    assertEquals(1, calls.get());
+    assertNull(plans.get("p1"));
+    assertNull(plans.get("p2"));
+    assertEquals("v2", plans.get("p1", () -> "v" + calls.incrementAndGet()));
+  }
+
+  @Test
+  void loaderFailuresAreNotCached() {
+    Cache cache = cacheManager.getCache("orders");
+    setSpace("sp1");
+
+    assertThrows(Cache.ValueRetrievalException.class, () -> cache.get("o1", () -> {
+      throw new IllegalStateException("down");
+    }));
+    assertEquals("order", cache.get("o1", () -> "order"));
+  }
+
+  @Test
+  void statisticsAreRegistered() {
+    CacheMetricsRegistry cacheMetricsRegistry =
+        new CacheMetricsRegistry(new SimpleMeterRegistry(), gcpServiceProject);
+    cacheManager.getCache("orders");
+    cacheManager.setCacheMetricsRegistry(cacheMetricsRegistry);
+    cacheManager.getCache("plans");
+
+    assertTrue(cacheMetricsRegistry.getCaches().keySet().containsAll(List.of("orders", "plans")));
+  }
+
+  private static void setSpace(String spaceId) {
+    ContextInfo ctx = new ContextInfo();
+    ctx.setSpaceId(spaceId);
+    RequestContext.setRequestContextDetails(ctx);
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.metric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.cache.CacheCapacity;
+import com.cmile.serviceutil.cache.CacheManager;
+import com.cmile.serviceutil.cache.CacheMemoryBudget;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class CacheMetricsRegistryTest {
+
+  private SimpleMeterRegistry meterRegistry;
+  private CacheMetricsRegistry cacheMetricsRegistry;
+
+  @BeforeEach
+  void setUp() {
+    GCPServiceProject gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getApplicationName()).thenReturn("test-service");
+    when(gcpServiceProject.getAppDeploymentScope()).thenReturn("SPACE");
+    meterRegistry = new SimpleMeterRegistry();
+    cacheMetricsRegistry = new CacheMetricsRegistry(meterRegistry, gcpServiceProject);
+  }
+
+  @Test
+  void testCacheManagerStatsAreExported() {
+    CacheManager<String, String> cacheManager = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    cacheManager.setLoader(key -> "Value for " + key);
+    cacheManager.setCacheMetricsRegistry(cacheMetricsRegistry);
+
+    cacheManager.getCache("a");
+    cacheManager.getCache("a");
+    cacheManager.getCache("b");
+
+    assertEquals(1.0, meterRegistry.get("cache.gets")
+        .tags("cache", "CacheManager", "result", "hit", "serviceName", "test-service", "scope", "space")
+        .functionCounter().count());
+    assertEquals(2.0, meterRegistry.get("cache.gets")
+        .tags("cache", "CacheManager", "result", "miss").functionCounter().count());
+    assertEquals(2.0, meterRegistry.get("cache.size").tags("cache", "CacheManager").gauge().value());
+    assertEquals(2.0, meterRegistry.get("cache.load")
+        .tags("cache", "CacheManager", "result", "success").functionCounter().count());
+    assertNotNull(meterRegistry.find("cache.load.duration").tags("cache", "CacheManager").meter());
+  }
+
+  @Test
+  void testSecondCacheWithSameNameIsNotRegistered() {
+    CacheManager<String, String> first = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    CacheManager<String, String> second = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    first.setCacheMetricsRegistry(cacheMetricsRegistry);
+    second.setCacheMetricsRegistry(cacheMetricsRegistry);
+
+    assertEquals(1, cacheMetricsRegistry.getCaches().size());
+  }
+
+  @Test
+  void testWeightedCacheReportsItsBytes() {
+    CacheManager<String, String> weighted =
+        new CacheManager<>(1, TimeUnit.MINUTES, CacheCapacity.bytes(10_000)) {
+          @Override
+          public String getCacheName() {
+            return "WeightedCache";
+          }
+
+          @Override
+          public int weigh(String key, String value) {
+            return value.length();
+          }
+        };
+    weighted.setLoader(key -> "x".repeat(4_000));
+    weighted.setCacheMetricsRegistry(cacheMetricsRegistry);
+    weighted.getCache("a");
+    weighted.getCache("b");
+    weighted.getCache("c");
+    cacheMetricsRegistry.getCaches().get("WeightedCache").cleanUp();
+
+    double weightedSize = meterRegistry.get(CacheMetricsRegistry.WEIGHTED_SIZE_METER)
+        .tags("cache", "WeightedCache").gauge().value();
+    assertTrue(weightedSize > 0 && weightedSize <= 10_000, "An entry should be evicted to stay in budget");
+    assertEquals(10_000.0, meterRegistry.get(CacheMetricsRegistry.MAX_WEIGHT_METER)
+        .tags("cache", "WeightedCache").gauge().value());
+
+    weighted.setCacheMemoryBudget(new CacheMemoryBudget(5_000));
+    assertEquals(5_000.0, meterRegistry.get(CacheMetricsRegistry.MAX_WEIGHT_METER)
+        .tags("cache", "WeightedCache").gauge().value());
+  }
+
+  @Test
+  void testNegativeEntriesAreCounted() {
+    CacheManager<String, String> cacheManager = new CacheManager<>(1, TimeUnit.MINUTES, 10);
+    cacheManager.setNegativeCaching(Duration.ofMinutes(1), 10);
+    cacheManager.setLoader(key -> null);
+    cacheManager.setCacheMetricsRegistry(cacheMetricsRegistry);
+
+    cacheManager.getCache("missing");
+    cacheManager.getCache("missing");
+    cacheManager.getCache("missing");
+
+    assertEquals(1.0, meterRegistry.get("cache.negative")
+        .tags("cache", "CacheManager", "result", CacheManager.NEGATIVE_STORED).counter().count());
+    assertEquals(2.0, meterRegistry.get("cache.negative")
+        .tags("cache", "CacheManager", "result", CacheManager.NEGATIVE_HIT).counter().count());
+    assertEquals(1.0, meterRegistry.get("cache.size").tags("cache", "CacheManager.negative").gauge().value());
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.metric;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.RequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class MetricsServiceTest {
+
+  @AfterEach
+  void tearDown() {
+    RequestContext.clear();
+  }
+
+  @Test
+  void testGaugesAreNotTaggedWithTheRequestSpace() {
+    GCPServiceProject serviceProject = mock(GCPServiceProject.class);
+    when(serviceProject.getApplicationName()).thenReturn("app");
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    MetricsService metrics = new MetricsService(serviceProject, meterRegistry, List.of());
+    ContextInfo context = new ContextInfo();
+    context.setDuId("du");
+    context.setSpaceId("sp1");
+    RequestContext.setRequestContextDetails(context);
+    AtomicInteger pending = new AtomicInteger(3);
+
+    metrics.registerGauge("cache.pending", pending, AtomicInteger::get, Map.of("entity", "c"));
+
+    Gauge gauge = meterRegistry.get("cache.pending").tag("entity", "c").gauge();
+    assertEquals(3.0, gauge.value());
+    assertEquals("app", gauge.getId().getTag(MetricsService.SERVICE_NAME_TAG));
+    assertNull(gauge.getId().getTag(MetricsService.SPACE_ID_TAG));
+  }
+
+  @Test
+  void testCountersAddTheWholeAmount() {
+    GCPServiceProject serviceProject = mock(GCPServiceProject.class);
+    when(serviceProject.getApplicationName()).thenReturn("app");
+    SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    MetricsService metrics = new MetricsService(serviceProject, meterRegistry, List.of());
+
+    metrics.incrementCounter("cache.dropped", 3, Map.of("entity", "c"));
+    metrics.incrementCounter("cache.dropped", 2, Map.of("entity", "c"));
+
+    assertEquals(5.0, meterRegistry.get("cache.dropped").tag("entity", "c").counter().count());
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.mongodb.client.MongoDatabase;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.core.MongoExceptionTranslator;
+import org.springframework.data.mongodb.core.ReplaceOptions;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionSynchronizationUtils;
+
+public class CachingMongoTemplateTest {
+
+  private MongoQueryCache queryCache;
+  private CachingMongoTemplate template;
+  private AtomicInteger reads;
+
+  @BeforeEach
+  void setUp() {
+    queryCache = new MongoQueryCache(1024 * 1024, Duration.ofMinutes(1), Map.of());
+    MongoDatabase database = mock(MongoDatabase.class, RETURNS_DEEP_STUBS);
+    MongoDatabaseFactory databaseFactory = mock(MongoDatabaseFactory.class);
+    when(databaseFactory.getMongoDatabase()).thenReturn(database);
+    when(databaseFactory.getMongoDatabase(any())).thenReturn(database);
+    when(databaseFactory.getExceptionTranslator()).thenReturn(new MongoExceptionTranslator());
+    template = new CachingMongoTemplate(databaseFactory, null, "sp1", queryCache);
+    reads = new AtomicInteger();
+  }
+
+  @AfterEach
+  void tearDown() {
+    if (TransactionSynchronizationManager.isSynchronizationActive()) {
+      TransactionSynchronizationManager.clear();
+    }
+  }
+
+  @Test
+  void replaceInvalidatesTheCollection() {
+    read();
+    template.replace(
+        Query.query(Criteria.where("_id").is("o1")),
+        new Document("_id", "o1"),
+        ReplaceOptions.none(),
+        "orders");
+    read();
+
+    assertEquals(2, reads.get());
+  }
+
+  @Test
+  void writesInATransactionInvalidateOnCommit() {
+    read();
+    TransactionSynchronizationManager.initSynchronization();
+    TransactionSynchronizationManager.setActualTransactionActive(true);
+
+    template.dropCollection("orders");
+    template.dropCollection("orders");
+    TransactionSynchronizationManager.setActualTransactionActive(false);
+    // Still the committed data for everybody else
+    read();
+    assertEquals(1, reads.get());
+
+    var synchronizations = TransactionSynchronizationManager.getSynchronizations();
+    assertEquals(1, synchronizations.size());
+    TransactionSynchronizationUtils.invokeAfterCommit(synchronizations);
+    TransactionSynchronizationUtils.invokeAfterCompletion(
+        synchronizations, TransactionSynchronization.STATUS_COMMITTED);
+    TransactionSynchronizationManager.clearSynchronization();
+
+    read();
+    assertEquals(2, reads.get());
+    assertEquals(Map.of(), TransactionSynchronizationManager.getResourceMap());
+  }
+
+  private void read() {
+    queryCache.get(
+        "sp1", "orders", "find", Document.class, new Query(), null,
+        () -> "result " + reads.incrementAndGet());
+  }
+}
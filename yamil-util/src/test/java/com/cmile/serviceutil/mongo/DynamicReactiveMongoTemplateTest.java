@@ -0,0 +1,97 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.auth.ReactiveRequestContext;
+import com.cmile.serviceutil.auth.jwt.ContextInfo;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.cmile.serviceutil.secret.entity.MongoDatabaseEntity;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+
+public class DynamicReactiveMongoTemplateTest {
+
+  private MongoCacheManager mongoCacheManager;
+  private MongoClientRegistry registry;
+  private DynamicReactiveMongoTemplate provider;
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void setUp() {
+    mongoCacheManager = mock(MongoCacheManager.class);
+    GCPServiceProject gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getAppDeploymentScope()).thenReturn("SPACE");
+    registry =
+        new MongoClientRegistry(
+            10,
+            Duration.ofMinutes(30),
+            Duration.ofSeconds(5),
+            false,
+            200,
+            50,
+            mock(ObjectProvider.class));
+    provider = new DynamicReactiveMongoTemplate(mongoCacheManager, gcpServiceProject, registry);
+  }
+
+  @AfterEach
+  void tearDown() {
+    registry.destroy();
+  }
+
+  @Test
+  void resolvesTheTenantFromTheReactorContext() {
+    MongoDatabaseEntity databaseEntity = mock(MongoDatabaseEntity.class);
+    when(databaseEntity.getConnectionString()).thenReturn("mongodb://localhost:1");
+    when(databaseEntity.getDatabase()).thenReturn("sp1db");
+    when(mongoCacheManager.getCache("sp1")).thenReturn(databaseEntity);
+
+    ReactiveMongoTemplate first = template("sp1");
+    ReactiveMongoTemplate second = template("sp1");
+
+    assertSame(first, second);
+    assertEquals("sp1db", first.getMongoDatabase().block().getName());
+    verify(mongoCacheManager, times(1)).getCache("sp1");
+    assertSame(first, registry.findReactiveMongoTemplate("sp1"));
+  }
+
+  @Test
+  void usesTheDefaultSpaceWithoutAContext() {
+    ReactiveMongoTemplate template = provider.getReactiveMongoTemplate().block();
+
+    assertEquals(DynamicMongoTemplate.DEFAULT_SPACE_ID, template.getMongoDatabase().block().getName());
+  }
+
+  private ReactiveMongoTemplate template(String spaceId) {
+    ContextInfo contextInfo = new ContextInfo();
+    contextInfo.setSpaceId(spaceId);
+    return provider
+        .getReactiveMongoTemplate()
+        .contextWrite(ReactiveRequestContext.withRequestContextDetails(contextInfo))
+        .block();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.cmile.serviceutil.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+public class MongoQueryCacheTest {
+
+  private MongoQueryCache queryCache;
+  private AtomicInteger reads;
+
+  @BeforeEach
+  void setUp() {
+    queryCache =
+        new MongoQueryCache(
+            1024 * 1024, Duration.ofMinutes(1), Map.of("audit", Duration.ofMillis(1)));
+    reads = new AtomicInteger();
+  }
+
+  @Test
+  void equalQueriesShareAnEntry() {
+    find("sp1", "orders", Query.query(Criteria.where("status").is("open").and("type").is("a")));
+    find("sp1", "orders", Query.query(Criteria.where("type").is("a").and("status").is("open")));
+
+    assertEquals(1, reads.get());
+  }
+
+  @Test
+  void entriesAreKeyedByTenantAndQueryShape() {
+    Query query = Query.query(Criteria.where("status").is("open"));
+    find("sp1", "orders", query);
+    find("sp2", "orders", query);
+    find("sp1", "invoices", query);
+    find("sp1", "orders", Query.query(Criteria.where("status").is("open")).limit(5));
+    find("sp1", "orders", Query.query(Criteria.where("status").is("open")).skip(5));
+    Query projected = Query.query(Criteria.where("status").is("open"));
+    projected.fields().include("status");
+    find("sp1", "orders", projected);
+
+    assertEquals(6, reads.get());
+  }
+
+  @Test
+  void sortOrderIsPartOfTheKey() {
+    find("sp1", "orders", new Query().with(Sort.by("a", "b")));
+    find("sp1", "orders", new Query().with(Sort.by("b", "a")));
+    find("sp1", "orders", new Query().with(Sort.by("a", "b")));
+
+    assertEquals(2, reads.get());
+  }
+
+  @Test
+  void invalidationOnlyHitsTheCollectionOfTheTenant() {
+    Query query = new Query();
+    find("sp1", "orders", query);
+    find("sp2", "orders", query);
+    find("sp1", "invoices", query);
+
+    queryCache.invalidate("sp1", "orders");
+    find("sp1", "orders", query);
+    find("sp2", "orders", query);
+    find("sp1", "invoices", query);
+
+    assertEquals(4, reads.get());
+  }
+
+  @Test
+  void collectionsExpireAfterTheirOwnTtl() throws InterruptedException {
+    find("sp1", "audit", new Query());
+    Thread.sleep(5);
+    find("sp1", "audit", new Query());
+
+    assertEquals(2, reads.get());
+    assertEquals(Duration.ofMinutes(1), queryCache.getTtl("orders"));
+  }
+
+  @Test
+  void nullResultsAreCached() {
+    for (int i = 0; i < 2; i++) {
+      assertNull(
+          queryCache.get(
+              "sp1", "orders", "findById", String.class, null, "o1",
+              () -> {
+                reads.incrementAndGet();
+                return null;
+              }));
+    }
+    assertEquals(1, reads.get());
+  }
+
+  @Test
+  void callersGetTheirOwnList() {
+    List<String> first = find("sp1", "orders", new Query());
+    first.clear();
+
+    assertEquals(List.of("o1", "o2"), find("sp1", "orders", new Query()));
+  }
+
+  private List<String> find(String tenant, String collectionName, Query query) {
+    return queryCache.get(
+        tenant, collectionName, "find", String.class, query, null,
+        () -> {
+          reads.incrementAndGet();
+          return new ArrayList<>(List.of("o1", "o2"));
+        });
+  }
+}
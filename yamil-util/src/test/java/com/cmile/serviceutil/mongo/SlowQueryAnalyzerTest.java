@@ -0,0 +1,207 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.cmile.serviceutil.mongo.SlowQueryAnalyzer.SlowQueryReport;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SlowQueryAnalyzerTest {
+
+  private static final ConnectionDescription CONNECTION =
+      new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+
+  private SlowQueryAnalyzer analyzer;
+  private CommandListener listener;
+  private int requestId;
+
+  @BeforeEach
+  void setUp() {
+    analyzer = new SlowQueryAnalyzer(Duration.ofMillis(100), 100);
+    listener = analyzer.listener(database -> database.replace("db", ""));
+  }
+
+  @Test
+  void aggregatesSlowCommandsByShape() {
+    run("sp1db", "{find: 'orders', filter: {status: 'open', total: {$gt: 10}}}", 200);
+    run("sp1db", "{find: 'orders', filter: {status: 'closed', total: {$gt: 99}}}", 400);
+    run("sp1db", "{find: 'orders', filter: {status: 'open'}}", 50);
+
+    List<SlowQueryReport> shapes = analyzer.getTopShapes(10);
+
+    assertEquals(1, shapes.size());
+    SlowQueryReport report = shapes.get(0);
+    assertEquals("sp1", report.space());
+    assertEquals("orders", report.collection());
+    assertEquals(BsonDocument.parse("{status: '?', total: {$gt: '?'}}").toJson(), report.filter());
+    assertEquals(2, report.count());
+    assertEquals(600, report.totalMillis(), 0.001);
+    assertEquals(400, report.maxMillis(), 0.001);
+  }
+
+  @Test
+  void ordersShapesByTotalTime() {
+    run("sp1db", "{find: 'orders', filter: {status: 'open'}}", 150);
+    run("sp2db", "{count: 'invoices', query: {paid: false}}", 900);
+
+    List<SlowQueryReport> shapes = analyzer.getTopShapes(1);
+
+    assertEquals(1, shapes.size());
+    assertEquals("invoices", shapes.get(0).collection());
+    assertEquals("sp2", shapes.get(0).space());
+  }
+
+  @Test
+  void suggestsEqualitySortRangeIndexes() {
+    QueryShape shape =
+        QueryShape.of(
+            "sp1",
+            "find",
+            BsonDocument.parse(
+                "{find: 'orders', filter: {total: {$gte: 10}, status: 'open',"
+                    + " region: {$in: ['eu', 'us']}}, sort: {createdAt: -1}}"));
+
+    assertEquals(
+        BsonDocument.parse("{status: 1, region: 1, createdAt: -1, total: 1}").toJson(),
+        shape.index());
+  }
+
+  @Test
+  void skipsQueriesServedByTheIdIndex() {
+    assertNull(
+        QueryShape.of("sp1", "find", BsonDocument.parse("{find: 'orders', filter: {_id: 1}}"))
+            .index());
+    assertNull(QueryShape.of("sp1", "insert", BsonDocument.parse("{insert: 'orders'}")));
+  }
+
+  @Test
+  void resetClearsTheShapes() {
+    run("sp1db", "{delete: 'orders', deletes: [{q: {status: 'closed'}, limit: 0}]}", 300);
+    assertTrue(analyzer.getTopShapes(10).get(0).suggestedIndex().contains("status"));
+
+    analyzer.reset();
+
+    assertTrue(analyzer.getTopShapes(10).isEmpty());
+  }
+
+  @Test
+  void shapesTheCommandEvenAfterTheDriverReleasedIt() {
+    requestId++;
+    BsonDocument document = BsonDocument.parse("{find: 'orders', filter: {status: 'open'}}");
+    listener.commandStarted(
+        new CommandStartedEvent(null, 1, requestId, CONNECTION, "sp1db", "find", document));
+    document.clear();
+    listener.commandSucceeded(
+        new CommandSucceededEvent(
+            null, 1, requestId, CONNECTION, "sp1db", "find", new BsonDocument(),
+            TimeUnit.MILLISECONDS.toNanos(300)));
+
+    assertEquals(
+        BsonDocument.parse("{status: '?'}").toJson(), analyzer.getTopShapes(1).get(0).filter());
+  }
+
+  @Test
+  void onlyCopiesThePartsOfACommandAShapeIsMadeOf() {
+    BsonDocument update =
+        BsonDocument.parse(
+            "{update: 'orders', updates: [{q: {status: 'open'}, u: {$set: {status: 'closed'}}},"
+                + " {q: {region: 'eu'}, u: {$inc: {total: 1}}}], ordered: true}");
+    BsonDocument aggregate =
+        BsonDocument.parse(
+            "{aggregate: 'orders', pipeline: [{$match: {status: 'open'}}, {$group: {_id: '$region'}},"
+                + " {$sort: {_id: 1}}], cursor: {}}");
+
+    assertEquals(
+        BsonDocument.parse("{update: 'orders', updates: [{q: {status: 'open'}}]}"),
+        QueryShape.queryOf("update", update));
+    assertEquals(
+        BsonDocument.parse(
+            "{aggregate: 'orders', pipeline: [{$match: {status: 'open'}}, {$sort: {_id: 1}}]}"),
+        QueryShape.queryOf("aggregate", aggregate));
+    assertEquals(
+        QueryShape.of("sp1", "aggregate", aggregate),
+        QueryShape.of("sp1", "aggregate", QueryShape.queryOf("aggregate", aggregate)));
+    assertNull(QueryShape.queryOf("insert", BsonDocument.parse("{insert: 'orders'}")));
+  }
+
+  @Test
+  void countsSlowFailuresButNotFastOnes() {
+    fail("sp1db", "{find: 'orders', filter: {status: 'open'}}", 5000);
+    fail("sp1db", "{find: 'invoices', filter: {paid: false}}", 10);
+    run("sp1db", "{find: 'orders', filter: {status: 'closed'}}", 200);
+
+    List<SlowQueryReport> shapes = analyzer.getTopShapes(10);
+
+    assertEquals(1, shapes.size());
+    assertEquals(2, shapes.get(0).count());
+    assertEquals(1, shapes.get(0).failures());
+    assertEquals(5000, shapes.get(0).maxMillis(), 0.001);
+  }
+
+  private void fail(String database, String command, long millis) {
+    requestId++;
+    BsonDocument document = BsonDocument.parse(command);
+    String commandName = document.getFirstKey();
+    listener.commandStarted(
+        new CommandStartedEvent(null, 1, requestId, CONNECTION, database, commandName, document));
+    listener.commandFailed(
+        new CommandFailedEvent(
+            null,
+            1,
+            requestId,
+            CONNECTION,
+            database,
+            commandName,
+            TimeUnit.MILLISECONDS.toNanos(millis),
+            new MongoTimeoutException("timed out")));
+  }
+
+  private void run(String database, String command, long millis) {
+    requestId++;
+    BsonDocument document = BsonDocument.parse(command);
+    String commandName = document.getFirstKey();
+    listener.commandStarted(
+        new CommandStartedEvent(null, 1, requestId, CONNECTION, database, commandName, document));
+    listener.commandSucceeded(
+        new CommandSucceededEvent(
+            null,
+            1,
+            requestId,
+            CONNECTION,
+            database,
+            commandName,
+            new BsonDocument(),
+            TimeUnit.MILLISECONDS.toNanos(millis)));
+  }
+}
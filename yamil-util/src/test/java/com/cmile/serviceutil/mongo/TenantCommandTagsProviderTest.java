@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.mongo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.cmile.serviceutil.metric.TagValueLimiter;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import java.util.Map;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TenantCommandTagsProviderTest {
+
+  private static final ConnectionDescription CONNECTION =
+      new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+
+  private TenantCommandTagsProvider tagsProvider;
+  private int requestId;
+
+  @BeforeEach
+  void setUp() {
+    Map<String, String> spaces = Map.of("sp1db", "sp1");
+    tagsProvider =
+        new TenantCommandTagsProvider(
+            database -> spaces.getOrDefault(database, TagValueLimiter.UNKNOWN),
+            new TagValueLimiter(2),
+            new TagValueLimiter(10));
+  }
+
+  @Test
+  void tagsCommandsWithTheSpaceOfTheirDatabase() {
+    Tags tags = tags("sp1db", "find", "orders");
+
+    assertEquals("sp1", tag(tags, TenantCommandTagsProvider.SPACE_TAG));
+    assertEquals("orders", tag(tags, TenantCommandTagsProvider.COLLECTION_TAG));
+    assertEquals("find", tag(tags, TenantCommandTagsProvider.COMMAND_TAG));
+    assertEquals(TagValueLimiter.UNKNOWN, tag(tags("other", "find", "orders"), "space"));
+  }
+
+  @Test
+  void dropsTheTagsThatChangeWhenAClientIsReopened() {
+    Tags tags = tags("sp1db", "find", "orders");
+
+    assertNull(tag(tags, "cluster.id"));
+    assertNull(tag(tags, "database"));
+    assertEquals("SUCCESS", tag(tags, "status"));
+  }
+
+  @Test
+  void capsTheNumberOfCollections() {
+    tags("sp1db", "find", "orders");
+    tags("sp1db", "find", "customers");
+
+    assertEquals(TagValueLimiter.OTHER, tag(tags("sp1db", "find", "invoices"), "collection"));
+    assertEquals("orders", tag(tags("sp1db", "insert", "orders"), "collection"));
+  }
+
+  private Tags tags(String database, String command, String collection) {
+    requestId++;
+    tagsProvider.commandStarted(
+        new CommandStartedEvent(
+            null,
+            1,
+            requestId,
+            CONNECTION,
+            database,
+            command,
+            new BsonDocument(command, new BsonString(collection))));
+    return Tags.of(
+        tagsProvider.commandTags(
+            new CommandSucceededEvent(
+                null, 1, requestId, CONNECTION, database, command, new BsonDocument(), 1000)));
+  }
+
+  private static String tag(Tags tags, String key) {
+    return tags.stream()
+        .filter(tag -> tag.getKey().equals(key))
+        .map(Tag::getValue)
+        .findFirst()
+        .orElse(null);
+  }
+}
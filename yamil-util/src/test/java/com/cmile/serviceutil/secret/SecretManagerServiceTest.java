@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.secret;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cmile.serviceutil.common.json.JsonEntityMapper;
+import com.cmile.serviceutil.gcp.GCPServiceProject;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.cloud.secretmanager.v1.AccessSecretVersionRequest;
+import com.google.cloud.secretmanager.v1.AccessSecretVersionResponse;
+import com.google.cloud.secretmanager.v1.SecretManagerServiceClient;
+import com.google.cloud.secretmanager.v1.SecretPayload;
+import com.google.protobuf.ByteString;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+
+public class SecretManagerServiceTest {
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void testGetSecretsOnlyRequestsTheSecretsThatAreNotCached() throws Exception {
+    GCPServiceProject gcpServiceProject = mock(GCPServiceProject.class);
+    when(gcpServiceProject.getProjectId()).thenReturn("project");
+    SecretManagerServiceClient client = mock(SecretManagerServiceClient.class);
+    UnaryCallable<AccessSecretVersionRequest, AccessSecretVersionResponse> callable =
+        mock(UnaryCallable.class);
+    when(client.accessSecretVersionCallable()).thenReturn(callable);
+    when(callable.futureCall(any(AccessSecretVersionRequest.class)))
+        .thenReturn(ApiFutures.immediateFuture(AccessSecretVersionResponse.newBuilder()
+            .setPayload(SecretPayload.newBuilder().setData(ByteString.copyFromUtf8("fetched")))
+            .build()));
+    SecretManagerService secretManagerService = new SecretManagerService(
+        gcpServiceProject, client, new JsonEntityMapper(new ObjectMapper()));
+    ConcurrentMapCache secretsCache = new ConcurrentMapCache(SecretManagerService.SECRETS_CACHE);
+    secretManagerService.setSecretsCache(secretsCache);
+    secretsCache.put("open-ai-key", "cached");
+
+    Map<String, String> secrets = secretManagerService.getSecrets(
+        SecretTypeEnum.OPEN_AI_KEY, List.of("a"));
+    Map<String, String> keys = secretManagerService.getSecrets(
+        SecretTypeEnum.GOOGLE_MAP_KEY, List.of("b"));
+    secretManagerService.getSecrets(SecretTypeEnum.GOOGLE_MAP_KEY, List.of("b"));
+
+    assertEquals(Map.of("a", "cached"), secrets);
+    assertEquals(Map.of("b", "fetched"), keys);
+    assertEquals("fetched", secretsCache.get("google-map-key", String.class));
+    verify(callable, times(1)).futureCall(any(AccessSecretVersionRequest.class));
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.sqlconnection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.zaxxer.hikari.metrics.PoolStats;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class SpaceMetricsTrackerTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  void tagsPoolMetersWithTheSpace() {
+    SpaceMetricsTracker tracker =
+        new SpaceMetricsTracker(meterRegistry, "postgres-sp1", "sp1", new FixedPoolStats(4, 3));
+
+    tracker.recordConnectionAcquiredNanos(TimeUnit.MILLISECONDS.toNanos(5));
+    tracker.recordConnectionTimeout();
+
+    assertEquals(
+        4.0,
+        meterRegistry
+            .get("hikaricp.connections")
+            .tag(SpaceMetricsTracker.SPACE_TAG, "sp1")
+            .gauge()
+            .value());
+    assertEquals(
+        3.0,
+        meterRegistry.get("hikaricp.connections.active").tag("pool", "postgres-sp1").gauge().value());
+    assertEquals(
+        1, meterRegistry.get("hikaricp.connections.acquire").tag("space", "sp1").timer().count());
+    assertEquals(
+        1.0, meterRegistry.get("hikaricp.connections.timeout").tag("space", "sp1").counter().count());
+  }
+
+  @Test
+  void removesTheMetersOfAClosedPool() {
+    SpaceMetricsTracker tracker =
+        new SpaceMetricsTracker(meterRegistry, "postgres-sp1", "sp1", new FixedPoolStats(1, 0));
+
+    tracker.close();
+
+    assertTrue(meterRegistry.getMeters().isEmpty());
+  }
+
+  private static final class FixedPoolStats extends PoolStats {
+    private FixedPoolStats(int total, int active) {
+      super(0);
+      totalConnections = total;
+      activeConnections = active;
+    }
+
+    @Override
+    protected void update() {}
+  }
+}
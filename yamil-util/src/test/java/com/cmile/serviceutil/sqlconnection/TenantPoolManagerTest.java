@@ -0,0 +1,273 @@
+/*
+ * Copyright 2024 cmile inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cmile.serviceutil.sqlconnection;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import javax.sql.DataSource;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+public class TenantPoolManagerTest {
+
+  private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+  private final List<Connection> borrowed = new ArrayList<>();
+  private TenantPoolManager manager;
+
+  @AfterEach
+  void tearDown() throws SQLException {
+    for (Connection connection : borrowed) {
+      connection.close();
+    }
+    manager.destroy();
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsedIdlePoolToFitANewTenant() throws Exception {
+    manager = manager(4, 2, 4, Duration.ofHours(1));
+    HikariConnectionProvider sp1 = pool("sp1");
+    pool("sp2");
+
+    pool("sp3");
+
+    assertEquals(4, manager.getAllocated());
+    assertEquals(1.0, meterRegistry.get(TenantPoolManager.UTILIZATION_METER).gauge().value());
+    assertEquals(
+        1.0,
+        meterRegistry.get(TenantPoolManager.EVICTIONS_METER).tag("cause", "budget").counter().count());
+    awaitClosed(sp1);
+  }
+
+  @Test
+  void sparesPoolsHandedOutWithinTheGracePeriod() throws Exception {
+    manager = manager(4, 2, 4, Duration.ofHours(1), Duration.ofHours(1));
+    HikariConnectionProvider sp1 = pool("sp1");
+    HikariConnectionProvider sp2 = pool("sp2");
+
+    pool("sp3");
+
+    // Both pools are shrunk to make room instead of closed
+    assertFalse(sp1.getDataSource().isClosed());
+    assertFalse(sp2.getDataSource().isClosed());
+    assertEquals(1, sp1.getDataSource().getMaximumPoolSize());
+    assertEquals(1, sp2.getDataSource().getMaximumPoolSize());
+    assertEquals(4, manager.getAllocated());
+  }
+
+  @Test
+  void shrinkingClosesTheConnectionsGivenUp() throws Exception {
+    manager = manager(4, 2, 4, Duration.ofHours(1), Duration.ofHours(1));
+    HikariConnectionProvider sp1 = pool("sp1");
+    borrow(sp1, 2);
+    for (Connection connection : borrowed) {
+      connection.close();
+    }
+    borrowed.clear();
+    pool("sp2");
+
+    pool("sp3");
+
+    // The idle connections close at once rather than after Hikari's idle timeout
+    assertEquals(1, sp1.getDataSource().getMaximumPoolSize());
+    awaitTotalConnections(sp1, 0);
+    assertEquals(4, manager.getAllocated());
+  }
+
+  @Test
+  void buildsAPoolWithoutHoldingUpOtherTenants() throws Exception {
+    manager = manager(4, 2, 4, Duration.ofHours(1));
+    CountDownLatch building = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    IntFunction<HikariConnectionProvider> slowFactory =
+        size -> {
+          building.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return newPool("slow", size);
+        };
+    CompletableFuture<ConnectionProvider> first =
+        CompletableFuture.supplyAsync(() -> manager.getConnectionProvider("slow", slowFactory));
+    assertTrue(building.await(5, TimeUnit.SECONDS));
+    CompletableFuture<ConnectionProvider> second =
+        CompletableFuture.supplyAsync(() -> manager.getConnectionProvider("slow", slowFactory));
+
+    pool("sp1");
+
+    assertEquals(4, manager.getAllocated());
+    assertFalse(first.isDone());
+    release.countDown();
+    assertSame(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+    assertEquals(4, manager.getAllocated());
+  }
+
+  @Test
+  void releasesTheBudgetOfAPoolThatFailsToOpen() {
+    manager = manager(4, 2, 4, Duration.ofHours(1));
+
+    assertThrows(
+        IllegalStateException.class,
+        () ->
+            manager.getConnectionProvider(
+                "sp1",
+                size -> {
+                  throw new IllegalStateException("No secret");
+                }));
+
+    assertEquals(0, manager.getAllocated());
+    pool("sp1");
+    assertEquals(2, manager.getAllocated());
+  }
+
+  @Test
+  void growsASaturatedPoolWithinTheBudget() throws Exception {
+    manager = manager(6, 2, 8, Duration.ofHours(1));
+    HikariConnectionProvider sp1 = pool("sp1");
+    HikariConnectionProvider sp2 = pool("sp2");
+    borrow(sp1, 2);
+
+    manager.rebalance();
+
+    assertEquals(4, sp1.getDataSource().getMaximumPoolSize());
+    assertEquals(6, manager.getAllocated());
+
+    borrow(sp1, 2);
+    manager.rebalance();
+
+    // The budget is spent, so sp1 only gets what sp2 holds but does not use
+    assertEquals(5, sp1.getDataSource().getMaximumPoolSize());
+    assertEquals(1, sp2.getDataSource().getMaximumPoolSize());
+    assertEquals(6, manager.getAllocated());
+  }
+
+  @Test
+  void closesIdlePools() throws Exception {
+    manager = manager(4, 2, 4, Duration.ZERO);
+    HikariConnectionProvider sp1 = pool("sp1");
+    HikariConnectionProvider sp2 = pool("sp2");
+    borrow(sp2, 1);
+
+    manager.rebalance();
+
+    assertEquals(2, manager.getAllocated());
+    assertSame(sp2, pool("sp2"));
+    awaitClosed(sp1);
+    assertNotSame(sp1, pool("sp1"));
+    assertEquals(
+        1.0,
+        meterRegistry.get(TenantPoolManager.EVICTIONS_METER).tag("cause", "idle").counter().count());
+  }
+
+  private TenantPoolManager manager(int budget, int initialSize, int maxSize, Duration idleTimeout) {
+    return manager(budget, initialSize, maxSize, idleTimeout, Duration.ZERO);
+  }
+
+  private TenantPoolManager manager(
+      int budget, int initialSize, int maxSize, Duration idleTimeout, Duration evictGrace) {
+    StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+    beanFactory.addBean("meterRegistry", meterRegistry);
+    return new TenantPoolManager(
+        budget,
+        initialSize,
+        maxSize,
+        idleTimeout,
+        evictGrace,
+        Duration.ofSeconds(5),
+        Duration.ofHours(1),
+        beanFactory.getBeanProvider(MeterRegistry.class));
+  }
+
+  private HikariConnectionProvider pool(String tenant) {
+    IntFunction<HikariConnectionProvider> factory = size -> newPool(tenant, size);
+    ConnectionProvider provider = manager.getConnectionProvider(tenant, factory);
+    return (HikariConnectionProvider) provider;
+  }
+
+  private void borrow(HikariConnectionProvider provider, int count) throws SQLException {
+    for (int i = 0; i < count; i++) {
+      borrowed.add(provider.getConnection());
+    }
+  }
+
+  private static void awaitClosed(HikariConnectionProvider provider) throws InterruptedException {
+    for (int i = 0; i < 100 && !provider.getDataSource().isClosed(); i++) {
+      Thread.sleep(20);
+    }
+    assertTrue(provider.getDataSource().isClosed());
+  }
+
+  private static void awaitTotalConnections(HikariConnectionProvider provider, int total)
+      throws InterruptedException {
+    HikariPoolMXBean stats = provider.getDataSource().getHikariPoolMXBean();
+    for (int i = 0; i < 100 && stats.getTotalConnections() != total; i++) {
+      Thread.sleep(20);
+    }
+    assertEquals(total, stats.getTotalConnections());
+  }
+
+  private static HikariConnectionProvider newPool(String tenant, int size) {
+    HikariConfig config = new HikariConfig();
+    config.setPoolName("postgres-" + tenant);
+    config.setDataSource(stubDataSource());
+    config.setMaximumPoolSize(size);
+    config.setMinimumIdle(0);
+    config.setConnectionTimeout(5000);
+    config.setInitializationFailTimeout(-1);
+    return new HikariConnectionProvider(config);
+  }
+
+  private static DataSource stubDataSource() {
+    DataSource dataSource = mock(DataSource.class);
+    try {
+      when(dataSource.getConnection())
+          .thenAnswer(
+              invocation -> {
+                Connection connection = mock(Connection.class);
+                when(connection.isValid(anyInt())).thenReturn(true);
+                return connection;
+              });
+    } catch (SQLException e) {
+      throw new IllegalStateException(e);
+    }
+    return dataSource;
+  }
+}